@@ -21,6 +21,7 @@ import java.awt.*;
 import Hack.Gates.*;
 import Hack.Utilities.*;
 import SimulatorsGUI.*;
+import Hack.CPUEmulator.ALUGUI;
 import Hack.Assembler.*;
 
 /**
@@ -36,10 +37,10 @@ import Hack.Assembler.*;
 /*        if (out=0) zr=1 else zr=0  //  comparision is 16-bit equality
 /*        if (out<0) ng=1 else ng=0  //  comparision in 2s-complement
  */
-public class ALU extends BuiltInGateWithGUI {
+public class ALU extends BuiltInGateWithGUI implements BitSlicedGate {
 
     // The gui;
-    private ALUComponent gui;
+    private ALUGUI gui;
 
     // An assembler transltor
     protected HackAssemblerTranslator assemblerTranslator;
@@ -49,8 +50,9 @@ public class ALU extends BuiltInGateWithGUI {
      */
     public ALU() {
         if (GatesManager.getInstance().isChipsGUIEnabled()) {
-            gui = new ALUComponent();
-            gui.setLocation(80,468);
+            ALUComponent component = new ALUComponent();
+            component.setLocation(80,468);
+            gui = component;
             gui.reset();
         }
 
@@ -58,7 +60,7 @@ public class ALU extends BuiltInGateWithGUI {
     }
 
     public Component getGUIComponent() {
-        return gui;
+        return (Component)gui;
     }
 
     public void reCompute() {
@@ -97,6 +99,29 @@ public class ALU extends BuiltInGateWithGUI {
             gui.setValueAt(2, result);
     }
 
+    public void evalSliced(long[] lanes, int[][] inputs, int[][] outputs) {
+        long zx = lanes[inputs[2][0]];
+        long nx = lanes[inputs[3][0]];
+        long zy = lanes[inputs[4][0]];
+        long ny = lanes[inputs[5][0]];
+        long f = lanes[inputs[6][0]];
+        long no = lanes[inputs[7][0]];
+        long carry = 0, nonZero = 0, out = 0;
+
+        for (int i = 0; i < outputs[0].length; i++) {
+            long x = (lanes[inputs[0][i]] & ~zx) ^ nx;
+            long y = (lanes[inputs[1][i]] & ~zy) ^ ny;
+            long sum = x ^ y ^ carry;
+            carry = (x & y) | (carry & (x ^ y));
+            out = ((sum & f) | (x & y & ~f)) ^ no;
+            lanes[outputs[0][i]] = out;
+            nonZero |= out;
+        }
+
+        lanes[outputs[1][0]] = ~nonZero; // zr
+        lanes[outputs[2][0]] = out; // ng - the last (sign) bit
+    }
+
     public short getValueAt(int index) throws GateException {
         throw new GateException("ALU cannot be used as a variable");
     }
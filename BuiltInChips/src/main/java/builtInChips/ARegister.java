@@ -17,6 +17,8 @@
 
 package builtInChips;
 
+import HackGUI.RegisterComponent;
+
 /**
  * 16 bit address register.
  * If load[t]=1 then out[t+1] = in[t]
@@ -29,8 +31,9 @@ public class ARegister extends RegisterWithGUI {
      */
     public ARegister() {
         if (gui != null) {
-            gui.setName("A:");
-            gui.setLocation(4,442);
+            RegisterComponent component = getRegisterComponent();
+            component.setName("A:");
+            component.setLocation(4,442);
         }
     }
 }
@@ -17,16 +17,27 @@
 
 package builtInChips;
 
+import Hack.Gates.BitSlicedGate;
 import Hack.Gates.BuiltInGate;
 
 /**
  * A 16 bit integer adder.  out is the sum of the two integers a and b.
  */
-public class Add16 extends BuiltInGate {
+public class Add16 extends BuiltInGate implements BitSlicedGate {
 
     protected void reCompute() {
         short a = inputPins[0].get();
         short b = inputPins[1].get();
         outputPins[0].set((short)(a + b));
     }
+
+    public void evalSliced(long[] lanes, int[][] inputs, int[][] outputs) {
+        long carry = 0;
+        for (int i = 0; i < outputs[0].length; i++) {
+            long a = lanes[inputs[0][i]];
+            long b = lanes[inputs[1][i]];
+            lanes[outputs[0][i]] = a ^ b ^ carry;
+            carry = (a & b) | (carry & (a ^ b));
+        }
+    }
 }
@@ -17,13 +17,14 @@
 
 package builtInChips;
 
+import Hack.Gates.BitSlicedGate;
 import Hack.Gates.BuiltInGate;
 
 /**
  * 1 bit demultiplexer.
  * if sel=0 {a=in; b=0} else {a=0; b=in}
  */
-public class DMux extends BuiltInGate {
+public class DMux extends BuiltInGate implements BitSlicedGate {
 
     protected void reCompute() {
         short in = inputPins[0].get();
@@ -31,4 +32,12 @@ public class DMux extends BuiltInGate {
         outputPins[0].set((short)(sel == 0 ? in : 0));
         outputPins[1].set((short)(sel == 0 ? 0  : in));
     }
+
+    public void evalSliced(long[] lanes, int[][] inputs, int[][] outputs) {
+        long sel = lanes[inputs[1][0]];
+        for (int i = 0; i < outputs[0].length; i++) {
+            lanes[outputs[0][i]] = lanes[inputs[0][i]] & ~sel;
+            lanes[outputs[1][i]] = lanes[inputs[0][i]] & sel;
+        }
+    }
 }
@@ -17,6 +17,8 @@
 
 package builtInChips;
 
+import Hack.Gates.BitSlicedCircuit;
+import Hack.Gates.BitSlicedGate;
 import Hack.Gates.BuiltInGate;
 
 /**
@@ -24,7 +26,7 @@ import Hack.Gates.BuiltInGate;
  * The 2-bit sel choose to which output to channel the input (0->a .. 3->d).
  * The other outputs are set to 0.
  */
-public class DMux4Way extends BuiltInGate {
+public class DMux4Way extends BuiltInGate implements BitSlicedGate {
 
     protected void reCompute() {
         short in = inputPins[0].get();
@@ -34,4 +36,12 @@ public class DMux4Way extends BuiltInGate {
         outputPins[2].set((short)(sel == 2 ? in : 0));
         outputPins[3].set((short)(sel == 3 ? in : 0));
     }
+
+    public void evalSliced(long[] lanes, int[][] inputs, int[][] outputs) {
+        for (int way = 0; way < outputs.length; way++) {
+            long selected = BitSlicedCircuit.select(lanes, inputs[1], way);
+            for (int i = 0; i < outputs[way].length; i++)
+                lanes[outputs[way][i]] = lanes[inputs[0][i]] & selected;
+        }
+    }
 }
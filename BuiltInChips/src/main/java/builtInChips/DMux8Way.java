@@ -17,6 +17,8 @@
 
 package builtInChips;
 
+import Hack.Gates.BitSlicedCircuit;
+import Hack.Gates.BitSlicedGate;
 import Hack.Gates.BuiltInGate;
 
 /**
@@ -24,7 +26,7 @@ import Hack.Gates.BuiltInGate;
  * The 3-bit sel choose to which output to channel the input (0->a .. 7->h).
  * The other outputs are set to 0.
  */
-public class DMux8Way extends BuiltInGate {
+public class DMux8Way extends BuiltInGate implements BitSlicedGate {
 
     protected void reCompute() {
         short in = inputPins[0].get();
@@ -38,4 +40,12 @@ public class DMux8Way extends BuiltInGate {
         outputPins[6].set((short)(sel == 6 ? in : 0));
         outputPins[7].set((short)(sel == 7 ? in : 0));
     }
+
+    public void evalSliced(long[] lanes, int[][] inputs, int[][] outputs) {
+        for (int way = 0; way < outputs.length; way++) {
+            long selected = BitSlicedCircuit.select(lanes, inputs[1], way);
+            for (int i = 0; i < outputs[way].length; i++)
+                lanes[outputs[way][i]] = lanes[inputs[0][i]] & selected;
+        }
+    }
 }
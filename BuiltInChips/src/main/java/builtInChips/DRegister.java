@@ -17,6 +17,8 @@
 
 package builtInChips;
 
+import HackGUI.RegisterComponent;
+
 /**
  * A 16 bit data register.
  * If load[t]=1 then out[t+1] = in[t]
@@ -29,8 +31,9 @@ public class DRegister extends RegisterWithGUI {
      */
     public DRegister() {
         if (gui != null) {
-            gui.setName("D:");
-            gui.setLocation(180,442);
+            RegisterComponent component = getRegisterComponent();
+            component.setName("D:");
+            component.setLocation(180,442);
         }
     }
 }
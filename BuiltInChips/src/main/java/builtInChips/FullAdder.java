@@ -17,6 +17,7 @@
 
 package builtInChips;
 
+import Hack.Gates.BitSlicedGate;
 import Hack.Gates.BuiltInGate;
 
 /**
@@ -24,7 +25,7 @@ import Hack.Gates.BuiltInGate;
  * s returns the LSB of the sum of the three bits a,b and c.
  * cout returns the carry bit.
  */
-public class FullAdder extends BuiltInGate {
+public class FullAdder extends BuiltInGate implements BitSlicedGate {
 
     protected void reCompute() {
         short a = inputPins[0].get();
@@ -34,4 +35,12 @@ public class FullAdder extends BuiltInGate {
         outputPins[0].set((short)(sum % 2));
         outputPins[1].set((short)(sum / 2));
     }
+
+    public void evalSliced(long[] lanes, int[][] inputs, int[][] outputs) {
+        long a = lanes[inputs[0][0]];
+        long b = lanes[inputs[1][0]];
+        long c = lanes[inputs[2][0]];
+        lanes[outputs[0][0]] = a ^ b ^ c;
+        lanes[outputs[1][0]] = (a & b) | (c & (a ^ b));
+    }
 }
@@ -17,6 +17,7 @@
 
 package builtInChips;
 
+import Hack.Gates.BitSlicedGate;
 import Hack.Gates.BuiltInGate;
 
 /**
@@ -24,7 +25,7 @@ import Hack.Gates.BuiltInGate;
  * s returns the LSB of the sum of the two bits a and b.
  * c returns the carry bit.
  */
-public class HalfAdder extends BuiltInGate {
+public class HalfAdder extends BuiltInGate implements BitSlicedGate {
 
     protected void reCompute() {
         short a = inputPins[0].get();
@@ -32,4 +33,11 @@ public class HalfAdder extends BuiltInGate {
         outputPins[0].set((short)(a ^ b));
         outputPins[1].set((short)(a & b));
     }
+
+    public void evalSliced(long[] lanes, int[][] inputs, int[][] outputs) {
+        long a = lanes[inputs[0][0]];
+        long b = lanes[inputs[1][0]];
+        lanes[outputs[0][0]] = a ^ b;
+        lanes[outputs[1][0]] = a & b;
+    }
 }
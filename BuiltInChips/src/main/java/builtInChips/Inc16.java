@@ -17,15 +17,25 @@
 
 package builtInChips;
 
+import Hack.Gates.BitSlicedGate;
 import Hack.Gates.BuiltInGate;
 
 /**
  * Adds the constant 1 to the input.
  */
-public class Inc16 extends BuiltInGate {
+public class Inc16 extends BuiltInGate implements BitSlicedGate {
 
     protected void reCompute() {
         short in = inputPins[0].get();
         outputPins[0].set((short)(in + 1));
     }
+
+    public void evalSliced(long[] lanes, int[][] inputs, int[][] outputs) {
+        long carry = -1L;
+        for (int i = 0; i < outputs[0].length; i++) {
+            long in = lanes[inputs[0][i]];
+            lanes[outputs[0][i]] = in ^ carry;
+            carry &= in;
+        }
+    }
 }
@@ -22,32 +22,43 @@ import java.awt.event.*;
 import Hack.Gates.*;
 import Hack.Utilities.*;
 import SimulatorsGUI.*;
+import Hack.CPUEmulator.KeyboardGUI;
 
 /**
 /* A Keyboard, implemented as a 16 bit register that stores the currently pressed key code.
  */
-public class Keyboard extends BuiltInGateWithGUI implements KeyListener {
+public class Keyboard extends BuiltInGateWithGUI {
 
     // The currently pressed key.
     private short key;
 
-    // The gui.
-    private KeyboardComponent gui;
+    // The gui (held through its interface, so that the gui classes aren't
+    // loaded when the chips run without a gui).
+    private KeyboardGUI gui;
 
     /**
      * Constructs a new Keyboard.
      */
     public Keyboard() {
         if (GatesManager.getInstance().isChipsGUIEnabled()) {
-            gui = new KeyboardComponent();
-            gui.setLocation(4,264);
-            gui.getKeyEventHandler().addKeyListener(this);
+            KeyboardComponent component = new KeyboardComponent();
+            component.setLocation(4,264);
+            gui = component;
+            gui.getKeyEventHandler().addKeyListener(new KeyAdapter() {
+                public void keyPressed(KeyEvent e) {
+                    Keyboard.this.keyPressed(e);
+                }
+
+                public void keyReleased(KeyEvent e) {
+                    Keyboard.this.keyReleased(e);
+                }
+            });
             gui.reset();
         }
     }
 
     public Component getGUIComponent() {
-        return gui;
+        return (Component)gui;
     }
 
     /**
@@ -74,11 +85,6 @@ public class Keyboard extends BuiltInGateWithGUI implements KeyListener {
             gui.clearKey();
     }
 
-    /**
-     * Activated when a key is typed.
-     */
-    public void keyTyped(KeyEvent e) {}
-
     public short getValueAt(int index) throws GateException {
         checkIndex(index);
         return key;
@@ -17,13 +17,14 @@
 
 package builtInChips;
 
+import Hack.Gates.BitSlicedGate;
 import Hack.Gates.BuiltInGate;
 
 /**
  * 1-bit 2-way multiplexor.
  * if sel=1 out=b else out=a.
  */
-public class Mux extends BuiltInGate {
+public class Mux extends BuiltInGate implements BitSlicedGate {
 
     protected void reCompute() {
         short a = inputPins[0].get();
@@ -31,4 +32,10 @@ public class Mux extends BuiltInGate {
         short sel = inputPins[2].get();
         outputPins[0].set((short)(sel == 0 ? a : b));
     }
+
+    public void evalSliced(long[] lanes, int[][] inputs, int[][] outputs) {
+        long sel = lanes[inputs[2][0]];
+        for (int i = 0; i < outputs[0].length; i++)
+            lanes[outputs[0][i]] = (lanes[inputs[0][i]] & ~sel) | (lanes[inputs[1][i]] & sel);
+    }
 }
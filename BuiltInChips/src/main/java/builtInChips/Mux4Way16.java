@@ -17,6 +17,8 @@
 
 package builtInChips;
 
+import Hack.Gates.BitSlicedCircuit;
+import Hack.Gates.BitSlicedGate;
 import Hack.Gates.BuiltInGate;
 
 /**
@@ -24,7 +26,7 @@ import Hack.Gates.BuiltInGate;
  * The two sel[0..1] bits select the output to be one of the four input buses
  * (0->a ... 3->d).
  */
-public class Mux4Way16 extends BuiltInGate {
+public class Mux4Way16 extends BuiltInGate implements BitSlicedGate {
 
     protected void reCompute() {
         short a = inputPins[0].get();
@@ -43,4 +45,19 @@ public class Mux4Way16 extends BuiltInGate {
 
         outputPins[0].set(out);
     }
+
+    public void evalSliced(long[] lanes, int[][] inputs, int[][] outputs) {
+        int ways = inputs.length - 1;
+        int[] out = outputs[0];
+        for (int way = 0; way < ways; way++) {
+            long selected = BitSlicedCircuit.select(lanes, inputs[ways], way);
+            int[] in = inputs[way];
+            for (int i = 0; i < out.length; i++) {
+                if (way == 0)
+                    lanes[out[i]] = lanes[in[i]] & selected;
+                else
+                    lanes[out[i]] |= lanes[in[i]] & selected;
+            }
+        }
+    }
 }
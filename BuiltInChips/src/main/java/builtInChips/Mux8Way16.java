@@ -17,6 +17,8 @@
 
 package builtInChips;
 
+import Hack.Gates.BitSlicedCircuit;
+import Hack.Gates.BitSlicedGate;
 import Hack.Gates.BuiltInGate;
 
 /**
@@ -24,7 +26,7 @@ import Hack.Gates.BuiltInGate;
  * The three sel[0..2] bits select the output to be one of the eight input buses
  * (0->a ... 7->h).
  */
-public class Mux8Way16 extends BuiltInGate {
+public class Mux8Way16 extends BuiltInGate implements BitSlicedGate {
 
     protected void reCompute() {
         short a = inputPins[0].get();
@@ -51,4 +53,19 @@ public class Mux8Way16 extends BuiltInGate {
 
         outputPins[0].set(out);
     }
+
+    public void evalSliced(long[] lanes, int[][] inputs, int[][] outputs) {
+        int ways = inputs.length - 1;
+        int[] out = outputs[0];
+        for (int way = 0; way < ways; way++) {
+            long selected = BitSlicedCircuit.select(lanes, inputs[ways], way);
+            int[] in = inputs[way];
+            for (int i = 0; i < out.length; i++) {
+                if (way == 0)
+                    lanes[out[i]] = lanes[in[i]] & selected;
+                else
+                    lanes[out[i]] |= lanes[in[i]] & selected;
+            }
+        }
+    }
 }
@@ -22,11 +22,16 @@ import Hack.Gates.*;
 /**
  * A bitwise 1-bit Nand gate.
  */
-public class Nand extends BuiltInGate {
+public class Nand extends BuiltInGate implements BitSlicedGate {
 
     protected void reCompute() {
         short a = inputPins[0].get();
         short b = inputPins[1].get();
         outputPins[0].set((short)(0x1 - (a & b)));
     }
+
+    public void evalSliced(long[] lanes, int[][] inputs, int[][] outputs) {
+        for (int i = 0; i < outputs[0].length; i++)
+            lanes[outputs[0][i]] = ~(lanes[inputs[0][i]] & lanes[inputs[1][i]]);
+    }
 }
@@ -17,16 +17,21 @@
 
 package builtInChips;
 
+import Hack.Gates.BitSlicedGate;
 import Hack.Gates.BuiltInGate;
 
 /**
  * A bitwise 1-bit Not gate.
  */
-public class Not extends BuiltInGate {
+public class Not extends BuiltInGate implements BitSlicedGate {
 
     protected void reCompute() {
         short in = inputPins[0].get();
         outputPins[0].set((short)(1 - in));
     }
 
+    public void evalSliced(long[] lanes, int[][] inputs, int[][] outputs) {
+        for (int i = 0; i < outputs[0].length; i++)
+            lanes[outputs[0][i]] = ~lanes[inputs[0][i]];
+    }
 }
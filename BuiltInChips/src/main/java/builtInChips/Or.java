@@ -17,12 +17,13 @@
 
 package builtInChips;
 
+import Hack.Gates.BitSlicedGate;
 import Hack.Gates.BuiltInGate;
 
 /**
  * A bitwise 1-bit Or gate.
  */
-public class Or extends BuiltInGate {
+public class Or extends BuiltInGate implements BitSlicedGate {
 
     protected void reCompute() {
         short a = inputPins[0].get();
@@ -30,4 +31,8 @@ public class Or extends BuiltInGate {
         outputPins[0].set((short)(a | b));
     }
 
+    public void evalSliced(long[] lanes, int[][] inputs, int[][] outputs) {
+        for (int i = 0; i < outputs[0].length; i++)
+            lanes[outputs[0][i]] = lanes[inputs[0][i]] | lanes[inputs[1][i]];
+    }
 }
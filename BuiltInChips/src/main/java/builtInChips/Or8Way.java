@@ -17,16 +17,24 @@
 
 package builtInChips;
 
+import Hack.Gates.BitSlicedGate;
 import Hack.Gates.BuiltInGate;
 
 /**
  * Or of 8 inputs into 1 output.
  * out=1 if one or more of the inputs is 1 and 0 otherwise.
  */
-public class Or8Way extends BuiltInGate {
+public class Or8Way extends BuiltInGate implements BitSlicedGate {
 
     protected void reCompute() {
         short in = inputPins[0].get();
         outputPins[0].set((short)(in == 0 ? 0 : 1));
     }
+
+    public void evalSliced(long[] lanes, int[][] inputs, int[][] outputs) {
+        long out = 0;
+        for (int i = 0; i < inputs[0].length; i++)
+            out |= lanes[inputs[0][i]];
+        lanes[outputs[0][0]] = out;
+    }
 }
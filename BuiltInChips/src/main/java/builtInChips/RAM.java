@@ -36,8 +36,9 @@ public abstract class RAM extends BuiltInGateWithGUI implements ComputerPartEven
     // The memory array.
     protected short[] values;
 
-    // The gui of the memory.
-    protected PointedMemoryComponent memoryGUI;
+    // The gui of the memory (held through its interface, so that the gui
+    // classes aren't loaded when the chips run without a gui).
+    protected PointedMemoryGUI memoryGUI;
 
     /**
      * Constructs a new RAM of the given size.
@@ -46,10 +47,11 @@ public abstract class RAM extends BuiltInGateWithGUI implements ComputerPartEven
         values = new short[size];
 
         if (GatesManager.getInstance().isChipsGUIEnabled()) {
-            memoryGUI = new PointedMemoryComponent();
+            PointedMemoryComponent component = new PointedMemoryComponent();
+            component.setVisibleRows(8);
+            component.setLocation(166,10);
+            memoryGUI = component;
             memoryGUI.setContents(values);
-            memoryGUI.setVisibleRows(8);
-            memoryGUI.setLocation(166,10);
             memoryGUI.addListener(this);
             memoryGUI.addErrorListener(this);
         }
@@ -78,7 +80,14 @@ public abstract class RAM extends BuiltInGateWithGUI implements ComputerPartEven
     }
 
     public Component getGUIComponent() {
-        return memoryGUI;
+        return (Component)memoryGUI;
+    }
+
+    /**
+     * Returns the gui component of the memory (null if there is no gui).
+     */
+    protected PointedMemoryComponent getMemoryComponent() {
+        return (PointedMemoryComponent)memoryGUI;
     }
 
     /**
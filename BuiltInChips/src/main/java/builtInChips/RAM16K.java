@@ -17,6 +17,8 @@
 
 package builtInChips;
 
+import HackGUI.PointedMemoryComponent;
+
 /**
  * RAM of 16K registers.
  */
@@ -29,9 +31,10 @@ public class RAM16K extends RAM {
         super(16384);
 
         if (memoryGUI != null) {
-            memoryGUI.setName("RAM 16K:");
-            memoryGUI.setVisibleRows(7);
-            memoryGUI.setLocation(4,295);
+            PointedMemoryComponent component = getMemoryComponent();
+            component.setName("RAM 16K:");
+            component.setVisibleRows(7);
+            component.setLocation(4,295);
         }
     }
 }
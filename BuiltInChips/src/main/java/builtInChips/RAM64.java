@@ -25,6 +25,6 @@ public class RAM64 extends RAM {
     public RAM64() {
         super(64);
         if (memoryGUI != null)
-            memoryGUI.setName("RAM 64:");
+            getMemoryComponent().setName("RAM 64:");
     }
 }
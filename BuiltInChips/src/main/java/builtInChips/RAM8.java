@@ -25,6 +25,6 @@ public class RAM8 extends RAM {
     public RAM8() {
         super(8);
         if (memoryGUI != null)
-            memoryGUI.setName("RAM 8:");
+            getMemoryComponent().setName("RAM 8:");
     }
 }
@@ -34,7 +34,7 @@ public class ROM32K extends BuiltInGateWithGUI
  implements ComputerPartEventListener, ProgramEventListener {
 
     // The gui
-    private ROMComponent gui;
+    private ROMGUI gui;
 
     // The memory array
     private short[] values;
@@ -46,11 +46,12 @@ public class ROM32K extends BuiltInGateWithGUI
         values = new short[Definitions.ROM_SIZE];
 
         if (GatesManager.getInstance().isChipsGUIEnabled()) {
-            gui = new ROMComponent();
+            ROMComponent component = new ROMComponent();
+            component.setVisibleRows(7);
+            component.setLocation(326,295);
+            component.setName("ROM:");
+            gui = component;
             gui.setContents(values);
-            gui.setVisibleRows(7);
-            gui.setLocation(326,295);
-            gui.setName("ROM:");
             gui.reset();
             gui.addListener(this);
             gui.addProgramListener(this);
@@ -66,7 +67,7 @@ public class ROM32K extends BuiltInGateWithGUI
     }
 
     public Component getGUIComponent() {
-        return gui;
+        return (Component)gui;
     }
 
     /**
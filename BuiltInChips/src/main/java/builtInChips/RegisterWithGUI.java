@@ -32,17 +32,19 @@ public class RegisterWithGUI extends BuiltInGateWithGUI implements ComputerPartE
     // The 16 bit value
     protected short value;
 
-    // The gui
-    protected RegisterComponent gui;
+    // The gui (held through its interface, so that the gui classes aren't
+    // loaded when the chips run without a gui)
+    protected RegisterGUI gui;
 
     /**
      * Constructs a new RegisterWithGUI.
      */
     public RegisterWithGUI() {
         if (GatesManager.getInstance().isChipsGUIEnabled()) {
-            gui = new RegisterComponent();
-            gui.setName("Reg:");
-            gui.setLocation(180, 10);
+            RegisterComponent component = new RegisterComponent();
+            component.setName("Reg:");
+            component.setLocation(180, 10);
+            gui = component;
             gui.reset();
             gui.addListener(this);
             gui.addErrorListener(this);
@@ -64,7 +66,14 @@ public class RegisterWithGUI extends BuiltInGateWithGUI implements ComputerPartE
     }
 
     public Component getGUIComponent() {
-        return gui;
+        return (Component)gui;
+    }
+
+    /**
+     * Returns the gui component of the register (null if there is no gui).
+     */
+    protected RegisterComponent getRegisterComponent() {
+        return (RegisterComponent)gui;
     }
 
     public void valueChanged(ComputerPartEvent event) {
@@ -21,6 +21,7 @@ import java.awt.*;
 import Hack.Gates.*;
 import Hack.Utilities.*;
 import SimulatorsGUI.*;
+import Hack.CPUEmulator.ScreenGUI;
 
 /**
 /* A 512X256 screen, implemented with 8K registers, each register represents 16 pixels.
@@ -28,7 +29,7 @@ import SimulatorsGUI.*;
 public class Screen extends BuiltInGateWithGUI {
 
     // The gui
-    private ScreenComponent gui;
+    private ScreenGUI gui;
 
     // The memory array
     private short[] values;
@@ -39,8 +40,9 @@ public class Screen extends BuiltInGateWithGUI {
     public Screen() {
         values = new short[Definitions.SCREEN_SIZE_IN_WORDS];
         if (GatesManager.getInstance().isChipsGUIEnabled()) {
-            gui = new ScreenComponent();
-            gui.setLocation(4,2);
+            ScreenComponent component = new ScreenComponent();
+            component.setLocation(4,2);
+            gui = component;
         }
     }
 
@@ -65,7 +67,7 @@ public class Screen extends BuiltInGateWithGUI {
     }
 
     public Component getGUIComponent() {
-        return gui;
+        return (Component)gui;
     }
 
     // updates the given value
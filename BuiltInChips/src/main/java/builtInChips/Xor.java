@@ -17,16 +17,22 @@
 
 package builtInChips;
 
+import Hack.Gates.BitSlicedGate;
 import Hack.Gates.BuiltInGate;
 
 /**
  * A bitwise 1-bit Xor gate.
  */
-public class Xor extends BuiltInGate {
+public class Xor extends BuiltInGate implements BitSlicedGate {
 
     protected void reCompute() {
         short a = inputPins[0].get();
         short b = inputPins[1].get();
         outputPins[0].set((short)(a ^ b));
     }
+
+    public void evalSliced(long[] lanes, int[][] inputs, int[][] outputs) {
+        for (int i = 0; i < outputs[0].length; i++)
+            lanes[outputs[0][i]] = lanes[inputs[0][i]] ^ lanes[inputs[1][i]];
+    }
 }
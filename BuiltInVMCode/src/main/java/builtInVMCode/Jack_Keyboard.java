@@ -52,11 +52,7 @@ public class Jack_Keyboard extends JackOSClass {
     private static char readCharNoEcho() throws TerminateVMProgramThrowable {
         char current = 0, saved = 0;
         while (saved == 0 || current != 0) {
-            try {
-                Thread.sleep(25);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
+            waitForKey(25);
             current = keyPressed();
             if (current != 0)
                 saved = current;
@@ -44,20 +44,26 @@ public class Jack_Memory extends JackOSClass {
     public static short alloc(short size) throws TerminateVMProgramThrowable {
         if (size < 1)
             callFunction("Sys.error", MEMORY_ALLOC_NONPOSITIVE_SIZE);
+        // the capacity and the address of the next segment
+        short[] header = new short[2];
         short segmentAddress = HEAP_START_ADDRESS;
         short segmentCapacity = 0;
-        while (segmentAddress <= HEAP_END_ADDRESS &&
-                (segmentCapacity = readMemory(segmentAddress)) < size) {
-            segmentAddress = readMemory(segmentAddress + 1);
+        while (segmentAddress <= HEAP_END_ADDRESS) {
+            readMemory(segmentAddress, header);
+            if ((segmentCapacity = header[0]) >= size)
+                break;
+            segmentAddress = header[1];
         }
         if (segmentAddress > HEAP_END_ADDRESS)
             callFunction("Sys.error", MEMORY_ALLOC_HEAP_OVERFLOW);
         if (segmentCapacity > size + 2) {
-            writeMemory(segmentAddress + size + 2, segmentCapacity - size - 2);
-            writeMemory(segmentAddress + size + 3, readMemory(segmentAddress + 1));
-            writeMemory(segmentAddress + 1, segmentAddress + size + 2);
+            writeMemory(segmentAddress + size + 2, new short[]{
+                    (short) (segmentCapacity - size - 2), header[1]});
+            writeMemory(segmentAddress, new short[]{
+                    0, (short) (segmentAddress + size + 2)});
+        } else {
+            writeMemory(segmentAddress, 0);
         }
-        writeMemory(segmentAddress, 0);
         return (short) (segmentAddress + 2);
     }
 
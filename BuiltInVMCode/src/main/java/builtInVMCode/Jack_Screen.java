@@ -25,29 +25,45 @@ import Hack.VMEmulator.TerminateVMProgramThrowable;
 
 @SuppressWarnings("UnusedDeclaration")
 public class Jack_Screen extends JackOSClass {
-    private static boolean black;
+    // The current color of the Screen of the running emulator
+    private static final class Color {
+        boolean black;
+    }
 
     public static void init() {
-        black = true;
+        color().black = true;
+    }
+
+    // Returns the current color, creating it on first use.
+    private static Color color() {
+        Color color = (Color)getState(Jack_Screen.class);
+        if (color == null) {
+            color = new Color();
+            setState(Jack_Screen.class, color);
+        }
+        return color;
     }
 
     public static void clearScreen() throws TerminateVMProgramThrowable {
-        for (int i = SCREEN_START_ADDRESS; i <= SCREEN_END_ADDRESS; ++i)
-            writeMemory(i, 0);
+        fillMemory(SCREEN_START_ADDRESS, SCREEN_END_ADDRESS - SCREEN_START_ADDRESS + 1, 0);
     }
 
     private static void updateLocation(int address, int mask) throws TerminateVMProgramThrowable {
-        address += SCREEN_START_ADDRESS;
-        int value = readMemory(address);
-        if (black)
-            value |= mask;
+        if (color().black)
+            orMemory(SCREEN_START_ADDRESS + address, 1, mask);
         else
-            value &= ~mask;
-        writeMemory(address, value);
+            andMemory(SCREEN_START_ADDRESS + address, 1, ~mask);
+    }
+
+    // Sets the given number of consecutive words from the given address
+    // to the current color.
+    private static void updateWords(int address, int length) throws TerminateVMProgramThrowable {
+        if (length > 0)
+            fillMemory(SCREEN_START_ADDRESS + address, length, color().black ? -1 : 0);
     }
 
     public static void setColor(short color) {
-        black = (color != 0);
+        color().black = (color != 0);
     }
 
     public static void drawPixel(short x, short y) throws TerminateVMProgramThrowable {
@@ -135,13 +151,10 @@ public class Jack_Screen extends JackOSClass {
                 updateLocation(address, lastWordMask & firstWordMask);
             }
         } else {
-            for (; y1 <= y2; ++y1, address += (SCREEN_WIDTH >> 4) - wordsDiff) {
-                int lastAddressInLine = address + wordsDiff;
+            for (; y1 <= y2; ++y1, address += (SCREEN_WIDTH >> 4)) {
                 updateLocation(address, firstWordMask);
-                for (++address; address < lastAddressInLine; ++address) {
-                    updateLocation(address, 0xFFFF);
-                }
-                updateLocation(address, lastWordMask);
+                updateWords(address + 1, wordsDiff - 1);
+                updateLocation(address + wordsDiff, lastWordMask);
             }
         }
     }
@@ -158,16 +171,12 @@ public class Jack_Screen extends JackOSClass {
             updateLocation(address1, lastWordMask & firstWordMask);
             updateLocation(address2, lastWordMask & firstWordMask);
         } else {
-            int lastAddressInLine1 = address1 + wordsDiff;
             updateLocation(address1, firstWordMask);
             updateLocation(address2, firstWordMask);
-            for (++address1, ++address2; address1 < lastAddressInLine1;
-                 ++address1, ++address2) {
-                updateLocation(address1, 0xFFFF);
-                updateLocation(address2, 0xFFFF);
-            }
-            updateLocation(address1, lastWordMask);
-            updateLocation(address2, lastWordMask);
+            updateWords(address1 + 1, wordsDiff - 1);
+            updateWords(address2 + 1, wordsDiff - 1);
+            updateLocation(address1 + wordsDiff, lastWordMask);
+            updateLocation(address2 + wordsDiff, lastWordMask);
         }
     }
 
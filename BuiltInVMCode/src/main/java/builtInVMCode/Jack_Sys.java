@@ -43,11 +43,7 @@ public class Jack_Sys extends JackOSClass {
     public static void wait(short duration) throws TerminateVMProgramThrowable {
         if (duration < 0)
             error(SYS_WAIT_NEGATIVE_DURATION);
-        try {
-            Thread.sleep(duration);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        }
+        sleep(duration);
     }
 
     public static void error(short errorCode) throws TerminateVMProgramThrowable {
@@ -46,6 +46,7 @@ public class CPUEmulatorMain {
                 break;
 
             case 1:
+                System.setProperty("java.awt.headless", "true");
                 new HackController(new CPUEmulator(), args[0]);
                 break;
 
@@ -177,6 +177,38 @@ public class HackAssemblerTranslator {
         return result;
     }
 
+    /**
+     * Returns a copy of the exp text-to-code table.
+     */
+    SymbolTable getExpTable() {
+        return toSymbolTable(expToCode);
+    }
+
+    /**
+     * Returns a copy of the dest text-to-code table.
+     */
+    SymbolTable getDestTable() {
+        return toSymbolTable(destToCode);
+    }
+
+    /**
+     * Returns a copy of the jmp text-to-code table.
+     */
+    SymbolTable getJmpTable() {
+        return toSymbolTable(jmpToCode);
+    }
+
+    // Copies the given text-to-code table into a new SymbolTable.
+    private static SymbolTable toSymbolTable(Hashtable table) {
+        SymbolTable result = new SymbolTable();
+        Enumeration keys = table.keys();
+        while (keys.hasMoreElements()) {
+            String text = (String)keys.nextElement();
+            result.put(text, ((Short)table.get(text)).shortValue());
+        }
+        return result;
+    }
+
     /**
      * Translates the given assembly language command and returns the corresponding
      * machine language code.
@@ -293,8 +325,19 @@ public class HackAssemblerTranslator {
      * Loads the given program file (HACK or ASM) and returns a memory array of
      * the given size that contains the program. The given null value will be used
      * to fill the memory array initially.
+     * Programs that were loaded before are taken from the ProgramImageCache.
      */
     public static short[] loadProgram(String fileName, int size, short nullValue)
+     throws AssemblerException {
+        return ProgramImageCache.getInstance().getProgram(fileName, size, nullValue);
+    }
+
+    /**
+     * Reads the given program file (HACK or ASM), bypassing the ProgramImageCache,
+     * and returns a memory array of the given size that contains the program.
+     * The given null value will be used to fill the memory array initially.
+     */
+    static short[] readProgram(String fileName, int size, short nullValue)
      throws AssemblerException {
         short[] memory = null;
 
@@ -334,11 +377,16 @@ public class HackAssemblerTranslator {
             }
         }
         else if (fileName.endsWith(".asm")) {
-            try {
-                HackAssembler assembler = new HackAssembler(fileName, size, nullValue, false);
-                memory = assembler.getProgram();
-            } catch (HackTranslatorException ae) {
-                throw new AssemblerException(ae.getMessage());
+            // The streaming assembler returns null for sources it doesn't handle,
+            // in which case the full HackAssembler produces the program (or the error).
+            memory = StreamingAssembler.assemble(fileName, size, nullValue);
+            if (memory == null) {
+                try {
+                    HackAssembler assembler = new HackAssembler(fileName, size, nullValue, false);
+                    memory = assembler.getProgram();
+                } catch (HackTranslatorException ae) {
+                    throw new AssemblerException(ae.getMessage());
+                }
             }
         }
         else
@@ -0,0 +1,287 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Assembler;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of assembled program images, so that loading the same .hack or .asm file
+ * again doesn't parse or assemble it again.
+ * Images are kept in memory under the canonical path of the program file, and are
+ * valid as long as the modification time and size of the file don't change.
+ * The least recently used images are dropped when the total number of cached
+ * words exceeds the capacity.
+ * Optionally, images are also stored in a directory as binary files: a fixed
+ * header followed by the program words as raw big-endian shorts, which are
+ * memory-mapped when read back. This lets separate runs share the work.
+ * This is a singleton class.
+ */
+public class ProgramImageCache {
+
+    /**
+     * The system property that sets the directory of the binary image files.
+     * If not set, images are kept in memory only.
+     */
+    public static final String DIRECTORY_PROPERTY = "hack.programCache.dir";
+
+    /**
+     * The system property that sets the maximal total number of words kept in memory.
+     * A capacity of 0 disables the cache.
+     */
+    public static final String CAPACITY_PROPERTY = "hack.programCache.capacity";
+
+    // The default capacity, in words
+    private static final int DEFAULT_CAPACITY = 1 << 20;
+
+    // The first word of a binary image file
+    private static final int MAGIC = 0x48524f4d; // "HROM"
+
+    // The size of the binary image file header, in bytes
+    private static final int HEADER_SIZE = 28;
+
+    // the single instance
+    private static ProgramImageCache instance;
+
+    // The cached images, in least recently used order
+    private LinkedHashMap<String, Image> images;
+
+    // The maximal and current total number of cached words
+    private long capacity, cachedWords;
+
+    // The directory of the binary image files, or null
+    private File directory;
+
+    // A cached program image
+    private static class Image {
+        // The modification time and size of the program file
+        long lastModified, length;
+
+        // The null value that was trimmed from the end of the program
+        short nullValue;
+
+        // The program words, without the trailing null values
+        short[] words;
+
+        Image(long lastModified, long length, short nullValue, short[] words) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.nullValue = nullValue;
+            this.words = words;
+        }
+    }
+
+    /**
+     * Constructs a new cache with the given capacity (in words) and binary image
+     * directory (may be null).
+     */
+    public ProgramImageCache(long capacity, File directory) {
+        this.capacity = capacity;
+        this.directory = directory;
+        images = new LinkedHashMap<String, Image>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns the single instance of the cache, configured by the system properties.
+     */
+    public static synchronized ProgramImageCache getInstance() {
+        if (instance == null) {
+            long capacity = DEFAULT_CAPACITY;
+            try {
+                capacity = Long.parseLong(System.getProperty(CAPACITY_PROPERTY,
+                                                             String.valueOf(DEFAULT_CAPACITY)));
+            } catch (NumberFormatException ignored) {
+            }
+
+            String dir = System.getProperty(DIRECTORY_PROPERTY);
+            instance = new ProgramImageCache(capacity, dir != null ? new File(dir) : null);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns a memory array of the given size that contains the program in the
+     * given file (HACK or ASM). The given null value will be used to fill the memory
+     * array after the program. The program is loaded using
+     * HackAssemblerTranslator.readProgram() if no valid image of it is cached.
+     * The returned array belongs to the caller.
+     */
+    public short[] getProgram(String fileName, int size, short nullValue)
+     throws AssemblerException {
+        File file = new File(fileName);
+        if (capacity <= 0 || !file.exists())
+            return HackAssemblerTranslator.readProgram(fileName, size, nullValue);
+
+        String key;
+        try {
+            key = file.getCanonicalPath();
+        } catch (IOException ioe) {
+            key = file.getAbsolutePath();
+        }
+
+        long lastModified = file.lastModified();
+        long length = file.length();
+        Image image = findImage(key, lastModified, length, nullValue);
+
+        if (image == null) {
+            short[] program = HackAssemblerTranslator.readProgram(fileName, size, nullValue);
+
+            int count = program.length;
+            while (count > 0 && program[count - 1] == nullValue)
+                count--;
+
+            image = new Image(lastModified, length, nullValue, Arrays.copyOf(program, count));
+            putImage(key, image);
+            if (directory != null)
+                writeImageFile(key, image);
+
+            return program;
+        }
+
+        if (image.words.length > size)
+            throw new AssemblerException("Program too large");
+
+        short[] memory = new short[size];
+        System.arraycopy(image.words, 0, memory, 0, image.words.length);
+        Arrays.fill(memory, image.words.length, size, nullValue);
+        return memory;
+    }
+
+    /**
+     * Removes all the images from memory. Binary image files are kept.
+     */
+    public synchronized void clear() {
+        images.clear();
+        cachedWords = 0;
+    }
+
+    // Returns the valid image of the given program file, from memory or from the
+    // image directory, or null if there isn't one.
+    private Image findImage(String key, long lastModified, long length, short nullValue) {
+        Image image;
+
+        synchronized (this) {
+            image = images.get(key);
+        }
+
+        if (image != null && (image.lastModified != lastModified || image.length != length ||
+                              image.nullValue != nullValue))
+            image = null;
+
+        if (image == null && directory != null) {
+            image = readImageFile(key, lastModified, length, nullValue);
+            if (image != null)
+                putImage(key, image);
+        }
+
+        return image;
+    }
+
+    // Adds the given image to memory and drops the least recently used images
+    // until the capacity is kept.
+    private synchronized void putImage(String key, Image image) {
+        Image old = images.put(key, image);
+        if (old != null)
+            cachedWords -= old.words.length;
+        cachedWords += image.words.length;
+
+        Iterator<Map.Entry<String, Image>> i = images.entrySet().iterator();
+        while (cachedWords > capacity && i.hasNext()) {
+            cachedWords -= i.next().getValue().words.length;
+            i.remove();
+        }
+    }
+
+    // Returns the binary image file of the given program file.
+    private File getImageFile(String key) {
+        return new File(directory, Integer.toHexString(key.hashCode()) + "-" +
+                        Integer.toHexString(key.length()) + ".rom");
+    }
+
+    // Reads the binary image file of the given program file. Returns null if
+    // the file doesn't exist, can't be read or is out of date.
+    private Image readImageFile(String key, long lastModified, long length, short nullValue) {
+        File file = getImageFile(key);
+        if (!file.exists())
+            return null;
+
+        try {
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = input.getChannel();
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+                if (buffer.getInt() != MAGIC || buffer.getLong() != lastModified ||
+                    buffer.getLong() != length || buffer.getInt() != nullValue)
+                    return null;
+
+                short[] words = new short[buffer.getInt()];
+                buffer.asShortBuffer().get(words);
+
+                buffer.position(HEADER_SIZE + words.length * 2);
+                input.seek(buffer.position());
+                if (!key.equals(input.readUTF()))
+                    return null;
+
+                return new Image(lastModified, length, nullValue, words);
+            } finally {
+                input.close();
+            }
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // Writes the binary image file of the given program file. The file is written
+    // under a temporary name and then renamed, so readers never see a partial file.
+    // Failures are ignored, since the image file is only an optimization.
+    private void writeImageFile(String key, Image image) {
+        File file = getImageFile(key);
+
+        try {
+            directory.mkdirs();
+            File temp = File.createTempFile("rom", ".tmp", directory);
+            DataOutputStream output =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                output.writeInt(MAGIC);
+                output.writeLong(image.lastModified);
+                output.writeLong(image.length);
+                output.writeInt(image.nullValue);
+                output.writeInt(image.words.length);
+                for (short word : image.words)
+                    output.writeShort(word);
+                output.writeUTF(key);
+            } finally {
+                output.close();
+            }
+
+            if (!temp.renameTo(file)) {
+                file.delete();
+                if (!temp.renameTo(file))
+                    temp.delete();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,385 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Assembler;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import Hack.Utilities.*;
+
+/**
+ * A fast translator from assembly (.asm) to a program array, used when loading
+ * programs into the ROM.
+ * The source file is read once into memory and lexed by hand in a single pass.
+ * References to symbols that are not yet known are recorded and patched after the
+ * whole source was read: into the label address if the symbol turned out to be a
+ * label, or into a newly allocated variable otherwise.
+ * Only well-formed assembly is handled. For anything else (illegal lines, labels
+ * that are defined twice, programs that are too large) assemble() returns null,
+ * and the HackAssembler should be used to translate the file and report errors.
+ */
+public class StreamingAssembler {
+
+    // The translation tables from text to codes
+    private static final SymbolTable expTable, destTable, jmpTable;
+
+    // The predefined symbols
+    private static final SymbolTable predefinedSymbols;
+
+    static {
+        HackAssemblerTranslator translator = HackAssemblerTranslator.getInstance();
+        expTable = translator.getExpTable();
+        destTable = translator.getDestTable();
+        jmpTable = translator.getJmpTable();
+
+        predefinedSymbols = new SymbolTable();
+        Hashtable addresses = Definitions.getInstance().getAddressesTable();
+        Enumeration names = addresses.keys();
+        while (names.hasMoreElements()) {
+            String name = (String)names.nextElement();
+            predefinedSymbols.put(name, ((Short)addresses.get(name)).shortValue());
+        }
+    }
+
+    // The source text
+    private char[] text;
+
+    // The length of the source text
+    private int textLength;
+
+    // The current line, without spaces and comments
+    private char[] line;
+
+    // The length of the current line
+    private int lineLength;
+
+    // The symbol table
+    private SymbolTable symbols;
+
+    // The program array
+    private short[] program;
+
+    // The index of the next location to compile into
+    private int pc;
+
+    // The program locations of the unresolved symbol references
+    private int[] fixupLocations;
+
+    // The symbol ids of the unresolved symbol references
+    private int[] fixupSymbols;
+
+    // The number of unresolved symbol references
+    private int fixupCount;
+
+    // Constructs a new StreamingAssembler over the given source text.
+    private StreamingAssembler(char[] text, int textLength, int size, short nullValue) {
+        this.text = text;
+        this.textLength = textLength;
+
+        line = new char[80];
+        symbols = new SymbolTable(predefinedSymbols);
+        fixupLocations = new int[64];
+        fixupSymbols = new int[64];
+
+        program = new short[size];
+        Arrays.fill(program, nullValue);
+    }
+
+    /**
+     * Translates the given .asm file and returns a memory array of the given size
+     * that contains the program. The given null value will be used to fill the
+     * memory array initially.
+     * Returns null if the source contains anything but well-formed assembly.
+     * Throws AssemblerException if the file can't be read.
+     */
+    public static short[] assemble(String fileName, int size, short nullValue)
+     throws AssemblerException {
+        File file = new File(fileName);
+        char[] text = new char[(int)Math.max(file.length(), 16)];
+        int length = 0;
+
+        try {
+            Reader reader = new FileReader(file);
+            try {
+                int count;
+                do {
+                    if (length == text.length)
+                        text = Arrays.copyOf(text, text.length * 2);
+                    count = reader.read(text, length, text.length - length);
+                    if (count > 0)
+                        length += count;
+                } while (count >= 0);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ioe) {
+            throw new AssemblerException("IO error while reading " + fileName);
+        }
+
+        return assemble(text, length, size, nullValue);
+    }
+
+    /**
+     * Translates the given assembly source text, which is in the given number
+     * of first characters of the array, and returns a memory array of the given
+     * size that contains the program. The given null value will be used to fill
+     * the memory array initially.
+     * Returns null if the source contains anything but well-formed assembly.
+     */
+    public static short[] assemble(char[] text, int length, int size, short nullValue) {
+        StreamingAssembler assembler = new StreamingAssembler(text, length, size, nullValue);
+        return assembler.translate() ? assembler.program : null;
+    }
+
+    // Translates the whole source. Returns false if the source can't be handled.
+    private boolean translate() {
+        int start = 0;
+
+        while (start < textLength) {
+            int end = start;
+            while (end < textLength && text[end] != '\n' && text[end] != '\r')
+                end++;
+
+            if (!readLine(start, end) || !compileLine())
+                return false;
+
+            start = end + 1;
+            if (end + 1 < textLength && text[end] == '\r' && text[end + 1] == '\n')
+                start++;
+        }
+
+        resolveSymbols();
+        return true;
+    }
+
+    // Copies the source line between the given positions into the line buffer,
+    // without spaces and comments. Returns false if the line contains tabs between
+    // its tokens, or a '/' that doesn't start a comment.
+    private boolean readLine(int start, int end) {
+        boolean tabbed = false;
+        lineLength = 0;
+
+        for (int i = start; i < end; i++) {
+            char c = text[i];
+
+            if (c == ' ')
+                continue;
+
+            if (c == '\t') {
+                tabbed = lineLength > 0;
+                continue;
+            }
+
+            if (c == '/') {
+                int next = i + 1;
+                while (next < end && text[next] == ' ')
+                    next++;
+                if (next < end && text[next] == '/')
+                    break;
+                return false;
+            }
+
+            if (tabbed)
+                return false;
+
+            if (lineLength == line.length)
+                line = Arrays.copyOf(line, line.length * 2);
+            line[lineLength++] = c;
+        }
+
+        return true;
+    }
+
+    // Compiles the line in the line buffer. Returns false if it can't be handled.
+    private boolean compileLine() {
+        if (lineLength == 0)
+            return true;
+
+        switch (line[0]) {
+            case '(':
+                if (lineLength < 3 || line[lineLength - 1] != ')' || !isWord(1, lineLength - 2))
+                    return false;
+
+                int id = symbols.intern(line, 1, lineLength - 2);
+                if (symbols.getValue(id) != SymbolTable.UNDEFINED)
+                    return false;
+
+                symbols.setValue(id, (short)pc);
+                return true;
+
+            case '@':
+                return compileAddress(1, lineLength - 1);
+
+            default:
+                int open = indexOf('[');
+                if (open >= 0) {
+                    // compact assembly: the address in [] is loaded into A first
+                    int close = indexOf(']');
+                    if (close < open || !compileAddress(open + 1, close - open - 1))
+                        return false;
+
+                    System.arraycopy(line, close + 1, line, open, lineLength - close - 1);
+                    lineLength -= close - open + 1;
+                }
+                return compileCompute();
+        }
+    }
+
+    // Compiles an A-instruction whose value or symbol is at the given range
+    // of the line buffer.
+    private boolean compileAddress(int offset, int length) {
+        if (!isWord(offset, length))
+            return false;
+
+        int value = parseShort(offset, length);
+        if (value == SymbolTable.UNDEFINED) {
+            int id = symbols.intern(line, offset, length);
+            value = symbols.getValue(id);
+
+            if (value == SymbolTable.UNDEFINED) {
+                if (fixupCount == fixupLocations.length) {
+                    fixupLocations = Arrays.copyOf(fixupLocations, fixupCount * 2);
+                    fixupSymbols = Arrays.copyOf(fixupSymbols, fixupCount * 2);
+                }
+
+                fixupLocations[fixupCount] = pc;
+                fixupSymbols[fixupCount++] = id;
+                value = 0;
+            }
+        }
+
+        return addCommand((short)value);
+    }
+
+    // Compiles the compute-store-jump command in the line buffer.
+    private boolean compileCompute() {
+        int assign = indexOf('=');
+        int jump = indexOf(';');
+        int expStart = assign + 1;
+        int expEnd = (jump >= 0 ? jump : lineLength);
+        int destCode = 0, jmpCode = 0;
+
+        if (assign >= 0) {
+            int id = destTable.find(line, 0, assign);
+            if (id < 0)
+                return false;
+            destCode = destTable.getValue(id);
+        }
+
+        if (expEnd <= expStart)
+            return false;
+        int expId = expTable.find(line, expStart, expEnd - expStart);
+        if (expId < 0)
+            return false;
+
+        if (jump >= 0) {
+            int id = jmpTable.find(line, jump + 1, lineLength - jump - 1);
+            if (id < 0)
+                return false;
+            jmpCode = jmpTable.getValue(id);
+        }
+
+        return addCommand((short)(destCode + expTable.getValue(expId) + jmpCode));
+    }
+
+    // Adds the given command to the next position in the program.
+    // Returns false if the program is too large.
+    private boolean addCommand(short command) {
+        if (pc >= program.length)
+            return false;
+
+        program[pc++] = command;
+        return true;
+    }
+
+    // Patches the unresolved symbol references. Symbols that weren't defined as
+    // labels are variables, allocated in the order of their first reference.
+    private void resolveSymbols() {
+        short varIndex = Definitions.VAR_START_ADDRESS;
+
+        for (int i = 0; i < fixupCount; i++) {
+            int id = fixupSymbols[i];
+            int value = symbols.getValue(id);
+
+            if (value == SymbolTable.UNDEFINED) {
+                value = varIndex++;
+                symbols.setValue(id, value);
+            }
+
+            program[fixupLocations[i]] = (short)value;
+        }
+    }
+
+    // Returns the numeric value of the given range of the line buffer, or
+    // SymbolTable.UNDEFINED if it is not a number in the range of a short.
+    private int parseShort(int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        boolean negative = false;
+
+        if (line[i] == '-' || line[i] == '+') {
+            negative = (line[i] == '-');
+            i++;
+        }
+
+        if (i == end)
+            return SymbolTable.UNDEFINED;
+
+        int value = 0;
+        for (; i < end; i++) {
+            char c = line[i];
+            if (c < '0' || c > '9')
+                return SymbolTable.UNDEFINED;
+
+            value = value * 10 + (c - '0');
+            if (value > 32768)
+                return SymbolTable.UNDEFINED;
+        }
+
+        if (negative)
+            value = -value;
+
+        return (value > Short.MAX_VALUE ? SymbolTable.UNDEFINED : value);
+    }
+
+    // Returns the index of the given character in the line buffer, or -1.
+    private int indexOf(char c) {
+        for (int i = 0; i < lineLength; i++)
+            if (line[i] == c)
+                return i;
+        return -1;
+    }
+
+    // Checks whether the given range of the line buffer is a single non empty
+    // token of the assembly language.
+    private boolean isWord(int offset, int length) {
+        if (length <= 0)
+            return false;
+
+        for (int i = offset; i < offset + length; i++) {
+            char c = line[i];
+            if (!((c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') ||
+                  c == '_' || c == '+' || c == '-' || c == '.' || c == ':' || c == '!' ||
+                  c == '&' || c == '|' || c == '$'))
+                return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,198 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Assembler;
+
+/**
+ * A symbol table that maps names to int values without boxing.
+ * Every symbol gets a dense id when it is first entered. The id stays valid for
+ * the life of the table, so it can be recorded and resolved later.
+ * Symbols can be looked up directly from a char array, so no String is created
+ * for a symbol that is already in the table.
+ */
+public class SymbolTable {
+
+    /**
+     * The value of a symbol that was entered but not given a value yet.
+     */
+    public static final int UNDEFINED = Integer.MIN_VALUE;
+
+    // The initial number of symbols the table can hold
+    private static final int INITIAL_CAPACITY = 64;
+
+    // The symbol names and values, indexed by id
+    private String[] names;
+    private int[] values;
+
+    // The number of symbols in the table
+    private int size;
+
+    // Open addressing hash table of (id + 1), 0 marks an empty slot.
+    private int[] slots;
+
+    /**
+     * Constructs a new empty SymbolTable.
+     */
+    public SymbolTable() {
+        names = new String[INITIAL_CAPACITY];
+        values = new int[INITIAL_CAPACITY];
+        slots = new int[INITIAL_CAPACITY * 2];
+    }
+
+    /**
+     * Constructs a new SymbolTable that contains a copy of the given table.
+     */
+    public SymbolTable(SymbolTable table) {
+        names = table.names.clone();
+        values = table.values.clone();
+        slots = table.slots.clone();
+        size = table.size;
+    }
+
+    /**
+     * Returns the number of symbols in the table.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the id of the symbol made of the given characters, or -1 if
+     * it is not in the table.
+     */
+    public int find(char[] chars, int offset, int length) {
+        int mask = slots.length - 1;
+        int slot = hash(chars, offset, length) & mask;
+        int entry;
+
+        while ((entry = slots[slot]) != 0) {
+            if (matches(names[entry - 1], chars, offset, length))
+                return entry - 1;
+            slot = (slot + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the id of the given symbol, or -1 if it is not in the table.
+     */
+    public int find(String name) {
+        return find(name.toCharArray(), 0, name.length());
+    }
+
+    /**
+     * Returns the id of the symbol made of the given characters, entering it
+     * with an UNDEFINED value if it is not in the table yet.
+     */
+    public int intern(char[] chars, int offset, int length) {
+        int mask = slots.length - 1;
+        int hash = hash(chars, offset, length);
+        int slot = hash & mask;
+        int entry;
+
+        while ((entry = slots[slot]) != 0) {
+            if (matches(names[entry - 1], chars, offset, length))
+                return entry - 1;
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == names.length) {
+            grow();
+            return intern(chars, offset, length);
+        }
+
+        int id = size++;
+        names[id] = new String(chars, offset, length);
+        values[id] = UNDEFINED;
+        slots[slot] = id + 1;
+        return id;
+    }
+
+    /**
+     * Sets the value of the given symbol, entering it if needed.
+     */
+    public void put(String name, int value) {
+        values[intern(name.toCharArray(), 0, name.length())] = value;
+    }
+
+    /**
+     * Returns the value of the symbol with the given id.
+     */
+    public int getValue(int id) {
+        return values[id];
+    }
+
+    /**
+     * Sets the value of the symbol with the given id.
+     */
+    public void setValue(int id, int value) {
+        values[id] = value;
+    }
+
+    /**
+     * Returns the name of the symbol with the given id.
+     */
+    public String getName(int id) {
+        return names[id];
+    }
+
+    // Doubles the capacity of the table and rehashes all the symbols.
+    private void grow() {
+        String[] newNames = new String[names.length * 2];
+        int[] newValues = new int[values.length * 2];
+        System.arraycopy(names, 0, newNames, 0, size);
+        System.arraycopy(values, 0, newValues, 0, size);
+        names = newNames;
+        values = newValues;
+
+        slots = new int[newNames.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = spread(names[id].hashCode()) & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = id + 1;
+        }
+    }
+
+    // Returns the hash code of the given characters. Agrees with the hash code of
+    // the corresponding String, so that grow() can rehash the stored names.
+    private static int hash(char[] chars, int offset, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++)
+            h = 31 * h + chars[offset + i];
+        return spread(h);
+    }
+
+    // Mixes the high bits of the given hash code into the low ones.
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    // Checks whether the given name consists of the given characters.
+    private static boolean matches(String name, char[] chars, int offset, int length) {
+        if (name.length() != length)
+            return false;
+
+        for (int i = 0; i < length; i++)
+            if (name.charAt(i) != chars[offset + i])
+                return false;
+
+        return true;
+    }
+}
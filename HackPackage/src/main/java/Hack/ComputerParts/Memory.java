@@ -18,21 +18,36 @@
 package Hack.ComputerParts;
 
 import Hack.Events.*;
+import java.util.Arrays;
 
 /**
  * A computer memory.
  */
 public class Memory extends InteractiveValueComputerPart implements ClearEventListener {
 
+    // The number of values changed at once above which the whole GUI is refreshed
+    // instead of each changed value.
+    private static final int BULK_REFRESH_THRESHOLD = 256;
+
     // The size of the memory
     protected int size;
 
     // the memory array
     protected short[] mem;
 
+    // True if the memory array is shared with a snapshot and must be copied
+    // before it is modified.
+    private boolean sharedContents;
+
     // The main gui of the memory.
     protected MemoryGUI gui;
 
+    // The watchpoints on the memory (replaced rather than changed)
+    private MemoryWatchpoint[] watchpoints = new MemoryWatchpoint[0];
+
+    // The watched addresses, one bit per address (null if there are no watchpoints)
+    private long[] watchedAddresses;
+
     /**
      * Constructs a new Memory with the given size and (optional) memory GUI.
      */
@@ -69,7 +84,111 @@ public class Memory extends InteractiveValueComputerPart implements ClearEventLi
     }
 
     public void doSetValueAt(int address, short value) {
-        mem[address] = value;
+        if (sharedContents)
+            unshareContents();
+
+        if (watchedAddresses != null && (watchedAddresses[address >> 6] & (1L << address)) != 0) {
+            short oldValue = mem[address];
+            mem[address] = value;
+            notifyWatchpoints(address, oldValue, value);
+        }
+        else
+            mem[address] = value;
+    }
+
+    /**
+     * Adds the given watchpoint. Its listener is notified of the writes that
+     * trigger it (including writes of several values at once and restored
+     * contents, which are checked word by word).
+     */
+    public synchronized void addWatchpoint(MemoryWatchpoint watchpoint) {
+        MemoryWatchpoint[] newWatchpoints = Arrays.copyOf(watchpoints, watchpoints.length + 1);
+        newWatchpoints[watchpoints.length] = watchpoint;
+        setWatchpoints(newWatchpoints);
+    }
+
+    /**
+     * Removes the given watchpoint.
+     */
+    public synchronized void removeWatchpoint(MemoryWatchpoint watchpoint) {
+        for (int i = 0; i < watchpoints.length; i++)
+            if (watchpoints[i] == watchpoint) {
+                MemoryWatchpoint[] newWatchpoints = new MemoryWatchpoint[watchpoints.length - 1];
+                System.arraycopy(watchpoints, 0, newWatchpoints, 0, i);
+                System.arraycopy(watchpoints, i + 1, newWatchpoints, i, newWatchpoints.length - i);
+                setWatchpoints(newWatchpoints);
+                return;
+            }
+    }
+
+    // Replaces the watchpoints with the given ones and rebuilds the watched addresses.
+    private void setWatchpoints(MemoryWatchpoint[] newWatchpoints) {
+        long[] newWatchedAddresses = null;
+        if (newWatchpoints.length > 0) {
+            newWatchedAddresses = new long[(size + 63) >> 6];
+            for (MemoryWatchpoint watchpoint : newWatchpoints)
+                for (int address = Math.max(watchpoint.getStartAddress(), 0);
+                     address <= Math.min(watchpoint.getEndAddress(), size - 1); address++)
+                    newWatchedAddresses[address >> 6] |= 1L << address;
+        }
+
+        watchpoints = newWatchpoints;
+        watchedAddresses = newWatchedAddresses;
+    }
+
+    // Notifies the watchpoints that the given watched address was changed
+    // from oldValue to newValue.
+    private void notifyWatchpoints(int address, short oldValue, short newValue) {
+        for (MemoryWatchpoint watchpoint : watchpoints)
+            watchpoint.written(address, oldValue, newValue);
+    }
+
+    // Notifies the watchpoints of the watched addresses whose values in the
+    // given old contents differ from the current ones, after the contents were
+    // replaced at once.
+    private void notifyWatchpoints(short[] oldContents) {
+        long[] watched = watchedAddresses;
+        for (int word = 0; watched != null && word < watched.length; word++)
+            for (long bits = watched[word]; bits != 0; bits &= bits - 1) {
+                int address = (word << 6) + Long.numberOfTrailingZeros(bits);
+                if (oldContents[address] != mem[address])
+                    notifyWatchpoints(address, oldContents[address], mem[address]);
+            }
+    }
+
+    /**
+     * Puts the values at the addresses address, address+step, ... into the given array
+     * (as many as it can hold).
+     */
+    public void getValuesAt(int address, int step, short[] values) {
+        for (int i = 0; i < values.length; i++, address += step)
+            values[i] = getValueAt(address);
+    }
+
+    /**
+     * Sets the addresses address, address+step, ... with the given values.
+     * The GUI is updated once, without flashing.
+     */
+    public void setValuesAt(int address, int step, short[] values) {
+        for (int i = 0, a = address; i < values.length; i++, a += step)
+            doSetValueAt(a, values[i]);
+
+        valuesChanged(address, step, values.length);
+    }
+
+    /**
+     * Updates the GUI after the given number of values at the addresses address,
+     * address+step, ... were changed.
+     */
+    protected void valuesChanged(int address, int step, int count) {
+        if (!displayChanges)
+            return;
+
+        if (count > BULK_REFRESH_THRESHOLD)
+            gui.setContents(mem);
+        else
+            for (int i = 0; i < count; i++, address += step)
+                quietUpdateGUI(address, mem[address]);
     }
 
     /**
@@ -84,10 +203,43 @@ public class Memory extends InteractiveValueComputerPart implements ClearEventLi
      * (Assumes that the contents fits)
      */
     public void setContents(short[] contents, int startAddress) {
+        short[] oldContents = watchedAddresses != null ? mem.clone() : null;
+        if (sharedContents)
+            unshareContents();
         System.arraycopy(contents, 0, mem, startAddress, contents.length);
+        if (oldContents != null)
+            notifyWatchpoints(oldContents);
         refreshGUI();
     }
 
+    /**
+     * Returns the memory array for use in a snapshot. The array is not copied:
+     * it becomes shared and the memory will copy it before the next change.
+     */
+    public short[] shareContents() {
+        sharedContents = true;
+        return mem;
+    }
+
+    /**
+     * Replaces the contents of the memory with the given snapshot array
+     * (as returned by shareContents). The array is shared and will be copied
+     * before the next change.
+     */
+    public void restoreContents(short[] contents) {
+        short[] oldContents = mem;
+        mem = contents;
+        sharedContents = true;
+        notifyWatchpoints(oldContents);
+        refreshGUI();
+    }
+
+    // Copies the memory array so that it is no longer shared with a snapshot.
+    private void unshareContents() {
+        mem = mem.clone();
+        sharedContents = false;
+    }
+
     /**
      * Returns the size of the memory.
      */
@@ -100,8 +252,13 @@ public class Memory extends InteractiveValueComputerPart implements ClearEventLi
      */
     public void reset() {
         super.reset();
+        if (sharedContents)
+            unshareContents();
+        short[] oldContents = watchedAddresses != null ? mem.clone() : null;
         for (int i = 0; i < size; i++)
             mem[i] = nullValue;
+        if (oldContents != null)
+            notifyWatchpoints(oldContents);
     }
 
     public ComputerPartGUI getGUI() {
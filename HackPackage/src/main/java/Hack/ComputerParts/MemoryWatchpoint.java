@@ -0,0 +1,163 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+package Hack.ComputerParts;
+
+/**
+ * A watchpoint on a range of memory addresses. The memory checks its watchpoints
+ * only when a watched address is written, so a watchpoint costs nothing while
+ * its addresses aren't written.
+ * A write to an address in the range that meets the watchpoint's condition is
+ * a hit. From the hit count's hit on, every hit triggers the watchpoint and
+ * notifies its listener.
+ */
+public class MemoryWatchpoint {
+
+    /**
+     * Condition: every write.
+     */
+    public static final int ANY_WRITE = 0;
+
+    /**
+     * Condition: a write that changes the value.
+     */
+    public static final int CHANGE = 1;
+
+    /**
+     * Condition: a write of the watchpoint's value.
+     */
+    public static final int EQUAL = 2;
+
+    /**
+     * Condition: a write of a value other than the watchpoint's value.
+     */
+    public static final int NOT_EQUAL = 3;
+
+    /**
+     * Condition: a write of a value less than the watchpoint's value.
+     */
+    public static final int LESS_THAN = 4;
+
+    /**
+     * Condition: a write of a value greater than the watchpoint's value.
+     */
+    public static final int GREATER_THAN = 5;
+
+    // The range of watched addresses (inclusive)
+    private final int startAddress, endAddress;
+
+    // The condition of a hit and the value that it compares to
+    private final int condition;
+    private final short value;
+
+    // The number of hits until the watchpoint is triggered
+    private final int hitCount;
+
+    // The listener that is notified when the watchpoint is triggered
+    private final MemoryWatchListener listener;
+
+    // The number of hits so far
+    private int hits;
+
+    /**
+     * Constructs a new watchpoint on the addresses startAddress..endAddress
+     * that is triggered on the hitCount'th write that meets the given condition
+     * (one of the condition constants, compared with the given value) and on
+     * every following one, notifying the given listener.
+     */
+    public MemoryWatchpoint(int startAddress, int endAddress, int condition, short value,
+                            int hitCount, MemoryWatchListener listener) {
+        this.startAddress = startAddress;
+        this.endAddress = endAddress;
+        this.condition = condition;
+        this.value = value;
+        this.hitCount = hitCount;
+        this.listener = listener;
+    }
+
+    /**
+     * Constructs a new watchpoint on the given address that is triggered by
+     * every write that changes its value.
+     */
+    public MemoryWatchpoint(int address, MemoryWatchListener listener) {
+        this(address, address, CHANGE, (short)0, 1, listener);
+    }
+
+    /**
+     * Returns the first watched address.
+     */
+    public int getStartAddress() {
+        return startAddress;
+    }
+
+    /**
+     * Returns the last watched address.
+     */
+    public int getEndAddress() {
+        return endAddress;
+    }
+
+    /**
+     * Returns the number of hits so far.
+     */
+    public int getHits() {
+        return hits;
+    }
+
+    /**
+     * Resets the number of hits.
+     */
+    public void resetHits() {
+        hits = 0;
+    }
+
+    /**
+     * Called by the memory when the given address, which may be watched by this
+     * watchpoint, was changed from oldValue to newValue.
+     */
+    void written(int address, short oldValue, short newValue) {
+        if (address < startAddress || address > endAddress)
+            return;
+
+        boolean hit;
+        switch (condition) {
+            case CHANGE:
+                hit = newValue != oldValue;
+                break;
+            case EQUAL:
+                hit = newValue == value;
+                break;
+            case NOT_EQUAL:
+                hit = newValue != value;
+                break;
+            case LESS_THAN:
+                hit = newValue < value;
+                break;
+            case GREATER_THAN:
+                hit = newValue > value;
+                break;
+            default:
+                hit = true;
+        }
+
+        if (hit) {
+            if (hits < Integer.MAX_VALUE)
+                hits++;
+            if (hits >= hitCount)
+                listener.watchpointTriggered(this, address, oldValue, newValue);
+        }
+    }
+}
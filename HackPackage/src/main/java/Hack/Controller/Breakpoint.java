@@ -17,6 +17,9 @@
 
 package Hack.Controller;
 
+import Hack.ComputerParts.MemoryWatchpoint;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * A controller script breakpoint: includes a variable and a desired value.
  */
@@ -31,6 +34,12 @@ public class Breakpoint implements Comparable<Breakpoint> {
     // The status of the breakpoint
     private boolean reached;
 
+    // The watchpoint on the breakpoint's variable (null if it isn't watched)
+    private MemoryWatchpoint watchpoint;
+
+    // True if the watched variable may have changed since it was last checked
+    private final AtomicBoolean changed = new AtomicBoolean(true);
+
     /**
      * Constructs a new Breakpoint with the given variable name and desired value.
      */
@@ -75,6 +84,38 @@ public class Breakpoint implements Comparable<Breakpoint> {
         return reached;
     }
 
+    /**
+     * Returns the watchpoint on the breakpoint's variable, or null if it isn't watched.
+     */
+    public MemoryWatchpoint getWatchpoint() {
+        return watchpoint;
+    }
+
+    /**
+     * Sets the watchpoint on the breakpoint's variable (null if it isn't watched).
+     * The breakpoint is marked as changed.
+     */
+    public void setWatchpoint(MemoryWatchpoint watchpoint) {
+        this.watchpoint = watchpoint;
+        changed.set(true);
+    }
+
+    /**
+     * Returns true if the breakpoint's variable may have changed since the last
+     * call to this method, and clears the mark. Always true if the variable
+     * isn't watched.
+     */
+    public boolean checkChanged() {
+        return watchpoint == null || (changed.get() && changed.getAndSet(false));
+    }
+
+    /**
+     * Marks the breakpoint's variable as changed.
+     */
+    public void setChanged() {
+        changed.set(true);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -17,6 +17,9 @@
 
 package Hack.Controller;
 
+import Hack.ComputerParts.Memory;
+import Hack.ComputerParts.MemoryWatchListener;
+import Hack.ComputerParts.MemoryWatchpoint;
 import Hack.Events.ProgramEvent;
 import Hack.Events.ProgramEventListener;
 import Hack.Utilities.Conversions;
@@ -41,7 +44,7 @@ import java.util.prefs.Preferences;
  * Constructed with a GUI that enables the execution control of the script.
  */
 public class HackController
- implements ControllerEventListener, ActionListener, ProgramEventListener {
+ implements ControllerEventListener, ProgramEventListener {
 
     /**
      * The number of speed units.
@@ -126,10 +129,15 @@ public class HackController
 
     // A helper string with spaces
     private static final String SPACES = "                                        ";
+
+    // Marks a repeat loop that has commands other than simulator commands
+    private static final String[][] NO_COMMANDS = new String[0][];
     private static final String DIRECTORY = "directory";
     private static final String SPEED = "speed";
     private static final String ANIMATION_MODE = "animation_mode";
     private static final String NUMERIC_FORMAT = "numeric_format";
+
+    // The user preferences (null when running a script without a GUI)
     private final Preferences preferences;
 
     // The controller's GUI
@@ -169,6 +177,10 @@ public class HackController
     // Number of repeats left
     private int repeatCounter;
 
+    // The simulator commands of the current repeat loop (NO_COMMANDS if the
+    // loop has other commands, null if not checked yet)
+    private String[][] repeatCommands;
+
     // The condition of the current while loop.
     private ScriptCondition whileCondition;
 
@@ -187,13 +199,16 @@ public class HackController
     private Timer timer;
 
     // locked when single step in process
-    protected boolean singleStepLocked;
+    protected volatile boolean singleStepLocked;
+
+    // True if the single step task was given to the simulator and didn't run yet
+    private volatile boolean singleStepQueued;
 
     // The single step task object
     private SingleStepTask singleStepTask;
 
-    // The fast forward task object
-    private FastForwardTask fastForwardTask;
+    // The fast forward task object of the current fast forward
+    private volatile FastForwardTask fastForwardTask;
 
     // The set animation mode task object
     private SetAnimationModeTask setAnimationModeTask;
@@ -233,7 +248,7 @@ public class HackController
      * The script will be executed and the final result will be printed.
      */
     public HackController(HackSimulator simulator, String scriptFileName) {
-        this.preferences = Preferences.userNodeForPackage(simulator.getClass());
+        this.preferences = null;
         File file = new File(scriptFileName);
         if (!file.exists())
             displayMessage(scriptFileName + " doesn't exist", true);
@@ -267,7 +282,6 @@ public class HackController
         this.gui = gui;
         this.simulator = simulator;
         singleStepTask = new SingleStepTask();
-        fastForwardTask = new FastForwardTask();
         setAnimationModeTask = new SetAnimationModeTask();
         setNumericFormatTask = new SetNumericFormatTask();
         simulator.addListener(this);
@@ -286,7 +300,14 @@ public class HackController
         simulator.setAnimationSpeed(currentSpeedUnit);
         final int numericFormat = preferences.getInt(NUMERIC_FORMAT, simulator.getInitialNumericFormat());
         simulator.setNumericFormat(numericFormat);
-        timer = new Timer(delays[currentSpeedUnit - 1], this);
+        timer = new Timer(delays[currentSpeedUnit - 1], new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                if (!singleStepLocked && !singleStepQueued) {
+                    singleStepQueued = true;
+                    simulator.runTask(singleStepTask);
+                }
+            }
+        });
 
         // adds the simulator component to the controller component
         gui.setSimulator(simulator.getGUI());
@@ -386,14 +407,14 @@ public class HackController
         else {
             displayMessage("Running...", false);
             gui.disableSpeedSlider();
-            Thread t = new Thread(fastForwardTask);
-            t.start();
+            fastForwardTask = new FastForwardTask();
+            simulator.runTask(fastForwardTask);
         }
     }
 
     // Executes a single step from the script, checks for a breakpoint and
     // sets the status of the system accordingly.
-    private synchronized void singleStep() {
+    private void singleStep() {
 
         singleStepLocked = true;
 
@@ -416,6 +437,10 @@ public class HackController
 
             // Check Breakpoints
             for (Breakpoint breakpoint : breakpoints) {
+                // a watched variable that wasn't written can't have changed its state
+                if (!breakpoint.checkChanged())
+                    continue;
+
                 String currentValue = simulator.getValue(breakpoint.getVarName());
                 if (currentValue.equals(breakpoint.getValue())) {
                     // if value is equal and the breakpoint wasn't reached before, turn it on
@@ -453,7 +478,6 @@ public class HackController
         }
 
         singleStepLocked = false;
-        notifyAll();
     }
 
     // Displays the message of the given exception and stops the script's execution.
@@ -504,6 +528,7 @@ public class HackController
             case Command.REPEAT_COMMAND:
                 repeatCounter = (Integer) command.getArg();
                 loopCommandIndex = currentCommandIndex + 1;
+                repeatCommands = null;
                 redo = true;
                 break;
             case Command.WHILE_COMMAND:
@@ -520,6 +545,7 @@ public class HackController
             case Command.END_SCRIPT_COMMAND:
                 scriptEnded = true;
                 stopMode();
+                simulator.scriptEnded();
 
                 if (gui != null) {
                     gui.disableSingleStep();
@@ -554,7 +580,7 @@ public class HackController
                 currentCommandIndex++;
                 Command nextCommand = script.getCommandAt(currentCommandIndex);
                 if (nextCommand.getCode() == Command.END_REPEAT_COMMAND) {
-                    if (repeatCounter == 0 || --repeatCounter > 0)
+                    if (repeatCounter == 0 || (--repeatCounter > 0 && !skipHaltedRepeat()))
                         currentCommandIndex = loopCommandIndex;
                     else
                         currentCommandIndex++;
@@ -575,6 +601,34 @@ public class HackController
         return command.getTerminator();
     }
 
+    // Lets the simulator skip the remaining iterations of the current repeat
+    // loop if its program has halted. This is done only in fast forward with no
+    // breakpoints, and only if the loop has nothing but simulator commands.
+    // Returns true if the iterations were skipped.
+    private boolean skipHaltedRepeat() throws ProgramException {
+        if (!fastForwardRunning || !breakpoints.isEmpty() || !tempBreakpoints.isEmpty())
+            return false;
+
+        if (repeatCommands == null) {
+            Vector<String[]> commands = new Vector<String[]>();
+            for (int i = loopCommandIndex; repeatCommands == null; i++) {
+                Command command = script.getCommandAt(i);
+                if (command.getCode() == Command.END_REPEAT_COMMAND) {
+                    repeatCommands = new String[commands.size()][];
+                    commands.copyInto(repeatCommands);
+                }
+                else if (command.getCode() == Command.SIMULATOR_COMMAND &&
+                         command.getTerminator() != Command.STOP_TERMINATOR)
+                    commands.addElement((String[])command.getArg());
+                else
+                    repeatCommands = NO_COMMANDS;
+            }
+        }
+
+        return repeatCommands != NO_COMMANDS &&
+               simulator.skipHaltedLoop(repeatCommands, repeatCounter);
+    }
+
     // Executes the controller's output-file command.
     private void doOutputFileCommand(Command command) throws ControllerException {
         currentOutputName = currentScriptFile.getParent() + "/" + command.getArg();
@@ -670,16 +724,56 @@ public class HackController
     private void doBreakpointCommand(Command command) throws ControllerException {
         Breakpoint breakpoint = (Breakpoint)command.getArg();
 
-        if (breakpoints.add(breakpoint))
+        if (breakpoints.add(breakpoint)) {
+            watchBreakpoint(breakpoint);
             gui.setBreakpoints(breakpoints);
+        }
     }
 
     // Executes the controller's clear-breakpoints command.
     private void doClearBreakpointsCommand() throws ControllerException {
-        breakpoints.clear();
+        clearBreakpoints();
         gui.setBreakpoints(breakpoints);
     }
 
+    // Arms a watchpoint on the variable of the given breakpoint, if it is a
+    // word in the simulator's memory, so that it is checked only after it changes.
+    private void watchBreakpoint(final Breakpoint breakpoint) {
+        Memory memory = simulator.getMemory();
+        int address = simulator.getVariableAddress(breakpoint.getVarName());
+        if (memory == null || address < 0) {
+            breakpoint.setWatchpoint(null);
+            return;
+        }
+
+        MemoryWatchpoint watchpoint = new MemoryWatchpoint(address, new MemoryWatchListener() {
+            public void watchpointTriggered(MemoryWatchpoint watchpoint, int address,
+                                            short oldValue, short newValue) {
+                breakpoint.setChanged();
+            }
+        });
+        memory.addWatchpoint(watchpoint);
+        breakpoint.setWatchpoint(watchpoint);
+    }
+
+    // Removes the watchpoint of the given breakpoint, if any.
+    private void unwatchBreakpoint(Breakpoint breakpoint) {
+        MemoryWatchpoint watchpoint = breakpoint.getWatchpoint();
+        if (watchpoint != null) {
+            simulator.getMemory().removeWatchpoint(watchpoint);
+            breakpoint.setWatchpoint(null);
+        }
+    }
+
+    // Clears the breakpoints list and removes their watchpoints.
+    private void clearBreakpoints() {
+        synchronized (breakpoints) {
+            for (Breakpoint breakpoint : breakpoints)
+                unwatchBreakpoint(breakpoint);
+            breakpoints.clear();
+        }
+    }
+
     // Compares an output line with a template line from a compare file.
     // The template must match exactly except for '*' which may match any
     // single character.
@@ -739,7 +833,7 @@ public class HackController
      throws ControllerException, ScriptException {
         currentScriptFile = file;
         script = new Script(file.getPath());
-        breakpoints.clear();
+        clearBreakpoints();
         currentCommandIndex = 0;
         output = null;
         currentOutputName = "";
@@ -842,8 +936,12 @@ public class HackController
 
     // Sets the breakpoints list with the given one.
     private void setBreakpoints(Vector<Breakpoint> newBreakpoints) {
-        breakpoints.clear();
-        breakpoints.addAll(newBreakpoints);
+        synchronized (breakpoints) {
+            clearBreakpoints();
+            breakpoints.addAll(newBreakpoints);
+            for (Breakpoint breakpoint : breakpoints)
+                watchBreakpoint(breakpoint);
+        }
     }
 
     // Refreshes the simulator display
@@ -862,6 +960,9 @@ public class HackController
         else {
             if (error) {
                 System.err.println(message);
+                // lets the simulator complete the files that it writes
+                if (simulator != null)
+                    simulator.scriptEnded();
                 System.exit(-1);
             }
             else {
@@ -879,10 +980,12 @@ public class HackController
 
         simulator.setWorkingDir(file);
 
-        final File dir = file.isDirectory() ? file : parent;
+        if (preferences != null) {
+            final File dir = file.isDirectory() ? file : parent;
 
-        preferences.put(DIRECTORY, dir.toString());
-        savePreferences();
+            preferences.put(DIRECTORY, dir.toString());
+            savePreferences();
+        }
     }
 
     private void savePreferences() {
@@ -918,13 +1021,6 @@ public class HackController
         saveWorkingDir(file);
     }
 
-    public void actionPerformed(ActionEvent e) {
-        if (!singleStepLocked) {
-            Thread t = new Thread(singleStepTask);
-            t.start();
-        }
-    }
-
     public void programChanged(ProgramEvent event) {
         switch (event.getType()) {
             case ProgramEvent.SAVE:
@@ -960,8 +1056,7 @@ public class HackController
                     gui.disableScript();
                     gui.disableRewind();
                     gui.enableStop();
-                    Thread t = new Thread(singleStepTask);
-                    t.start();
+                    simulator.runTask(singleStepTask);
                     break;
                 case ControllerEvent.FAST_FORWARD:
                     displayMessage(lastEcho, true);
@@ -992,13 +1087,11 @@ public class HackController
                     break;
                 case ControllerEvent.ANIMATION_MODE_CHANGE:
                     setAnimationModeTask.setMode((Integer) event.getData());
-                    t = new Thread(setAnimationModeTask);
-                    t.start();
+                    simulator.runTask(setAnimationModeTask);
                     break;
                 case ControllerEvent.NUMERIC_FORMAT_CHANGE:
                     setNumericFormatTask.setFormat((Integer) event.getData());
-                    t = new Thread(setNumericFormatTask);
-                    t.start();
+                    simulator.runTask(setNumericFormatTask);
                     break;
                 case ControllerEvent.ADDITIONAL_DISPLAY_CHANGE:
                     setAdditionalDisplay((Integer) event.getData());
@@ -1077,6 +1170,7 @@ public class HackController
     private class SingleStepTask implements Runnable {
 
         public void run() {
+            singleStepQueued = false;
             singleStep();
 
             if (!fastForwardRunning) {
@@ -1096,34 +1190,43 @@ public class HackController
         }
     }
 
-    // Performs the fast forward task
+    // Performs the fast forward task. Each run executes a constant amount of
+    // commands and queues the task again, so that the tasks that were queued
+    // meanwhile (such as a numeric format change) run in between.
     private class FastForwardTask implements Runnable {
+
+        // True until the task's first run
+        private boolean starting = true;
+
         public synchronized void run() {
-            try {
-                System.runFinalization();
-                System.gc();
-                wait(300);
-            } catch (InterruptedException ie) {
-                Thread.currentThread().interrupt();
+            // a new fast forward replaced this one
+            if (fastForwardTask != this)
+                return;
+
+            if (starting) {
+                starting = false;
+                try {
+                    System.runFinalization();
+                    System.gc();
+                    wait(300);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
             }
 
-            int count = 0;
             int rounds = FASTFORWARD_SPEED_FUNCTION[currentSpeedUnit - 1];
-
-            while (fastForwardRunning) {
+            for (int count = 0; count < rounds && fastForwardRunning; count++)
                 singleStep();
 
+            if (fastForwardRunning) {
                 // waits for 1 ms each constant amount of commands
-                if (count == rounds) {
-                    count = 0;
-                    try {
-                        wait(1);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                    }
+                try {
+                    wait(1);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
                 }
 
-                count++;
+                simulator.runTask(this);
             }
         }
     }
@@ -18,6 +18,7 @@
 package Hack.Controller;
 
 import java.util.*;
+import java.util.concurrent.*;
 import Hack.Events.*;
 import Hack.ComputerParts.*;
 import java.io.*;
@@ -27,12 +28,29 @@ import java.io.*;
  */
 public abstract class HackSimulator implements ProgramEventListener, ComputerPartErrorEventListener
 {
+    /**
+     * The script command that saves the simulator's state under a name.
+     */
+    protected static final String COMMAND_SNAPSHOT = "snapshot";
+
+    /**
+     * The script command that restores a previously saved state.
+     */
+    protected static final String COMMAND_RESTORE = "restore";
+
     // The vector of listeners
     private Vector listeners;
 
+    // The named snapshots, by name
+    private Hashtable<String, Object> snapshots;
+
     // The vector of program listeners
     private Vector programListeners;
 
+    // Runs the tasks of the simulator one after the other (its thread is started
+    // by the first task)
+    private final ExecutorService taskExecutor;
+
     // The current working dir
     protected File workingDir;
 
@@ -42,6 +60,14 @@ public abstract class HackSimulator implements ProgramEventListener, ComputerPar
     public HackSimulator() {
         listeners = new Vector();
         programListeners = new Vector();
+        snapshots = new Hashtable<String, Object>();
+        taskExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, getName() + " tasks");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     /**
@@ -69,11 +95,96 @@ public abstract class HackSimulator implements ProgramEventListener, ComputerPar
     public abstract void doCommand(String[] command)
      throws CommandException, ProgramException, VariableException;
 
+    /**
+     * Runs the given task on the simulator's task thread, after the tasks that were
+     * given before it. Requests from the gui and the controller run as such tasks,
+     * so they are executed in order, without creating a thread for each request.
+     */
+    public void runTask(Runnable task) {
+        taskExecutor.execute(task);
+    }
+
     /**
      * Restarts the simulator.
      */
     public abstract void restart();
 
+    /**
+     * Returns an immutable snapshot of the current state of the simulator,
+     * which may later be given to restoreSnapshot (any number of times).
+     * Throws ProgramException if the simulator doesn't support snapshots
+     * or the state can't be captured right now.
+     */
+    public Object createSnapshot() throws ProgramException {
+        throw new ProgramException("Snapshots are not supported by the " + getName());
+    }
+
+    /**
+     * Restores the state of the simulator from the given snapshot, which was
+     * created by createSnapshot of this simulator.
+     * Throws ProgramException if the snapshot can't be restored.
+     */
+    public void restoreSnapshot(Object snapshot) throws ProgramException {
+        throw new ProgramException("Snapshots are not supported by the " + getName());
+    }
+
+    /**
+     * Executes the snapshot or restore command (given in args[] style).
+     * The snapshot command saves the state of the simulator under the given name,
+     * and the restore command brings it back.
+     * Throws CommandException if the command is not legal.
+     * Throws ProgramException if the state can't be saved or restored.
+     */
+    protected void doSnapshotCommand(String[] command)
+     throws CommandException, ProgramException {
+        if (command.length != 2)
+            throw new CommandException("Illegal number of arguments to command", command);
+
+        if (command[0].equals(COMMAND_SNAPSHOT))
+            snapshots.put(command[1], createSnapshot());
+        else {
+            Object snapshot = snapshots.get(command[1]);
+            if (snapshot == null)
+                throw new CommandException("Unknown snapshot", command);
+            restoreSnapshot(snapshot);
+        }
+    }
+
+    /**
+     * Called when the given commands (given in args[] style) are about to be
+     * executed the given number of times. If they only run the program, and the
+     * program has halted in a loop that changes nothing but the time, advances
+     * the simulator to the state that it would have after executing them and
+     * returns true. Otherwise changes nothing and returns false.
+     * Throws ProgramException if an error occurs in the program.
+     */
+    public boolean skipHaltedLoop(String[][] commands, int times) throws ProgramException {
+        return false;
+    }
+
+    /**
+     * Called when the script ends, or when a script that runs without a GUI stops
+     * on an error (lets the simulator complete files that it writes).
+     */
+    public void scriptEnded() {
+    }
+
+    /**
+     * Returns the memory that holds the variables whose addresses are given
+     * by getVariableAddress, or null if there is no such memory.
+     */
+    public Memory getMemory() {
+        return null;
+    }
+
+    /**
+     * Returns the address in the memory given by getMemory of the given variable,
+     * or -1 if the variable's value is not a single word of that memory.
+     */
+    public int getVariableAddress(String varName) {
+        return -1;
+    }
+
     /**
      * Sets the animation mode of the simulator with the given animation mode
      * (out of the possible animation constants in HackController).
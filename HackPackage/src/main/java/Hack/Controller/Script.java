@@ -30,7 +30,7 @@ public class Script {
     /**
      * Maximum arguments for a simulator script command.
      */
-    public static final int MAX_SIMULATOR_COMMAND_ARGUMENTS = 4;
+    public static final int MAX_SIMULATOR_COMMAND_ARGUMENTS = 20;
 
     /**
      * Maximum arguments for an output-list script command.
@@ -46,6 +46,7 @@ public class HardwareSimulatorMain {
                 break;
 
             case 1:
+                System.setProperty("java.awt.headless", "true");
                 new HackController(new HardwareSimulator(), args[0]);
                 break;
 
@@ -54,6 +54,9 @@ public class CPU
     // An assembler translator
     protected HackAssemblerTranslator assemblerTranslator;
 
+    // The profiler of the executed instructions
+    private CPUProfiler profiler;
+
     /**
      * Constructs a new cpu with the given ROM, RAM, A, D, PC & ALU.
      */
@@ -70,6 +73,7 @@ public class CPU
         A.setUpdatePointer(false);
 
         assemblerTranslator = HackAssemblerTranslator.getInstance();
+        profiler = new CPUProfiler(rom);
     }
 
     /**
@@ -121,6 +125,13 @@ public class CPU
         return alu;
     }
 
+    /**
+     * Returns the profiler of the executed instructions.
+     */
+    public CPUProfiler getProfiler() {
+        return profiler;
+    }
+
     /**
      * Returns the time that passed since the program started running.
      */
@@ -128,6 +139,19 @@ public class CPU
         return time;
     }
 
+    /**
+     * Sets the registers and the time that passed since the program started
+     * running with the given values (of a restored snapshot).
+     */
+    public void restoreState(short a, short d, short pc, long time) {
+        A.setValueAt(0, a, true);
+        A.setUpdatePointer(true);
+        A.setUpdatePointer(false);
+        D.setValueAt(0, d, true);
+        PC.setValueAt(0, pc, true);
+        this.time = time;
+    }
+
     /**
      * Restarts the program from the beginning.
      */
@@ -145,6 +169,65 @@ public class CPU
         rom.hideSelect();
         rom.hideHighlight();
         time = 0;
+        profiler.reset();
+    }
+
+    /**
+     * Returns the number of instructions in the loop that the program has
+     * halted in, or 0 if it hasn't halted. A halted program jumps (with 0;JMP
+     * or any other unconditional jump that has no destination) to itself, or to
+     * the A-instruction just before it that loads its address. Running it
+     * changes nothing but the time.
+     */
+    public int getHaltLoopLength() {
+        return getHaltLoopLength(rom.getContents(), PC.get(), A.get());
+    }
+
+    /**
+     * Returns the number of instructions in the halt loop of the given program
+     * that a computer whose program counter and A register have the given values
+     * has halted in, or 0 if it hasn't halted (see getHaltLoopLength()).
+     */
+    static int getHaltLoopLength(short[] program, int pc, short a) {
+        short instruction = program[pc];
+
+        if (isHaltJump(instruction)) {
+            if (a == pc)
+                return 1;
+            if (pc > 0 && a == pc - 1 && program[pc - 1] == pc - 1)
+                return 2;
+        }
+        else if (instruction == pc && pc + 1 < Definitions.ROM_SIZE &&
+                 isHaltJump(program[pc + 1]))
+            return 2;
+
+        return 0;
+    }
+
+    // Returns true if the given instruction is an unconditional jump that
+    // doesn't read M and has no destination.
+    private static boolean isHaltJump(short instruction) {
+        return (instruction & 0xf038) == 0xe000 && (instruction & 0x0007) == 0x0007;
+    }
+
+    /**
+     * Runs the given number of instructions of a halted program (see
+     * getHaltLoopLength). Only the first pass through the halt loop and the
+     * remaining partial pass are executed, and the time is advanced by the rest.
+     * Returns false, running nothing, if the program hasn't halted or if the
+     * given number of instructions doesn't exceed the length of the loop.
+     */
+    public boolean skipHaltedInstructions(long count) throws ProgramException {
+        int loopLength = getHaltLoopLength();
+        if (loopLength == 0 || count <= loopLength)
+            return false;
+
+        long executed = loopLength + count % loopLength;
+        for (long i = 0; i < executed; i++)
+            executeInstruction();
+        time += count - executed;
+
+        return true;
     }
 
     /**
@@ -157,6 +240,9 @@ public class CPU
         short instruction = rom.getValueAt(PC.get());
         boolean pcChanged = false;
 
+        if (profiler.isEnabled())
+            profiler.mark(PC.get());
+
         if ((instruction & 0x8000) == 0)
             bus.send(rom, PC.get(), A, 0);
         else if ((instruction & 0xe000) == 0xe000) {
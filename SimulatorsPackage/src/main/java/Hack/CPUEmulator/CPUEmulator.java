@@ -21,6 +21,7 @@ import Hack.Controller.*;
 import Hack.ComputerParts.*;
 import Hack.Events.*;
 import Hack.Utilities.*;
+import java.io.*;
 
 /**
  * A CPU Emulator. Emulates machine code (In HACK format).
@@ -34,8 +35,15 @@ import Hack.Utilities.*;
  * time - the time that passed since the program started running (long) - READ ONLY
  *
  * Recognizes the following commands:
- * load <HACK file name> - loads the given file into the ROM
+ * load <HACK file name> - loads the given file into the ROM (an ASM file, a VM file or
+ *                         a directory of VM files is translated first)
  * TickTock - advances the clock by one time unit (executes one instruction)
+ * keyboard <file name> - loads key events to replay at given times (see Keyboard.loadReplay)
+ * snapshot <name> - saves the state of the computer under the given name
+ * restore <name> - restores the state that was saved under the given name
+ * profile <file name> - counts the instructions that are executed in each function of
+ *                       the program, and writes them into the given file when the
+ *                       script ends
  */
 public class CPUEmulator extends HackSimulator implements ComputerPartErrorEventListener {
 
@@ -52,6 +60,8 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
     private static final String COMMAND_TICKTOCK = "ticktock";
     private static final String COMMAND_ROMLOAD = "load";
     private static final String COMMAND_SETVAR = "set";
+    private static final String COMMAND_KEYBOARD = "keyboard";
+    private static final String COMMAND_PROFILE = "profile";
 
     // The simulating cpu
     private CPU cpu;
@@ -68,6 +78,9 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
     // The current animation mode
     private int animationMode;
 
+    // The file into which the profile is written when the script ends, or null
+    private String profileFileName;
+
     /**
      * Constructs a new CPU Emulator with no GUI component.
      */
@@ -223,6 +236,29 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
         }
     }
 
+    /**
+     * Skips the given ticktock commands if the program has halted
+     * (see CPU.getHaltLoopLength), advancing the time instead.
+     */
+    public boolean skipHaltedLoop(String[][] commands, int times) throws ProgramException {
+        for (String[] command : commands)
+            if (command.length != 1 || !command[0].equals(COMMAND_TICKTOCK))
+                return false;
+
+        if (commands.length == 0 || cpu.getHaltLoopLength() == 0 ||
+            cpu.getProfiler().isEnabled())
+            return false;
+
+        if (animationMode != HackController.NO_DISPLAY_CHANGES)
+            hideHighlightes();
+
+        if (!cpu.skipHaltedInstructions((long)commands.length * times))
+            return false;
+
+        keyboard.replay(cpu.getTime());
+        return true;
+    }
+
     /**
      * Executes the given simulator command (given in args[] style).
      * Throws CommandException if the command is not legal.
@@ -243,6 +279,8 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
                 throw new CommandException("Illegal number of arguments to command", command);
 
             cpu.executeInstruction();
+            if (cpu.getTime() >= keyboard.getNextReplayTime())
+                keyboard.replay(cpu.getTime());
         }
         else if (command[0].equals(COMMAND_SETVAR)) {
             if (command.length != 3)
@@ -258,12 +296,73 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
             int oldAnimationMode = animationMode;
             setAnimationMode(HackController.DISPLAY_CHANGES);
             cpu.initProgram();
+            keyboard.restartReplay();
             setAnimationMode(oldAnimationMode);
         }
+        else if (command[0].equals(COMMAND_KEYBOARD)) {
+            if (command.length != 2)
+                throw new CommandException("Illegal number of arguments to command", command);
+
+            keyboard.loadReplay(new File(workingDir, command[1]).getPath());
+            keyboard.replay(cpu.getTime());
+        }
+        else if (command[0].equals(COMMAND_PROFILE)) {
+            if (command.length != 2)
+                throw new CommandException("Illegal number of arguments to command", command);
+
+            profileFileName = workingDir.getAbsolutePath() + "/" + command[1];
+            cpu.getProfiler().reset();
+            cpu.getProfiler().setEnabled(true);
+        }
+        else if (command[0].equals(COMMAND_SNAPSHOT) || command[0].equals(COMMAND_RESTORE))
+            doSnapshotCommand(command);
         else
             throw new CommandException("Unknown simulator command", command);
     }
 
+    /**
+     * Returns an immutable snapshot of the registers, RAM, ROM and time.
+     * The memory arrays are shared with the snapshot and copied only when
+     * they are next changed.
+     */
+    public Object createSnapshot() {
+        return new Snapshot(cpu.getA().get(), cpu.getD().get(), cpu.getPC().get(),
+                            cpu.getTime(), cpu.getRAM().shareContents(),
+                            cpu.getROM().shareContents());
+    }
+
+    /**
+     * Restores the registers, RAM, ROM and time from the given snapshot.
+     */
+    public void restoreSnapshot(Object snapshot) throws ProgramException {
+        if (!(snapshot instanceof Snapshot))
+            throw new ProgramException("Not a " + getName() + " snapshot");
+
+        Snapshot state = (Snapshot)snapshot;
+        cpu.getRAM().hideSelect();
+        cpu.getROM().hideSelect();
+        cpu.getRAM().restoreContents(state.ram);
+        cpu.getROM().restoreContents(state.rom);
+        cpu.restoreState(state.a, state.d, state.pc, state.time);
+        keyboard.seekReplay(state.time);
+    }
+
+    /**
+     * Writes the profile file, if the profile command was given.
+     */
+    public void scriptEnded() {
+        if (profileFileName != null) {
+            String fileName = profileFileName;
+            profileFileName = null;
+            cpu.getProfiler().setEnabled(false);
+            try {
+                cpu.getProfiler().writeReport(fileName);
+            } catch (IOException ioe) {
+                displayMessage("Could not write " + new File(fileName).getName(), true);
+            }
+        }
+    }
+
     // Hides all highlights in GUIs.
     private void hideHighlightes() {
         cpu.getRAM().hideHighlight();
@@ -279,6 +378,7 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
      */
     public void restart() {
         cpu.initProgram();
+        keyboard.restartReplay();
     }
 
     public void setAnimationMode(int newAnimationMode) {
@@ -385,7 +485,24 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
 
     @Override
     protected Profiler getProfiler() {
-        return null;
+        return cpu.getProfiler();
+    }
+
+    @Override
+    public Memory getMemory() {
+        return cpu.getRAM();
+    }
+
+    @Override
+    public int getVariableAddress(String varName) {
+        if (!varName.startsWith(VAR_RAM + "["))
+            return -1;
+
+        try {
+            return getRamIndex(varName);
+        } catch (VariableException | NumberFormatException e) {
+            return -1;
+        }
     }
 
     /**
@@ -402,6 +519,7 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
             refresh();
             notifyListeners(ControllerEvent.ENABLE_MOVEMENT, null);
             cpu.initProgram();
+            keyboard.restartReplay();
 
             setAnimationMode(oldAnimationMode);
         }
@@ -465,4 +583,20 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
             throw new VariableException(value +
                 " is an illegal value for", varName);
     }
+
+    // The state of the emulator at a certain time.
+    private static final class Snapshot {
+        private final short a, d, pc;
+        private final long time;
+        private final short[] ram, rom;
+
+        private Snapshot(short a, short d, short pc, long time, short[] ram, short[] rom) {
+            this.a = a;
+            this.d = d;
+            this.pc = pc;
+            this.time = time;
+            this.ram = ram;
+            this.rom = rom;
+        }
+    }
 }
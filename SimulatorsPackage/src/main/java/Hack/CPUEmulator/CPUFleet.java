@@ -0,0 +1,327 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import Hack.Controller.*;
+import Hack.Utilities.*;
+import Hack.Assembler.*;
+
+/**
+ * Runs a program on many Hack computers at once, each with its own RAM and
+ * registers (for example, to test a program on many inputs). The computers are
+ * stepped together: the computers that are at the same program address execute
+ * the instruction there as one group, which decodes it once. Computers that
+ * take different branches simply form separate groups.
+ * A computer stops when its program halts (see CPU.getHaltLoopLength), when it
+ * executed the given number of instructions, or when it causes an error (the same
+ * errors that CPU.executeInstruction throws), which doesn't affect the others.
+ */
+public class CPUFleet {
+
+    // The program (the contents of the ROM)
+    private short[] program;
+
+    // True for the program addresses in which a computer may halt
+    private boolean[] mayHalt;
+
+    // The RAM arrays of the computers
+    private short[][] rams;
+
+    // The A, D and program counter registers of the computers
+    private short[] a, d;
+    private int[] pc;
+
+    // The number of instructions that each computer executed
+    private long[] time;
+
+    // True for the computers whose program halted
+    private boolean[] halted;
+
+    // The errors of the computers that stopped on an error (null for the others)
+    private String[] errors;
+
+    // The computers that are still running
+    private int[] running;
+    private int runningCount;
+
+    // The running computers, grouped by their program counter: the first computer
+    // in each program address (or -1), the next computer in the same address after
+    // each computer (or -1), and the addresses of the groups.
+    private int[] firstAtAddress;
+    private int[] nextAtAddress;
+    private int[] groupAddresses;
+
+    /**
+     * Constructs a new CPUFleet that runs the given program (a ROM contents array,
+     * as returned by HackAssemblerTranslator.loadProgram).
+     */
+    public CPUFleet(short[] program) {
+        this.program = program;
+
+        mayHalt = new boolean[program.length];
+        for (int i = 0; i < program.length; i++)
+            mayHalt[i] = CPU.getHaltLoopLength(program, i, (short)i) > 0;
+
+        firstAtAddress = new int[program.length];
+        for (int i = 0; i < firstAtAddress.length; i++)
+            firstAtAddress[i] = -1;
+    }
+
+    /**
+     * Constructs a new CPUFleet that runs the given program file (HACK or ASM).
+     */
+    public CPUFleet(String fileName) throws ProgramException {
+        this(loadProgram(fileName));
+    }
+
+    // Loads the given program file into a ROM contents array.
+    private static short[] loadProgram(String fileName) throws ProgramException {
+        try {
+            return HackAssemblerTranslator.loadProgram(fileName, Definitions.ROM_SIZE,
+                                                       HackAssemblerTranslator.NOP);
+        } catch (AssemblerException ae) {
+            throw new ProgramException(ae.getMessage());
+        }
+    }
+
+    /**
+     * Runs the program from its beginning on a computer for each of the given
+     * initial RAM contents, which are put in the RAM from address 0 (the rest of
+     * the RAM is 0, and a null array leaves the whole RAM 0; assumes that the
+     * contents fit). Each computer runs until its program halts, it executes the
+     * given number of instructions or it causes an error.
+     * Returns the final RAM arrays of the computers.
+     */
+    public short[][] run(short[][] initialRAMs, long maxInstructions) {
+        int size = initialRAMs.length;
+        rams = new short[size][];
+        a = new short[size];
+        d = new short[size];
+        pc = new int[size];
+        time = new long[size];
+        halted = new boolean[size];
+        errors = new String[size];
+        running = new int[size];
+        nextAtAddress = new int[size];
+        groupAddresses = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            rams[i] = new short[Definitions.RAM_SIZE];
+            if (initialRAMs[i] != null)
+                System.arraycopy(initialRAMs[i], 0, rams[i], 0, initialRAMs[i].length);
+            running[i] = i;
+        }
+        runningCount = size;
+
+        for (long step = 0; step < maxInstructions && runningCount > 0; step++) {
+            int groups = 0;
+            for (int i = 0; i < runningCount; i++) {
+                int computer = running[i];
+                int address = pc[computer];
+                if (firstAtAddress[address] < 0)
+                    groupAddresses[groups++] = address;
+                nextAtAddress[computer] = firstAtAddress[address];
+                firstAtAddress[address] = computer;
+            }
+
+            for (int i = 0; i < groups; i++) {
+                int address = groupAddresses[i];
+                execute(address, firstAtAddress[address]);
+                firstAtAddress[address] = -1;
+            }
+
+            int count = 0;
+            for (int i = 0; i < runningCount; i++) {
+                int computer = running[i];
+                if (!halted[computer] && errors[computer] == null)
+                    running[count++] = computer;
+            }
+            runningCount = count;
+        }
+
+        return rams;
+    }
+
+    // Executes the instruction at the given program address on the group of
+    // computers that starts with the given computer.
+    private void execute(int address, int first) {
+        short instruction = program[address];
+        boolean lastLine = address + 1 >= Definitions.ROM_SIZE;
+
+        if ((instruction & 0x8000) == 0) {
+            for (int computer = first; computer >= 0; computer = nextAtAddress[computer]) {
+                if (mayHalt[address] && checkHalted(computer))
+                    continue;
+
+                a[computer] = instruction;
+                if (lastLine)
+                    errors[computer] = "At line " + address + ": Can't continue past last line";
+                else {
+                    pc[computer] = address + 1;
+                    time[computer]++;
+                }
+            }
+        }
+        else if ((instruction & 0xe000) == 0xe000) {
+            boolean indirect = (instruction & 0x1000) > 0;
+            boolean zd = (instruction & 0x0800) > 0;
+            boolean nd = (instruction & 0x0400) > 0;
+            boolean zm = (instruction & 0x0200) > 0;
+            boolean nm = (instruction & 0x0100) > 0;
+            boolean f = (instruction & 0x0080) > 0;
+            boolean no = (instruction & 0x0040) > 0;
+            boolean destA = (instruction & 0x0020) > 0;
+            boolean destD = (instruction & 0x0010) > 0;
+            boolean destM = (instruction & 0x0008) > 0;
+            boolean jumpNegative = (instruction & 0x0004) > 0;
+            boolean jumpEqual = (instruction & 0x0002) > 0;
+            boolean jumpPositive = (instruction & 0x0001) > 0;
+
+            for (int computer = first; computer >= 0; computer = nextAtAddress[computer]) {
+                if (mayHalt[address] && checkHalted(computer))
+                    continue;
+
+                short[] ram = rams[computer];
+                int registerA = a[computer];
+
+                short input1 = (short)registerA;
+                if (indirect) {
+                    if (registerA < 0 || registerA >= ram.length) {
+                        errors[computer] = "At line " + address + ": Expression involves M but A=" +
+                                           registerA + " is an illegal memory address.";
+                        continue;
+                    }
+                    input1 = ram[registerA];
+                }
+
+                short exp = Definitions.computeALU(d[computer], input1, zd, nd, zm, nm, f, no);
+
+                boolean jump = (exp < 0 && jumpNegative) || (exp == 0 && jumpEqual) ||
+                               (exp > 0 && jumpPositive);
+                if (jump) {
+                    if (registerA < 0 || registerA >= Definitions.ROM_SIZE) {
+                        errors[computer] = "At line " + address + ": Jump requested but A=" +
+                                           registerA + " is an illegal program address.";
+                        continue;
+                    }
+                    pc[computer] = registerA;
+                }
+
+                if (destM) {
+                    if (registerA < 0 || registerA >= ram.length) {
+                        errors[computer] = "At line " + pc[computer] + ": Destination is M but A=" +
+                                           registerA + " is an illegal memory address.";
+                        continue;
+                    }
+                    ram[registerA] = exp;
+                }
+                if (destA)
+                    a[computer] = exp;
+                if (destD)
+                    d[computer] = exp;
+
+                if (jump)
+                    time[computer]++;
+                else
+                    step(computer, address, lastLine);
+            }
+        }
+        else if (instruction == HackAssemblerTranslator.NOP) {
+            for (int computer = first; computer >= 0; computer = nextAtAddress[computer])
+                step(computer, address, lastLine);
+        }
+        else
+            for (int computer = first; computer >= 0; computer = nextAtAddress[computer])
+                errors[computer] = "At line " + address + ": Illegal instruction";
+    }
+
+    // Advances the given computer, which is at the given program address, to the
+    // next instruction. If the address is the last line, stops it on an error.
+    private void step(int computer, int address, boolean lastLine) {
+        if (lastLine)
+            errors[computer] = "At line " + address + ": Can't continue past last line";
+        else {
+            pc[computer] = address + 1;
+            time[computer]++;
+        }
+    }
+
+    // Returns true (and marks the computer as halted) if the program of the given
+    // computer has halted.
+    private boolean checkHalted(int computer) {
+        halted[computer] = CPU.getHaltLoopLength(program, pc[computer], a[computer]) > 0;
+        return halted[computer];
+    }
+
+    /**
+     * Returns the number of computers in the last run.
+     */
+    public int getSize() {
+        return rams.length;
+    }
+
+    /**
+     * Returns the RAM array of the given computer.
+     */
+    public short[] getRAM(int computer) {
+        return rams[computer];
+    }
+
+    /**
+     * Returns the value of the A register of the given computer.
+     */
+    public short getA(int computer) {
+        return a[computer];
+    }
+
+    /**
+     * Returns the value of the D register of the given computer.
+     */
+    public short getD(int computer) {
+        return d[computer];
+    }
+
+    /**
+     * Returns the value of the program counter of the given computer.
+     */
+    public short getPC(int computer) {
+        return (short)pc[computer];
+    }
+
+    /**
+     * Returns the number of instructions that the given computer executed.
+     */
+    public long getTime(int computer) {
+        return time[computer];
+    }
+
+    /**
+     * Returns true if the program of the given computer halted.
+     */
+    public boolean isHalted(int computer) {
+        return halted[computer];
+    }
+
+    /**
+     * Returns the error that stopped the given computer, or null if it wasn't
+     * stopped by an error.
+     */
+    public String getError(int computer) {
+        return errors[computer];
+    }
+}
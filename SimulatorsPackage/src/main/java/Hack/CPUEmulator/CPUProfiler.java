@@ -0,0 +1,183 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import Hack.Controller.Profiler;
+import Hack.Utilities.Definitions;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A profiler of the CPU emulator. Counts the instructions that are executed in each
+ * ROM address, and sums them up for each function of a program that was translated
+ * from a VM program (see ROM.getFunctionNames). The counts of other programs are
+ * summed up as a single "(program)" function.
+ */
+public class CPUProfiler implements Profiler {
+
+    // The name of the function of a program that wasn't translated from a VM program
+    private static final String PROGRAM_NAME = "(program)";
+
+    // The ROM of the profiled program
+    private ROM rom;
+
+    // The number of executions of each ROM address
+    private long[] counts;
+
+    private boolean enabled;
+
+    /**
+     * Constructs a new CPUProfiler of the program in the given ROM.
+     */
+    public CPUProfiler(ROM rom) {
+        this.rom = rom;
+        counts = new long[Definitions.ROM_SIZE];
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(counts, 0);
+    }
+
+    @Override
+    public String[] getTabNames() {
+        return new String[] {
+                "Cycles per function", "Instruction counts"
+        };
+    }
+
+    @Override
+    public String[] getTableHeaders(int tab) {
+        switch (tab) {
+            case 0:
+                return new String[] {"Function name", "# executed instructions"};
+            case 1:
+                return new String[] {"Instruction address", "Execution count"};
+        }
+        throw new IllegalArgumentException();
+    }
+
+    @Override
+    public Map<String, AtomicInteger> getData(int tab) {
+        Map<String, AtomicInteger> result = new TreeMap<String, AtomicInteger>();
+
+        switch (tab) {
+            case 0:
+                String[] names = getFunctionNames();
+                long[] cycles = getFunctionCycles();
+                for (int i = 0; i < names.length; i++)
+                    if (cycles[i] > 0)
+                        result.put(names[i], toAtomicInteger(cycles[i]));
+                return result;
+
+            case 1:
+                for (int address = 0; address < counts.length; address++)
+                    if (counts[address] > 0)
+                        result.put(String.valueOf(address), toAtomicInteger(counts[address]));
+                return result;
+        }
+        throw new IllegalArgumentException();
+    }
+
+    // Returns the given count as an AtomicInteger, which is limited to an int.
+    private static AtomicInteger toAtomicInteger(long count) {
+        return new AtomicInteger((int)Math.min(count, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Counts an execution of the given ROM address.
+     */
+    public void mark(int address) {
+        counts[address]++;
+    }
+
+    /**
+     * Returns the names of the functions of the program in the ROM.
+     */
+    public String[] getFunctionNames() {
+        String[] names = rom.getFunctionNames();
+        return names != null ? names : new String[] {PROGRAM_NAME};
+    }
+
+    /**
+     * Returns the number of instructions that were executed in each function of
+     * the program, in the order of getFunctionNames().
+     */
+    public long[] getFunctionCycles() {
+        short[] addresses = rom.getFunctionAddresses();
+        if (addresses == null)
+            addresses = new short[] {0};
+
+        long[] result = new long[addresses.length];
+        int function = 0;
+        for (int address = 0; address < counts.length; address++) {
+            while (function + 1 < addresses.length && addresses[function + 1] <= address)
+                function++;
+            result[function] += counts[address];
+        }
+
+        return result;
+    }
+
+    /**
+     * Writes the number of instructions that were executed in each function of the
+     * program into the given file, from the function that executed the most.
+     */
+    public void writeReport(String fileName) throws IOException {
+        final String[] names = getFunctionNames();
+        final long[] cycles = getFunctionCycles();
+        Integer[] order = new Integer[names.length];
+        int width = "Function".length();
+        long total = 0;
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            width = Math.max(width, names[i].length());
+            total += cycles[i];
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i, Integer j) {
+                return Long.compare(cycles[j], cycles[i]);
+            }
+        });
+
+        PrintWriter writer = new PrintWriter(new FileWriter(fileName));
+        try {
+            String format = "%-" + width + "s %12s%n";
+            writer.printf(format, "Function", "Cycles");
+            for (Integer i : order)
+                if (cycles[i] > 0)
+                    writer.printf(format, names[i], String.valueOf(cycles[i]));
+            writer.printf(format, "Total", String.valueOf(total));
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -18,12 +18,18 @@
 package Hack.CPUEmulator;
 
 import java.awt.event.*;
+import java.io.*;
+import java.util.*;
 import Hack.Utilities.*;
 import Hack.CPUEmulator.*;
 import Hack.ComputerParts.*;
+import Hack.Controller.ProgramException;
 
 /**
  * A computer keyboard.
+ * Apart from the keys pressed in the GUI, the keyboard can replay a timeline
+ * of key events loaded from a file (see loadReplay), which the emulator
+ * advances with its time.
  */
 public class Keyboard extends ComputerPart implements KeyListener {
 
@@ -33,6 +39,15 @@ public class Keyboard extends ComputerPart implements KeyListener {
     // The gui of the keyboard
     private KeyboardGUI gui;
 
+    // The times of the replayed key events, in ascending order
+    private long[] replayTimes;
+
+    // The key codes of the replayed key events (0 for a release)
+    private short[] replayKeys;
+
+    // The index of the next key event to replay
+    private int nextReplayEvent;
+
     /**
      * Constructs a new keyboard with the given RAM and keyboard GUI.
      */
@@ -44,6 +59,104 @@ public class Keyboard extends ComputerPart implements KeyListener {
 
         if (hasGUI)
             gui.getKeyEventHandler().addKeyListener(this);
+
+        replayTimes = new long[0];
+        replayKeys = new short[0];
+    }
+
+    /**
+     * Loads a timeline of key events to replay from the given file.
+     * Each line holds the time of an event and the key code that the keyboard
+     * has from that time on (0 for no key), separated by spaces. Times are
+     * in the units of the emulator (clock cycles in the CPU emulator,
+     * virtual milliseconds in the VM emulator) and must not decrease.
+     * Empty lines and comments (starting with //) are ignored.
+     * Throws ProgramException if the file can't be read or is illegal.
+     */
+    public void loadReplay(String fileName) throws ProgramException {
+        Vector<long[]> events = new Vector<long[]>();
+        int lineNumber = 0;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int comment = line.indexOf("//");
+                if (comment != -1)
+                    line = line.substring(0, comment);
+
+                StringTokenizer tokenizer = new StringTokenizer(line);
+                if (!tokenizer.hasMoreTokens())
+                    continue;
+
+                if (tokenizer.countTokens() != 2)
+                    throw new ProgramException("Illegal key event: " + line, lineNumber);
+
+                long time = Long.parseLong(tokenizer.nextToken());
+                int key = Integer.parseInt(tokenizer.nextToken());
+                if (time < 0 || key < 0 || key > Short.MAX_VALUE ||
+                        (events.size() > 0 && time < events.lastElement()[0]))
+                    throw new ProgramException("Illegal key event: " + line, lineNumber);
+
+                events.addElement(new long[]{time, key});
+            }
+        } catch (NumberFormatException nfe) {
+            throw new ProgramException("Illegal number in key event", lineNumber);
+        } catch (IOException ioe) {
+            throw new ProgramException("Can't read key events file: " + fileName);
+        }
+
+        replayTimes = new long[events.size()];
+        replayKeys = new short[events.size()];
+        for (int i = 0; i < replayTimes.length; i++) {
+            replayTimes[i] = events.elementAt(i)[0];
+            replayKeys[i] = (short)events.elementAt(i)[1];
+        }
+        nextReplayEvent = 0;
+    }
+
+    /**
+     * Returns the time of the next key event to replay, or Long.MAX_VALUE
+     * if there are no more events.
+     */
+    public long getNextReplayTime() {
+        return nextReplayEvent < replayTimes.length ? replayTimes[nextReplayEvent] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Replays the key events up to the given time (including), which haven't
+     * been replayed yet.
+     */
+    public void replay(long time) {
+        short key = -1;
+        while (nextReplayEvent < replayTimes.length && replayTimes[nextReplayEvent] <= time)
+            key = replayKeys[nextReplayEvent++];
+
+        if (key != -1)
+            ram.setValueAt(Definitions.KEYBOARD_ADDRESS, key, true);
+    }
+
+    /**
+     * Sets the position of the replay after the events up to the given time
+     * (including), without replaying them. Used when the state of the emulator
+     * at the given time is restored.
+     */
+    public void seekReplay(long time) {
+        nextReplayEvent = 0;
+        while (nextReplayEvent < replayTimes.length && replayTimes[nextReplayEvent] <= time)
+            nextReplayEvent++;
+    }
+
+    /**
+     * Restarts the replay when the program is restarted: releases the key and
+     * replays the events of time 0. Does nothing if there are no events.
+     */
+    public void restartReplay() {
+        if (replayTimes.length > 0) {
+            nextReplayEvent = 0;
+            ram.setValueAt(Definitions.KEYBOARD_ADDRESS, (short)0, true);
+            replay(0);
+        }
     }
 
     /**
@@ -77,6 +77,30 @@ public class RAM extends PointedMemory
         }
     }
 
+    /**
+     * Updates the GUIs of the memory, the screen and the memory segments after
+     * the given number of values at the addresses address, address+step, ...
+     * were changed.
+     */
+    protected void valuesChanged(int address, int step, int count) {
+        super.valuesChanged(address, step, count);
+
+        for (int i = 0; i < count; i++, address += step) {
+            if (screen != null && address >= Definitions.SCREEN_START_ADDRESS
+                 && address < Definitions.SCREEN_START_ADDRESS + Definitions.SCREEN_SIZE_IN_WORDS)
+                screen.setValueAt((short)(address - Definitions.SCREEN_START_ADDRESS), mem[address]);
+
+            if (segments != null && segments[address] != null) {
+                for (int j = 0; j < segments[address].length; j++) {
+                    if (segments[address][j] instanceof PointedMemorySegment)
+                        ((PointedMemorySegment)segments[address][j]).setPointerAddress(mem[address]);
+                    else
+                        segments[address][j].setStartAddress(mem[address]);
+                }
+            }
+        }
+    }
+
     /**
      * Sets a name for the label at the given address
      */
@@ -120,6 +144,22 @@ public class RAM extends PointedMemory
             screen.reset();
     }
 
+    /**
+     * Replaces the contents of the memory with the given snapshot array
+     * and redraws the screen accordingly.
+     */
+    public void restoreContents(short[] contents) {
+        super.restoreContents(contents);
+
+        if (screen != null) {
+            short[] screenContents = new short[Definitions.SCREEN_SIZE_IN_WORDS];
+            System.arraycopy(contents, Definitions.SCREEN_START_ADDRESS, screenContents, 0,
+                             Definitions.SCREEN_SIZE_IN_WORDS);
+            screen.setContents(screenContents);
+            screen.refresh();
+        }
+    }
+
     public void refreshGUI() {
         super.refreshGUI();
 
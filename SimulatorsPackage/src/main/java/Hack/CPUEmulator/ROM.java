@@ -17,16 +17,20 @@
 
 package Hack.CPUEmulator;
 
+import java.io.*;
 import java.util.*;
 import Hack.Utilities.*;
 import Hack.ComputerParts.*;
 import Hack.Controller.*;
 import Hack.Events.*;
 import Hack.Assembler.*;
+import Hack.VMEmulator.VMTranslator;
 
 /**
  * A Read Only Memory. Has methods for loading a machine language file (.hack) and for
  * setting a pointer (a specific address in the ROM for GUI perposes).
+ * A VM program (a .vm file or a directory of .vm files) can also be loaded, and is
+ * translated by the VMTranslator.
  */
 public class ROM extends PointedMemory implements ProgramEventListener
 {
@@ -53,6 +57,10 @@ public class ROM extends PointedMemory implements ProgramEventListener
     // listeners to program changes
     private Vector listeners;
 
+    // The names and addresses of the functions of a loaded VM program, or null
+    private String[] functionNames;
+    private short[] functionAddresses;
+
     /**
      * Constructs a new ROM with the given ROM GUI.
      */
@@ -70,6 +78,7 @@ public class ROM extends PointedMemory implements ProgramEventListener
 
     /**
      * Loads the given program file (HACK or ASM) into the ROM.
+     * A VM program (a VM file or a directory) is translated and loaded.
      */
     public synchronized void loadProgram(String fileName) throws ProgramException {
         short[] program = null;
@@ -78,8 +87,24 @@ public class ROM extends PointedMemory implements ProgramEventListener
             ((ROMGUI)gui).showMessage("Loading...");
 
         try {
-            program = HackAssemblerTranslator.loadProgram(fileName, Definitions.ROM_SIZE,
-                                                          HackAssemblerTranslator.NOP);
+            if (fileName.endsWith(".vm") || new File(fileName).isDirectory()) {
+                VMTranslator translator = new VMTranslator();
+                try {
+                    translator.translate(fileName);
+                } catch (ProgramException pe) {
+                    throw new AssemblerException(pe.getMessage());
+                }
+
+                program = translator.getProgram();
+                functionNames = translator.getFunctionNames();
+                functionAddresses = translator.getFunctionAddresses();
+            }
+            else {
+                program = HackAssemblerTranslator.loadProgram(fileName, Definitions.ROM_SIZE,
+                                                              HackAssemblerTranslator.NOP);
+                functionNames = null;
+                functionAddresses = null;
+            }
 
             mem = program;
 
@@ -102,6 +127,22 @@ public class ROM extends PointedMemory implements ProgramEventListener
 
     }
 
+    /**
+     * Returns the names of the functions of the loaded program if it was translated
+     * from a VM program (see VMTranslator.getFunctionNames), or null.
+     */
+    public String[] getFunctionNames() {
+        return functionNames;
+    }
+
+    /**
+     * Returns the addresses of the functions of the loaded program if it was
+     * translated from a VM program (see VMTranslator.getFunctionAddresses), or null.
+     */
+    public short[] getFunctionAddresses() {
+        return functionAddresses;
+    }
+
     /**
      * Called when the ROM's current program is changed.
      * The event contains the source object, event type and the new program's file name (if any).
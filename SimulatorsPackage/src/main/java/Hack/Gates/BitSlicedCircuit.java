@@ -0,0 +1,242 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Gates;
+
+import java.util.*;
+
+/**
+ * A combinational chip flattened into a list of bit-sliced built-in gates, which
+ * computes 64 evaluations of the chip at once (see BitSlicedGate).
+ * The signals of the chip are indices into an array of lanes. Wires and sub buses
+ * only map lanes, so only the built-in gates take time to evaluate.
+ */
+public class BitSlicedCircuit {
+
+    /**
+     * The lane that is always 0
+     */
+    public static final int FALSE_LANE = 0;
+
+    /**
+     * The lane that is always 1
+     */
+    public static final int TRUE_LANE = 1;
+
+    // The lanes of the bits of the "true" special node
+    private static final int[] TRUE_LANES = new int[CompositeGateClass.TRUE_NODE_INFO.width];
+
+    // The number of lanes
+    private int numberOfLanes;
+
+    // The lanes of the chip's input and output pins
+    private final int[][] inputs, outputs;
+
+    // The built-in gates in evaluation order, and the lanes of their pins
+    private final BitSlicedGate[] gates;
+    private final int[][][] gateInputs, gateOutputs;
+
+    // The built-in gates, and the lanes of their pins, while compiling
+    private Vector<BitSlicedGate> gatesList = new Vector<BitSlicedGate>();
+    private Vector<int[][]> gateInputsList = new Vector<int[][]>();
+    private Vector<int[][]> gateOutputsList = new Vector<int[][]>();
+
+    static {
+        Arrays.fill(TRUE_LANES, TRUE_LANE);
+    }
+
+    /**
+     * Constructs a new BitSlicedCircuit of the given chip.
+     * Throws HDLException if the chip or one of its parts is clocked, or if
+     * a built-in part has no bit-sliced implementation.
+     */
+    public BitSlicedCircuit(GateClass gateClass) throws HDLException {
+        numberOfLanes = 2;
+        inputs = newLanes(gateClass.inputPinsInfo);
+        outputs = compile(gateClass, inputs);
+
+        gates = new BitSlicedGate[gatesList.size()];
+        gatesList.toArray(gates);
+        gateInputs = new int[gates.length][][];
+        gateInputsList.toArray(gateInputs);
+        gateOutputs = new int[gates.length][][];
+        gateOutputsList.toArray(gateOutputs);
+        gatesList = null;
+        gateInputsList = null;
+        gateOutputsList = null;
+    }
+
+    /**
+     * Returns a new array of lanes for evaluating the circuit.
+     */
+    public long[] newLanes() {
+        long[] lanes = new long[numberOfLanes];
+        lanes[TRUE_LANE] = -1L;
+        return lanes;
+    }
+
+    /**
+     * Returns the lanes of the bits of the chip's input pins.
+     */
+    public int[][] getInputLanes() {
+        return inputs;
+    }
+
+    /**
+     * Returns the lanes of the bits of the chip's output pins.
+     */
+    public int[][] getOutputLanes() {
+        return outputs;
+    }
+
+    /**
+     * Computes the output lanes from the input lanes in the given lanes array.
+     */
+    public void eval(long[] lanes) {
+        for (int i = 0; i < gates.length; i++)
+            gates[i].evalSliced(lanes, gateInputs[i], gateOutputs[i]);
+    }
+
+    /**
+     * Returns the lane that is set in the evaluations in which the number whose
+     * bits are in the given lanes equals the given value.
+     */
+    public static long select(long[] lanes, int[] bits, int value) {
+        long result = -1L;
+        for (int i = 0; i < bits.length; i++)
+            result &= ((value >> i) & 1) != 0 ? lanes[bits[i]] : ~lanes[bits[i]];
+        return result;
+    }
+
+    // Adds the gates of the given chip, whose input pins' bits are in the given
+    // lanes, and returns the lanes of its output pins' bits.
+    private int[][] compile(GateClass gateClass, int[][] inputLanes) throws HDLException {
+        if (gateClass.isClocked())
+            throw new HDLException(gateClass.getName() + " is clocked");
+
+        if (gateClass instanceof BuiltInGateClass) {
+            BitSlicedGate gate;
+            try {
+                gate = ((BuiltInGateClass)gateClass).getBitSlicedGate();
+            } catch (InstantiationException ie) {
+                throw new HDLException(gateClass.getName() + ": " + ie.getMessage());
+            }
+            if (gate == null)
+                throw new HDLException(gateClass.getName() + " has no bit-sliced implementation");
+
+            int[][] outputLanes = newLanes(gateClass.outputPinsInfo);
+            gatesList.addElement(gate);
+            gateInputsList.addElement(inputLanes);
+            gateOutputsList.addElement(outputLanes);
+            return outputLanes;
+        }
+
+        CompositeGateClass compositeClass = (CompositeGateClass)gateClass;
+        int[][] internalLanes = new int[compositeClass.getNumberOfInternalPins()][];
+        int[][] outputLanes = falseLanes(gateClass.outputPinsInfo);
+        int[] partsOrder = compositeClass.getPartsOrder();
+
+        for (int i = 0; i < partsOrder.length; i++) {
+            int partNumber = partsOrder[i];
+            GateClass partClass = compositeClass.getPart(partNumber);
+            int[][] partInputLanes = falseLanes(partClass.inputPinsInfo);
+
+            // connect the sources of the part's inputs
+            Iterator connectionIter = compositeClass.getConnections().iterator();
+            while (connectionIter.hasNext()) {
+                Connection connection = (Connection)connectionIter.next();
+                if (connection.getPartNumber() != partNumber)
+                    continue;
+
+                int[] partLanes = partInputLanes[partClass.getPinNumber(connection.getPartPinName())];
+                switch (connection.getType()) {
+                    case Connection.FROM_INPUT:
+                        connect(inputLanes[connection.getGatePinNumber()], connection.getGateSubBus(),
+                                partLanes, connection.getPartSubBus());
+                        break;
+                    case Connection.FROM_INTERNAL:
+                        connect(internalLanes[connection.getGatePinNumber()], null,
+                                partLanes, connection.getPartSubBus());
+                        break;
+                    case Connection.FROM_TRUE:
+                        connect(TRUE_LANES, connection.getGateSubBus(),
+                                partLanes, connection.getPartSubBus());
+                        break;
+                    case Connection.FROM_CLOCK:
+                        throw new HDLException(gateClass.getName() + " is clocked");
+                }
+            }
+
+            int[][] partOutputLanes = compile(partClass, partInputLanes);
+
+            // connect the part's outputs to their targets
+            connectionIter = compositeClass.getConnections().iterator();
+            while (connectionIter.hasNext()) {
+                Connection connection = (Connection)connectionIter.next();
+                if (connection.getPartNumber() != partNumber)
+                    continue;
+
+                switch (connection.getType()) {
+                    case Connection.TO_INTERNAL:
+                        int[] partLanes = partOutputLanes[partClass.getPinNumber(connection.getPartPinName())];
+                        byte[] subBus = connection.getPartSubBus();
+                        internalLanes[connection.getGatePinNumber()] = (subBus == null ? partLanes :
+                            Arrays.copyOfRange(partLanes, subBus[0], subBus[1] + 1));
+                        break;
+                    case Connection.TO_OUTPUT:
+                        connect(partOutputLanes[partClass.getPinNumber(connection.getPartPinName())],
+                                connection.getPartSubBus(),
+                                outputLanes[connection.getGatePinNumber()], connection.getGateSubBus());
+                        break;
+                }
+            }
+        }
+
+        return outputLanes;
+    }
+
+    // Maps the bits of the given target pin (or its sub bus, if not null) to
+    // the lanes of the given source pin (or its sub bus, if not null).
+    private static void connect(int[] sourceLanes, byte[] sourceSubBus, int[] targetLanes, byte[] targetSubBus) {
+        int source = (sourceSubBus == null ? 0 : sourceSubBus[0]);
+        int sourceEnd = (sourceSubBus == null ? sourceLanes.length : sourceSubBus[1] + 1);
+        int target = (targetSubBus == null ? 0 : targetSubBus[0]);
+        int targetEnd = (targetSubBus == null ? targetLanes.length : targetSubBus[1] + 1);
+        while (source < sourceEnd && target < targetEnd)
+            targetLanes[target++] = sourceLanes[source++];
+    }
+
+    // Returns the lanes of new signals for the bits of the given pins.
+    private int[][] newLanes(PinInfo[] pins) {
+        int[][] result = new int[pins.length][];
+        for (int i = 0; i < pins.length; i++) {
+            result[i] = new int[pins[i].width];
+            for (int j = 0; j < result[i].length; j++)
+                result[i][j] = numberOfLanes++;
+        }
+        return result;
+    }
+
+    // Returns the lanes of the bits of the given pins, all mapped to FALSE_LANE
+    // (which is 0), so that unconnected bits are false.
+    private static int[][] falseLanes(PinInfo[] pins) {
+        int[][] result = new int[pins.length][];
+        for (int i = 0; i < pins.length; i++)
+            result[i] = new int[pins[i].width];
+        return result;
+    }
+}
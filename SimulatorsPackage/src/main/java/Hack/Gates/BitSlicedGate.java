@@ -0,0 +1,35 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Gates;
+
+/**
+ * An interface for built-in gates that can compute 64 evaluations at once.
+ * Every 1-bit signal is held in a lane - a long whose bit i is the signal's value
+ * in evaluation i.
+ */
+public interface BitSlicedGate {
+
+    /**
+     * Computes the outputs of the gate in the 64 evaluations.
+     * The lane of bit b of input pin p is lanes[inputs[p][b]], and the lane of
+     * bit b of output pin p is lanes[outputs[p][b]]. The pins are in their HDL
+     * order, and the pins arrays have the pins' widths. All the output lanes
+     * must be set.
+     */
+    public void evalSliced(long[] lanes, int[][] inputs, int[][] outputs);
+}
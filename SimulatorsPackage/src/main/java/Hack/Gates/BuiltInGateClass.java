@@ -25,6 +25,10 @@ public class BuiltInGateClass extends GateClass {
     // the java class that holds the basic gate functionality
     private Class javaGateClass;
 
+    // an instance of the java class that computes bit-sliced evaluations
+    // (created when first needed)
+    private BitSlicedGate bitSlicedGate;
+
     /**
      * Constructs a new BuiltInGateClass with the given gate name and the HDLTokenizer
      * input which is positioned just after the BUILTIN declaration.
@@ -108,6 +112,56 @@ public class BuiltInGateClass extends GateClass {
                 input.HDLError("Missing '}'");
     }
 
+    /**
+     * Constructs a new BuiltInGateClass with the given gate name, pins information,
+     * java class and clocked pins (used by the HDLCache).
+     */
+    BuiltInGateClass(String gateName, PinInfo[] inputPinsInfo, PinInfo[] outputPinsInfo,
+                     Class javaGateClass, boolean isClocked, boolean[] isInputClocked,
+                     boolean[] isOutputClocked) {
+        super(gateName, inputPinsInfo, outputPinsInfo);
+        this.javaGateClass = javaGateClass;
+        this.isClocked = isClocked;
+        this.isInputClocked = isInputClocked;
+        this.isOutputClocked = isOutputClocked;
+    }
+
+    /**
+     * Returns an instance of the gate's java class that computes bit-sliced
+     * evaluations, or null if the java class doesn't implement BitSlicedGate.
+     * The instance isn't initialized as a gate and has no gui.
+     */
+    public synchronized BitSlicedGate getBitSlicedGate() throws InstantiationException {
+        if (bitSlicedGate == null && BitSlicedGate.class.isAssignableFrom(javaGateClass)) {
+            GatesManager manager = GatesManager.getInstance();
+            boolean chipsGUIEnabled = manager.isChipsGUIEnabled();
+            manager.enableChipsGUI(false);
+            try {
+                bitSlicedGate = (BitSlicedGate)javaGateClass.newInstance();
+            } catch (IllegalAccessException iae) {
+                throw new InstantiationException(iae.getMessage());
+            } finally {
+                manager.enableChipsGUI(chipsGUIEnabled);
+            }
+        }
+
+        return bitSlicedGate;
+    }
+
+    /**
+     * Returns the java class that holds the basic gate functionality.
+     */
+    Class getJavaGateClass() {
+        return javaGateClass;
+    }
+
+    /**
+     * Returns true if the gate's java class has a gui component.
+     */
+    boolean hasGUI() {
+        return BuiltInGateWithGUI.class.isAssignableFrom(javaGateClass);
+    }
+
     /**
      * Creates and returns a new instance of BuiltInGate.
      */
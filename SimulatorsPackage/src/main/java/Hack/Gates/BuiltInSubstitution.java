@@ -0,0 +1,369 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Gates;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Substitutes parts with the built in chips of the same name, when their HDL
+ * chips are verified to behave like the built in chips, so that chips made of
+ * them run at the speed of built in chips while their own connections are still
+ * simulated (see GatesManager.enableBuiltInSubstitution()).
+ * Combinational chips are substituted only if a ChipVerifier checks them on all
+ * their input combinations (up to ChipVerifier.MAX_EXHAUSTIVE_INPUT_BITS input bits),
+ * since random combinations can miss a difference. Wider chips and chips that
+ * can't be evaluated bit-sliced are kept.
+ * Clocked chips are substituted only if they are memories (with the inputs in, load
+ * and optionally address, and the output out, like Register or RAM8). These are run
+ * together with the built in chip on a full sweep of their addresses: a value is
+ * written to every address and then every address is read back, once with a value
+ * for each address and once with its complement, followed by SIMULATION_CYCLES
+ * cycles of random inputs. Other clocked chips (such as PC) are kept.
+ * Each chip is verified once, and the decisions about the parts that were looked
+ * up since the last clearReport() are given by getReport().
+ */
+public class BuiltInSubstitution {
+
+    /**
+     * The number of cycles of random inputs for which memory chips are run.
+     */
+    public static final int SIMULATION_CYCLES = 2000;
+
+    // The number of values per input pin from which most random inputs are taken
+    private static final int VALUES_PER_PIN = 4;
+
+    // The seed of the random inputs, so that decisions are reproducible
+    private static final long RANDOM_SEED = 0x6E32744275696C74L;
+
+    // A decision about a chip
+    private static class Decision {
+        // The substituting built in chip, or null if the chip isn't substituted
+        GateClass builtInClass;
+
+        // A description of the decision, or null if there is no built in chip
+        String description;
+
+        Decision(GateClass builtInClass, String description) {
+            this.builtInClass = builtInClass;
+            this.description = description;
+        }
+    }
+
+    // The decisions about the chips that were verified
+    private static Map<GateClass, Decision> decisions = new WeakHashMap<GateClass, Decision>();
+
+    // The descriptions of the decisions since the last clearReport(), by chip name
+    private static LinkedHashMap<String, String> report = new LinkedHashMap<String, String>();
+
+    /**
+     * Returns the built in chip that substitutes the given part, or the given part
+     * if substitution isn't enabled or the part isn't substituted.
+     */
+    public static GateClass substitute(GateClass gateClass) {
+        if (!(gateClass instanceof CompositeGateClass) ||
+            !GatesManager.getInstance().isBuiltInSubstitutionEnabled())
+            return gateClass;
+
+        Decision decision = decide((CompositeGateClass)gateClass);
+        if (decision.description != null) {
+            synchronized (report) {
+                report.put(gateClass.getName(), decision.description);
+            }
+        }
+
+        return (decision.builtInClass != null ? decision.builtInClass : gateClass);
+    }
+
+    /**
+     * Clears the report.
+     */
+    public static void clearReport() {
+        synchronized (report) {
+            report.clear();
+        }
+    }
+
+    /**
+     * Returns the descriptions of the decisions about the parts that were looked
+     * up since the last clearReport(), in the order of the first lookup.
+     */
+    public static String[] getReport() {
+        synchronized (report) {
+            String[] result = new String[report.size()];
+            report.values().toArray(result);
+            return result;
+        }
+    }
+
+    // Returns the decision about the given chip, and verifies it if it wasn't
+    // verified yet.
+    private static synchronized Decision decide(CompositeGateClass gateClass) {
+        Decision decision = decisions.get(gateClass);
+        if (decision == null) {
+            decision = verify(gateClass);
+            decisions.put(gateClass, decision);
+        }
+
+        return decision;
+    }
+
+    // Verifies the given chip against the built in chip of the same name.
+    private static Decision verify(CompositeGateClass gateClass) {
+        String name = gateClass.getName();
+        File file = new File(GatesManager.getInstance().getBuiltInDir(), name + ".hdl");
+        if (!file.exists())
+            return new Decision(null, null);
+
+        GateClass builtInClass;
+        try {
+            builtInClass = GateClass.readHDL(new HDLTokenizer(file.getPath()), name);
+        } catch (HDLException he) {
+            return new Decision(null, null);
+        }
+
+        if (!(builtInClass instanceof BuiltInGateClass))
+            return new Decision(null, null);
+
+        if (!canSubstitute(gateClass, builtInClass))
+            return new Decision(null, name + ": HDL chip kept (its pins differ from the built-in chip)");
+
+        if (!gateClass.isClocked()) {
+            ChipVerifier verifier;
+            try {
+                verifier = new ChipVerifier(gateClass, builtInClass);
+            } catch (HDLException he) {
+                return new Decision(null, name + ": HDL chip kept (can't be checked on all input combinations)");
+            }
+
+            if (!verifier.isExhaustive())
+                return new Decision(null, name + ": HDL chip kept (too many inputs to check all their combinations)");
+
+            if (verifier.verify(0) != null)
+                return new Decision(null, name + ": HDL chip kept (differs from the built-in chip)");
+
+            return new Decision(builtInClass, name + ": built-in chip used (matches on all " +
+                                verifier.getNumberOfCombinations(0) + " input combinations)");
+        }
+
+        if (!isMemory(gateClass))
+            return new Decision(null, name + ": HDL chip kept (only clocked memory chips are verified)");
+
+        String difference = simulate(gateClass, builtInClass);
+        if (difference != null)
+            return new Decision(null, name + ": HDL chip kept (" + difference + ")");
+
+        int addresses = getNumberOfAddresses(gateClass);
+        return new Decision(builtInClass, name + ": built-in chip used (matches on " +
+                            (addresses > 1 ? "all " + addresses + " addresses" : "writes and reads") +
+                            " and " + SIMULATION_CYCLES + " random clock cycles)");
+    }
+
+    // Returns true if the given built in chip has the same pins as the given chip,
+    // with the same clocked inputs. Outputs that are clocked in the chip may be
+    // unclocked in the built in chip, which only orders the parts more strictly.
+    private static boolean canSubstitute(GateClass gateClass, GateClass builtInClass) {
+        if (!GateReloader.hasSamePins(gateClass.inputPinsInfo, builtInClass.inputPinsInfo) ||
+            !GateReloader.hasSamePins(gateClass.outputPinsInfo, builtInClass.outputPinsInfo) ||
+            gateClass.isClocked != builtInClass.isClocked ||
+            !Arrays.equals(gateClass.isInputClocked, builtInClass.isInputClocked))
+            return false;
+
+        for (int i = 0; i < gateClass.isOutputClocked.length; i++)
+            if (builtInClass.isOutputClocked[i] && !gateClass.isOutputClocked[i])
+                return false;
+
+        return true;
+    }
+
+    // Returns true if the given chip is a memory: its inputs are in, load and
+    // optionally address, and its output is out, which is as wide as in.
+    private static boolean isMemory(GateClass gateClass) {
+        PinInfo[] inputs = gateClass.inputPinsInfo;
+        PinInfo[] outputs = gateClass.outputPinsInfo;
+        if (inputs.length < 2 || inputs.length > 3 || outputs.length != 1 ||
+            !outputs[0].name.equals("out"))
+            return false;
+
+        int in = getPinIndex(inputs, "in");
+        int load = getPinIndex(inputs, "load");
+        if (in < 0 || load < 0 || inputs[load].width != 1 ||
+            inputs[in].width != outputs[0].width)
+            return false;
+
+        return inputs.length == 2 || getPinIndex(inputs, "address") >= 0;
+    }
+
+    // Returns the index of the pin with the given name, or -1 if there is none.
+    private static int getPinIndex(PinInfo[] pins, String name) {
+        for (int i = 0; i < pins.length; i++)
+            if (pins[i].name.equals(name))
+                return i;
+
+        return -1;
+    }
+
+    // Returns the number of addresses of the given memory chip.
+    private static int getNumberOfAddresses(GateClass gateClass) {
+        int address = getPinIndex(gateClass.inputPinsInfo, "address");
+        return (address < 0 ? 1 : 1 << gateClass.inputPinsInfo[address].width);
+    }
+
+    // Runs the given memory chip and built in chip together (on an address sweep
+    // and on random inputs). Returns a description of the
+    // difference between them, or null if they match.
+    // The instances are created with no gui and aren't added to the gates manager.
+    private static String simulate(GateClass gateClass, GateClass builtInClass) {
+        GatesManager manager = GatesManager.getInstance();
+        boolean chipsGUIEnabled = manager.isChipsGUIEnabled();
+        GatesPanelGUI gatesPanel = manager.getGatesPanel();
+        manager.enableChipsGUI(false);
+        manager.setGatesPanel(null);
+
+        Gate gate = null;
+        Gate builtInGate = null;
+        try {
+            gate = gateClass.newInstance();
+            builtInGate = builtInClass.newInstance();
+            String difference = sweep(gate, builtInGate);
+            if (difference == null)
+                difference = simulate(gate, builtInGate);
+            return difference;
+        } catch (InstantiationException ie) {
+            return ie.getMessage();
+        } finally {
+            if (gate != null)
+                GateReloader.removeChips(gate);
+            if (builtInGate != null)
+                GateReloader.removeChips(builtInGate);
+            manager.setGatesPanel(gatesPanel);
+            manager.enableChipsGUI(chipsGUIEnabled);
+        }
+    }
+
+    // Runs the given memory gates, which have the same pins, on a sweep of their
+    // addresses: writes a value to each address and then reads all of them back,
+    // once with a value for each address and once with its complement (so that
+    // every bit is stored as 0 and as 1, and addresses that share their storage
+    // read back the wrong value). The input is changed while reading to check that
+    // nothing is written. Returns a description of the difference between the
+    // gates, or null if they match.
+    private static String sweep(Gate gate, Gate builtInGate) {
+        Node[] inputs = gate.getInputNodes();
+        Node[] builtInInputs = builtInGate.getInputNodes();
+        PinInfo[] inputPins = gate.getGateClass().inputPinsInfo;
+        int in = getPinIndex(inputPins, "in");
+        int load = getPinIndex(inputPins, "load");
+        int address = getPinIndex(inputPins, "address");
+        int addresses = getNumberOfAddresses(gate.getGateClass());
+        int mask = (1 << inputPins[in].width) - 1;
+
+        int time = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            for (int write = 1; write >= 0; write--) {
+                for (int a = 0; a < addresses; a++) {
+                    // multiplying by an odd number gives each address its own value
+                    int value = a * 0x9E3B + 0x1234;
+                    if (pass == 1)
+                        value = ~value;
+                    if (write == 0)
+                        value = ~value;
+
+                    inputs[in].set((short)(value & mask));
+                    builtInInputs[in].set((short)(value & mask));
+                    inputs[load].set((short)write);
+                    builtInInputs[load].set((short)write);
+                    if (address >= 0) {
+                        inputs[address].set((short)a);
+                        builtInInputs[address].set((short)a);
+                    }
+
+                    gate.eval();
+                    builtInGate.eval();
+                    String difference = compareOutputs(gate, builtInGate, time);
+                    if (difference != null)
+                        return difference;
+
+                    gate.tick();
+                    builtInGate.tick();
+                    gate.tock();
+                    builtInGate.tock();
+                    time++;
+                    difference = compareOutputs(gate, builtInGate, time);
+                    if (difference != null)
+                        return difference;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    // Runs the given clocked gates, which have the same pins, on random inputs.
+    // Returns a description of the difference between them, or null if they match.
+    private static String simulate(Gate gate, Gate builtInGate) {
+        Random random = new Random(RANDOM_SEED);
+        Node[] inputs = gate.getInputNodes();
+        Node[] builtInInputs = builtInGate.getInputNodes();
+        PinInfo[] inputPins = gate.getGateClass().inputPinsInfo;
+
+        short[][] values = new short[inputs.length][VALUES_PER_PIN];
+        for (int i = 0; i < inputs.length; i++)
+            for (int j = 0; j < VALUES_PER_PIN; j++)
+                values[i][j] = (short)random.nextInt();
+
+        for (int cycle = 0; cycle < SIMULATION_CYCLES; cycle++) {
+            for (int i = 0; i < inputs.length; i++) {
+                int value = (random.nextInt(4) == 0 ? random.nextInt() :
+                             values[i][random.nextInt(VALUES_PER_PIN)]);
+                short masked = (short)(value & ((1 << inputPins[i].width) - 1));
+                inputs[i].set(masked);
+                builtInInputs[i].set(masked);
+            }
+
+            gate.eval();
+            builtInGate.eval();
+            String difference = compareOutputs(gate, builtInGate, cycle);
+            if (difference != null)
+                return difference;
+
+            gate.tick();
+            builtInGate.tick();
+            gate.tock();
+            builtInGate.tock();
+            difference = compareOutputs(gate, builtInGate, cycle + 1);
+            if (difference != null)
+                return difference;
+        }
+
+        return null;
+    }
+
+    // Returns a description of the first output that differs between the given
+    // gates at the given time, or null if they are equal.
+    private static String compareOutputs(Gate gate, Gate builtInGate, int time) {
+        Node[] outputs = gate.getOutputNodes();
+        Node[] builtInOutputs = builtInGate.getOutputNodes();
+        for (int i = 0; i < outputs.length; i++)
+            if (outputs[i].get() != builtInOutputs[i].get())
+                return gate.getGateClass().outputPinsInfo[i].name +
+                       " differs from the built-in chip at time " + time;
+
+        return null;
+    }
+}
@@ -0,0 +1,300 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Gates;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies a combinational chip against a reference chip with the same pins
+ * (usually the built-in one), by evaluating both as bit-sliced circuits on 64
+ * input combinations at once. Chips with up to MAX_EXHAUSTIVE_INPUT_BITS input
+ * bits are checked on all their input combinations, wider chips on the given
+ * number of random ones. The work is split over the common fork-join pool.
+ */
+public class ChipVerifier {
+
+    /**
+     * The largest number of input bits for which all the input combinations are checked.
+     */
+    public static final int MAX_EXHAUSTIVE_INPUT_BITS = 24;
+
+    // The number of batches (of 64 combinations) that a task takes at a time
+    private static final int BATCHES_PER_STEP = 256;
+
+    // The seed of the random combinations, so that runs are reproducible
+    private static final long RANDOM_SEED = 0x6E32744C6F676963L;
+
+    // The lanes of bit i of the first 64 combinations: bit i of the combination number
+    private static final long[] COMBINATION_LANES = {
+        0xAAAAAAAAAAAAAAAAL, 0xCCCCCCCCCCCCCCCCL, 0xF0F0F0F0F0F0F0F0L,
+        0xFF00FF00FF00FF00L, 0xFFFF0000FFFF0000L, 0xFFFFFFFF00000000L
+    };
+
+    // The verified chip and its reference
+    private final GateClass gateClass, referenceClass;
+
+    // The circuits of the verified chip and of its reference
+    private final BitSlicedCircuit circuit, referenceCircuit;
+
+    // The lanes of the input and output bits of the reference circuit,
+    // ordered by the pins of the verified chip
+    private final int[][] referenceInputs, referenceOutputs;
+
+    // The number of input bits
+    private final int numberOfInputBits;
+
+    /**
+     * Constructs a new ChipVerifier of the given chip against the given reference chip.
+     * Throws HDLException if the chips don't have the same pins or can't be
+     * evaluated bit-sliced.
+     */
+    public ChipVerifier(GateClass gateClass, GateClass referenceClass) throws HDLException {
+        this.gateClass = gateClass;
+        this.referenceClass = referenceClass;
+
+        if (gateClass.inputPinsInfo.length != referenceClass.inputPinsInfo.length ||
+            gateClass.outputPinsInfo.length != referenceClass.outputPinsInfo.length)
+            throw new HDLException(gateClass.getName() + " and " + referenceClass.getName() +
+                                   " have different pins");
+
+        circuit = new BitSlicedCircuit(gateClass);
+        referenceCircuit = new BitSlicedCircuit(referenceClass);
+        referenceInputs = matchPins(gateClass.inputPinsInfo, GateClass.INPUT_PIN_TYPE,
+                                    referenceCircuit.getInputLanes());
+        referenceOutputs = matchPins(gateClass.outputPinsInfo, GateClass.OUTPUT_PIN_TYPE,
+                                     referenceCircuit.getOutputLanes());
+
+        int bits = 0;
+        for (int i = 0; i < gateClass.inputPinsInfo.length; i++)
+            bits += gateClass.inputPinsInfo[i].width;
+        numberOfInputBits = bits;
+    }
+
+    /**
+     * Returns true if all the input combinations are checked.
+     */
+    public boolean isExhaustive() {
+        return numberOfInputBits <= MAX_EXHAUSTIVE_INPUT_BITS;
+    }
+
+    /**
+     * Returns the number of input combinations that verify checks, given the
+     * number of random combinations to check if the chip is too wide to check
+     * all the combinations.
+     */
+    public long getNumberOfCombinations(long numberOfRandomCombinations) {
+        return isExhaustive() ? 1L << numberOfInputBits : numberOfRandomCombinations;
+    }
+
+    /**
+     * Checks the chip against the reference chip on all the input combinations,
+     * or on the given number of random ones if the chip is too wide. Returns the
+     * first combination on which the chips differ, or null if there is none.
+     */
+    public Counterexample verify(long numberOfRandomCombinations) {
+        final long numberOfCombinations = getNumberOfCombinations(numberOfRandomCombinations);
+        final long numberOfBatches = (numberOfCombinations + 63) >>> 6;
+        final AtomicLong nextBatch = new AtomicLong();
+        final AtomicLong firstFailedBatch = new AtomicLong(Long.MAX_VALUE);
+
+        int numberOfTasks = (int)Math.min(ForkJoinPool.getCommonPoolParallelism(),
+                                          (numberOfBatches + BATCHES_PER_STEP - 1) / BATCHES_PER_STEP);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(numberOfTasks);
+        for (int i = 0; i < Math.max(numberOfTasks, 1); i++) {
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    long[] lanes = circuit.newLanes();
+                    long[] referenceLanes = referenceCircuit.newLanes();
+                    long start;
+                    while ((start = nextBatch.getAndAdd(BATCHES_PER_STEP)) < numberOfBatches &&
+                           start < firstFailedBatch.get()) {
+                        long end = Math.min(start + BATCHES_PER_STEP, numberOfBatches);
+                        for (long batch = start; batch < end; batch++)
+                            if (evalBatch(batch, numberOfCombinations, lanes, referenceLanes) != 0) {
+                                long failed;
+                                while (batch < (failed = firstFailedBatch.get()) &&
+                                       !firstFailedBatch.compareAndSet(failed, batch));
+                                break;
+                            }
+                    }
+                    return null;
+                }
+            });
+        }
+
+        if (tasks.size() == 1) {
+            try {
+                tasks.get(0).call();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+        else {
+            for (Future<Object> result : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                try {
+                    result.get();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ee) {
+                    throw new RuntimeException(ee.getCause());
+                }
+            }
+        }
+
+        long batch = firstFailedBatch.get();
+        if (batch == Long.MAX_VALUE)
+            return null;
+
+        // evaluate the failed batch again and take its first differing combination
+        long[] lanes = circuit.newLanes();
+        long[] referenceLanes = referenceCircuit.newLanes();
+        int lane = Long.numberOfTrailingZeros(evalBatch(batch, numberOfCombinations, lanes, referenceLanes));
+        return new Counterexample(getValues(circuit.getInputLanes(), lanes, lane),
+                                  getValues(circuit.getOutputLanes(), lanes, lane),
+                                  getValues(referenceOutputs, referenceLanes, lane));
+    }
+
+    // Evaluates both circuits on the given batch of 64 input combinations (out of
+    // the given number of combinations) and returns the lane of the combinations
+    // on which their outputs differ.
+    private long evalBatch(long batch, long numberOfCombinations, long[] lanes, long[] referenceLanes) {
+        int[][] inputs = circuit.getInputLanes();
+        boolean exhaustive = isExhaustive();
+        int bit = 0;
+        for (int i = 0; i < inputs.length; i++)
+            for (int j = 0; j < inputs[i].length; j++, bit++) {
+                long value;
+                if (!exhaustive)
+                    value = mix(RANDOM_SEED + batch * numberOfInputBits + bit);
+                else if (bit < COMBINATION_LANES.length)
+                    value = COMBINATION_LANES[bit];
+                else
+                    value = ((batch >>> (bit - COMBINATION_LANES.length)) & 1) != 0 ? -1L : 0;
+
+                lanes[inputs[i][j]] = value;
+                referenceLanes[referenceInputs[i][j]] = value;
+            }
+
+        circuit.eval(lanes);
+        referenceCircuit.eval(referenceLanes);
+
+        int[][] outputs = circuit.getOutputLanes();
+        long difference = 0;
+        for (int i = 0; i < outputs.length; i++)
+            for (int j = 0; j < outputs[i].length; j++)
+                difference |= lanes[outputs[i][j]] ^ referenceLanes[referenceOutputs[i][j]];
+
+        long remaining = numberOfCombinations - (batch << 6);
+        return remaining < 64 ? difference & ((1L << remaining) - 1) : difference;
+    }
+
+    // Returns the lanes of the given reference circuit pins, ordered by the given
+    // pins of the verified chip. Throws HDLException if a pin has no match.
+    private int[][] matchPins(PinInfo[] pins, byte type, int[][] lanes) throws HDLException {
+        int[][] result = new int[pins.length][];
+        for (int i = 0; i < pins.length; i++) {
+            int number = referenceClass.getPinNumber(pins[i].name);
+            if (referenceClass.getPinType(pins[i].name) != type ||
+                referenceClass.getPinInfo(type, number).width != pins[i].width)
+                throw new HDLException(gateClass.getName() + " and " + referenceClass.getName() +
+                                       " have different pins");
+            result[i] = lanes[number];
+        }
+        return result;
+    }
+
+    // Returns the values of the given pins in the given lane.
+    private static short[] getValues(int[][] pins, long[] lanes, int lane) {
+        short[] result = new short[pins.length];
+        for (int i = 0; i < pins.length; i++)
+            for (int j = 0; j < pins[i].length; j++)
+                result[i] |= ((lanes[pins[i][j]] >>> lane) & 1) << j;
+        return result;
+    }
+
+    // Returns a well-mixed function of the given number (SplitMix64).
+    private static long mix(long z) {
+        z *= 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * An input combination on which the verified chip differs from its reference.
+     */
+    public class Counterexample {
+
+        // The values of the input pins, the output pins and the reference's output pins
+        private final short[] inputs, outputs, expectedOutputs;
+
+        // Constructs a new Counterexample with the given values.
+        private Counterexample(short[] inputs, short[] outputs, short[] expectedOutputs) {
+            this.inputs = inputs;
+            this.outputs = outputs;
+            this.expectedOutputs = expectedOutputs;
+        }
+
+        /**
+         * Returns the values of the input pins.
+         */
+        public short[] getInputs() {
+            return inputs;
+        }
+
+        /**
+         * Returns the values of the chip's output pins.
+         */
+        public short[] getOutputs() {
+            return outputs;
+        }
+
+        /**
+         * Returns the values of the reference chip's output pins.
+         */
+        public short[] getExpectedOutputs() {
+            return expectedOutputs;
+        }
+
+        /**
+         * Returns the counterexample as "in=.., ...: out=.. (expected ..), ...",
+         * listing only the outputs that differ.
+         */
+        public String toString() {
+            StringBuffer result = new StringBuffer();
+            for (int i = 0; i < inputs.length; i++)
+                result.append(i == 0 ? "" : ", ").append(gateClass.inputPinsInfo[i].name)
+                      .append('=').append(inputs[i]);
+
+            String separator = ": ";
+            for (int i = 0; i < outputs.length; i++)
+                if (outputs[i] != expectedOutputs[i]) {
+                    result.append(separator).append(gateClass.outputPinsInfo[i].name).append('=')
+                          .append(outputs[i]).append(" (expected ").append(expectedOutputs[i]).append(')');
+                    separator = ", ";
+                }
+
+            return result.toString();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Gates;
+
+/**
+ * A composite gate whose parts were flattened and compiled into a JVM class
+ * (see GateCompiler). The parts of a compiled gate are its built-in parts that
+ * weren't inlined, sorted in evaluation order.
+ */
+public abstract class CompiledGate extends CompositeGate {
+
+    // The nodes that the compiled code reads and writes: the gate's input, output
+    // and internal pins, followed by the input and output pins of each part.
+    private Node[] nodes;
+
+    // The states of the inlined DFFs, followed by the values of the signals that are
+    // passed between compiled methods. The array starts with the DFFs' next states,
+    // then their states, then their outputs.
+    private int[] signals;
+
+    // The number of inlined DFFs
+    private int numberOfDFFs;
+
+    // The clocked parts
+    private Gate[] clockedParts;
+
+    protected void clockUp() {
+        for (int i = 0; i < clockedParts.length; i++)
+            clockedParts[i].tick();
+        System.arraycopy(signals, 0, signals, numberOfDFFs, numberOfDFFs);
+    }
+
+    protected void clockDown() {
+        for (int i = 0; i < clockedParts.length; i++)
+            clockedParts[i].tock();
+        System.arraycopy(signals, numberOfDFFs, signals, numberOfDFFs * 2, numberOfDFFs);
+    }
+
+    protected void reCompute() {
+        compute(nodes, parts, signals);
+    }
+
+    /**
+     * Computes the gate's output and internal pins from its input pins and from
+     * the outputs of its parts, and sets the inputs of the parts.
+     * Implemented by the generated code.
+     */
+    protected abstract void compute(Node[] nodes, Gate[] parts, int[] signals);
+
+    /**
+     * Initializes the gate
+     */
+    void init(Node[] inputPins, Node[] outputPins, Node[] internalPins, Gate[] parts,
+              Gate[] clockedParts, Node[] nodes, int numberOfSignals, int numberOfDFFs,
+              GateClass gateClass) {
+        this.clockedParts = clockedParts;
+        this.nodes = nodes;
+        this.numberOfDFFs = numberOfDFFs;
+        signals = new int[numberOfSignals];
+        init(inputPins, outputPins, internalPins, parts, gateClass);
+    }
+}
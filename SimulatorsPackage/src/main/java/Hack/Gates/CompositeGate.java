@@ -17,6 +17,8 @@
 
 package Hack.Gates;
 
+import java.util.concurrent.*;
+
 public class CompositeGate extends Gate {
 
     // the internal pins
@@ -25,10 +27,34 @@ public class CompositeGate extends Gate {
     // The contained parts (Gates), sorted in topological order.
     protected Gate[] parts;
 
+    // The minimal number of clocked built in gates in a gate for its parts to be
+    // ticked in parallel.
+    private static final int PARALLEL_TICK_THRESHOLD = 4096;
+
+    // The number of clocked built in gates that are ticked together in one task.
+    private static final int TICK_CHUNK_SIZE = 1024;
+
+    // The parts array for which clockedGatesBefore was computed.
+    private Gate[] countedParts;
+
+    // The number of clocked built in gates in the parts before each part (and in
+    // all the parts at the last entry), or null if the parts are ticked one by one.
+    private int[] clockedGatesBefore;
+
     protected void clockUp() {
-        if (gateClass.isClocked)
-            for (int i = 0; i < parts.length; i++)
-                parts[i].tick();
+        if (gateClass.isClocked) {
+            int[] clockedGatesBefore = getClockedGatesBefore();
+            if (clockedGatesBefore != null) {
+                TickTask task = new TickTask(0, parts.length, clockedGatesBefore);
+                if (ForkJoinTask.inForkJoinPool())
+                    task.invoke();
+                else
+                    ForkJoinPool.commonPool().invoke(task);
+            }
+            else
+                for (int i = 0; i < parts.length; i++)
+                    parts[i].tick();
+        }
     }
 
     protected void clockDown() {
@@ -42,6 +68,83 @@ public class CompositeGate extends Gate {
             parts[i].eval();
     }
 
+    // Returns the number of clocked built in gates in the parts before each part,
+    // or null if the parts should be ticked one by one.
+    // Ticking doesn't change the outputs of gates (the outputs are already computed
+    // by the time the parts are ticked), so parts that only update their internal
+    // state are independent of each other and may be ticked in any order.
+    // Gates with gui are excluded, since they must be ticked on the simulator's thread.
+    private int[] getClockedGatesBefore() {
+        if (countedParts != parts) {
+            clockedGatesBefore = null;
+            if (ForkJoinPool.getCommonPoolParallelism() > 1) {
+                int[] counts = new int[parts.length + 1];
+                int i = 0;
+                for (; i < parts.length; i++) {
+                    int count = countClockedGates(parts[i]);
+                    if (count < 0)
+                        break;
+                    counts[i + 1] = counts[i] + count;
+                }
+
+                if (i == parts.length && counts[i] >= PARALLEL_TICK_THRESHOLD)
+                    clockedGatesBefore = counts;
+            }
+            countedParts = parts;
+        }
+
+        return clockedGatesBefore;
+    }
+
+    // Returns the number of clocked built in gates in the given gate, or -1 if the
+    // gate contains gates with gui.
+    private static int countClockedGates(Gate gate) {
+        if (gate instanceof BuiltInGateWithGUI)
+            return -1;
+        if (!(gate instanceof CompositeGate))
+            return gate.getGateClass().isClocked ? 1 : 0;
+
+        Gate[] parts = ((CompositeGate)gate).parts;
+        int result = 0;
+        for (int i = 0; i < parts.length; i++) {
+            int count = countClockedGates(parts[i]);
+            if (count < 0)
+                return -1;
+            result += count;
+        }
+
+        return result;
+    }
+
+    // Ticks the parts in a range, splitting ranges with many clocked gates into
+    // halves that are ticked in parallel.
+    private class TickTask extends RecursiveAction {
+
+        private int from, to;
+        private int[] clockedGatesBefore;
+
+        TickTask(int from, int to, int[] clockedGatesBefore) {
+            this.from = from;
+            this.to = to;
+            this.clockedGatesBefore = clockedGatesBefore;
+        }
+
+        protected void compute() {
+            if (to - from > 1 && clockedGatesBefore[to] - clockedGatesBefore[from] > TICK_CHUNK_SIZE) {
+                // split where half of the clocked gates are before the split point
+                int half = (clockedGatesBefore[from] + clockedGatesBefore[to]) / 2;
+                int middle = from + 1;
+                while (middle < to - 1 && clockedGatesBefore[middle] < half)
+                    middle++;
+                invokeAll(new TickTask(from, middle, clockedGatesBefore),
+                          new TickTask(middle, to, clockedGatesBefore));
+            }
+            else
+                for (int i = from; i < to; i++)
+                    parts[i].tick();
+        }
+    }
+
     /**
      * Returns the node according to the given node name (may be input, output or internal).
      * If doesn't exist, returns null.
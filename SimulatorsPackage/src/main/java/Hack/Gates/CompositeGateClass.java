@@ -45,6 +45,13 @@ public class CompositeGateClass extends GateClass {
      */
     public static final PinInfo CLOCK_NODE_INFO = new PinInfo("clk", (byte)1);
 
+    // When the N2T_HDL_COMPILE environment variable is "yes", gates are compiled
+    // into JVM classes (see GateCompiler).
+    private static final boolean COMPILE = "yes".equalsIgnoreCase(System.getenv("N2T_HDL_COMPILE"));
+
+    // The reasons of the gates that were interpreted because they couldn't be
+    // compiled, since the last clearCompilationReport(), by gate name
+    private static LinkedHashMap<String, String> compilationReport = new LinkedHashMap<String, String>();
 
     // internal pins info
     protected Vector internalPinsInfo;
@@ -58,6 +65,14 @@ public class CompositeGateClass extends GateClass {
     // The set of connections between the gate and its parts
     private ConnectionSet connections;
 
+    // The compiled implementation of this gate, when compiling is enabled (null if
+    // not compiled yet or if the gate can't be compiled)
+    private GateCompiler compiler;
+
+    // The reason that the gate couldn't be compiled, or null if it wasn't
+    // compiled yet or was compiled
+    private String compilationError;
+
     /**
      * Constructs a new CompositeGateClass with the given gate name and the HDLTokenizer input
      * which is positioned just after the PARTS: declaration.
@@ -106,6 +121,30 @@ public class CompositeGateClass extends GateClass {
             isOutputClocked[i] = !graph.pathExists(inputPinsInfo, outputPinsInfo[i]);
     }
 
+    /**
+     * Constructs a new CompositeGateClass with the given gate name, pins information,
+     * parts, internal pins, connections, parts order and clocked pins (used by the HDLCache).
+     */
+    CompositeGateClass(String gateName, PinInfo[] inputPinsInfo, PinInfo[] outputPinsInfo,
+                       GateClass[] parts, PinInfo[] internalPins, ConnectionSet connections,
+                       int[] partsOrder, boolean isClocked, boolean[] isInputClocked,
+                       boolean[] isOutputClocked) {
+        super(gateName, inputPinsInfo, outputPinsInfo);
+
+        partsList = new Vector(Arrays.asList(parts));
+        internalPinsInfo = new Vector();
+        for (int i = 0; i < internalPins.length; i++) {
+            internalPinsInfo.addElement(internalPins[i]);
+            registerPin(internalPins[i], INTERNAL_PIN_TYPE, i);
+        }
+
+        this.connections = connections;
+        this.partsOrder = partsOrder;
+        this.isClocked = isClocked;
+        this.isInputClocked = isInputClocked;
+        this.isOutputClocked = isOutputClocked;
+    }
+
     // Reads the parts list from the given HDL input
     private void readParts(HDLTokenizer input)
      throws HDLException {
@@ -124,7 +163,7 @@ public class CompositeGateClass extends GateClass {
                     input.HDLError("A GateClass name is expected");
 
                 String partName = input.getIdentifier();
-                GateClass gateClass = getGateClass(partName, false);
+                GateClass gateClass = BuiltInSubstitution.substitute(getGateClass(partName, false));
                 partsList.addElement(gateClass);
                 isClocked = isClocked || gateClass.isClocked;
                 int partNumber = partsList.size() - 1;
@@ -509,10 +548,78 @@ public class CompositeGateClass extends GateClass {
         return result;
     }
 
+    /**
+     * Returns the number of internal pins.
+     */
+    int getNumberOfInternalPins() {
+        return internalPinsInfo.size();
+    }
+
+    /**
+     * Returns the GateClass of the part with the given number.
+     */
+    GateClass getPart(int partNumber) {
+        return (GateClass)partsList.elementAt(partNumber);
+    }
+
+    /**
+     * Returns the numbers of the parts, in topological order.
+     */
+    int[] getPartsOrder() {
+        return partsOrder;
+    }
+
+    /**
+     * Returns the connections between the gate and its parts.
+     */
+    ConnectionSet getConnections() {
+        return connections;
+    }
+
+    /**
+     * Clears the compilation report.
+     */
+    public static void clearCompilationReport() {
+        synchronized (compilationReport) {
+            compilationReport.clear();
+        }
+    }
+
+    /**
+     * Returns the reasons of the gates that were interpreted because they couldn't
+     * be compiled (when compiling is enabled), since the last clearCompilationReport().
+     */
+    public static String[] getCompilationReport() {
+        synchronized (compilationReport) {
+            String[] result = new String[compilationReport.size()];
+            compilationReport.values().toArray(result);
+            return result;
+        }
+    }
+
     /**
      * Creates and returns a new instance of CompositeGate.
      */
     public Gate newInstance() throws InstantiationException {
+        // Gates that can't be compiled are interpreted, and the reason is reported
+        // (see getCompilationReport()).
+        if (COMPILE) {
+            if (compilationError == null) {
+                try {
+                    if (compiler == null)
+                        compiler = new GateCompiler(this);
+                    return compiler.newInstance();
+                } catch (HDLException he) {
+                    compilationError = he.getMessage();
+                }
+            }
+
+            synchronized (compilationReport) {
+                compilationReport.put(getName(), getName() + ": interpreted (" +
+                                      compilationError + ")");
+            }
+        }
+
         Node[] inputNodes = new Node[inputPinsInfo.length];
         Node[] outputNodes = new Node[outputPinsInfo.length];
         Node[] internalNodes = new Node[internalPinsInfo.size()];
@@ -572,12 +679,13 @@ public class CompositeGateClass extends GateClass {
                     break;
 
                 case Connection.TO_INTERNAL:
-                    target = null;
+                    // an internal pin that is fed by a complete part pin is that pin's node
                     if (partSubBus == null)
-                        target = new Node();
-                    else
+                        target = partNode;
+                    else {
                         target = new SubNode(partSubBus[0], partSubBus[1]);
-                    partNode.addListener(target);
+                        partNode.addListener(target);
+                    }
                     internalNodes[connection.getGatePinNumber()] = target;
                     break;
 
@@ -106,8 +106,15 @@ public abstract class GateClass {
         // Try to find the gate in the "cache"
         GateClass result = GateClasses.get(fileName);
 
-        // gate wasn't found in cache
+        // gate wasn't found in cache: load it together with all its parts, unless
+        // it is a part of a gate that is being loaded.
+        if (result == null && !HDLLoader.isLoading() && HDLLoader.load(fileName, gateName))
+            result = GateClasses.get(fileName);
+
+        // gate wasn't loaded (a part that wasn't found when the gate's dependencies
+        // were scanned, or a gate whose dependencies have a circle)
         if (result == null) {
+            HDLLoader.checkFailure(fileName);
             GateClasses.put(fileName, new GateClassUnderLoad(fileName));
             HDLTokenizer input = new HDLTokenizer(fileName);
             result = readHDL(input, gateName);
@@ -136,7 +143,7 @@ public abstract class GateClass {
     }
 
     // Loads the HDL from the given input, creates the appropriate GateClass and returns it.
-    private static GateClass readHDL(HDLTokenizer input, String gateName)
+    static GateClass readHDL(HDLTokenizer input, String gateName)
             throws HDLException {
 
         // read CHIP keyword
@@ -0,0 +1,1105 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Gates;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Compiles a composite chip into a JVM class that extends CompiledGate.
+ * The chip is flattened into its built-in parts, which are sorted in a topological
+ * order. The values of the wires between the parts are kept in int locals, so wires
+ * and sub buses cost only a few shifts. The elementary built-in gates and the DFF
+ * are inlined, and the other built-in parts are called directly through their pins.
+ * The clocked outputs of the parts are read before all the parts are evaluated,
+ * and their clocked inputs are set after it.
+ */
+class GateCompiler {
+
+    // The bit of the "false" special node
+    private static final int FALSE_BIT = 0;
+
+    // The bit of the "true" special node
+    private static final int TRUE_BIT = 1;
+
+    // The bits of the "true" special node
+    private static final int[] TRUE_BITS = new int[CompositeGateClass.TRUE_NODE_INFO.width];
+
+    // Kinds of built-in parts: called through their pins, inlined, or a DFF
+    private static final byte CALLED = 0, NAND = 1, NOT = 2, NOT16 = 3, AND = 4, OR = 5,
+        XOR = 6, MUX = 7, DMUX = 8, DFF = 9;
+
+    // The java classes of the inlined built-in parts, and their kinds
+    private static final Hashtable<String, Byte> INLINED_CLASSES = new Hashtable<String, Byte>();
+
+    // Statement types of the generated code
+    private static final byte READ = 0, WRITE = 1, EVAL = 2, OPERATE = 3, STORE = 4;
+
+    // The maximal length of a generated method. The JVM doesn't compile longer
+    // methods to native code.
+    private static final int MAX_METHOD_LENGTH = 7000;
+
+    // The package of the generated classes
+    private static final String PACKAGE_NAME = "Hack/Gates/compiled/";
+
+    // Names of the classes and methods that the generated code uses
+    private static final String SUPER_CLASS = "Hack/Gates/CompiledGate";
+    private static final String NODE_CLASS = "Hack/Gates/Node";
+    private static final String GATE_CLASS = "Hack/Gates/Gate";
+    private static final String COMPUTE_METHOD = "compute";
+    private static final String COMPUTE_DESCRIPTOR = "([LHack/Gates/Node;[LHack/Gates/Gate;[I)V";
+
+    // Opcodes
+    private static final int ICONST_0 = 3, BIPUSH = 16, SIPUSH = 17, LDC_W = 19, ILOAD = 21,
+        ALOAD = 25, IALOAD = 46, AALOAD = 50, ISTORE = 54, IASTORE = 79, DUP = 89, ISUB = 100,
+        INEG = 116, ISHL = 120, ISHR = 122, IUSHR = 124, IAND = 126, IOR = 128, IXOR = 130,
+        I2S = 147, RETURN = 177, INVOKEVIRTUAL = 182, INVOKESPECIAL = 183, INVOKESTATIC = 184,
+        WIDE = 196;
+
+    // The parameters of the generated methods
+    private static final int NODES_LOCAL = 0, PARTS_LOCAL = 1, SIGNALS_LOCAL = 2;
+
+    static {
+        Arrays.fill(TRUE_BITS, TRUE_BIT);
+
+        INLINED_CLASSES.put("builtInChips.Nand", NAND);
+        INLINED_CLASSES.put("builtInChips.Not", NOT);
+        INLINED_CLASSES.put("builtInChips.Not16", NOT16);
+        INLINED_CLASSES.put("builtInChips.And", AND);
+        INLINED_CLASSES.put("builtInChips.Or", OR);
+        INLINED_CLASSES.put("builtInChips.Xor", XOR);
+        INLINED_CLASSES.put("builtInChips.Mux", MUX);
+        INLINED_CLASSES.put("builtInChips.DMux", DMUX);
+        INLINED_CLASSES.put("builtInChips.DFF", DFF);
+    }
+
+    // A statement of the generated code
+    private static class Statement {
+        byte type;
+        int node;    // READ, WRITE: the node to read or write
+        int signal;  // READ: the signal that gets the value of the node
+        int[] bits;  // WRITE, STORE: the bits of the value
+        int part;    // EVAL, OPERATE: the part to evaluate
+        int index;   // STORE: the index in the signals array
+        int method;  // the number of the generated method that contains this statement
+    }
+
+    // The compiled gate class
+    private CompositeGateClass gateClass;
+
+    // The called parts, in evaluation order
+    private BuiltInGateClass[] calledParts;
+
+    // The index in the nodes array of the first pin of each called part
+    private int[] calledPartNodes;
+
+    // The number of nodes
+    private int numberOfNodes;
+
+    // The number of DFFs. The signals array starts with their next states,
+    // then their states, then their outputs.
+    private int numberOfDFFs;
+
+    // The size of the signals array
+    private int numberOfSharedSignals;
+
+    // The generated class
+    private Class compiledClass;
+
+    // While compiling: the built-in parts in flattening order, the bits of their
+    // input pins and the signals of their output pins.
+    private Vector<BuiltInGateClass> partsList = new Vector<BuiltInGateClass>();
+    private Vector<int[][]> partInputsList = new Vector<int[][]>();
+    private Vector<int[]> partSignalsList = new Vector<int[]>();
+
+    // While compiling: for each signal, its width, the part it comes from (-1 for
+    // the gate's inputs) and whether it is a clocked output. Signal 0 isn't used,
+    // so bits of signals are never FALSE_BIT or TRUE_BIT.
+    private Vector<Integer> signalWidths = new Vector<Integer>();
+    private Vector<Integer> signalParts = new Vector<Integer>();
+    private Vector<Boolean> signalClocked = new Vector<Boolean>();
+
+    // While compiling: the bits that internal pins are connected to, which are
+    // known only after their source part is flattened.
+    private Vector<Integer> placeholders = new Vector<Integer>();
+
+    // While compiling: the bits of the gate's internal pins
+    private int[][] internalBits;
+
+    // While compiling: the kinds of the parts, the bits of their input pins and the
+    // signals of their output pins, in evaluation order
+    private byte[] kinds;
+    private int[][][] partsInputs;
+    private int[][] partsSignals;
+
+    // While compiling: the local or the index in the signals array of each signal
+    private int[] locations;
+    private boolean[] isShared;
+
+    /**
+     * Compiles the given gate class.
+     * Throws HDLException if the gate uses the clock node, has a circle, or has a
+     * part with a gui while chips' gui is enabled.
+     */
+    GateCompiler(CompositeGateClass gateClass) throws HDLException {
+        this.gateClass = gateClass;
+
+        newSignal(0, -1, false);
+        int[][] inputBits = new int[gateClass.inputPinsInfo.length][];
+        for (int i = 0; i < inputBits.length; i++)
+            inputBits[i] = signalBits(newSignal(gateClass.inputPinsInfo[i].width, -1, false),
+                                      gateClass.inputPinsInfo[i].width);
+
+        int[][] outputBits = flatten(gateClass, inputBits, true);
+
+        Vector<Statement> statements = createStatements(inputBits, outputBits);
+        compiledClass = generate(statements);
+    }
+
+    /**
+     * Creates and returns a new instance of the compiled gate.
+     */
+    Gate newInstance() throws InstantiationException {
+        CompiledGate result;
+        try {
+            result = (CompiledGate)compiledClass.newInstance();
+        } catch (IllegalAccessException iae) {
+            throw new InstantiationException(iae.getMessage());
+        }
+
+        Node[] nodes = new Node[numberOfNodes];
+        Node[] inputNodes = new Node[gateClass.inputPinsInfo.length];
+        Node[] outputNodes = new Node[gateClass.outputPinsInfo.length];
+        Node[] internalNodes = new Node[gateClass.getNumberOfInternalPins()];
+        int node = 0;
+
+        // Add a DirtyGateAdapter as a listener to all the non-clocked inputs,
+        // so the gate will become dirty when one of its non-clocked input changes.
+        Node adapter = new DirtyGateAdapter(result);
+        for (int i = 0; i < inputNodes.length; i++) {
+            inputNodes[i] = nodes[node++] = new Node();
+            if (!gateClass.isInputClocked[i])
+                inputNodes[i].addListener(adapter);
+        }
+        for (int i = 0; i < outputNodes.length; i++)
+            outputNodes[i] = nodes[node++] = new Node();
+        for (int i = 0; i < internalNodes.length; i++)
+            internalNodes[i] = nodes[node++] = new Node();
+
+        Gate[] parts = new Gate[calledParts.length];
+        Vector<Gate> clockedParts = new Vector<Gate>();
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = calledParts[i].newInstance();
+            if (parts[i] instanceof BuiltInGateWithGUI) // save the parent of gates with gui
+                ((BuiltInGateWithGUI)parts[i]).setParent(result);
+            if (calledParts[i].isClocked())
+                clockedParts.addElement(parts[i]);
+
+            Node[] inputPins = parts[i].getInputNodes();
+            System.arraycopy(inputPins, 0, nodes, calledPartNodes[i], inputPins.length);
+            Node[] outputPins = parts[i].getOutputNodes();
+            System.arraycopy(outputPins, 0, nodes, calledPartNodes[i] + inputPins.length,
+                             outputPins.length);
+        }
+
+        Gate[] clockedPartsArray = new Gate[clockedParts.size()];
+        clockedParts.toArray(clockedPartsArray);
+        result.init(inputNodes, outputNodes, internalNodes, parts, clockedPartsArray, nodes,
+                    numberOfSharedSignals, numberOfDFFs, gateClass);
+
+        return result;
+    }
+
+    // Adds the built-in parts of the given chip, whose input pins' bits are given,
+    // and returns the bits of its output pins.
+    private int[][] flatten(GateClass partClass, int[][] inputBits, boolean isTop)
+     throws HDLException {
+        if (partClass instanceof BuiltInGateClass) {
+            int partNumber = partsList.size();
+            int[] signals = new int[partClass.outputPinsInfo.length];
+            int[][] outputBits = new int[signals.length][];
+            for (int i = 0; i < signals.length; i++) {
+                int width = partClass.outputPinsInfo[i].width;
+                signals[i] = newSignal(width, partNumber, partClass.isOutputClocked[i]);
+                outputBits[i] = signalBits(signals[i], width);
+            }
+
+            partsList.addElement((BuiltInGateClass)partClass);
+            partInputsList.addElement(inputBits);
+            partSignalsList.addElement(signals);
+            return outputBits;
+        }
+
+        CompositeGateClass compositeClass = (CompositeGateClass)partClass;
+        int[][] outputBits = newBits(partClass.outputPinsInfo);
+        int[][] internalPinsBits = new int[compositeClass.getNumberOfInternalPins()][];
+        for (int i = 0; i < internalPinsBits.length; i++) {
+            int width = compositeClass.getPinInfo(CompositeGateClass.INTERNAL_PIN_TYPE, i).width;
+            internalPinsBits[i] = new int[width];
+            for (int j = 0; j < width; j++) {
+                placeholders.addElement(FALSE_BIT);
+                internalPinsBits[i][j] = -placeholders.size();
+            }
+        }
+
+        int[] partsOrder = compositeClass.getPartsOrder();
+        for (int i = 0; i < partsOrder.length; i++) {
+            int partNumber = partsOrder[i];
+            GateClass subPartClass = compositeClass.getPart(partNumber);
+            int[][] partInputBits = newBits(subPartClass.inputPinsInfo);
+
+            // connect the sources of the part's inputs
+            Iterator connectionIter = compositeClass.getConnections().iterator();
+            while (connectionIter.hasNext()) {
+                Connection connection = (Connection)connectionIter.next();
+                if (connection.getPartNumber() != partNumber)
+                    continue;
+
+                int pinNumber = subPartClass.getPinNumber(connection.getPartPinName());
+                switch (connection.getType()) {
+                    case Connection.FROM_INPUT:
+                        connect(inputBits[connection.getGatePinNumber()], connection.getGateSubBus(),
+                                partInputBits[pinNumber], connection.getPartSubBus());
+                        break;
+                    case Connection.FROM_INTERNAL:
+                        connect(internalPinsBits[connection.getGatePinNumber()], null,
+                                partInputBits[pinNumber], connection.getPartSubBus());
+                        break;
+                    case Connection.FROM_TRUE:
+                        connect(TRUE_BITS, connection.getGateSubBus(),
+                                partInputBits[pinNumber], connection.getPartSubBus());
+                        break;
+                    case Connection.FROM_CLOCK:
+                        throw new HDLException(partClass.getName() + " uses the clock pin");
+                }
+            }
+
+            int[][] partOutputBits = flatten(subPartClass, partInputBits, false);
+
+            // connect the part's outputs to their targets
+            connectionIter = compositeClass.getConnections().iterator();
+            while (connectionIter.hasNext()) {
+                Connection connection = (Connection)connectionIter.next();
+                if (connection.getPartNumber() != partNumber)
+                    continue;
+
+                int pinNumber = subPartClass.getPinNumber(connection.getPartPinName());
+                switch (connection.getType()) {
+                    case Connection.TO_INTERNAL:
+                        int[] pinBits = internalPinsBits[connection.getGatePinNumber()];
+                        byte[] subBus = connection.getPartSubBus();
+                        int low = (subBus == null ? 0 : subBus[0]);
+                        for (int j = 0; j < pinBits.length; j++)
+                            placeholders.setElementAt(partOutputBits[pinNumber][low + j],
+                                                      -pinBits[j] - 1);
+                        break;
+                    case Connection.TO_OUTPUT:
+                        connect(partOutputBits[pinNumber], connection.getPartSubBus(),
+                                outputBits[connection.getGatePinNumber()], connection.getGateSubBus());
+                        break;
+                }
+            }
+        }
+
+        if (isTop)
+            internalBits = internalPinsBits;
+
+        return outputBits;
+    }
+
+    // Sorts the parts in evaluation order, and creates the statements of the
+    // generated code, given the bits of the gate's input and output pins.
+    private Vector<Statement> createStatements(int[][] inputBits, int[][] outputBits)
+     throws HDLException {
+        int numberOfParts = partsList.size();
+        int[][][] flattenedInputs = new int[numberOfParts][][];
+        partInputsList.toArray(flattenedInputs);
+        for (int i = 0; i < numberOfParts; i++)
+            resolve(flattenedInputs[i]);
+        resolve(internalBits);
+
+        // sort the parts topologically, keeping the flattening order where possible
+        int[] order = new int[numberOfParts];
+        byte[] states = new byte[numberOfParts];
+        int[] counter = new int[1];
+        for (int i = 0; i < numberOfParts; i++)
+            if (states[i] == 0)
+                visit(i, flattenedInputs, states, order, counter);
+
+        BuiltInGateClass[] parts = new BuiltInGateClass[numberOfParts];
+        int[][][] partInputs = new int[numberOfParts][][];
+        int[][] partSignals = new int[numberOfParts][];
+        int[] partNodes = new int[numberOfParts];
+        int[] partIndice = new int[numberOfParts];
+        kinds = new byte[numberOfParts];
+        Vector<BuiltInGateClass> calledPartsList = new Vector<BuiltInGateClass>();
+        Vector<Integer> calledPartNodesList = new Vector<Integer>();
+        numberOfNodes = inputBits.length + outputBits.length + internalBits.length;
+        for (int i = 0; i < numberOfParts; i++) {
+            parts[i] = partsList.elementAt(order[i]);
+            partInputs[i] = flattenedInputs[order[i]];
+            partSignals[i] = partSignalsList.elementAt(order[i]);
+
+            Byte kind = INLINED_CLASSES.get(parts[i].getJavaGateClass().getName());
+            kinds[i] = (kind == null ? CALLED : kind.byteValue());
+            if (kinds[i] == CALLED) {
+                if (parts[i].hasGUI() && GatesManager.getInstance().isChipsGUIEnabled())
+                    throw new HDLException(parts[i].getName() + " has a gui");
+                partIndice[i] = calledPartsList.size();
+                partNodes[i] = numberOfNodes;
+                calledPartsList.addElement(parts[i]);
+                calledPartNodesList.addElement(numberOfNodes);
+                numberOfNodes += partInputs[i].length + partSignals[i].length;
+            }
+            else if (kinds[i] == DFF)
+                partIndice[i] = numberOfDFFs++;
+        }
+
+        calledParts = new BuiltInGateClass[calledPartsList.size()];
+        calledPartsList.toArray(calledParts);
+        calledPartNodes = new int[calledParts.length];
+        for (int i = 0; i < calledPartNodes.length; i++)
+            calledPartNodes[i] = calledPartNodesList.elementAt(i).intValue();
+
+        // count the uses of each signal, so that unused signals are not computed
+        int[] uses = new int[signalWidths.size()];
+        for (int i = 0; i < numberOfParts; i++)
+            countUses(partInputs[i], uses);
+        countUses(outputBits, uses);
+        countUses(internalBits, uses);
+
+        // the outputs of the DFFs are in the signals array
+        locations = new int[signalWidths.size()];
+        isShared = new boolean[signalWidths.size()];
+        numberOfSharedSignals = numberOfDFFs * 3;
+        for (int i = 0; i < numberOfParts; i++)
+            if (kinds[i] == DFF) {
+                locations[partSignals[i][0]] = numberOfDFFs * 2 + partIndice[i];
+                isShared[partSignals[i][0]] = true;
+            }
+
+        Vector<Statement> statements = new Vector<Statement>();
+
+        // read the gate's inputs and the clocked outputs of the called parts
+        for (int i = 0; i < inputBits.length; i++)
+            addRead(statements, inputBits[i][0] >> 4, i, uses);
+        for (int i = 0; i < numberOfParts; i++)
+            if (kinds[i] == CALLED)
+                for (int j = 0; j < partSignals[i].length; j++)
+                    if (parts[i].isOutputClocked[j])
+                        addRead(statements, partSignals[i][j],
+                                partNodes[i] + partInputs[i].length + j, uses);
+
+        // evaluate the parts
+        for (int i = 0; i < numberOfParts; i++) {
+            if (kinds[i] == CALLED) {
+                for (int j = 0; j < partInputs[i].length; j++)
+                    if (!parts[i].isInputClocked[j])
+                        addWrite(statements, WRITE, partNodes[i] + j, partInputs[i][j]);
+
+                Statement statement = new Statement();
+                statement.type = EVAL;
+                statement.part = partIndice[i];
+                statements.addElement(statement);
+
+                for (int j = 0; j < partSignals[i].length; j++)
+                    if (!parts[i].isOutputClocked[j])
+                        addRead(statements, partSignals[i][j],
+                                partNodes[i] + partInputs[i].length + j, uses);
+            }
+            else if (kinds[i] != DFF) {
+                boolean isUsed = false;
+                for (int j = 0; j < partSignals[i].length; j++)
+                    isUsed = isUsed || uses[partSignals[i][j]] > 0;
+
+                if (isUsed) {
+                    Statement statement = new Statement();
+                    statement.type = OPERATE;
+                    statement.part = i;
+                    statements.addElement(statement);
+                }
+            }
+        }
+
+        // set the clocked inputs of the parts
+        for (int i = 0; i < numberOfParts; i++) {
+            if (kinds[i] == CALLED) {
+                for (int j = 0; j < partInputs[i].length; j++)
+                    if (parts[i].isInputClocked[j])
+                        addWrite(statements, WRITE, partNodes[i] + j, partInputs[i][j]);
+            }
+            else if (kinds[i] == DFF)
+                addWrite(statements, STORE, partIndice[i], partInputs[i][0]);
+        }
+
+        // set the gate's outputs and internal pins
+        int node = inputBits.length;
+        for (int i = 0; i < outputBits.length; i++)
+            addWrite(statements, WRITE, node++, outputBits[i]);
+        for (int i = 0; i < internalBits.length; i++)
+            addWrite(statements, WRITE, node++, internalBits[i]);
+
+        partsList = null;
+        partInputsList = null;
+        partSignalsList = null;
+        partsInputs = partInputs;
+        partsSignals = partSignals;
+        return statements;
+    }
+
+    // Adds the given part, after all the parts whose non-clocked outputs it depends on,
+    // to the given order.
+    private void visit(int part, int[][][] partInputs, byte[] states, int[] order, int[] counter)
+     throws HDLException {
+        states[part] = 1;
+        BuiltInGateClass partClass = partsList.elementAt(part);
+        int[][] bits = partInputs[part];
+        for (int i = 0; i < bits.length; i++) {
+            if (partClass.isInputClocked[i])
+                continue;
+
+            for (int j = 0; j < bits[i].length; j++) {
+                if (bits[i][j] == FALSE_BIT || bits[i][j] == TRUE_BIT)
+                    continue;
+
+                int signal = bits[i][j] >> 4;
+                int source = signalParts.elementAt(signal).intValue();
+                if (source < 0 || signalClocked.elementAt(signal).booleanValue())
+                    continue;
+
+                if (states[source] == 1)
+                    throw new HDLException(gateClass.getName() +
+                                           " has a circle in its parts connections");
+                if (states[source] == 0)
+                    visit(source, partInputs, states, order, counter);
+            }
+        }
+        states[part] = 2;
+        order[counter[0]++] = part;
+    }
+
+    // Creates the generated class from the given statements, and loads it.
+    private Class generate(Vector<Statement> statements) throws HDLException {
+        // split the statements into methods
+        int methods = 1;
+        int length = 0;
+        for (int i = 0; i < statements.size(); i++) {
+            Statement statement = statements.elementAt(i);
+            int statementLength = getMaxLength(statement);
+            if (length + statementLength > MAX_METHOD_LENGTH && length > 0) {
+                methods++;
+                length = 0;
+            }
+            statement.method = methods - 1;
+            length += statementLength;
+        }
+
+        // signals that are used outside their method are passed in the signals array
+        int[] signalMethods = new int[signalWidths.size()];
+        for (int i = 0; i < statements.size(); i++) {
+            Statement statement = statements.elementAt(i);
+            switch (statement.type) {
+                case READ:
+                    signalMethods[statement.signal] = statement.method;
+                    break;
+                case WRITE:
+                case STORE:
+                    share(statement.bits, statement.method, signalMethods);
+                    break;
+                case OPERATE:
+                    for (int j = 0; j < partsInputs[statement.part].length; j++)
+                        share(partsInputs[statement.part][j], statement.method, signalMethods);
+                    for (int j = 0; j < partsSignals[statement.part].length; j++)
+                        signalMethods[partsSignals[statement.part][j]] = statement.method;
+                    break;
+            }
+        }
+
+        String className = PACKAGE_NAME + gateClass.getName();
+        ClassFile classFile = new ClassFile(className, SUPER_CLASS);
+
+        Code constructor = new Code(classFile);
+        constructor.emitLocal(ALOAD, 0);
+        constructor.emitMethod(INVOKESPECIAL, SUPER_CLASS, "<init>", "()V");
+        constructor.emit(RETURN);
+        classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", "()V", constructor, 1);
+
+        Code compute = new Code(classFile);
+        for (int i = 0; i < methods; i++) {
+            compute.emitLocal(ALOAD, NODES_LOCAL + 1);
+            compute.emitLocal(ALOAD, PARTS_LOCAL + 1);
+            compute.emitLocal(ALOAD, SIGNALS_LOCAL + 1);
+            compute.emitMethod(INVOKESTATIC, className, COMPUTE_METHOD + i, COMPUTE_DESCRIPTOR);
+        }
+        compute.emit(RETURN);
+        classFile.addMethod(ClassFile.ACC_PROTECTED, COMPUTE_METHOD, COMPUTE_DESCRIPTOR, compute, 4);
+
+        int statement = 0;
+        for (int i = 0; i < methods; i++) {
+            Code code = new Code(classFile);
+            code.numberOfLocals = SIGNALS_LOCAL + 1;
+            for (; statement < statements.size() &&
+                   statements.elementAt(statement).method == i; statement++) {
+                Statement current = statements.elementAt(statement);
+                switch (current.type) {
+                    case READ:
+                        beginStore(code, current.signal);
+                        emitNode(code, current.node);
+                        code.emitMethod(INVOKEVIRTUAL, NODE_CLASS, "get", "()S");
+                        endStore(code, current.signal);
+                        break;
+
+                    case WRITE:
+                        emitNode(code, current.node);
+                        emitBits(code, current.bits);
+                        code.emit(I2S);
+                        code.emitMethod(INVOKEVIRTUAL, NODE_CLASS, "set", "(S)V");
+                        break;
+
+                    case STORE:
+                        code.emitLocal(ALOAD, SIGNALS_LOCAL);
+                        code.emitInt(current.index);
+                        emitBits(code, current.bits);
+                        code.emit(I2S);
+                        code.emit(IASTORE);
+                        break;
+
+                    case EVAL:
+                        code.emitLocal(ALOAD, PARTS_LOCAL);
+                        code.emitInt(current.part);
+                        code.emit(AALOAD);
+                        code.emitMethod(INVOKEVIRTUAL, GATE_CLASS, "eval", "()V");
+                        break;
+
+                    case OPERATE:
+                        int[] signals = partsSignals[current.part];
+                        for (int j = 0; j < signals.length; j++) {
+                            beginStore(code, signals[j]);
+                            emitOperation(code, kinds[current.part], partsInputs[current.part], j);
+                            code.emit(I2S);
+                            endStore(code, signals[j]);
+                        }
+                        break;
+                }
+            }
+            code.emit(RETURN);
+            classFile.addMethod(ClassFile.ACC_PRIVATE | ClassFile.ACC_STATIC,
+                                COMPUTE_METHOD + i, COMPUTE_DESCRIPTOR, code, code.numberOfLocals);
+        }
+
+        try {
+            return new Loader().load(className.replace('/', '.'), classFile.toByteArray());
+        } catch (LinkageError le) {
+            throw new HDLException("Can't load the compiled " + gateClass.getName() + ": " +
+                                   le.getMessage());
+        }
+    }
+
+    // Moves the signals in the given bits that were computed in another method
+    // than the given one to the signals array.
+    private void share(int[] bits, int method, int[] signalMethods) {
+        for (int i = 0; i < bits.length; i++) {
+            int signal = bits[i] >> 4;
+            if (bits[i] != FALSE_BIT && bits[i] != TRUE_BIT && !isShared[signal] &&
+                signalMethods[signal] != method) {
+                isShared[signal] = true;
+                locations[signal] = numberOfSharedSignals++;
+            }
+        }
+    }
+
+    // Emits the code that comes before the value that is stored in the given signal.
+    // A signal which isn't shared gets a new local.
+    private void beginStore(Code code, int signal) {
+        if (isShared[signal]) {
+            code.emitLocal(ALOAD, SIGNALS_LOCAL);
+            code.emitInt(locations[signal]);
+        }
+        else
+            locations[signal] = code.numberOfLocals++;
+    }
+
+    // Emits the code that stores the value in the given signal.
+    private void endStore(Code code, int signal) {
+        if (isShared[signal])
+            code.emit(IASTORE);
+        else
+            code.emitLocal(ISTORE, locations[signal]);
+    }
+
+    // Emits the code that pushes the given output of an inlined part of the given kind,
+    // whose input pins' bits are given. Implements the functionality of the part's
+    // java class.
+    private void emitOperation(Code code, byte kind, int[][] inputs, int output) {
+        switch (kind) {
+            case NAND:
+                code.emitInt(1);
+                emitBits(code, inputs[0]);
+                emitBits(code, inputs[1]);
+                code.emit(IAND);
+                code.emit(ISUB);
+                break;
+            case NOT:
+                code.emitInt(1);
+                emitBits(code, inputs[0]);
+                code.emit(ISUB);
+                break;
+            case NOT16:
+                emitBits(code, inputs[0]);
+                code.emitInt(-1);
+                code.emit(IXOR);
+                break;
+            case AND:
+            case OR:
+            case XOR:
+                emitBits(code, inputs[0]);
+                emitBits(code, inputs[1]);
+                code.emit(kind == AND ? IAND : (kind == OR ? IOR : IXOR));
+                break;
+            case MUX:
+                // a ^ ((a ^ b) & mask)
+                emitBits(code, inputs[0]);
+                code.emit(DUP);
+                emitBits(code, inputs[1]);
+                code.emit(IXOR);
+                emitSelectMask(code, inputs[2]);
+                code.emit(IAND);
+                code.emit(IXOR);
+                break;
+            case DMUX:
+                // in & ~mask, in & mask
+                emitBits(code, inputs[0]);
+                emitSelectMask(code, inputs[1]);
+                if (output == 0) {
+                    code.emitInt(-1);
+                    code.emit(IXOR);
+                }
+                code.emit(IAND);
+                break;
+        }
+    }
+
+    // Emits the code that pushes -1 if the value of the given bits isn't 0, and 0 if it is.
+    private void emitSelectMask(Code code, int[] bits) {
+        emitBits(code, bits);
+        code.emit(DUP);
+        code.emit(INEG);
+        code.emit(IOR);
+        code.emitInt(31);
+        code.emit(ISHR);
+    }
+
+    // Emits the code that pushes the given node.
+    private static void emitNode(Code code, int node) {
+        code.emitLocal(ALOAD, NODES_LOCAL);
+        code.emitInt(node);
+        code.emit(AALOAD);
+    }
+
+    // Emits the code that pushes the value of the given bits. Consecutive bits of a
+    // signal are taken together, and a whole signal that is the whole value is taken
+    // as is, like the interpreter does.
+    private void emitBits(Code code, int[] bits) {
+        int constant = 0;
+        boolean isEmpty = true;
+        int i = 0;
+        while (i < bits.length) {
+            int bit = bits[i];
+            if (bit == FALSE_BIT || bit == TRUE_BIT) {
+                if (bit == TRUE_BIT)
+                    constant |= 1 << i;
+                i++;
+                continue;
+            }
+
+            int length = 1;
+            while (i + length < bits.length && bits[i + length] == bit + length &&
+                   ((bit + length) & 15) != 0)
+                length++;
+
+            int signal = bit >> 4;
+            int low = bit & 15;
+            if (isShared[signal]) {
+                code.emitLocal(ALOAD, SIGNALS_LOCAL);
+                code.emitInt(locations[signal]);
+                code.emit(IALOAD);
+            }
+            else
+                code.emitLocal(ILOAD, locations[signal]);
+
+            if (low != 0 || length != bits.length ||
+                length != signalWidths.elementAt(signal).intValue()) {
+                if (low != 0) {
+                    code.emitInt(low);
+                    code.emit(IUSHR);
+                }
+                code.emitInt((1 << length) - 1);
+                code.emit(IAND);
+                if (i != 0) {
+                    code.emitInt(i);
+                    code.emit(ISHL);
+                }
+            }
+
+            if (!isEmpty)
+                code.emit(IOR);
+            isEmpty = false;
+            i += length;
+        }
+
+        if (isEmpty || constant != 0) {
+            code.emitInt(constant);
+            if (!isEmpty)
+                code.emit(IOR);
+        }
+    }
+
+    // Returns the maximal length of the code of the given statement.
+    private int getMaxLength(Statement statement) {
+        switch (statement.type) {
+            case READ:
+                return 13;
+            case WRITE:
+            case STORE:
+                return 9 + getMaxLength(statement.bits);
+            case OPERATE:
+                int[][] inputs = partsInputs[statement.part];
+                int inputsLength = 0;
+                for (int i = 0; i < inputs.length; i++)
+                    inputsLength += getMaxLength(inputs[i]);
+                return partsSignals[statement.part].length * (20 + inputsLength);
+            default:
+                return 8;
+        }
+    }
+
+    // Returns the maximal length of the code that pushes the value of the given bits.
+    private static int getMaxLength(int[] bits) {
+        return 4 + 16 * bits.length;
+    }
+
+    // Adds a statement that reads the given signal from the given node, if it is used.
+    private static void addRead(Vector<Statement> statements, int signal, int node, int[] uses) {
+        if (uses[signal] > 0) {
+            Statement statement = new Statement();
+            statement.type = READ;
+            statement.signal = signal;
+            statement.node = node;
+            statements.addElement(statement);
+        }
+    }
+
+    // Adds a statement of the given type (WRITE or STORE) that sets the given node or
+    // index in the signals array to the value of the given bits.
+    private static void addWrite(Vector<Statement> statements, byte type, int target, int[] bits) {
+        Statement statement = new Statement();
+        statement.type = type;
+        statement.node = target;
+        statement.index = target;
+        statement.bits = bits;
+        statements.addElement(statement);
+    }
+
+    // Replaces the placeholders in the given bits with the bits they stand for.
+    private void resolve(int[][] bits) {
+        for (int i = 0; i < bits.length; i++)
+            for (int j = 0; j < bits[i].length; j++)
+                while (bits[i][j] < 0)
+                    bits[i][j] = placeholders.elementAt(-bits[i][j] - 1).intValue();
+    }
+
+    // Adds the uses of signals in the given bits to the given counters.
+    private static void countUses(int[][] bits, int[] uses) {
+        for (int i = 0; i < bits.length; i++)
+            for (int j = 0; j < bits[i].length; j++)
+                if (bits[i][j] != FALSE_BIT && bits[i][j] != TRUE_BIT)
+                    uses[bits[i][j] >> 4]++;
+    }
+
+    // Creates a new signal and returns its number.
+    private int newSignal(int width, int part, boolean isClocked) {
+        signalWidths.addElement(width);
+        signalParts.addElement(part);
+        signalClocked.addElement(isClocked);
+        return signalWidths.size() - 1;
+    }
+
+    // Returns the bits of the given signal.
+    private static int[] signalBits(int signal, int width) {
+        int[] result = new int[width];
+        for (int i = 0; i < width; i++)
+            result[i] = (signal << 4) | i;
+        return result;
+    }
+
+    // Returns the bits of the given pins, all set to FALSE_BIT, so that
+    // unconnected bits are false.
+    private static int[][] newBits(PinInfo[] pins) {
+        int[][] result = new int[pins.length][];
+        for (int i = 0; i < pins.length; i++)
+            result[i] = new int[pins[i].width];
+        return result;
+    }
+
+    // Connects the bits of the given target pin (or its sub bus, if not null) to
+    // the bits of the given source pin (or its sub bus, if not null).
+    private static void connect(int[] sourceBits, byte[] sourceSubBus, int[] targetBits, byte[] targetSubBus) {
+        int source = (sourceSubBus == null ? 0 : sourceSubBus[0]);
+        int sourceEnd = (sourceSubBus == null ? sourceBits.length : sourceSubBus[1] + 1);
+        int target = (targetSubBus == null ? 0 : targetSubBus[0]);
+        int targetEnd = (targetSubBus == null ? targetBits.length : targetSubBus[1] + 1);
+        while (source < sourceEnd && target < targetEnd)
+            targetBits[target++] = sourceBits[source++];
+    }
+
+    // A class loader of one generated class
+    private static class Loader extends ClassLoader {
+
+        Loader() {
+            super(CompiledGate.class.getClassLoader());
+        }
+
+        // Defines, links and initializes the class with the given name and bytes.
+        Class load(String name, byte[] bytes) {
+            Class result = defineClass(name, bytes, 0, bytes.length);
+            try {
+                Class.forName(name, true, this);
+            } catch (ClassNotFoundException cnfe) {
+                throw new NoClassDefFoundError(name);
+            }
+            return result;
+        }
+    }
+
+    // The code of a method
+    private static class Code {
+
+        // The class file of the method
+        private ClassFile classFile;
+
+        // The code bytes
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        // The number of locals that the code uses
+        int numberOfLocals;
+
+        Code(ClassFile classFile) {
+            this.classFile = classFile;
+        }
+
+        // Emits the given opcode
+        void emit(int opcode) {
+            bytes.write(opcode);
+        }
+
+        // Emits the given load or store opcode of the given local
+        void emitLocal(int opcode, int local) {
+            if (local > 255) {
+                bytes.write(WIDE);
+                bytes.write(opcode);
+                bytes.write(local >> 8);
+            }
+            else
+                bytes.write(opcode);
+            bytes.write(local);
+        }
+
+        // Emits the code that pushes the given int
+        void emitInt(int value) {
+            if (value >= -1 && value <= 5)
+                bytes.write(ICONST_0 + value);
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                bytes.write(BIPUSH);
+                bytes.write(value);
+            }
+            else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                bytes.write(SIPUSH);
+                bytes.write(value >> 8);
+                bytes.write(value);
+            }
+            else {
+                int index = classFile.getInteger(value);
+                bytes.write(LDC_W);
+                bytes.write(index >> 8);
+                bytes.write(index);
+            }
+        }
+
+        // Emits the given invoke opcode of the given method
+        void emitMethod(int opcode, String className, String name, String descriptor) {
+            int index = classFile.getMethod(className, name, descriptor);
+            bytes.write(opcode);
+            bytes.write(index >> 8);
+            bytes.write(index);
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+
+    // A class file of a generated class. The class file version is 49, which
+    // doesn't require stack map frames.
+    private static class ClassFile {
+
+        static final int ACC_PUBLIC = 0x0001, ACC_PRIVATE = 0x0002, ACC_PROTECTED = 0x0004,
+            ACC_STATIC = 0x0008, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+        // The maximal depth of the operand stack in the generated code
+        private static final int MAX_STACK = 8;
+
+        // The constant pool and its entries' indice
+        private ByteArrayOutputStream constants = new ByteArrayOutputStream();
+        private DataOutputStream constantsOutput = new DataOutputStream(constants);
+        private Hashtable<String, Integer> constantIndice = new Hashtable<String, Integer>();
+        private int numberOfConstants = 1;
+
+        // The methods
+        private ByteArrayOutputStream methods = new ByteArrayOutputStream();
+        private DataOutputStream methodsOutput = new DataOutputStream(methods);
+        private int numberOfMethods;
+
+        private int thisClass, superClass, codeName;
+
+        ClassFile(String className, String superClassName) {
+            thisClass = getClass(className);
+            superClass = getClass(superClassName);
+            codeName = getUtf8("Code");
+        }
+
+        // Adds a method with the given code
+        void addMethod(int access, String name, String descriptor, Code code, int maxLocals) {
+            byte[] bytes = code.toByteArray();
+            try {
+                methodsOutput.writeShort(access);
+                methodsOutput.writeShort(getUtf8(name));
+                methodsOutput.writeShort(getUtf8(descriptor));
+                methodsOutput.writeShort(1);
+                methodsOutput.writeShort(codeName);
+                methodsOutput.writeInt(12 + bytes.length);
+                methodsOutput.writeShort(MAX_STACK);
+                methodsOutput.writeShort(maxLocals);
+                methodsOutput.writeInt(bytes.length);
+                methodsOutput.write(bytes);
+                methodsOutput.writeShort(0);
+                methodsOutput.writeShort(0);
+            } catch (IOException ioe) {
+                throw new InternalError(ioe.getMessage());
+            }
+            numberOfMethods++;
+        }
+
+        byte[] toByteArray() {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(result);
+            try {
+                output.writeInt(0xCAFEBABE);
+                output.writeShort(0);
+                output.writeShort(49);
+                output.writeShort(numberOfConstants);
+                constants.writeTo(output);
+                output.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+                output.writeShort(thisClass);
+                output.writeShort(superClass);
+                output.writeShort(0);
+                output.writeShort(0);
+                output.writeShort(numberOfMethods);
+                methods.writeTo(output);
+                output.writeShort(0);
+            } catch (IOException ioe) {
+                throw new InternalError(ioe.getMessage());
+            }
+            return result.toByteArray();
+        }
+
+        int getUtf8(String value) {
+            Integer index = constantIndice.get("U" + value);
+            if (index == null) {
+                try {
+                    constantsOutput.writeByte(1);
+                    constantsOutput.writeUTF(value);
+                } catch (IOException ioe) {
+                    throw new InternalError(ioe.getMessage());
+                }
+                index = addConstant("U" + value);
+            }
+            return index.intValue();
+        }
+
+        int getInteger(int value) {
+            Integer index = constantIndice.get("I" + value);
+            if (index == null) {
+                try {
+                    constantsOutput.writeByte(3);
+                    constantsOutput.writeInt(value);
+                } catch (IOException ioe) {
+                    throw new InternalError(ioe.getMessage());
+                }
+                index = addConstant("I" + value);
+            }
+            return index.intValue();
+        }
+
+        int getClass(String name) {
+            Integer index = constantIndice.get("C" + name);
+            if (index == null) {
+                int nameIndex = getUtf8(name);
+                writeEntry(7, nameIndex, -1);
+                index = addConstant("C" + name);
+            }
+            return index.intValue();
+        }
+
+        int getMethod(String className, String name, String descriptor) {
+            String key = "M" + className + "." + name + descriptor;
+            Integer index = constantIndice.get(key);
+            if (index == null) {
+                int classIndex = getClass(className);
+                String nameAndTypeKey = "N" + name + descriptor;
+                Integer nameAndType = constantIndice.get(nameAndTypeKey);
+                if (nameAndType == null) {
+                    int nameIndex = getUtf8(name);
+                    int descriptorIndex = getUtf8(descriptor);
+                    writeEntry(12, nameIndex, descriptorIndex);
+                    nameAndType = addConstant(nameAndTypeKey);
+                }
+                writeEntry(10, classIndex, nameAndType.intValue());
+                index = addConstant(key);
+            }
+            return index.intValue();
+        }
+
+        // Writes a constant pool entry with the given tag and one or two indice
+        private void writeEntry(int tag, int index1, int index2) {
+            try {
+                constantsOutput.writeByte(tag);
+                constantsOutput.writeShort(index1);
+                if (index2 >= 0)
+                    constantsOutput.writeShort(index2);
+            } catch (IOException ioe) {
+                throw new InternalError(ioe.getMessage());
+            }
+        }
+
+        private Integer addConstant(String key) {
+            Integer index = Integer.valueOf(numberOfConstants++);
+            constantIndice.put(key, index);
+            return index;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Gates;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Updates a live gate after some of the HDL files of its chips changed.
+ * The chips of the changed files, and the chips that (possibly indirectly) use
+ * them, are removed from the gates table and loaded again. Then, the instances
+ * of the chips whose HDL didn't change are kept together with their state, and
+ * only the parts whose HDL changed get new instances, which are connected to the
+ * nodes of the old ones. A gate can't be updated if its own HDL changed or if
+ * the pins of a changed part changed, and then it has to be loaded again.
+ */
+public class GateReloader {
+
+    // The canonical names of the changed files that weren't reloaded yet
+    private Vector<String> pendingFileNames = new Vector<String>();
+
+    /**
+     * Updates the given gate after the HDL files with the given names changed.
+     * Returns false if the gate can't be updated and has to be loaded again.
+     * Throws HDLException if the changed chips can't be loaded. In that case the
+     * gate isn't changed, and the files are loaded again with the next changes.
+     */
+    public synchronized boolean reload(Gate gate, String[] fileNames) throws HDLException {
+        for (int i = 0; i < fileNames.length; i++) {
+            String fileName = getCanonicalName(fileNames[i]);
+            if (!pendingFileNames.contains(fileName))
+                pendingFileNames.addElement(fileName);
+        }
+
+        // find the loaded chips, and the ones whose HDL changed: a chip whose file
+        // changed, or whose file may be hidden by a changed file of the same name
+        Vector<String> pendingGateNames = new Vector<String>();
+        for (int i = 0; i < pendingFileNames.size(); i++) {
+            String name = new File(pendingFileNames.elementAt(i)).getName();
+            pendingGateNames.addElement(name.substring(0, name.length() - 4));
+        }
+
+        Hashtable<GateClass, String> classFileNames = new Hashtable<GateClass, String>();
+        HashSet<GateClass> changed = new HashSet<GateClass>();
+        Iterator<Map.Entry<String, GateClass>> entryIter = GateClass.GateClasses.entrySet().iterator();
+        while (entryIter.hasNext()) {
+            Map.Entry<String, GateClass> entry = entryIter.next();
+            classFileNames.put(entry.getValue(), entry.getKey());
+            if (pendingFileNames.contains(getCanonicalName(entry.getKey())) ||
+                pendingGateNames.contains(entry.getValue().getName()))
+                changed.add(entry.getValue());
+        }
+
+        GateClass oldClass = gate.getGateClass();
+        String fileName = classFileNames.get(oldClass);
+        if (fileName == null || changed.contains(oldClass) || gate instanceof CompiledGate) {
+            pendingFileNames.removeAllElements();
+            return false;
+        }
+
+        HashSet<GateClass> affected = getAffected(classFileNames.keySet(), changed);
+        if (!affected.contains(oldClass)) {
+            pendingFileNames.removeAllElements();
+            return true;
+        }
+
+        // load the affected chips again, and keep the old ones in case of an error
+        Hashtable<String, GateClass> removed = new Hashtable<String, GateClass>();
+        Iterator<GateClass> affectedIter = affected.iterator();
+        while (affectedIter.hasNext()) {
+            String affectedFileName = classFileNames.get(affectedIter.next());
+            removed.put(affectedFileName, GateClass.GateClasses.remove(affectedFileName));
+        }
+
+        GateClass newClass;
+        try {
+            newClass = GateClass.getGateClass(fileName, true);
+        } catch (HDLException he) {
+            GateClass.GateClasses.putAll(removed);
+            throw he;
+        }
+
+        pendingFileNames.removeAllElements();
+        return (newClass instanceof CompositeGateClass &&
+                update((CompositeGate)gate, (CompositeGateClass)newClass, changed));
+    }
+
+    // Returns the given changed chips and the chips out of the given ones that
+    // (possibly indirectly) use them.
+    private static HashSet<GateClass> getAffected(Set<GateClass> gateClasses, HashSet<GateClass> changed) {
+        HashSet<GateClass> result = new HashSet<GateClass>(changed);
+        boolean added = true;
+        while (added) {
+            added = false;
+            Iterator<GateClass> classIter = gateClasses.iterator();
+            while (classIter.hasNext()) {
+                GateClass gateClass = classIter.next();
+                if (!(gateClass instanceof CompositeGateClass) || result.contains(gateClass))
+                    continue;
+
+                CompositeGateClass compositeClass = (CompositeGateClass)gateClass;
+                for (int i = 0; i < compositeClass.getPartsOrder().length; i++) {
+                    if (result.contains(compositeClass.getPart(i))) {
+                        result.add(compositeClass);
+                        added = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    // Updates the given gate, whose HDL didn't change, to be an instance of the
+    // given new GateClass. Returns false if the gate can't be updated.
+    private static boolean update(CompositeGate gate, CompositeGateClass newClass,
+                                  HashSet<GateClass> changed) {
+        CompositeGateClass oldClass = (CompositeGateClass)gate.getGateClass();
+        int[] oldOrder = oldClass.getPartsOrder();
+        int[] newOrder = newClass.getPartsOrder();
+        if (oldOrder.length != newOrder.length)
+            return false;
+
+        // the parts by their numbers
+        Gate[] parts = new Gate[oldOrder.length];
+        for (int i = 0; i < parts.length; i++)
+            parts[oldOrder[i]] = gate.parts[i];
+
+        for (int i = 0; i < parts.length; i++) {
+            GateClass oldPartClass = oldClass.getPart(i);
+            GateClass newPartClass = newClass.getPart(i);
+            if (oldPartClass == newPartClass)
+                continue;
+
+            if (!hasSamePins(oldPartClass, newPartClass))
+                return false;
+
+            if (!changed.contains(oldPartClass) && newPartClass instanceof CompositeGateClass &&
+                parts[i] instanceof CompositeGate && !(parts[i] instanceof CompiledGate)) {
+                if (!update((CompositeGate)parts[i], (CompositeGateClass)newPartClass, changed))
+                    return false;
+            }
+            else {
+                Gate newPart;
+                try {
+                    newPart = newPartClass.newInstance();
+                } catch (InstantiationException ie) {
+                    return false;
+                }
+                replace(parts[i], newPart, gate);
+                parts[i] = newPart;
+            }
+        }
+
+        Gate[] sortedParts = new Gate[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            sortedParts[i] = parts[newOrder[i]];
+
+        gate.parts = sortedParts;
+        gate.gateClass = newClass;
+        gate.setDirty();
+        return true;
+    }
+
+    // Replaces the given old part of the given gate with the given new part, which
+    // has the same pins. The inputs of the old part are passed to the new part, and
+    // the outputs of the new part are passed to the old part's outputs, which are the
+    // ones that are connected to the gate's nodes.
+    private static void replace(Gate oldPart, Gate newPart, CompositeGate gate) {
+        for (int i = 0; i < oldPart.inputPins.length; i++) {
+            Node oldNode = oldPart.inputPins[i];
+            oldNode.removeAllListeners();
+            oldNode.addListener(newPart.inputPins[i]);
+            newPart.inputPins[i].set(oldNode.get());
+        }
+
+        for (int i = 0; i < oldPart.outputPins.length; i++) {
+            newPart.outputPins[i].addListener(oldPart.outputPins[i]);
+            oldPart.outputPins[i].set(newPart.outputPins[i].get());
+        }
+
+        removeChips(oldPart);
+        if (newPart instanceof BuiltInGateWithGUI)
+            ((BuiltInGateWithGUI)newPart).setParent(gate);
+    }
+
+    // Removes the chips with gui in the given gate from the gates manager.
+    static void removeChips(Gate gate) {
+        if (gate instanceof BuiltInGateWithGUI)
+            GatesManager.getInstance().removeChip((BuiltInGateWithGUI)gate);
+        else if (gate instanceof CompositeGate) {
+            Gate[] parts = ((CompositeGate)gate).getParts();
+            for (int i = 0; i < parts.length; i++)
+                removeChips(parts[i]);
+        }
+    }
+
+    // Returns true if the given GateClasses have the same pins, with the same clocking.
+    static boolean hasSamePins(GateClass gateClass1, GateClass gateClass2) {
+        return hasSamePins(gateClass1.inputPinsInfo, gateClass2.inputPinsInfo) &&
+               hasSamePins(gateClass1.outputPinsInfo, gateClass2.outputPinsInfo) &&
+               gateClass1.isClocked == gateClass2.isClocked &&
+               Arrays.equals(gateClass1.isInputClocked, gateClass2.isInputClocked) &&
+               Arrays.equals(gateClass1.isOutputClocked, gateClass2.isOutputClocked);
+    }
+
+    // Returns true if the given pins have the same names and widths.
+    static boolean hasSamePins(PinInfo[] pins1, PinInfo[] pins2) {
+        if (pins1.length != pins2.length)
+            return false;
+
+        for (int i = 0; i < pins1.length; i++)
+            if (!pins1[i].name.equals(pins2[i].name) || pins1[i].width != pins2[i].width)
+                return false;
+
+        return true;
+    }
+
+    // Returns the canonical name of the given file.
+    private static String getCanonicalName(String fileName) {
+        File file = new File(fileName);
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException ioe) {
+            return file.getAbsolutePath();
+        }
+    }
+}
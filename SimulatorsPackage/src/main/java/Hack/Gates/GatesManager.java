@@ -47,12 +47,20 @@ public class GatesManager {
     // otherwise, their gui shouldn't be created.
     private boolean updateChipsGUI;
 
+    // When true, parts that are verified to behave like the built in chips of the
+    // same name are substituted with the built in chips.
+    private boolean builtInSubstitution;
+
     /**
      * Constructs a new GatesManager.
      */
     private GatesManager() {
         chips = new Vector();
         updateChipsGUI = true;
+
+        // When the N2T_HDL_USE_BUILTINS environment variable is "yes", verified
+        // parts are substituted with the built in chips (see BuiltInSubstitution).
+        builtInSubstitution = "yes".equalsIgnoreCase(System.getenv("N2T_HDL_USE_BUILTINS"));
     }
 
     /**
@@ -138,6 +146,13 @@ public class GatesManager {
             gatesPanel.removeAllGateComponents();
      }
 
+    /**
+     * Returns the gates panel (null if there is none).
+     */
+    public GatesPanelGUI getGatesPanel() {
+        return gatesPanel;
+    }
+
     /**
      * Sets the gates panel with the given gate panel.
      */
@@ -195,4 +210,21 @@ public class GatesManager {
         updateChipsGUI = value;
     }
 
+    /**
+     * Returns true if parts that are verified to behave like the built in chips
+     * of the same name are substituted with the built in chips.
+     */
+    public boolean isBuiltInSubstitutionEnabled() {
+        return builtInSubstitution;
+    }
+
+    /**
+     * Sets whether parts that are verified to behave like the built in chips of
+     * the same name are substituted with the built in chips or not.
+     * Affects gates that are loaded afterwards.
+     */
+    public void enableBuiltInSubstitution(boolean value) {
+        builtInSubstitution = value;
+    }
+
 }
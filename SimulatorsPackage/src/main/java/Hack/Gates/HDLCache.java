@@ -0,0 +1,467 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Gates;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * A cache of parsed chips, so that loading a chip whose HDL files didn't change
+ * doesn't parse them again.
+ * Chips are kept under a digest of their name and HDL contents (the hash), and
+ * are valid as long as the digest of the hash and of the tree hashes of their
+ * parts (the tree hash) doesn't change, i.e. as long as neither the chip nor any
+ * of the chips it depends on changed.
+ * The least recently used chips are dropped when the number of cached chips
+ * exceeds the capacity.
+ * Optionally, chips are also stored in a directory as versioned binary files that
+ * hold the parsed pins, connections and parts order, so that separate runs share
+ * the work.
+ * This is a singleton class.
+ */
+public class HDLCache {
+
+    /**
+     * The system property that sets the directory of the binary chip files.
+     * If not set, chips are kept in memory only.
+     */
+    public static final String DIRECTORY_PROPERTY = "hack.hdlCache.dir";
+
+    /**
+     * The system property that sets the maximal number of chips kept in memory.
+     * A capacity of 0 disables the cache.
+     */
+    public static final String CAPACITY_PROPERTY = "hack.hdlCache.capacity";
+
+    // The default capacity, in chips
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    // The first word of a binary chip file
+    private static final int MAGIC = 0x4848444c; // "HHDL"
+
+    // The version of the binary chip file format
+    private static final int VERSION = 1;
+
+    // The kinds of chips in a binary chip file
+    private static final byte BUILTIN_KIND = 0;
+    private static final byte COMPOSITE_KIND = 1;
+
+    // the single instance
+    private static HDLCache instance;
+
+    // The cached chips, by the hex string of their hash, in least recently used order
+    private LinkedHashMap<String, Entry> entries;
+
+    // The maximal number of cached chips
+    private int capacity;
+
+    // The directory of the binary chip files, or null
+    private File directory;
+
+    /**
+     * A cached chip.
+     */
+    static class Entry {
+        // The hash and tree hash of the chip
+        private byte[] hash, treeHash;
+
+        // The names of the chip's parts, in order of first appearance in the HDL
+        private String[] partNames;
+
+        // The chip, or null if it wasn't created yet from the data
+        private GateClass gateClass;
+
+        // The chip in the binary chip file format, or null if not written to a file
+        private byte[] data;
+
+        Entry(byte[] hash, byte[] treeHash, String[] partNames, GateClass gateClass, byte[] data) {
+            this.hash = hash;
+            this.treeHash = treeHash;
+            this.partNames = partNames;
+            this.gateClass = gateClass;
+            this.data = data;
+        }
+
+        /**
+         * Returns the names of the chip's parts, in order of first appearance in the HDL.
+         */
+        String[] getPartNames() {
+            return partNames;
+        }
+    }
+
+    /**
+     * Constructs a new cache with the given capacity (in chips) and binary chip
+     * directory (may be null).
+     */
+    public HDLCache(int capacity, File directory) {
+        this.capacity = capacity;
+        this.directory = directory;
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns the single instance of the cache, configured by the system properties.
+     */
+    public static synchronized HDLCache getInstance() {
+        if (instance == null) {
+            int capacity = DEFAULT_CAPACITY;
+            try {
+                capacity = Integer.parseInt(System.getProperty(CAPACITY_PROPERTY,
+                                                               String.valueOf(DEFAULT_CAPACITY)));
+            } catch (NumberFormatException ignored) {
+            }
+
+            String dir = System.getProperty(DIRECTORY_PROPERTY);
+            instance = new HDLCache(capacity, dir != null ? new File(dir) : null);
+        }
+        return instance;
+    }
+
+    /**
+     * Removes all the chips from memory. Binary chip files are kept.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the SHA-1 digest of the given byte arrays.
+     */
+    static byte[] digest(byte[]... values) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException(nsae);
+        }
+
+        for (byte[] value : values)
+            digest.update(value);
+        return digest.digest();
+    }
+
+    /**
+     * Returns the cached chip with the given hash, from memory or from the chip
+     * directory, or null if there isn't one.
+     */
+    Entry find(byte[] hash) {
+        if (capacity <= 0)
+            return null;
+
+        String key = toHex(hash);
+        Entry entry;
+
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+
+        if (entry == null && directory != null) {
+            entry = readEntryFile(key, hash);
+            if (entry != null)
+                putEntry(key, entry);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Returns the chip of the given entry if it has the given tree hash, or null
+     * otherwise. The given parts are the GateClasses of the entry's part names.
+     */
+    GateClass getGateClass(Entry entry, byte[] treeHash, GateClass[] parts) {
+        if (!Arrays.equals(entry.treeHash, treeHash))
+            return null;
+
+        synchronized (entry) {
+            if (entry.gateClass == null) {
+                try {
+                    entry.gateClass = readGateClass(
+                        new DataInputStream(new ByteArrayInputStream(entry.data)), parts);
+                } catch (Exception e) {
+                    return null;
+                }
+            }
+            return entry.gateClass;
+        }
+    }
+
+    /**
+     * Caches the given chip, with the given hash, tree hash and part names.
+     */
+    void put(byte[] hash, byte[] treeHash, String[] partNames, GateClass gateClass) {
+        if (capacity <= 0)
+            return;
+
+        String key = toHex(hash);
+        byte[] data = null;
+        if (directory != null) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream output = new DataOutputStream(bytes);
+                writeGateClass(output, gateClass, partNames);
+                output.close();
+                data = bytes.toByteArray();
+            } catch (IOException ignored) {
+            }
+        }
+
+        Entry entry = new Entry(hash, treeHash, partNames, gateClass, data);
+        putEntry(key, entry);
+        if (data != null)
+            writeEntryFile(key, entry);
+    }
+
+    // Adds the given entry to memory and drops the least recently used entries
+    // until the capacity is kept.
+    private synchronized void putEntry(String key, Entry entry) {
+        entries.put(key, entry);
+
+        Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator();
+        while (entries.size() > capacity && i.hasNext()) {
+            i.next();
+            i.remove();
+        }
+    }
+
+    // Returns the given bytes as a hex string.
+    private static String toHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            result.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return result.toString();
+    }
+
+    // Returns the binary chip file of the given key.
+    private File getEntryFile(String key) {
+        return new File(directory, key + ".chip");
+    }
+
+    // Reads the binary chip file of the given key. Returns null if the file
+    // doesn't exist, can't be read or has a different version.
+    private Entry readEntryFile(String key, byte[] hash) {
+        File file = getEntryFile(key);
+        if (!file.exists())
+            return null;
+
+        try {
+            DataInputStream input =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (input.readInt() != MAGIC || input.readInt() != VERSION)
+                    return null;
+
+                byte[] fileHash = new byte[hash.length];
+                input.readFully(fileHash);
+                if (!Arrays.equals(fileHash, hash))
+                    return null;
+
+                byte[] treeHash = new byte[hash.length];
+                input.readFully(treeHash);
+
+                String[] partNames = new String[input.readInt()];
+                for (int i = 0; i < partNames.length; i++)
+                    partNames[i] = input.readUTF();
+
+                byte[] data = new byte[input.readInt()];
+                input.readFully(data);
+
+                return new Entry(hash, treeHash, partNames, null, data);
+            } finally {
+                input.close();
+            }
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // Writes the binary chip file of the given key. The file is written under a
+    // temporary name and then renamed, so readers never see a partial file.
+    // Failures are ignored, since the chip file is only an optimization.
+    private void writeEntryFile(String key, Entry entry) {
+        File file = getEntryFile(key);
+
+        try {
+            directory.mkdirs();
+            File temp = File.createTempFile("chip", ".tmp", directory);
+            DataOutputStream output =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.write(entry.hash);
+                output.write(entry.treeHash);
+                output.writeInt(entry.partNames.length);
+                for (String partName : entry.partNames)
+                    output.writeUTF(partName);
+                output.writeInt(entry.data.length);
+                output.write(entry.data);
+            } finally {
+                output.close();
+            }
+
+            if (!temp.renameTo(file)) {
+                file.delete();
+                if (!temp.renameTo(file))
+                    temp.delete();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    // Writes the given chip, whose parts have the given names, to the given output.
+    private static void writeGateClass(DataOutputStream output, GateClass gateClass,
+                                       String[] partNames) throws IOException {
+        output.writeUTF(gateClass.name);
+        writePins(output, gateClass.inputPinsInfo);
+        writePins(output, gateClass.outputPinsInfo);
+        output.writeBoolean(gateClass.isClocked);
+        writeBooleans(output, gateClass.isInputClocked);
+        writeBooleans(output, gateClass.isOutputClocked);
+
+        if (gateClass instanceof BuiltInGateClass) {
+            output.writeByte(BUILTIN_KIND);
+            output.writeUTF(((BuiltInGateClass)gateClass).getJavaGateClass().getName());
+            return;
+        }
+
+        CompositeGateClass compositeClass = (CompositeGateClass)gateClass;
+        output.writeByte(COMPOSITE_KIND);
+
+        int[] partsOrder = compositeClass.getPartsOrder();
+        output.writeInt(partsOrder.length);
+        for (int i = 0; i < partsOrder.length; i++)
+            output.writeInt(Arrays.asList(partNames).indexOf(compositeClass.getPart(i).getName()));
+        for (int i = 0; i < partsOrder.length; i++)
+            output.writeInt(partsOrder[i]);
+
+        PinInfo[] internalPins = new PinInfo[compositeClass.getNumberOfInternalPins()];
+        for (int i = 0; i < internalPins.length; i++)
+            internalPins[i] = compositeClass.getPinInfo(CompositeGateClass.INTERNAL_PIN_TYPE, i);
+        writePins(output, internalPins);
+
+        ConnectionSet connections = compositeClass.getConnections();
+        output.writeInt(connections.size());
+        Iterator connectionIter = connections.iterator();
+        while (connectionIter.hasNext()) {
+            Connection connection = (Connection)connectionIter.next();
+            output.writeByte(connection.getType());
+            output.writeInt(connection.getGatePinNumber());
+            output.writeInt(connection.getPartNumber());
+            output.writeUTF(connection.getPartPinName());
+            writeSubBus(output, connection.getGateSubBus());
+            writeSubBus(output, connection.getPartSubBus());
+        }
+    }
+
+    // Reads a chip, whose parts are the given GateClasses, from the given input.
+    private static GateClass readGateClass(DataInputStream input, GateClass[] parts)
+     throws IOException, ClassNotFoundException {
+        String name = input.readUTF();
+        PinInfo[] inputPinsInfo = readPins(input);
+        PinInfo[] outputPinsInfo = readPins(input);
+        boolean isClocked = input.readBoolean();
+        boolean[] isInputClocked = readBooleans(input, inputPinsInfo.length);
+        boolean[] isOutputClocked = readBooleans(input, outputPinsInfo.length);
+
+        if (input.readByte() == BUILTIN_KIND) {
+            return new BuiltInGateClass(name, inputPinsInfo, outputPinsInfo,
+                                        Class.forName(input.readUTF()), isClocked,
+                                        isInputClocked, isOutputClocked);
+        }
+
+        GateClass[] partsList = new GateClass[input.readInt()];
+        for (int i = 0; i < partsList.length; i++)
+            partsList[i] = parts[input.readInt()];
+        int[] partsOrder = new int[partsList.length];
+        for (int i = 0; i < partsOrder.length; i++)
+            partsOrder[i] = input.readInt();
+
+        PinInfo[] internalPins = readPins(input);
+
+        ConnectionSet connections = new ConnectionSet();
+        int numberOfConnections = input.readInt();
+        for (int i = 0; i < numberOfConnections; i++) {
+            byte type = input.readByte();
+            int gatePinNumber = input.readInt();
+            int partNumber = input.readInt();
+            String partPinName = input.readUTF();
+            byte[] gateSubBus = readSubBus(input);
+            byte[] partSubBus = readSubBus(input);
+            connections.add(new Connection(type, gatePinNumber, partNumber, partPinName,
+                                           gateSubBus, partSubBus));
+        }
+
+        return new CompositeGateClass(name, inputPinsInfo, outputPinsInfo, partsList,
+                                      internalPins, connections, partsOrder, isClocked,
+                                      isInputClocked, isOutputClocked);
+    }
+
+    // Writes the names and widths of the given pins to the given output.
+    private static void writePins(DataOutputStream output, PinInfo[] pins) throws IOException {
+        output.writeInt(pins.length);
+        for (PinInfo pin : pins) {
+            output.writeUTF(pin.name);
+            output.writeByte(pin.width);
+        }
+    }
+
+    // Reads pins written by writePins from the given input.
+    private static PinInfo[] readPins(DataInputStream input) throws IOException {
+        PinInfo[] result = new PinInfo[input.readInt()];
+        for (int i = 0; i < result.length; i++) {
+            String name = input.readUTF();
+            result[i] = new PinInfo(name, input.readByte());
+        }
+        return result;
+    }
+
+    // Writes the given booleans to the given output.
+    private static void writeBooleans(DataOutputStream output, boolean[] values) throws IOException {
+        for (boolean value : values)
+            output.writeBoolean(value);
+    }
+
+    // Reads the given number of booleans from the given input.
+    private static boolean[] readBooleans(DataInputStream input, int count) throws IOException {
+        boolean[] result = new boolean[count];
+        for (int i = 0; i < count; i++)
+            result[i] = input.readBoolean();
+        return result;
+    }
+
+    // Writes the given sub bus (may be null) to the given output.
+    private static void writeSubBus(DataOutputStream output, byte[] subBus) throws IOException {
+        output.writeBoolean(subBus != null);
+        if (subBus != null) {
+            output.writeByte(subBus[0]);
+            output.writeByte(subBus[1]);
+        }
+    }
+
+    // Reads a sub bus written by writeSubBus from the given input.
+    private static byte[] readSubBus(DataInputStream input) throws IOException {
+        if (!input.readBoolean())
+            return null;
+
+        byte from = input.readByte();
+        return new byte[]{from, input.readByte()};
+    }
+}
@@ -17,46 +17,14 @@
 
 package Hack.Gates;
 
-import java.util.*;
-
 /**
- * A set of nodes.
+ * An interface for objects that want to know when HDL files change.
  */
-public class NodeSet extends Vector {
-
-    /**
-     * Creates a new NodeSet.
-     */
-    public NodeSet() {
-        super(1,1);
-    }
-
-    /**
-     * Adds the given node to the set.
-     */
-    public boolean add(Node node) {
-        return super.add(node);
-    }
-
-    /**
-     * Removes the given node from the set.
-     */
-    public boolean remove(Node node) {
-        return super.remove(node);
-    }
+public interface HDLChangeListener {
 
     /**
-     * Returns true if this set contains the given node.
+     * Called when the HDL files with the given names were created, modified or deleted.
      */
-    public boolean contains(Node node) {
-        return super.contains(node);
-    }
+    public void hdlFilesChanged(String[] fileNames);
 
-    /**
-     * Returns the Node at the given index.
-     * (Assumes a legal index).
-     */
-    public Node getNodeAt(int index) {
-        return (Node)elementAt(index);
-    }
 }
@@ -0,0 +1,334 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Gates;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Loads a chip together with all the chips it (possibly indirectly) depends on.
+ * First, the HDL files are read and scanned for the names of their parts, which
+ * gives the dependency graph of the chip. Then the chips are created bottom up, in
+ * waves of chips whose parts were all created in previous waves. The files of each
+ * scan step and the chips of each wave are handled in parallel on the common
+ * fork-join pool. Chips whose HDL and parts didn't change are taken from the
+ * HDLCache instead of being parsed again.
+ * The created chips are put in the gates table of GateClass. A chip that fails is
+ * recorded, and its error is thrown again when a chip that uses it is parsed, so
+ * errors are the same as when the chips are parsed one after the other.
+ */
+class HDLLoader {
+
+    // An HDL file in the dependency graph
+    private static class HDLFile {
+        // The name of the file and the name of its chip
+        String fileName, gateName;
+
+        // The contents of the file, or null if it can't be read
+        byte[] contents;
+
+        // The hash and tree hash of the chip (see HDLCache), or null if the chip
+        // can't be cached
+        byte[] hash, treeHash;
+
+        // The cached chip with the same hash, or null
+        HDLCache.Entry entry;
+
+        // The names of the chip's parts, in order of first appearance in the HDL,
+        // and their files (null for parts that aren't found)
+        String[] partNames;
+        HDLFile[] parts;
+
+        // The wave in which the chip is created (starting from 1), 0 if not sorted
+        // yet and -1 while being sorted
+        int wave;
+
+        HDLFile(String fileName, String gateName) {
+            this.fileName = fileName;
+            this.gateName = gateName;
+        }
+    }
+
+    // A step that is done on each file in a list of files
+    private static abstract class Step {
+        abstract void run(HDLFile file);
+    }
+
+    // The errors of the chips that failed in the current load, by file name
+    private static Hashtable<String, HDLException> failures = new Hashtable<String, HDLException>();
+
+    // True while a load is in progress
+    private static volatile boolean loading;
+
+    /**
+     * Returns true while a chip is being loaded.
+     */
+    static boolean isLoading() {
+        return loading;
+    }
+
+    /**
+     * Throws the error of the chip with the given file name if it failed in the
+     * current load.
+     */
+    static void checkFailure(String fileName) throws HDLException {
+        HDLException failure = failures.get(fileName);
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Loads the chip with the given HDL file and name, and the chips it depends on,
+     * into the gates table of GateClass. Returns false, without loading anything,
+     * if the dependency graph has a circle (which the parser reports).
+     */
+    static synchronized boolean load(String fileName, String gateName) throws HDLException {
+        loading = true;
+        try {
+            HDLFile root = scan(fileName, gateName);
+
+            Vector<Vector<HDLFile>> waves = new Vector<Vector<HDLFile>>();
+            if (!sort(root, waves))
+                return false;
+
+            for (int i = 0; i < waves.size(); i++) {
+                forEach(waves.elementAt(i), new Step() {
+                    void run(HDLFile file) {
+                        create(file);
+                    }
+                });
+            }
+
+            checkFailure(fileName);
+            return true;
+        } finally {
+            failures.clear();
+            loading = false;
+        }
+    }
+
+    // Reads the HDL file with the given name and all the files it depends on,
+    // and returns the given file linked to its parts.
+    private static HDLFile scan(String fileName, String gateName) {
+        GatesManager manager = GatesManager.getInstance();
+        Hashtable<String, HDLFile> files = new Hashtable<String, HDLFile>();
+        HDLFile root = new HDLFile(fileName, gateName);
+        files.put(fileName, root);
+
+        Vector<HDLFile> step = new Vector<HDLFile>();
+        step.addElement(root);
+        while (!step.isEmpty()) {
+            forEach(step, new Step() {
+                void run(HDLFile file) {
+                    read(file);
+                }
+            });
+
+            Vector<HDLFile> nextStep = new Vector<HDLFile>();
+            for (int i = 0; i < step.size(); i++) {
+                HDLFile file = step.elementAt(i);
+                file.parts = new HDLFile[file.partNames.length];
+                for (int j = 0; j < file.partNames.length; j++) {
+                    String partFileName = manager.getHDLFileName(file.partNames[j]);
+                    if (partFileName == null)
+                        continue;
+
+                    HDLFile part = files.get(partFileName);
+                    if (part == null) {
+                        part = new HDLFile(partFileName, file.partNames[j]);
+                        files.put(partFileName, part);
+                        nextStep.addElement(part);
+                    }
+                    file.parts[j] = part;
+                }
+            }
+            step = nextStep;
+        }
+
+        return root;
+    }
+
+    // Reads the given file and finds its hash, cached entry and part names.
+    private static void read(HDLFile file) {
+        try {
+            file.contents = Files.readAllBytes(Paths.get(file.fileName));
+        } catch (IOException ioe) {
+            file.partNames = new String[0];
+            return;
+        }
+
+        // the parts of chips that substitute built in chips differ, so they are
+        // cached separately
+        byte[] mode = {(byte)(GatesManager.getInstance().isBuiltInSubstitutionEnabled() ? 1 : 0)};
+        file.hash = HDLCache.digest(file.gateName.getBytes(), mode, file.contents);
+        file.entry = HDLCache.getInstance().find(file.hash);
+        file.partNames = (file.entry != null ? file.entry.getPartNames() : scanPartNames(file));
+    }
+
+    // Returns the names of the parts in the HDL of the given file, in order of
+    // first appearance. Scanning stops at the first error, which the parser reports.
+    private static String[] scanPartNames(HDLFile file) {
+        Vector<String> names = new Vector<String>();
+
+        try {
+            HDLTokenizer input = new HDLTokenizer(file.fileName, file.contents);
+            boolean inParts = false;
+            while (input.hasMoreTokens()) {
+                input.advance();
+                if (!inParts)
+                    inParts = (input.getTokenType() == HDLTokenizer.TYPE_KEYWORD &&
+                               input.getKeywordType() == HDLTokenizer.KW_PARTS);
+                else if (input.getTokenType() == HDLTokenizer.TYPE_IDENTIFIER) {
+                    if (!names.contains(input.getIdentifier()))
+                        names.addElement(input.getIdentifier());
+
+                    // skip the part's connections
+                    do {
+                        input.advance();
+                    } while (!(input.getTokenType() == HDLTokenizer.TYPE_SYMBOL &&
+                               input.getSymbol() == ';'));
+                }
+            }
+        } catch (HDLException ignored) {
+        }
+
+        String[] result = new String[names.size()];
+        names.toArray(result);
+        return result;
+    }
+
+    // Adds the given file, after the files it depends on, to the wave in which it
+    // can be created. Returns false if the dependencies have a circle.
+    private static boolean sort(HDLFile file, Vector<Vector<HDLFile>> waves) {
+        file.wave = -1;
+
+        int wave = 1;
+        for (int i = 0; i < file.parts.length; i++) {
+            HDLFile part = file.parts[i];
+            if (part == null)
+                continue;
+
+            if (part.wave == -1 || (part.wave == 0 && !sort(part, waves)))
+                return false;
+            wave = Math.max(wave, part.wave + 1);
+        }
+
+        file.wave = wave;
+        if (waves.size() < wave)
+            waves.addElement(new Vector<HDLFile>());
+        waves.elementAt(wave - 1).addElement(file);
+        return true;
+    }
+
+    // Creates the chip of the given file, whose parts were already created, and
+    // puts it in the gates table, or records its error. Chips that are already in
+    // the gates table are kept.
+    private static void create(HDLFile file) {
+        try {
+            if (GateClass.GateClasses.get(file.fileName) != null) {
+                file.treeHash = getTreeHash(file);
+                return;
+            }
+
+            HDLCache cache = HDLCache.getInstance();
+            GateClass[] parts = getParts(file);
+            file.treeHash = getTreeHash(file);
+
+            GateClass result = null;
+            if (file.entry != null && file.treeHash != null)
+                result = cache.getGateClass(file.entry, file.treeHash, parts);
+
+            if (result == null) {
+                HDLTokenizer input = (file.contents != null ?
+                                      new HDLTokenizer(file.fileName, file.contents) :
+                                      new HDLTokenizer(file.fileName));
+                result = GateClass.readHDL(input, file.gateName);
+                if (file.treeHash != null)
+                    cache.put(file.hash, file.treeHash, file.partNames, result);
+            }
+
+            GateClass.GateClasses.put(file.fileName, result);
+        } catch (HDLException he) {
+            file.treeHash = null;
+            failures.put(file.fileName, he);
+        }
+    }
+
+    // Returns the GateClasses of the parts of the given file (null for parts that
+    // weren't created).
+    private static GateClass[] getParts(HDLFile file) {
+        GateClass[] result = new GateClass[file.parts.length];
+        for (int i = 0; i < result.length; i++)
+            if (file.parts[i] != null)
+                result[i] = BuiltInSubstitution.substitute(
+                    GateClass.GateClasses.get(file.parts[i].fileName));
+        return result;
+    }
+
+    // Returns the tree hash of the given file, or null if it or one of its parts
+    // can't be cached.
+    private static byte[] getTreeHash(HDLFile file) {
+        if (file.hash == null)
+            return null;
+
+        byte[][] hashes = new byte[file.parts.length + 1][];
+        hashes[0] = file.hash;
+        for (int i = 0; i < file.parts.length; i++) {
+            if (file.parts[i] == null || file.parts[i].treeHash == null)
+                return null;
+            hashes[i + 1] = file.parts[i].treeHash;
+        }
+
+        return HDLCache.digest(hashes);
+    }
+
+    // Runs the given step on each of the given files, in parallel on the common
+    // fork-join pool if there are several.
+    private static void forEach(Vector<HDLFile> files, final Step step) {
+        if (files.size() == 1) {
+            step.run(files.elementAt(0));
+            return;
+        }
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(files.size());
+        for (final HDLFile file : files) {
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    step.run(file);
+                    return null;
+                }
+            });
+        }
+
+        for (Future<Object> result : ForkJoinPool.commonPool().invokeAll(tasks)) {
+            try {
+                result.get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ee) {
+                throw new RuntimeException(ee.getCause());
+            }
+        }
+    }
+}
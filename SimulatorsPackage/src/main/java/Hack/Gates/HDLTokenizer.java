@@ -93,6 +93,19 @@ public class HDLTokenizer {
         }
     }
 
+    /**
+     * Constructs a new HDLTokenizer that reads the given contents of the given file.
+     */
+    public HDLTokenizer(String fileName, byte[] contents) throws HDLException {
+        this.fileName = fileName;
+
+        try {
+            initizalizeInput(new InputStreamReader(new ByteArrayInputStream(contents)));
+        } catch (IOException ioe) {
+            throw new HDLException("Error while initializing for reading", fileName);
+        }
+    }
+
     public HDLTokenizer() {}
 
     /**
@@ -0,0 +1,117 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Gates;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a directory for changes of HDL files, and reports them to a listener
+ * from a daemon thread. Changes that come within a short time of each other (such
+ * as the several events of saving a file) are reported together.
+ */
+public class HDLWatcher implements Runnable {
+
+    // The time to wait for more changes after a change, in milliseconds
+    private static final long SETTLE_TIME = 100;
+
+    // The watched directory
+    private File directory;
+
+    // The watch service of the directory
+    private WatchService service;
+
+    // The listener to the changes
+    private HDLChangeListener listener;
+
+    /**
+     * Constructs a new HDLWatcher that reports the changes of the HDL files in the
+     * given directory to the given listener, and starts watching.
+     */
+    public HDLWatcher(File directory, HDLChangeListener listener) throws IOException {
+        this.directory = directory.getAbsoluteFile();
+        this.listener = listener;
+
+        service = FileSystems.getDefault().newWatchService();
+        this.directory.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                                         StandardWatchEventKinds.ENTRY_MODIFY,
+                                         StandardWatchEventKinds.ENTRY_DELETE);
+
+        Thread thread = new Thread(this, "HDL watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the watched directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Stops watching.
+     */
+    public void close() {
+        try {
+            service.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Waits for changes and reports them, until closed.
+     */
+    public void run() {
+        try {
+            while (true) {
+                Vector<String> fileNames = new Vector<String>();
+                WatchKey key = service.take();
+                do {
+                    addFileNames(key, fileNames);
+                    key.reset();
+                } while ((key = service.poll(SETTLE_TIME, TimeUnit.MILLISECONDS)) != null);
+
+                if (!fileNames.isEmpty()) {
+                    String[] result = new String[fileNames.size()];
+                    fileNames.toArray(result);
+                    listener.hdlFilesChanged(result);
+                }
+            }
+        } catch (InterruptedException ie) {
+        } catch (ClosedWatchServiceException cwse) {
+        }
+    }
+
+    // Adds the names of the HDL files of the events of the given key to the given list.
+    private void addFileNames(WatchKey key, Vector<String> fileNames) {
+        for (WatchEvent event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                continue;
+
+            String name = event.context().toString();
+            if (name.endsWith(".hdl")) {
+                String fileName = new File(directory, name).getPath();
+                if (!fileNames.contains(fileName))
+                    fileNames.addElement(fileName);
+            }
+        }
+    }
+}
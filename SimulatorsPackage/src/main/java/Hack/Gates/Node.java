@@ -25,8 +25,11 @@ public class Node {
     // the value of the node
     protected short value;
 
-    // listeners list
-    protected NodeSet listeners;
+    // the first listener (most nodes have at most one listener)
+    protected Node listener;
+
+    // the other listeners, or null if there are less than two
+    protected Node[] moreListeners;
 
     /**
      * Constructs a new node.
@@ -45,18 +48,59 @@ public class Node {
      * Adds the given node as a listener.
      */
     public void addListener(Node node) {
-        if (listeners == null)
-            listeners = new NodeSet();
-
-        listeners.add(node);
+        if (listener == null)
+            listener = node;
+        else if (moreListeners == null)
+            moreListeners = new Node[]{node};
+        else {
+            Node[] newListeners = new Node[moreListeners.length + 1];
+            System.arraycopy(moreListeners, 0, newListeners, 0, moreListeners.length);
+            newListeners[moreListeners.length] = node;
+            moreListeners = newListeners;
+        }
     }
 
     /**
      * Removes the given node from being a listener.
      */
     public void removeListener(Node node) {
-        if (listeners != null)
-            listeners.remove(node);
+        if (listener == node) {
+            if (moreListeners == null)
+                listener = null;
+            else
+                removeListenerAt(0);
+        }
+        else if (moreListeners != null)
+            for (int i = 0; i < moreListeners.length; i++)
+                if (moreListeners[i] == node) {
+                    removeListenerAt(i + 1);
+                    break;
+                }
+    }
+
+    /**
+     * Removes all the listeners.
+     */
+    void removeAllListeners() {
+        listener = null;
+        moreListeners = null;
+    }
+
+    // Removes the listener at the given index (listener is at index 0),
+    // when there are at least two listeners.
+    private void removeListenerAt(int index) {
+        if (index == 0)
+            listener = moreListeners[0];
+
+        if (moreListeners.length == 1)
+            moreListeners = null;
+        else {
+            Node[] newListeners = new Node[moreListeners.length - 1];
+            int from = Math.max(index, 1);
+            System.arraycopy(moreListeners, 0, newListeners, 0, from - 1);
+            System.arraycopy(moreListeners, from, newListeners, from - 1, moreListeners.length - from);
+            moreListeners = newListeners;
+        }
     }
 
     /**
@@ -74,9 +118,12 @@ public class Node {
         if (this.value != value) {
             this.value = value;
 
-            if (listeners != null)
-                for (int i = 0; i < listeners.size(); i++)
-                    listeners.getNodeAt(i).set(get());
+            if (listener != null) {
+                listener.set(get());
+                if (moreListeners != null)
+                    for (int i = 0; i < moreListeners.length; i++)
+                        moreListeners[i].set(get());
+            }
         }
     }
 }
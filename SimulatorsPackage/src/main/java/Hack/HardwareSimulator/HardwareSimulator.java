@@ -21,6 +21,7 @@ import Hack.Controller.*;
 import Hack.ComputerParts.*;
 import Hack.Utilities.*;
 import java.io.*;
+import java.util.*;
 import Hack.Gates.*;
 import Hack.Events.*;
 
@@ -38,10 +39,18 @@ import Hack.Events.*;
  * tick - Clock goes up (internal state of clocked gates changes).
  * tock - Clock goes down (outputs of clocked gates are modified).
  * eval - propagate all the input values of the gate and re-compute all outputs of the gate.
+ * verify [n] - checks the loaded combinational gate against the built-in gate of the
+ *              same name, on all input combinations, or on n random ones (default
+ *              1048576) if the gate has more than 24 input bits. Fails with the first
+ *              input combination on which the gates differ.
+ * vcd <file name> [pin name ...] - records the values of the given pins (or of all the
+ *              input, output and internal pins) of the loaded gate after every tick and
+ *              tock into the given VCD file, until the simulator is restarted or the
+ *              script ends.
  */
 public class HardwareSimulator extends HackSimulator
  implements TextFileEventListener, GateErrorEventListener,
-            DirtyGateListener {
+            DirtyGateListener, HDLChangeListener {
 
     // Variables
     private static final String VAR_TIME = "time";
@@ -52,6 +61,11 @@ public class HardwareSimulator extends HackSimulator
     private static final String COMMAND_LOAD = "load";
     private static final String COMMAND_EVAL = "eval";
     private static final String COMMAND_SETVAR = "set";
+    private static final String COMMAND_VERIFY = "verify";
+    private static final String COMMAND_VCD = "vcd";
+
+    // The default number of random input combinations checked by the verify command
+    private static final long DEFAULT_VERIFY_COMBINATIONS = 1 << 20;
 
     private static final File INITIAL_BUILTIN_DIR = new File("builtInChips");
 
@@ -64,6 +78,16 @@ public class HardwareSimulator extends HackSimulator
     // The simulated gate.
     private Gate gate;
 
+    // The name of the simulated gate, and whether it contains the path of the hdl file
+    private String gateName;
+    private boolean gateNameContainsPath;
+
+    // The watcher of the HDL files in the working folder (only with a gui)
+    private HDLWatcher watcher;
+
+    // Updates the simulated gate when its HDL files change
+    private GateReloader reloader = new GateReloader();
+
     // The Pins lists
     private Pins inputPins, outputPins, internalPins;
 
@@ -85,6 +109,9 @@ public class HardwareSimulator extends HackSimulator
     // The list of recognized variables.
     private String[] vars;
 
+    // Records the pins into a VCD file, or null if they aren't recorded
+    private WaveformRecorder recorder;
+
     /**
      * Constructs a new Hardware Simulator with no gui.
      */
@@ -310,10 +337,12 @@ public class HardwareSimulator extends HackSimulator
 
     /**
      * Executes the given simulator command (given in args[] style).
+     * Commands hold the simulator's lock, so HDL changes aren't applied to the
+     * gate while it's simulated (see hdlFilesChanged).
      * Throws CommandException if the command is not legal.
      * Throws ProgramException if an error occurs in the program.
      */
-    public void doCommand(String[] command)
+    public synchronized void doCommand(String[] command)
      throws CommandException, ProgramException, VariableException {
         if (command.length == 0)
             throw new CommandException("Empty command", command);
@@ -347,6 +376,35 @@ public class HardwareSimulator extends HackSimulator
 
             performEval();
         }
+        else if (command[0].equals(COMMAND_VERIFY)) {
+            if (command.length > 2)
+                throw new CommandException("Illegal number of arguments to command", command);
+            else if (gate == null)
+                throw new CommandException("Illegal command since no gate is currently loaded", command);
+
+            long combinations = DEFAULT_VERIFY_COMBINATIONS;
+            if (command.length == 2) {
+                try {
+                    combinations = Long.parseLong(command[1]);
+                } catch (NumberFormatException nfe) {
+                    combinations = -1;
+                }
+                if (combinations <= 0)
+                    throw new CommandException("Illegal number of input combinations", command);
+            }
+
+            performVerify(combinations);
+        }
+        else if (command[0].equals(COMMAND_VCD)) {
+            if (command.length < 2)
+                throw new CommandException("Illegal number of arguments to command", command);
+            else if (gate == null)
+                throw new CommandException("Illegal command since no gate is currently loaded", command);
+
+            String[] pinNames = new String[command.length - 2];
+            System.arraycopy(command, 2, pinNames, 0, pinNames.length);
+            startRecording(command[1], pinNames);
+        }
         else if (command[0].equals(COMMAND_SETVAR)) {
             if (command.length != 3)
                 throw new CommandException("Illegal number of arguments to command", command);
@@ -401,6 +459,112 @@ public class HardwareSimulator extends HackSimulator
         GatesManager.getInstance().setWorkingDir(file.getParentFile());
     }
 
+    // Checks the current gate against the built-in gate of the same name, on all
+    // input combinations or on the given number of random ones.
+    // Throws ProgramException if they differ or can't be compared.
+    private void performVerify(long randomCombinations) throws ProgramException {
+        GateClass gateClass = gate.getGateClass();
+        File builtInFile = new File(GatesManager.getInstance().getBuiltInDir(), gateClass.getName() + ".hdl");
+        if (!builtInFile.exists())
+            throw new ProgramException("There is no built-in " + gateClass.getName() + " chip");
+
+        try {
+            GateClass referenceClass = GateClass.getGateClass(builtInFile.getAbsolutePath(), true);
+            ChipVerifier verifier = new ChipVerifier(gateClass, referenceClass);
+            ChipVerifier.Counterexample counterexample = verifier.verify(randomCombinations);
+            if (counterexample != null)
+                throw new ProgramException("Verification failed: " + counterexample);
+
+            long combinations = verifier.getNumberOfCombinations(randomCombinations);
+            displayMessage(gateClass.getName() + " matches the built-in chip on " +
+                           (verifier.isExhaustive() ? "all " + combinations : combinations + " random") +
+                           " input combinations", false);
+        } catch (HDLException he) {
+            throw new ProgramException(he.getMessage());
+        }
+    }
+
+    // Starts recording the pins with the given names (or all the pins of the gate if
+    // no names are given) into the VCD file with the given name.
+    // Throws ProgramException if a pin doesn't exist or the file can't be created.
+    private void startRecording(String fileName, String[] pinNames) throws ProgramException {
+        stopRecording();
+
+        GateClass gateClass = gate.getGateClass();
+        Vector pins = new Vector();
+        if (pinNames.length == 0) {
+            for (int i = 0; i < gate.getInputNodes().length; i++)
+                pins.addElement(gateClass.getPinInfo(GateClass.INPUT_PIN_TYPE, i));
+            for (int i = 0; i < gate.getOutputNodes().length; i++)
+                pins.addElement(gateClass.getPinInfo(GateClass.OUTPUT_PIN_TYPE, i));
+            if (gate instanceof CompositeGate)
+                for (int i = 0; i < ((CompositeGate)gate).getInternalNodes().length; i++)
+                    pins.addElement(gateClass.getPinInfo(CompositeGateClass.INTERNAL_PIN_TYPE, i));
+        }
+        else
+            for (int i = 0; i < pinNames.length; i++) {
+                PinInfo pin = gateClass.getPinInfo(pinNames[i]);
+                if (pin == null)
+                    throw new ProgramException("Unknown pin: " + pinNames[i]);
+                pins.addElement(pin);
+            }
+
+        String[] names = new String[pins.size()];
+        Node[] nodes = new Node[names.length];
+        byte[] widths = new byte[names.length];
+        for (int i = 0; i < names.length; i++) {
+            PinInfo pin = (PinInfo)pins.elementAt(i);
+            names[i] = pin.name;
+            nodes[i] = gate.getNode(pin.name);
+            widths[i] = pin.width;
+        }
+
+        File file = new File(GatesManager.getInstance().getWorkingDir(), fileName);
+        try {
+            recorder = new WaveformRecorder(file, gateClass.getName(), names, nodes, widths);
+            recorder.sample(getWaveformTime(), clockUp);
+        } catch (IOException ioe) {
+            recorder = null;
+            throw new ProgramException("Could not create file " + fileName);
+        }
+    }
+
+    // Returns the time of the current clock phase in the recorded waveform.
+    private long getWaveformTime() {
+        return 2L * time + (clockUp ? 1 : 0);
+    }
+
+    // Samples the recorded pins. Stops recording if the file can't be written.
+    private void recordWaveform() {
+        try {
+            recorder.sample(getWaveformTime(), clockUp);
+        } catch (IOException ioe) {
+            File file = recorder.getFile();
+            stopRecording();
+            displayMessage("Could not write " + file.getName(), true);
+        }
+    }
+
+    // Stops recording the pins, if they are recorded.
+    private void stopRecording() {
+        if (recorder != null) {
+            WaveformRecorder stopped = recorder;
+            recorder = null;
+            try {
+                stopped.close();
+            } catch (IOException ioe) {
+                displayMessage("Could not write " + stopped.getFile().getName(), true);
+            }
+        }
+    }
+
+    /**
+     * Completes the recorded VCD file, if any.
+     */
+    public void scriptEnded() {
+        stopRecording();
+    }
+
     // Hides all highlights in GUIs.
     private void hideHighlightes() {
         inputPins.hideHighlight();
@@ -423,7 +587,9 @@ public class HardwareSimulator extends HackSimulator
         parts.refreshGUI();
     }
 
-    public void restart() {
+    public synchronized void restart() {
+        stopRecording();
+
         if (gui != null) {
             inputPins.reset();
             outputPins.reset();
@@ -526,6 +692,8 @@ public class HardwareSimulator extends HackSimulator
         try {
             // clears the gate cache, so all gates will be reloaded
             GateClass.clearGateCache();
+            BuiltInSubstitution.clearReport();
+            CompositeGateClass.clearCompilationReport();
 
             // find gate class and create gate
             gateClass = GateClass.getGateClass(gateName, containsPath);
@@ -587,6 +755,11 @@ public class HardwareSimulator extends HackSimulator
                 gui.hidePartPins();
                 gui.hideParts();
             }
+
+            this.gateName = gateName;
+            gateNameContainsPath = containsPath;
+            if (gui != null)
+                watchWorkingDir();
         } catch (HDLException he) {
             throw new GateException(he.getMessage());
         } catch (InstantiationException ie) {
@@ -595,6 +768,69 @@ public class HardwareSimulator extends HackSimulator
 
         if (gui != null)
             clearMessage();
+
+        // report the parts that were checked for substitution with built in chips,
+        // and the parts that couldn't be compiled
+        StringBuffer message = new StringBuffer();
+        String[][] reports = {BuiltInSubstitution.getReport(),
+                              CompositeGateClass.getCompilationReport()};
+        for (int i = 0; i < reports.length; i++)
+            for (int j = 0; j < reports[i].length; j++) {
+                if (message.length() > 0)
+                    message.append("; ");
+                message.append(reports[i][j]);
+            }
+        if (message.length() > 0)
+            displayMessage(message.toString(), false);
+    }
+
+    // Watches the HDL files in the working folder, if they aren't watched already.
+    private void watchWorkingDir() {
+        File dir = GatesManager.getInstance().getWorkingDir();
+        if (dir == null || (watcher != null && watcher.getDirectory().equals(dir.getAbsoluteFile())))
+            return;
+
+        if (watcher != null)
+            watcher.close();
+
+        try {
+            watcher = new HDLWatcher(dir, this);
+        } catch (IOException ioe) {
+            watcher = null;
+        }
+    }
+
+    /**
+     * Called when HDL files in the working folder changed.
+     * Updates the simulated gate (on the simulator's task thread).
+     */
+    public void hdlFilesChanged(String[] fileNames) {
+        runTask(new HDLChangeTask(fileNames));
+    }
+
+    // Updates the simulated gate after the HDL files with the given names changed,
+    // keeping the state of its parts that didn't change, or loads it again if it
+    // can't be updated.
+    private synchronized void updateGate(String[] fileNames) {
+        if (gate == null)
+            return;
+
+        try {
+            if (reloader.reload(gate, fileNames)) {
+                if (gate instanceof CompositeGate) {
+                    partPins.setGate(gate);
+                    parts.setParts(((CompositeGate)gate).getParts());
+                }
+                performEval();
+                refresh();
+            }
+            else
+                loadGate(gateName, gateNameContainsPath);
+        } catch (HDLException he) {
+            displayMessage(he.getMessage(), true);
+        } catch (GateException ge) {
+            displayMessage(ge.getMessage(), true);
+        }
     }
 
     /**
@@ -719,22 +955,15 @@ public class HardwareSimulator extends HackSimulator
      * Runs the Eval task.
      */
     protected void runEvalTask() {
-        Thread t = new Thread(new EvalTask());
-        t.start();
+        runTask(new EvalTask());
     }
 
     /**
-     * Runs the Tick or Tock tasks, according to the current clock state.
+     * Runs the TickTock task, which performs a tick or a tock according to the
+     * clock state when it runs.
      */
     protected void runTickTockTask() {
-        if (clockUp) {
-            Thread t = new Thread(new TockTask());
-            t.start();
-        }
-        else {
-            Thread t = new Thread(new TickTask());
-            t.start();
-        }
+        runTask(new TickTockTask());
     }
 
     // Performs tick on the current gate
@@ -743,6 +972,9 @@ public class HardwareSimulator extends HackSimulator
         gate.tick();
         clockUp = true;
 
+        if (recorder != null)
+            recordWaveform();
+
         if (gui != null) {
             // hide gui highlights
             if (animationMode != HackController.NO_DISPLAY_CHANGES)
@@ -759,6 +991,9 @@ public class HardwareSimulator extends HackSimulator
         clockUp = false;
         time++;
 
+        if (recorder != null)
+            recordWaveform();
+
         if (gui != null)
             updateTime();
     }
@@ -809,19 +1044,33 @@ public class HardwareSimulator extends HackSimulator
 
     class EvalTask implements Runnable {
         public void run() {
-            performEval();
+            synchronized (HardwareSimulator.this) {
+                performEval();
+            }
         }
     }
 
-    class TickTask implements Runnable {
+    class TickTockTask implements Runnable {
         public void run() {
-            performTick();
+            synchronized (HardwareSimulator.this) {
+                if (clockUp)
+                    performTock();
+                else
+                    performTick();
+            }
         }
     }
 
-    class TockTask implements Runnable {
+    class HDLChangeTask implements Runnable {
+
+        private String[] fileNames;
+
+        public HDLChangeTask(String[] fileNames) {
+            this.fileNames = fileNames;
+        }
+
         public void run() {
-            performTock();
+            updateGate(fileNames);
         }
     }
 }
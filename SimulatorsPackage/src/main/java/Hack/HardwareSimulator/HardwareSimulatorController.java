@@ -57,9 +57,7 @@ public class HardwareSimulatorController extends HackController {
                 if (!singleStepLocked) // new HDL was loaded manually
                     reloadDefaultScript();
 
-                LoadChipTask loadChipTask = new LoadChipTask(file.getPath());
-                Thread t = new Thread(loadChipTask);
-                t.start();
+                simulator.runTask(new LoadChipTask(file.getPath()));
                 break;
 
             case HardwareSimulatorControllerEvent.EVAL_CLICKED:
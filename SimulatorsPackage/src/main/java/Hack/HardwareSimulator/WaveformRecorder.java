@@ -0,0 +1,236 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.HardwareSimulator;
+
+import Hack.Gates.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Records the values of pins of a gate into a VCD (value change dump) file, which
+ * can be viewed with waveform viewers. The pins are sampled after every tick and
+ * tock, and only the values that changed since the previous sample are written.
+ */
+public class WaveformRecorder {
+
+    // The size of the output buffer
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // The maximal length of a written value line
+    private static final int MAX_LINE_LENGTH = 64;
+
+    // The range of characters of VCD identifier codes
+    private static final int FIRST_CODE_CHAR = '!';
+    private static final int CODE_CHARS = '~' - '!' + 1;
+
+    // The recorded file
+    private File file;
+
+    // The output channel and its buffer
+    private FileChannel channel;
+    private ByteBuffer buffer;
+
+    // The recorded nodes, their widths and identifier codes
+    private Node[] nodes;
+    private byte[] widths;
+    private byte[][] codes;
+
+    // The values of the nodes in the previous sample
+    private short[] values;
+
+    // The clock state in the previous sample and its identifier code
+    private boolean clockUp;
+    private byte[] clockCode;
+
+    // The time of the previous sample, or -1 if nothing was sampled yet
+    private long lastTime = -1;
+
+    /**
+     * Constructs a new WaveformRecorder that records the given nodes, whose pins
+     * have the given names and widths, of the gate with the given name into the
+     * given file, and writes the VCD header.
+     */
+    public WaveformRecorder(File file, String gateName, String[] names, Node[] nodes, byte[] widths)
+     throws IOException {
+        this.file = file;
+        this.nodes = nodes;
+        this.widths = widths;
+        values = new short[nodes.length];
+        codes = new byte[nodes.length][];
+        for (int i = 0; i < nodes.length; i++)
+            codes[i] = getCode(i + 1);
+        clockCode = getCode(0);
+
+        channel = new FileOutputStream(file).getChannel();
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        StringBuffer header = new StringBuffer();
+        header.append("$version Hardware Simulator $end\n");
+        header.append("$timescale 1 ns $end\n");
+        header.append("$scope module ").append(gateName).append(" $end\n");
+        header.append("$var wire 1 ").append(new String(clockCode)).append(" clk $end\n");
+        for (int i = 0; i < nodes.length; i++) {
+            header.append("$var wire ").append(widths[i]).append(' ').append(new String(codes[i]));
+            header.append(' ').append(names[i]);
+            if (widths[i] > 1)
+                header.append(" [").append(widths[i] - 1).append(":0]");
+            header.append(" $end\n");
+        }
+        header.append("$upscope $end\n");
+        header.append("$enddefinitions $end\n");
+
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header.toString().getBytes());
+        while (headerBuffer.hasRemaining())
+            channel.write(headerBuffer);
+    }
+
+    /**
+     * Returns the recorded file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Samples the recorded nodes at the given time (which must be later than the
+     * time of the previous sample), with the given clock state. The first sample
+     * writes all the values, and the next ones only write the values that changed.
+     */
+    public void sample(long time, boolean clockUp) throws IOException {
+        boolean timeWritten = false;
+
+        if (lastTime < 0) {
+            writeTime(time);
+            writeString("$dumpvars\n");
+            writeBit(clockUp, clockCode);
+            for (int i = 0; i < nodes.length; i++) {
+                values[i] = nodes[i].get();
+                writeValue(i);
+            }
+            writeString("$end\n");
+            timeWritten = true;
+        }
+        else {
+            if (clockUp != this.clockUp) {
+                writeTime(time);
+                timeWritten = true;
+                writeBit(clockUp, clockCode);
+            }
+
+            for (int i = 0; i < nodes.length; i++) {
+                short value = nodes[i].get();
+                if (value != values[i]) {
+                    if (!timeWritten) {
+                        writeTime(time);
+                        timeWritten = true;
+                    }
+                    values[i] = value;
+                    writeValue(i);
+                }
+            }
+        }
+
+        this.clockUp = clockUp;
+        lastTime = time;
+    }
+
+    /**
+     * Writes the buffered output and closes the file.
+     */
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Returns the VCD identifier code of the given number.
+    private static byte[] getCode(int number) {
+        int length = 1;
+        for (int n = number / CODE_CHARS; n > 0; n /= CODE_CHARS)
+            length++;
+
+        byte[] code = new byte[length];
+        for (int i = length - 1; i >= 0; i--) {
+            code[i] = (byte)(FIRST_CODE_CHAR + number % CODE_CHARS);
+            number /= CODE_CHARS;
+        }
+
+        return code;
+    }
+
+    // Writes the given time.
+    private void writeTime(long time) throws IOException {
+        ensureSpace(MAX_LINE_LENGTH);
+        buffer.put((byte)'#');
+        writeString(String.valueOf(time));
+        buffer.put((byte)'\n');
+    }
+
+    // Writes the given bit value of the node with the given code.
+    private void writeBit(boolean bit, byte[] code) throws IOException {
+        ensureSpace(MAX_LINE_LENGTH);
+        buffer.put((byte)(bit ? '1' : '0'));
+        buffer.put(code);
+        buffer.put((byte)'\n');
+    }
+
+    // Writes the current value of the node with the given index.
+    private void writeValue(int index) throws IOException {
+        int width = widths[index];
+        int value = values[index] & 0xffff;
+        if (width == 1) {
+            writeBit((value & 1) != 0, codes[index]);
+            return;
+        }
+
+        ensureSpace(MAX_LINE_LENGTH);
+        buffer.put((byte)'b');
+        int bit = width - 1;
+        while (bit > 0 && (value & (1 << bit)) == 0)
+            bit--;
+        for (; bit >= 0; bit--)
+            buffer.put((byte)((value & (1 << bit)) != 0 ? '1' : '0'));
+        buffer.put((byte)' ');
+        buffer.put(codes[index]);
+        buffer.put((byte)'\n');
+    }
+
+    // Writes the given ascii string.
+    private void writeString(String string) throws IOException {
+        ensureSpace(string.length());
+        for (int i = 0; i < string.length(); i++)
+            buffer.put((byte)string.charAt(i));
+    }
+
+    // Writes the buffer if it has less than the given space left.
+    private void ensureSpace(int space) throws IOException {
+        if (buffer.remaining() < space)
+            flush();
+    }
+
+    // Writes the buffered output to the channel.
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+}
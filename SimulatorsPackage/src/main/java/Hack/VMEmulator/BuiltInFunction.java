@@ -0,0 +1,90 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+package Hack.VMEmulator;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+
+/**
+ * A built-in implementation of a VM function, bound once to a method handle that
+ * takes the arguments as a short[] and returns the value of the function as a short.
+ * Calling it involves no reflective lookup and no boxing.
+ */
+class BuiltInFunction {
+
+    // Converts the return value of a boolean Java function to a VM value.
+    private static final MethodHandle BOOLEAN_TO_SHORT;
+
+    static {
+        try {
+            BOOLEAN_TO_SHORT = MethodHandles.lookup().findStatic(BuiltInFunction.class,
+                "booleanToShort", MethodType.methodType(short.class, boolean.class));
+        } catch (ReflectiveOperationException roe) {
+            throw new ExceptionInInitializerError(roe);
+        }
+    }
+
+    // The name of the implementing Java method
+    private String name;
+
+    // The bound method handle, of type (short[])short
+    private MethodHandle handle;
+
+    /**
+     * Constructs a new built-in function that calls the given static method,
+     * which takes only short arguments and returns short, char, boolean or void.
+     * Throws IllegalAccessException if the method is not accessible.
+     */
+    BuiltInFunction(Method method) throws IllegalAccessException {
+        name = method.getName();
+
+        MethodHandle methodHandle = MethodHandles.lookup().unreflect(method);
+        Class<?> returnType = method.getReturnType();
+        if (returnType == void.class)
+            methodHandle = MethodHandles.filterReturnValue(methodHandle,
+                                                           MethodHandles.constant(short.class, (short)0));
+        else if (returnType == boolean.class)
+            methodHandle = MethodHandles.filterReturnValue(methodHandle, BOOLEAN_TO_SHORT);
+        else
+            methodHandle = MethodHandles.explicitCastArguments(methodHandle,
+                                methodHandle.type().changeReturnType(short.class));
+
+        handle = methodHandle.asSpreader(short[].class, method.getParameterTypes().length);
+    }
+
+    /**
+     * Returns the name of the implementing Java method.
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Calls the function with the given arguments and returns its value
+     * (0 for void functions, -1 or 0 for boolean functions).
+     */
+    short invoke(short[] params) throws Throwable {
+        return (short)handle.invokeExact(params);
+    }
+
+    // Returns the VM representation of the given boolean value.
+    private static short booleanToShort(boolean value) {
+        return value ? (short)-1 : 0;
+    }
+}
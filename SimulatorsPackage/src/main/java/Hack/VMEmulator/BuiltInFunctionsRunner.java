@@ -17,12 +17,13 @@
 
 package Hack.VMEmulator;
 
+import Hack.CPUEmulator.RAM;
 import Hack.Controller.ProgramException;
 import Hack.Utilities.Definitions;
 
 import java.io.File;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.HashMap;
 
 /**
  * A class that runs built-in VM code as a coroutine so that
@@ -47,8 +48,8 @@ public class BuiltInFunctionsRunner implements Runnable {
 	}
     private class ProgramToBuiltInRequest {
 		int request;
-		Method functionObject;
-		Object[] params;
+		BuiltInFunction function;
+		short[] params;
 		short returnValue;
 	}
 	private BuiltInToProgramRequest builtInToProgram;
@@ -59,6 +60,14 @@ public class BuiltInFunctionsRunner implements Runnable {
 
 	// The built-in dir
 	private File builtInDir;
+
+	// The built-in functions that were already resolved, by name and number
+	// of arguments
+	private HashMap<String, BuiltInFunction> functionsByName;
+
+	// The state kept by the built-in classes between calls, by class
+	// (accessed only by the built-in code runner thread)
+	private HashMap<Class<? extends BuiltInVMClass>, Object> builtInStates;
 	
 	/********************** Code common to both threads *****/
 
@@ -88,6 +97,8 @@ public class BuiltInFunctionsRunner implements Runnable {
     public BuiltInFunctionsRunner(CPU cpu, File builtInDir) {
 		this.cpu = cpu;
 		this.builtInDir = builtInDir;
+		functionsByName = new HashMap<String, BuiltInFunction>();
+		builtInStates = new HashMap<Class<? extends BuiltInVMClass>, Object>();
 		builtInToProgram = new BuiltInToProgramRequest();
 		programToBuiltIn = new ProgramToBuiltInRequest();
 		synchronized (this) {
@@ -128,6 +139,50 @@ public class BuiltInFunctionsRunner implements Runnable {
 	 * Throws a ProgramException if no built-in implementation was found.
 	 */
 	public void callBuiltInFunction(String functionName, short[] params) throws ProgramException {
+		callBuiltInFunction(getBuiltInFunction(functionName, params.length), params);
+	}
+
+	/**
+	 * Called by the VM emulator. Tells the built-in code runner thread to call
+	 * the given built-in function of the program with the given params.
+	 * The implementation is kept in the function after its first call.
+	 * Throws a ProgramException if no built-in implementation was found.
+	 */
+	void callBuiltInFunction(VMFunction function, short[] params) throws ProgramException {
+		if (function.implementation == null)
+			function.implementation = getBuiltInFunction(function.name, params.length);
+
+		callBuiltInFunction(function.implementation, params);
+	}
+
+	// Tells the built-in code runner thread to call the given function with
+	// the given params.
+	private void callBuiltInFunction(BuiltInFunction function, short[] params) throws ProgramException {
+		programToBuiltIn.request = CALL_REQUEST;
+		programToBuiltIn.params = params;
+		programToBuiltIn.function = function;
+
+		sendBuiltInRequestAndWaitForAnswer();
+	}
+
+	// Returns the built-in implementation of the given function that takes the
+	// given number of parameters, resolving it if it's the first request for it.
+	private BuiltInFunction getBuiltInFunction(String functionName, int numberOfParams)
+			throws ProgramException {
+		String key = functionName + "/" + numberOfParams;
+		BuiltInFunction function = functionsByName.get(key);
+		if (function == null) {
+			function = resolveBuiltInFunction(functionName, numberOfParams);
+			functionsByName.put(key, function);
+		}
+		return function;
+	}
+
+	// Searches for a built-in implementation of the given function that takes
+	// the given number of parameters and binds it.
+	// Throws a ProgramException if no built-in implementation was found.
+	private BuiltInFunction resolveBuiltInFunction(String functionName, int numberOfParams)
+			throws ProgramException {
         int dotLocation = functionName.indexOf(".");
         if (dotLocation == -1) {
             throw new ProgramException("Illegal function name: " + functionName);
@@ -156,11 +211,9 @@ public class BuiltInFunctionsRunner implements Runnable {
 			throw new ProgramException("Built-in implementation for "+className+" is not a subclass of BuiltInVMClass");
 		}
 
-		// Find the implementing method & fill in the request
-		Class[] paramsClasses = new Class[params.length];
-		Object[] requestParams = new Object[params.length];
-		for (int i=0; i<params.length; ++i) {
-			requestParams[i] = params[i];
+		// Find the implementing method
+		Class[] paramsClasses = new Class[numberOfParams];
+		for (int i=0; i<numberOfParams; ++i) {
 			paramsClasses[i] = short.class;
 		}
 
@@ -169,18 +222,19 @@ public class BuiltInFunctionsRunner implements Runnable {
 			functionObject =
 				implementingClass.getDeclaredMethod(methodName, paramsClasses);
 		} catch (NoSuchMethodException nsme) {
-			throw new ProgramException("Can't find "+className+".vm or a built-in implementation for function "+methodName+" in class "+className+" taking "+params.length+" argument"+(params.length==1?"":"s")+".");
+			throw new ProgramException("Can't find "+className+".vm or a built-in implementation for function "+methodName+" in class "+className+" taking "+numberOfParams+" argument"+(numberOfParams==1?"":"s")+".");
 		}
 		Class returnType = functionObject.getReturnType();
 		if (returnType != short.class && returnType != void.class &&
 			returnType != char.class && returnType != boolean.class) {
-			throw new ProgramException("Can't find "+className+".vm and the built-in implementation for "+functionName+" taking "+params.length+" arguments doesn't return short/char/void/boolean.");
+			throw new ProgramException("Can't find "+className+".vm and the built-in implementation for "+functionName+" taking "+numberOfParams+" arguments doesn't return short/char/void/boolean.");
+		}
+
+		try {
+			return new BuiltInFunction(functionObject);
+		} catch (IllegalAccessException iae) {
+			throw new ProgramException("Error trying to run the built-in implementation of "+methodName);
 		}
-		programToBuiltIn.request = CALL_REQUEST;
-		programToBuiltIn.params = requestParams;
-		programToBuiltIn.functionObject = functionObject;
-			
-		sendBuiltInRequestAndWaitForAnswer();
 	}
 
 	private Class<? extends BuiltInVMClass> loadBuiltInClass(String jackClassName) throws ProgramException {
@@ -279,43 +333,19 @@ public class BuiltInFunctionsRunner implements Runnable {
 		// Wait for a command and loop while we're getting call commands
 		for(continueOtherThread(); programToBuiltIn.request == CALL_REQUEST;
 			continueOtherThread()) {
+			// programToBuiltIn might be overwritten until the return
+			// from the call. Save what's needed.
+			BuiltInFunction function = programToBuiltIn.function;
+			functionName = function.getName();
 			try { // Try to run the built-in implementation
-				// programToBuiltIn might be overwritten until the return
-				// from the call. Save what's needed.
-				Class returnType = programToBuiltIn.functionObject.getReturnType();
-				functionName =
-					programToBuiltIn.functionObject.getName();
-				// Execute
-				Object returnValue =
-					programToBuiltIn.functionObject.invoke(null,
-														   programToBuiltIn.params);
+				builtInToProgram.returnValue = function.invoke(programToBuiltIn.params);
 				builtInToProgram.request = RETURN_REQUEST;
-				if (returnType == short.class) {
-					builtInToProgram.returnValue = (Short) returnValue;
-				} else if (returnType == char.class) {
-					builtInToProgram.returnValue = (short)((Character)returnValue).charValue();
-				} else if (returnType == boolean.class) {
-					if ((Boolean) returnValue) {
-						builtInToProgram.returnValue = (short)-1;
-					} else {
-						builtInToProgram.returnValue = 0;
-					}
-				} else { // returnType == void.class
-					builtInToProgram.returnValue = 0;
-				}
-			} catch (IllegalAccessException iae) {
-				// Error running - abort VM program
+			} catch (TerminateVMProgramThrowable tvmpt) {
+				throw tvmpt;
+			} catch (Throwable t) {
+				// Error in the built-in function - abort VM program
 				builtInToProgram.request = THROW_PROGRAM_EXCEPTION_REQUEST;
-				builtInToProgram.details = "Error trying to run the built-in implementation of "+functionName;
-			} catch (InvocationTargetException ita) {
-				// Rethrow a TerminateVMProgramThrowable object that was thrown
-				try {
-					throw (TerminateVMProgramThrowable)ita.getTargetException();
-				} catch (ClassCastException cce) {
-					// Error in the built-in function - abort VM program
-					builtInToProgram.request = THROW_PROGRAM_EXCEPTION_REQUEST;
-					builtInToProgram.details = "The built-in implementation of "+functionName+" caused an exception: "+ita.getTargetException().toString();
-				}
+				builtInToProgram.details = "The built-in implementation of "+functionName+" caused an exception: "+t.toString();
 			}
 		}
 		if (programToBuiltIn.request == RETURN_REQUEST) {
@@ -343,6 +373,18 @@ public class BuiltInFunctionsRunner implements Runnable {
 		}
 	}
 
+	/**
+	 * Makes sure that all the addresses address, address+step, ... (count
+	 * addresses) that a built-in function requested to write/read from are
+	 * legal, like checkMemoryAddress. Since the legal addresses are
+	 * consecutive (apart from 0), it's enough to check the first and last ones.
+	 */
+	private void checkMemoryRange(int address, int step, int count) throws TerminateVMProgramThrowable {
+		checkMemoryAddress((short)address);
+		if (count > 1)
+			checkMemoryAddress(address == 0 ? (short)-1 : (short)(address + (count - 1) * step));
+	}
+
 	/**
 	 * Called by a built-in functio through the BuiltInVMClass class.
 	 * Enters an infinite loop, de-facto halting the program.
@@ -361,6 +403,49 @@ public class BuiltInFunctionsRunner implements Runnable {
 		throw new TerminateVMProgramThrowable();
 	}
 
+	/**
+     * Called by a built-in function through the BuiltInVMClass class.
+	 * Waits for the given duration in milliseconds of the emulator's
+	 * (possibly virtual) time.
+	 */
+	public void builtInFunctionRequestsWait(int duration) {
+		cpu.waitFor(duration);
+	}
+
+	/**
+     * Called by a built-in function through the BuiltInVMClass class.
+	 * Waits for the given duration while the function waits for a key event.
+	 * If the key event can never come, notifies the vm emulator Thread that
+	 * an exception occured, waits for a signal from it and throws a
+	 * TerminateVMProgramThrowable.
+	 */
+	public void builtInFunctionRequestsKeyWait(int duration) throws TerminateVMProgramThrowable {
+		if (!cpu.waitForKey(duration)) {
+			builtInToProgram.request = THROW_PROGRAM_EXCEPTION_REQUEST;
+			builtInToProgram.details = "The program waits for keyboard input, but there are no more key events to replay";
+			continueOtherThread();
+			// now programToBuiltIn.request == END_PROGRAM_REQUEST
+			throw new TerminateVMProgramThrowable();
+		}
+	}
+
+	/**
+     * Called by a built-in function through the BuiltInVMClass class.
+	 * Returns the state kept by the built-in functions of the given class
+	 * (or null if none was set).
+	 */
+	Object getBuiltInState(Class<? extends BuiltInVMClass> owner) {
+		return builtInStates.get(owner);
+	}
+
+	/**
+     * Called by a built-in function through the BuiltInVMClass class.
+	 * Sets the state kept by the built-in functions of the given class.
+	 */
+	void setBuiltInState(Class<? extends BuiltInVMClass> owner, Object state) {
+		builtInStates.put(owner, state);
+	}
+
 	/**
      * Called by a built-in function through the BuiltInVMClass class.
 	 * Writes the given value top the given address in the VM memory.
@@ -378,4 +463,42 @@ public class BuiltInFunctionsRunner implements Runnable {
 		checkMemoryAddress(address);
 		return cpu.getRAM().getValueAt(address);
 	}
+
+	/**
+     * Called by a built-in function through the BuiltInVMClass class.
+	 * Writes the given values to the addresses address, address+step, ...
+	 * in the VM memory at once.
+	 */
+	public void builtInFunctionRequestsMemoryWrite(int address, int step, short[] values)
+			throws TerminateVMProgramThrowable {
+		checkMemoryRange(address, step, values.length);
+		cpu.getRAM().setValuesAt(address, step, values);
+	}
+
+	/**
+     * Called by a built-in function through the BuiltInVMClass class.
+	 * Reads the contents of the addresses address, address+step, ... in the
+	 * VM memory into the given array.
+	 */
+	public void builtInFunctionRequestsMemoryRead(int address, int step, short[] values)
+			throws TerminateVMProgramThrowable {
+		checkMemoryRange(address, step, values.length);
+		cpu.getRAM().getValuesAt(address, step, values);
+	}
+
+	/**
+     * Called by a built-in function through the BuiltInVMClass class.
+	 * Sets each of the given number of consecutive words from the given address
+	 * in the VM memory to (word & andMask) | orMask at once.
+	 */
+	public void builtInFunctionRequestsMemoryUpdate(int address, int length, short andMask, short orMask)
+			throws TerminateVMProgramThrowable {
+		checkMemoryRange(address, 1, length);
+		RAM ram = cpu.getRAM();
+		short[] values = new short[length];
+		ram.getValuesAt(address, 1, values);
+		for (int i = 0; i < length; i++)
+			values[i] = (short)((values[i] & andMask) | orMask);
+		ram.setValuesAt(address, 1, values);
+	}
 }
@@ -17,7 +17,6 @@
 
 package Hack.VMEmulator;
 
-import java.util.Hashtable;
 import Hack.Utilities.Definitions;
 
 /**
@@ -27,8 +26,9 @@ import Hack.Utilities.Definitions;
  * should be static.
  */
 public abstract class BuiltInVMClass {
-	private static Hashtable<Thread, BuiltInFunctionsRunner> builtInFunctionsRunnerByThread =
-			new Hashtable<Thread, BuiltInFunctionsRunner>();
+	// The BuiltInFunctionsRunner of the thread that runs built-in code
+	private static final ThreadLocal<BuiltInFunctionsRunner> builtInFunctionsRunner =
+			new ThreadLocal<BuiltInFunctionsRunner>();
 
 	/* Some definitions regarding the memory. */
     public static final short SCREEN_START_ADDRESS = Definitions.SCREEN_START_ADDRESS;
@@ -51,7 +51,7 @@ public abstract class BuiltInVMClass {
 	 */
     protected static void writeMemory(int address, int value)
 			throws TerminateVMProgramThrowable {
-		builtInFunctionsRunnerByThread.get(Thread.currentThread()).builtInFunctionRequestsMemoryWrite((short) address, (short) value);
+		builtInFunctionsRunner.get().builtInFunctionRequestsMemoryWrite((short) address, (short) value);
 	}
 
 	/**
@@ -61,7 +61,76 @@ public abstract class BuiltInVMClass {
 	 */
     protected static short readMemory(int address)
 			throws TerminateVMProgramThrowable {
-		return builtInFunctionsRunnerByThread.get(Thread.currentThread()).builtInFunctionRequestsMemoryRead((short) address);
+		return builtInFunctionsRunner.get().builtInFunctionRequestsMemoryRead((short) address);
+	}
+
+	/**
+	 * The following functions access a range of the VM memory in one
+	 * request, which is much cheaper than accessing each word separately.
+	 * A range is either given as a number of consecutive words from an address,
+	 * or as the addresses address, address+step, ... for each element of an
+	 * array.
+	 */
+
+	/**
+	 * Reads the VM memory at address, address+step, ... into the given array.
+	 */
+	protected static void readMemory(int address, short[] values, int step)
+			throws TerminateVMProgramThrowable {
+		builtInFunctionsRunner.get().builtInFunctionRequestsMemoryRead(address, step, values);
+	}
+
+	/**
+	 * Reads values.length consecutive words of the VM memory from the given
+	 * address into the given array.
+	 */
+	protected static void readMemory(int address, short[] values)
+			throws TerminateVMProgramThrowable {
+		readMemory(address, values, 1);
+	}
+
+	/**
+	 * Writes the given values to the VM memory at address, address+step, ...
+	 */
+	protected static void writeMemory(int address, short[] values, int step)
+			throws TerminateVMProgramThrowable {
+		builtInFunctionsRunner.get().builtInFunctionRequestsMemoryWrite(address, step, values);
+	}
+
+	/**
+	 * Writes the given values to consecutive words of the VM memory from the
+	 * given address.
+	 */
+	protected static void writeMemory(int address, short[] values)
+			throws TerminateVMProgramThrowable {
+		writeMemory(address, values, 1);
+	}
+
+	/**
+	 * Sets the given number of consecutive words of the VM memory from the
+	 * given address to the given value.
+	 */
+	protected static void fillMemory(int address, int length, int value)
+			throws TerminateVMProgramThrowable {
+		builtInFunctionsRunner.get().builtInFunctionRequestsMemoryUpdate(address, length, (short)0, (short)value);
+	}
+
+	/**
+	 * ANDs the given number of consecutive words of the VM memory from the
+	 * given address with the given mask.
+	 */
+	protected static void andMemory(int address, int length, int mask)
+			throws TerminateVMProgramThrowable {
+		builtInFunctionsRunner.get().builtInFunctionRequestsMemoryUpdate(address, length, (short)mask, (short)0);
+	}
+
+	/**
+	 * ORs the given number of consecutive words of the VM memory from the
+	 * given address with the given mask.
+	 */
+	protected static void orMemory(int address, int length, int mask)
+			throws TerminateVMProgramThrowable {
+		builtInFunctionsRunner.get().builtInFunctionRequestsMemoryUpdate(address, length, (short)-1, (short)mask);
 	}
 
 	/**
@@ -75,7 +144,7 @@ public abstract class BuiltInVMClass {
 	protected static short callFunction(String functionName,
 		   								short[] params)
 			throws TerminateVMProgramThrowable {
-		return builtInFunctionsRunnerByThread.get(Thread.currentThread()).builtInFunctionRequestsCall(functionName, params);
+		return builtInFunctionsRunner.get().builtInFunctionRequestsCall(functionName, params);
 	}
 
 	protected static short callFunction(String functionName)
@@ -126,7 +195,46 @@ public abstract class BuiltInVMClass {
 	 * A message containing information may be provided (can be null).
 	 */
 	protected static void infiniteLoop(String message) throws TerminateVMProgramThrowable {
-		builtInFunctionsRunnerByThread.get(Thread.currentThread()).builtInFunctionRequestsInfiniteLoop(message);
+		builtInFunctionsRunner.get().builtInFunctionRequestsInfiniteLoop(message);
+	}
+
+	/**
+	 * Waits for the given duration in milliseconds.
+	 * Should be used instead of Thread.sleep, since the VM emulator may run
+	 * in virtual time, in which waits complete at once.
+	 */
+	protected static void sleep(int duration) {
+		builtInFunctionsRunner.get().builtInFunctionRequestsWait(duration);
+	}
+
+	/**
+	 * Waits for the given duration in milliseconds, like sleep, while the
+	 * function waits for a key event. Ends the program if the key event
+	 * can never come (no GUI and no more key events to replay).
+	 */
+	protected static void waitForKey(int duration) throws TerminateVMProgramThrowable {
+		builtInFunctionsRunner.get().builtInFunctionRequestsKeyWait(duration);
+	}
+
+
+	/**
+	 * Returns the state that the built-in functions of the given class keep
+	 * between calls (like the cursor position of Output), or null if no
+	 * state was set yet.
+	 * The state belongs to the VM emulator that runs the function, so that
+	 * several emulators may run in the same process. Static fields should be
+	 * used only for constant data.
+	 */
+	protected static Object getState(Class<? extends BuiltInVMClass> owner) {
+		return builtInFunctionsRunner.get().getBuiltInState(owner);
+	}
+
+	/**
+	 * Sets the state that the built-in functions of the given class keep
+	 * between calls.
+	 */
+	protected static void setState(Class<? extends BuiltInVMClass> owner, Object state) {
+		builtInFunctionsRunner.get().setBuiltInState(owner, state);
 	}
 
 
@@ -143,6 +251,6 @@ public abstract class BuiltInVMClass {
 	 * methods.
 	 */
 	static void associateForThread(BuiltInFunctionsRunner bifr) {
-		builtInFunctionsRunnerByThread.put(Thread.currentThread(), bifr);
+		builtInFunctionsRunner.set(bifr);
 	}
 }
@@ -17,6 +17,7 @@
 
 package Hack.VMEmulator;
 
+import Hack.CPUEmulator.Keyboard;
 import Hack.CPUEmulator.RAM;
 import Hack.ComputerParts.*;
 import Hack.Controller.ProgramException;
@@ -24,7 +25,7 @@ import Hack.Utilities.Definitions;
 import Hack.VirtualMachine.HVMInstructionSet;
 
 import java.io.File;
-import java.util.Vector;
+import java.util.Arrays;
 
 /**
  * A CPU of a computer. Runs the program on the virtual machine emulator.
@@ -41,6 +42,9 @@ public class CPU {
     // The memory used by the CPU
     private RAM ram;
 
+    // The keyboard, which replays its key events by the virtual time
+    private Keyboard keyboard;
+
     // The call stack
     private CallStack callStack;
 
@@ -63,21 +67,32 @@ public class CPU {
     private MemorySegment[] segments;
 
     // A stack of method frame addresses
-    private Vector<Integer> stackFrames;
+    private int[] stackFrames;
+
+    // The number of frames in stackFrames
+    private int stackFramesSize;
 
-    // The last instruction that was executed.
-    private VMEmulatorInstruction currentInstruction;
+    // The address of the last instruction that was executed.
+    private short currentInstructionAddress = -1;
 
 	// Runner for built-in vm code
 	private BuiltInFunctionsRunner builtInFunctionsRunner;
 
     private VMProfiler profiler = new VMProfiler();
 
+    // The virtual time in milliseconds: the total duration of the waits of
+    // built-in functions since the cpu was booted
+    private long virtualTime;
+
+    // True if the waits of built-in functions only advance the virtual time,
+    // rather than also sleeping
+    private boolean virtualTimeEnabled;
+
     /**
-     * Constructs the CPU with given program, RAM, call stack, bus, stack and other
-     * memory segments.
+     * Constructs the CPU with given program, RAM, keyboard, call stack, bus,
+     * stack and other memory segments.
      */
-    public CPU(VMProgram program, RAM ram, CallStack callStack,
+    public CPU(VMProgram program, RAM ram, Keyboard keyboard, CallStack callStack,
 			   Calculator calculator, Bus bus,
                AbsolutePointedMemorySegment stackSegment,
                TrimmedAbsoluteMemorySegment workingStackSegment,
@@ -87,6 +102,7 @@ public class CPU {
 			   File builtInDir) {
         this.program = program;
         this.ram = ram;
+        this.keyboard = keyboard;
         this.callStack = callStack;
         this.calculator = calculator;
         this.bus = bus;
@@ -106,11 +122,16 @@ public class CPU {
         segments[HVMInstructionSet.THAT_SEGMENT_CODE] = thatSegment;
         segments[HVMInstructionSet.TEMP_SEGMENT_CODE] = tempSegment;
 
-        stackFrames = new Vector<Integer>();
+        stackFrames = new int[64];
 
         final boolean useBuiltIns = "yes".equalsIgnoreCase(System.getenv("N2T_VM_USE_BUILTINS"));
         if (useBuiltIns || program.getGUI() != null)
             builtInFunctionsRunner = new BuiltInFunctionsRunner(this, builtInDir);
+
+        // Without a GUI nobody watches the waits, so they complete at once
+        final String envVirtualTime = System.getenv("N2T_VM_VIRTUAL_TIME");
+        virtualTimeEnabled = "yes".equalsIgnoreCase(envVirtualTime) ||
+                             (!"no".equalsIgnoreCase(envVirtualTime) && program.getGUI() == null);
     }
 
     /**
@@ -131,7 +152,9 @@ public class CPU {
         staticSegment.setEnabledRange(Definitions.VAR_START_ADDRESS,
 			   						  Definitions.VAR_END_ADDRESS - 1, true);
         setSP(Definitions.STACK_START_ADDRESS);
-		stackFrames.clear();
+		stackFramesSize = 0;
+        virtualTime = 0;
+        keyboard.restartReplay();
         if (builtInFunctionsRunner != null) {
             builtInFunctionsRunner.killAllRunningBuiltInFunctions();
         }
@@ -139,6 +162,125 @@ public class CPU {
         profiler.reset();
     }
 
+    /**
+     * Returns an immutable snapshot of the state of the cpu: the RAM (shared until
+     * its next change), the program and its program counter, the call stack,
+     * the method frames and the ranges of the memory segments.
+     * Throws ProgramException if a built-in function is running, since its
+     * state can't be captured.
+     */
+    Snapshot createSnapshot() throws ProgramException {
+        VMFunction[] functions = callStack.getFunctions();
+        for (VMFunction function : functions)
+            if (function.isBuiltIn())
+                throw new ProgramException("Can't take a snapshot while the built-in function " +
+                                           function.displayName + " is running");
+
+        return new Snapshot(this, functions);
+    }
+
+    /**
+     * Restores the state of the cpu from the given snapshot.
+     */
+    void restoreSnapshot(Snapshot snapshot) {
+        if (builtInFunctionsRunner != null)
+            builtInFunctionsRunner.killAllRunningBuiltInFunctions();
+
+        program.restoreSnapshot(snapshot.program);
+        ram.restoreContents(snapshot.ram);
+        callStack.setFunctions(snapshot.functions);
+        calculator.hideCalculator();
+
+        stackFrames = Arrays.copyOf(snapshot.stackFrames, Math.max(snapshot.stackFrames.length, 64));
+        stackFramesSize = snapshot.stackFrames.length;
+
+        MemorySegment[] restored = snapshot.getSegments(this);
+        for (int i = 0; i < restored.length; i++) {
+            restored[i].setStartAddress(snapshot.startAddresses[i]);
+            restored[i].setEnabledRange(snapshot.enabledRanges[i][0],
+                                        snapshot.enabledRanges[i][1], true);
+        }
+
+        currentInstructionAddress = snapshot.currentInstructionAddress;
+        virtualTime = snapshot.virtualTime;
+        keyboard.seekReplay(virtualTime);
+    }
+
+    /**
+     * Returns the virtual time in milliseconds.
+     */
+    public long getVirtualTime() {
+        return virtualTime;
+    }
+
+    /**
+     * Sets the virtual time in milliseconds. Replays the key events up to the
+     * new time if it's later than the current one.
+     */
+    public void setVirtualTime(long virtualTime) {
+        if (virtualTime < this.virtualTime)
+            keyboard.seekReplay(virtualTime);
+        else
+            keyboard.replay(virtualTime);
+        this.virtualTime = virtualTime;
+    }
+
+    /**
+     * Returns true if the waits of built-in functions only advance the virtual time.
+     */
+    public boolean isVirtualTimeEnabled() {
+        return virtualTimeEnabled;
+    }
+
+    /**
+     * Sets whether the waits of built-in functions only advance the virtual time
+     * (true) or also sleep for the waited duration (false).
+     */
+    public void setVirtualTimeEnabled(boolean virtualTimeEnabled) {
+        this.virtualTimeEnabled = virtualTimeEnabled;
+    }
+
+    /**
+     * Waits for the given duration in milliseconds on behalf of a built-in
+     * function: sleeps unless virtual time is enabled, then advances the virtual
+     * time and replays the key events that are due.
+     */
+    void waitFor(int duration) {
+        advanceTime(duration, !virtualTimeEnabled);
+    }
+
+    /**
+     * Waits for the given duration like waitFor, on behalf of a built-in function
+     * that waits for a key event. Once there are no more key events to replay,
+     * only the user can press a key, so sleeps even in virtual time (rather than
+     * spinning through it). Returns false without waiting if there is no GUI
+     * either, since then the key event will never come.
+     */
+    boolean waitForKey(int duration) {
+        boolean replayEnded = keyboard.getNextReplayTime() == Long.MAX_VALUE;
+        if (virtualTimeEnabled && replayEnded && program.getGUI() == null)
+            return false;
+
+        advanceTime(duration, !virtualTimeEnabled || replayEnded);
+        return true;
+    }
+
+    // Advances the time by the given duration in milliseconds (sleeping for it
+    // if sleep is true) and replays the key events that are due.
+    private void advanceTime(int duration, boolean sleep) {
+        if (sleep) {
+            try {
+                Thread.sleep(duration);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        virtualTime += duration;
+        if (virtualTime >= keyboard.getNextReplayTime())
+            keyboard.replay(virtualTime);
+    }
+
     /**
      * Returns the bus.
      */
@@ -199,7 +341,7 @@ public class CPU {
      * Returns the last instruction that was executed.
      */
     public VMEmulatorInstruction getCurrentInstruction() {
-        return currentInstruction;
+        return program.getInstructionAt(currentInstructionAddress);
     }
 
     /**
@@ -207,12 +349,14 @@ public class CPU {
      * Returns false if END command, true otherwise.
      */
     public void executeInstruction() throws ProgramException {
-        currentInstruction = program.getNextInstruction();
+        long instruction = program.nextInstruction();
 
-        if (currentInstruction == null)
+        if (instruction == VMProgram.NO_INSTRUCTION)
             throw new ProgramException("No more instructions to execute");
 
-        switch (currentInstruction.getOpCode()) {
+        currentInstructionAddress = program.getCurrentPC();
+
+        switch (VMProgram.opCode(instruction)) {
             case HVMInstructionSet.ADD_CODE:
                 add();
                 break;
@@ -242,35 +386,47 @@ public class CPU {
                 break;
 
             case HVMInstructionSet.PUSH_CODE:
-                push(currentInstruction.getArg0(), currentInstruction.getArg1());
+                push(VMProgram.arg0(instruction), VMProgram.arg1(instruction));
                 break;
             case HVMInstructionSet.POP_CODE:
-                pop(currentInstruction.getArg0(), currentInstruction.getArg1());
+                pop(VMProgram.arg0(instruction), VMProgram.arg1(instruction));
                 break;
 
             case HVMInstructionSet.GOTO_CODE:
-                goTo(currentInstruction.getArg0());
+                goTo(VMProgram.arg0(instruction));
                 break;
             case HVMInstructionSet.IF_GOTO_CODE:
-                ifGoTo(currentInstruction.getArg0());
+                ifGoTo(VMProgram.arg0(instruction));
                 break;
 
             case HVMInstructionSet.FUNCTION_CODE:
                 if (program.getCurrentPC() == program.getPreviousPC() + 1)
                     throw new ProgramException("Missing return in " + callStack.getTopFunction());
 
-                function(currentInstruction.getArg0());
+                function(VMProgram.arg0(instruction));
                 break;
             case HVMInstructionSet.RETURN_CODE:
                 returnFromFunction();
                 break;
             case HVMInstructionSet.CALL_CODE:
-                callFunction(currentInstruction.getArg0(), currentInstruction.getArg1(),
-                           currentInstruction.getStringArg(), false);
+                callFunction(program.getFunction(VMProgram.arg0(instruction)),
+                             VMProgram.arg1(instruction), false);
                 break;
         }
 
-        profiler.mark(currentInstruction);
+        if (profiler.isEnabled())
+            profiler.mark(getCurrentInstruction());
+    }
+
+    /**
+     * Returns true if the program has halted: its next instruction is a goto
+     * to itself (as in the loop that built-in functions halt in), so running
+     * it changes nothing.
+     */
+    public boolean isHalted() {
+        VMEmulatorInstruction next = program.getInstructionAt(program.getPC());
+        return next != null && next.getOpCode() == HVMInstructionSet.GOTO_CODE &&
+               next.getArg0() == program.getPC();
     }
 
     /**
@@ -417,13 +573,13 @@ public class CPU {
             pushValue(MAIN_STACK, (short)0);
         }
 
-        String functionName = currentInstruction.getStringArg();
+        VMFunction function = program.getFunctionAt(program.getCurrentPC());
 
         // adds the new function to the top of the call stack.
-        callStack.pushFunction(functionName);
+        callStack.pushFunction(function);
 
         // sets the static segment range
-        setStaticRange(functionName);
+        setStaticRange(function);
     }
 
 	/**
@@ -476,10 +632,9 @@ public class CPU {
         callStack.popFunction();
 
         // check whether there is a "calling frame"
-        if (stackFrames.size() > 0) {
+        if (stackFramesSize > 0) {
             // retrieve stack frame address of old function
-            int frameAddress = stackFrames.lastElement();
-            stackFrames.removeElementAt(stackFrames.size() - 1);
+            int frameAddress = stackFrames[--stackFramesSize];
             workingStackSegment.setStartAddress(frameAddress);
 
             // disable non relevant range of the local segment - enable only the locals
@@ -505,8 +660,8 @@ public class CPU {
 			builtInFunctionsRunner.returnToBuiltInFunction(popValue(METHOD_STACK));
 		} else if (returnAddress >= 0 && returnAddress < program.getSize()) {
             // sets the static segment range
-			if (stackFrames.size() > 0) {
-				setStaticRange(callStack.getTopFunction());
+			if (stackFramesSize > 0) {
+				setStaticRange(callStack.getTop());
 			} else {
 				staticSegment.setStartAddress(Definitions.VAR_START_ADDRESS);
 				staticSegment.setEnabledRange(Definitions.VAR_START_ADDRESS,
@@ -528,20 +683,22 @@ public class CPU {
 		// Push the arguments onto the stack
         for (short param : params)
             pushValue(METHOD_STACK, param);
-		callFunction(program.getAddress(functionName), (short)params.length, functionName, true);
+		callFunction(program.getFunction(functionName, params.length), (short)params.length, true);
 	}
 	
     /**
-     * Calls a function according to the given function number stating
-     * that the given number of arguments have been pushed onto the stack
+     * Calls the given function stating that the given number of arguments
+     * have been pushed onto the stack
 	 *
 	 * If callerIsBuiltIn then the caller is a builtIn function that called
 	 * this function through callFunctionFromBuiltIn.
-	 * If address is -1 then a native function should be looked up and called.
+	 * If the function is built-in then its native implementation is called.
      */
-    public void callFunction(short address, short numberOfArguments, String functionName, boolean callerIsBuiltIn)
+    void callFunction(VMFunction function, short numberOfArguments, boolean callerIsBuiltIn)
      throws ProgramException {
-        stackFrames.addElement(workingStackSegment.getStartAddress());
+        if (stackFramesSize == stackFrames.length)
+            stackFrames = Arrays.copyOf(stackFrames, stackFramesSize * 2);
+        stackFrames[stackFramesSize++] = workingStackSegment.getStartAddress();
         workingStackSegment.setStartAddress(getSP() + 5);
 
 		if (callerIsBuiltIn) {
@@ -560,12 +717,13 @@ public class CPU {
         argSegment.setEnabledRange(argSegment.getStartAddress(),
                                    argSegment.getStartAddress() + numberOfArguments - 1, true);
 
-		if (address == VMProgram.BUILTIN_FUNCTION_ADDRESS) {
+		short address = function.address;
+		if (function.isBuiltIn()) {
 			// Perform some actions normally done in the function() method
 			localSegment.setEnabledRange(localSegment.getStartAddress(),
 										 localSegment.getStartAddress()-1,
 										 true); // no local variables
-			callStack.pushFunction(functionName + " (built-in)");
+			callStack.pushFunction(function);
 			staticSegment.setEnabledRange(0, -1, true); // empty static segment
 			// Read parameters from the stack
 			short[] params = new short[numberOfArguments];
@@ -573,7 +731,7 @@ public class CPU {
 				params[i] = argSegment.getValueAt(i);
 			}
 			// Call the built-in implementation
-			builtInFunctionsRunner.callBuiltInFunction(functionName, params);
+			builtInFunctionsRunner.callBuiltInFunction(function, params);
 		} else if (address >= 0 || address < program.getSize()) {
 			program.setPC(address);
 			program.setPC(address); // make sure previouspc isn't pc-1
@@ -590,17 +748,16 @@ public class CPU {
     }
 
     /**
-     * Sets the static segment range according to the the given function (file) name.
+     * Sets the static segment range according to the the given function's file.
      */
-    protected void setStaticRange(String functionName) throws ProgramException {
-        int dotLocation = functionName.indexOf(".");
-        if (dotLocation == -1)
-            throw new ProgramException("Illegal function name: " + functionName);
-
-        String className = functionName.substring(0, dotLocation);
-        int[] range = program.getStaticRange(className);
-        if (range == null)
-            throw new ProgramException("Function name doesn't match class name: " + functionName);
+    void setStaticRange(VMFunction function) throws ProgramException {
+        int[] range = function.staticRange;
+        if (range == null) {
+            if (function.name.indexOf(".") == -1)
+                throw new ProgramException("Illegal function name: " + function.name);
+            else
+                throw new ProgramException("Function name doesn't match class name: " + function.name);
+        }
 
         staticSegment.setStartAddress(range[0]);
         staticSegment.setEnabledRange(range[0], range[1], true);
@@ -816,7 +973,7 @@ public class CPU {
     // Throws a program exception with the given message.
     private void error(String message) throws ProgramException {
         throw new ProgramException(message + " in " + callStack.getTopFunction() + "." +
-                                   currentInstruction.getIndexInFunction());
+                                   getCurrentInstruction().getIndexInFunction());
     }
 
     public VMProfiler getProfiler() {
@@ -834,4 +991,41 @@ public class CPU {
 
         return null;
     }
+
+    // The state of the cpu at a certain time.
+    static final class Snapshot {
+        private final VMProgram.Snapshot program;
+        private final short[] ram;
+        private final VMFunction[] functions;
+        private final int[] stackFrames;
+        private final int[] startAddresses;
+        private final int[][] enabledRanges;
+        private final short currentInstructionAddress;
+        private final long virtualTime;
+
+        private Snapshot(CPU cpu, VMFunction[] functions) {
+            this.functions = functions;
+            program = cpu.program.createSnapshot();
+            ram = cpu.ram.shareContents();
+            currentInstructionAddress = cpu.currentInstructionAddress;
+            virtualTime = cpu.virtualTime;
+
+            stackFrames = Arrays.copyOf(cpu.stackFrames, cpu.stackFramesSize);
+
+            MemorySegment[] captured = getSegments(cpu);
+            startAddresses = new int[captured.length];
+            enabledRanges = new int[captured.length][];
+            for (int i = 0; i < captured.length; i++) {
+                startAddresses[i] = captured[i].getStartAddress();
+                enabledRanges[i] = captured[i].getEnabledRange();
+            }
+        }
+
+        // Returns the memory segments whose state is kept in the snapshot.
+        private static MemorySegment[] getSegments(CPU cpu) {
+            return new MemorySegment[]{cpu.workingStackSegment, cpu.staticSegment,
+                                       cpu.localSegment, cpu.argSegment,
+                                       cpu.thisSegment, cpu.thatSegment};
+        }
+    }
 }
@@ -21,12 +21,15 @@ import Hack.ComputerParts.*;
 import java.util.*;
 
 /**
- * A call stack. Holds a vector of called function names.
+ * A call stack. Holds an array of called functions.
  */
 public class CallStack extends ComputerPart {
 
-    // the vector of function names.
-    private Vector names;
+    // the called functions, from bottom to top
+    private VMFunction[] functions;
+
+    // the number of functions in the stack
+    private int size;
 
     // the stack gui
     private CallStackGUI gui;
@@ -36,7 +39,7 @@ public class CallStack extends ComputerPart {
      */
     public CallStack(CallStackGUI gui) {
         super(gui != null);
-        names = new Vector();
+        functions = new VMFunction[16];
         this.gui = gui;
     }
 
@@ -44,35 +47,60 @@ public class CallStack extends ComputerPart {
      * Returns the name of the function at the top of the stack.
      */
     public String getTopFunction() {
-        return (names.size() > 0 ? (String)names.elementAt(names.size() - 1) : "");
+        return (size > 0 ? functions[size - 1].displayName : "");
     }
 
     /**
-     * Adds the given function name at the top of the stack.
+     * Returns the function at the top of the stack, or null if it's empty.
      */
-    public void pushFunction(String functionName) {
-        names.addElement(functionName);
-        if (displayChanges)
-            gui.setContents(names);
+    VMFunction getTop() {
+        return (size > 0 ? functions[size - 1] : null);
+    }
+
+    /**
+     * Adds the given function at the top of the stack.
+     */
+    void pushFunction(VMFunction function) {
+        if (size == functions.length)
+            functions = Arrays.copyOf(functions, size * 2);
+        functions[size++] = function;
+        refreshGUI();
     }
 
     /**
      * Removes the function at the top of the stack.
      */
-    public void popFunction() {
-        if (names.size() > 0) {
-            names.removeElementAt(names.size() - 1);
-            if (displayChanges)
-                gui.setContents(names);
+    void popFunction() {
+        if (size > 0) {
+            functions[--size] = null;
+            refreshGUI();
         }
     }
 
+    /**
+     * Returns the functions in the stack, from bottom to top.
+     */
+    VMFunction[] getFunctions() {
+        return Arrays.copyOf(functions, size);
+    }
+
+    /**
+     * Replaces the contents of the stack with the given functions,
+     * from bottom to top.
+     */
+    void setFunctions(VMFunction[] stackFunctions) {
+        functions = Arrays.copyOf(stackFunctions, Math.max(stackFunctions.length, 16));
+        size = stackFunctions.length;
+        refreshGUI();
+    }
+
     /**
      * Resets the contents of the computer part.
      */
     public void reset() {
         super.reset();
-        names.removeAllElements();
+        Arrays.fill(functions, 0, size, null);
+        size = 0;
     }
 
     /**
@@ -83,7 +111,11 @@ public class CallStack extends ComputerPart {
     }
 
     public void refreshGUI() {
-        if (displayChanges)
+        if (displayChanges) {
+            Vector names = new Vector(size);
+            for (int i = 0; i < size; i++)
+                names.addElement(functions[i].displayName);
             gui.setContents(names);
+        }
     }
 }
@@ -46,6 +46,16 @@ import java.io.File;
  * temp[i] - the contents of the i'th element in the Temp segment (short)
  * currentFunction - the name of the current function (String) - READ ONLY
  * line - <function name>.<index in function> (String) - READ ONLY
+ * clock - the virtual time in milliseconds that built-in functions waited (long)
+ *
+ * Recognizes the following commands:
+ * load <VM file or directory name> - loads the given program
+ * vmstep - executes one VM command
+ * keyboard <file name> - loads key events to replay at given virtual times (see
+ *                        Keyboard.loadReplay); the virtual time is advanced by
+ *                        the waits of built-in functions
+ * snapshot <name> - saves the state of the emulator under the given name
+ * restore <name> - restores the state that was saved under the given name
  */
 public class VMEmulator extends HackSimulator implements ComputerPartErrorEventListener {
 
@@ -60,11 +70,13 @@ public class VMEmulator extends HackSimulator implements ComputerPartErrorEventL
     private static final String VAR_TEMP = "temp";
     private static final String VAR_LINE = "line";
     private static final String VAR_CURRENT_FUNCTION = "currentFunction";
+    private static final String VAR_CLOCK = "clock";
 
     // Commands
     private static final String COMMAND_VMSTEP = "vmstep";
     private static final String COMMAND_ROMLOAD = "load";
     private static final String COMMAND_SETVAR = "set";
+    private static final String COMMAND_KEYBOARD = "keyboard";
 
     // The CPU
     private CPU cpu;
@@ -159,7 +171,7 @@ public class VMEmulator extends HackSimulator implements ComputerPartErrorEventL
         Bus bus = new Bus(null);
         bus.reset();
 
-        cpu = new CPU(program, ram, callStack, calculator, bus, stackSegment,
+        cpu = new CPU(program, ram, keyboard, callStack, calculator, bus, stackSegment,
 					  workingStackSegment, staticSegment, localSegment,
 					  argSegment, thisSegment, thatSegment, tempSegment,
 					  INITIAL_BUILTIN_DIR);
@@ -271,7 +283,7 @@ public class VMEmulator extends HackSimulator implements ComputerPartErrorEventL
         Bus bus = new Bus(gui.getBus());
         bus.reset();
 
-        cpu = new CPU(program, ram, callStack, calculator, bus, stackSegment,
+        cpu = new CPU(program, ram, keyboard, callStack, calculator, bus, stackSegment,
 					  workingStackSegment, staticSegment, localSegment,
 					  argSegment, thisSegment, thatSegment, tempSegment,
 					  INITIAL_BUILTIN_DIR);
@@ -286,7 +298,7 @@ public class VMEmulator extends HackSimulator implements ComputerPartErrorEventL
         vars = new String[]{VAR_SP, VAR_CURRENT_FUNCTION, VAR_LINE, VAR_RAM + "[]",
                             VAR_LOCAL, VAR_LOCAL + "[]", VAR_ARGUMENT, VAR_ARGUMENT + "[]",
                             VAR_THIS, VAR_THIS + "[]", VAR_THAT, VAR_THAT + "[]",
-                            VAR_TEMP + "[]", VAR_RAM + "[]"};
+                            VAR_TEMP + "[]", VAR_RAM + "[]", VAR_CLOCK};
     }
 
     public String getName() {
@@ -310,6 +322,8 @@ public class VMEmulator extends HackSimulator implements ComputerPartErrorEventL
             return String.valueOf(cpu.getSP());
         else if (varName.equals(VAR_CURRENT_FUNCTION))
             return cpu.getCallStack().getTopFunction();
+        else if (varName.equals(VAR_CLOCK))
+            return String.valueOf(cpu.getVirtualTime());
         else if (varName.equals(VAR_LINE))
             return String.valueOf(cpu.getCallStack().getTopFunction() + "." +
                                   cpu.getCurrentInstruction().getIndexInFunction());
@@ -385,6 +399,13 @@ public class VMEmulator extends HackSimulator implements ComputerPartErrorEventL
             }
             else if (varName.equals(VAR_CURRENT_FUNCTION))
                 throw new VariableException("Read Only variable", varName);
+            else if (varName.equals(VAR_CLOCK)) {
+                long time = Long.parseLong(value);
+                if (time < 0)
+                    throw new VariableException("'" + value + "' is not a legal value for variable",
+                                                varName);
+                cpu.setVirtualTime(time);
+            }
             else if (varName.equals(VAR_LINE)) {
                 numValue = Integer.parseInt(value);
                 if (numValue >= cpu.getProgram().getSize())
@@ -436,6 +457,26 @@ public class VMEmulator extends HackSimulator implements ComputerPartErrorEventL
         }
     }
 
+    /**
+     * Skips the given vmstep commands if the program has halted (see
+     * CPU.isHalted) and isn't being profiled. Only the first step is executed,
+     * since the rest don't change the state.
+     */
+    public boolean skipHaltedLoop(String[][] commands, int times) throws ProgramException {
+        for (String[] command : commands)
+            if (command.length != 1 || !command[0].equals(COMMAND_VMSTEP))
+                return false;
+
+        if (commands.length == 0 || !cpu.isHalted() || cpu.getProfiler().isEnabled())
+            return false;
+
+        if (animationMode != HackController.NO_DISPLAY_CHANGES)
+            hideHighlights();
+
+        cpu.executeInstruction();
+        return true;
+    }
+
     /**
      * Executes the given simulator command (given in args[] style).
      * Throws CommandException if the command is not legal.
@@ -472,11 +513,42 @@ public class VMEmulator extends HackSimulator implements ComputerPartErrorEventL
                 cpu.getProgram().loadProgram(fileName);
                 cpu.boot();
                 break;
+            case COMMAND_KEYBOARD:
+                if (command.length != 2)
+                    throw new CommandException("Illegal number of arguments to command", command);
+
+                keyboard.loadReplay(new File(workingDir, command[1]).getPath());
+                keyboard.replay(cpu.getVirtualTime());
+                break;
+            case COMMAND_SNAPSHOT:
+            case COMMAND_RESTORE:
+                doSnapshotCommand(command);
+                break;
             default:
                 throw new CommandException("Unknown simulator command", command);
         }
     }
 
+    /**
+     * Returns an immutable snapshot of the RAM, the program and its program
+     * counter, the call stack and the ranges of the memory segments.
+     * The RAM is shared with the snapshot and copied only when it is next changed.
+     * Throws ProgramException if a built-in function is running.
+     */
+    public Object createSnapshot() throws ProgramException {
+        return cpu.createSnapshot();
+    }
+
+    /**
+     * Restores the state of the emulator from the given snapshot.
+     */
+    public void restoreSnapshot(Object snapshot) throws ProgramException {
+        if (!(snapshot instanceof CPU.Snapshot))
+            throw new ProgramException("Not a " + getName() + " snapshot");
+
+        cpu.restoreSnapshot((CPU.Snapshot)snapshot);
+    }
+
     // Hides all highlights in GUIs.
     private void hideHighlights() {
         cpu.getRAM().hideHighlight();
@@ -630,6 +702,31 @@ public class VMEmulator extends HackSimulator implements ComputerPartErrorEventL
         return cpu.getProfiler();
     }
 
+    @Override
+    public Memory getMemory() {
+        return cpu.getRAM();
+    }
+
+    @Override
+    public int getVariableAddress(String varName) {
+        if (varName.equals(VAR_LOCAL))
+            return Definitions.LOCAL_POINTER_ADDRESS;
+        else if (varName.equals(VAR_ARGUMENT))
+            return Definitions.ARG_POINTER_ADDRESS;
+        else if (varName.equals(VAR_THIS))
+            return Definitions.THIS_POINTER_ADDRESS;
+        else if (varName.equals(VAR_THAT))
+            return Definitions.THAT_POINTER_ADDRESS;
+        else if (!varName.startsWith(VAR_RAM + "["))
+            return -1;
+
+        try {
+            return getRamIndex(varName);
+        } catch (VariableException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
     @Override
     public Breakpoint genStepOverBreakpoint() {
         final String address = cpu.getSPIfStepOver();
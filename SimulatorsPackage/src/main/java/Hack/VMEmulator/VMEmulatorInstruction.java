@@ -27,6 +27,10 @@ public class VMEmulatorInstruction extends HVMInstruction {
     // The index of the instruction in its containing function.
     private short indexInFunction;
 
+    // The id of the called function in the program's function table
+    // (call instructions only).
+    private short functionIndex = -1;
+
     /**
      * Constructs a new instruction with two arguments and the index in function.
      */
@@ -59,6 +63,21 @@ public class VMEmulatorInstruction extends HVMInstruction {
         return indexInFunction;
     }
 
+    /**
+     * Returns the id of the called function in the program's function
+     * table, or -1 if this is not a call instruction.
+     */
+    public short getFunctionIndex() {
+        return functionIndex;
+    }
+
+    /**
+     * Sets the id of the called function in the program's function table.
+     */
+    public void setFunctionIndex(short functionIndex) {
+        this.functionIndex = functionIndex;
+    }
+
     @Override
     public String toString() {
         return "VMEmulatorInstruction{" + indexInFunction + ": " + super.toString() + '}';
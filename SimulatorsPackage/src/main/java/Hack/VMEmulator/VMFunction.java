@@ -0,0 +1,79 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+package Hack.VMEmulator;
+
+/**
+ * A function that a VM program may call: either a function of the program's VM
+ * code or a built-in function. Holds what the CPU needs in order to call the
+ * function and return from it, so that no names are looked up on calls and returns.
+ * Built-in functions are identified by their name and number of arguments.
+ */
+class VMFunction {
+
+    // The id of the function - its index in the program's function table
+    final short id;
+
+    // The name of the function
+    final String name;
+
+    // The address of the function, or VMProgram.BUILTIN_FUNCTION_ADDRESS
+    final short address;
+
+    // The number of arguments of a built-in function (-1 for VM functions)
+    final short numberOfArgs;
+
+    // The start and end addresses of the static segment of the function's class
+    // (null if there is none)
+    final int[] staticRange;
+
+    // The name shown in the call stack
+    final String displayName;
+
+    // The bound implementation of a built-in function (set on its first call)
+    BuiltInFunction implementation;
+
+    /**
+     * Constructs a new function of the program's VM code.
+     */
+    VMFunction(short id, String name, short address, int[] staticRange) {
+        this.id = id;
+        this.name = name;
+        this.address = address;
+        this.numberOfArgs = -1;
+        this.staticRange = staticRange;
+        this.displayName = name;
+    }
+
+    /**
+     * Constructs a new built-in function with the given number of arguments.
+     */
+    VMFunction(short id, String name, short numberOfArgs) {
+        this.id = id;
+        this.name = name;
+        this.address = VMProgram.BUILTIN_FUNCTION_ADDRESS;
+        this.numberOfArgs = numberOfArgs;
+        this.staticRange = null;
+        this.displayName = name + " (built-in)";
+    }
+
+    /**
+     * Returns true if this is a built-in function.
+     */
+    boolean isBuiltIn() {
+        return address == VMProgram.BUILTIN_FUNCTION_ADDRESS;
+    }
+}
@@ -27,10 +27,11 @@ import Hack.Utilities.HackFileFilter;
 import Hack.VirtualMachine.HVMInstructionSet;
 
 import java.io.*;
-import java.util.Hashtable;
-import java.util.NoSuchElementException;
-import java.util.StringTokenizer;
-import java.util.Vector;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * A list of VM instructions, with a program counter.
@@ -40,6 +41,9 @@ class VMProgram extends InteractiveComputerPart implements ProgramEventListener
 	// pseudo address for returning to built-in functions
 	static final short BUILTIN_FUNCTION_ADDRESS = -1;
 
+	// returned by nextInstruction when the PC is past the end of the program
+	static final long NO_INSTRUCTION = -1;
+
 	// Possible values for the current status - has the user allowed
 	// access to built-in vm functions?
 	private static final int BUILTIN_ACCESS_UNDECIDED = 0;
@@ -73,14 +77,25 @@ class VMProgram extends InteractiveComputerPart implements ProgramEventListener
     private Hashtable<String, Short> functions;
     private short infiniteLoopForBuiltInsAddress;
 
-    // The largest static variable index found in the current file.
-    private int largestStaticIndex;
+    // The executable form of the program: one packed word per instruction
+    // (see packInstruction). Built when the program is loaded; the instructions
+    // array is kept for the GUI and for error messages.
+    private long[] code;
+
+    // Ids of the functions of the program, by name, and of the built-in
+    // functions that it calls, by name and number of arguments
+    private HashMap<String, Short> functionIds;
+
+    // The functions of the program and the built-in functions it calls, by id.
+    // Replaced rather than changed when a function is added.
+    private VMFunction[] functionTable;
+
+    // The functions of the program, by the address of their function command
+    private VMFunction[] functionsByAddress;
 
 	// Has the user allowed access to built-in vm functions?
 	private int builtInAccessStatus;
 
-	// Is the program currently being read in the middle of a /* */ comment?
-	private boolean isSlashStar;
 
     /**
      * Constructs a new empty program with the given GUI.
@@ -104,9 +119,10 @@ class VMProgram extends InteractiveComputerPart implements ProgramEventListener
     /**
      * Creates a vm program. If the given file is a dir, creates a program composed of the vm
      * files in the dir.
-     * The vm files are scanned twice: in the first scan a symbol table (that maps
-     * function & label names into addresses) is built. In the second scan, the instructions
-     * array is built.
+     * Each vm file is parsed once (in parallel if there are several, or taken from the
+     * cache of parsed files) into instructions and functions & label names with addresses
+     * relative to the file. The files are then linked: first the symbol table (that maps
+     * function & label names into addresses) is built, then the instructions array.
      * Throws ProgramException if an error occurs while loading the program.
      */
     public void loadProgram(String fileName) throws ProgramException {
@@ -127,29 +143,31 @@ class VMProgram extends InteractiveComputerPart implements ProgramEventListener
         if (displayChanges)
             gui.showMessage("Loading...");
 
-        // First scan
-		staticRange.clear();
-		functions.clear();
+        VMProgramFile[] programFiles = parseFiles(files);
+
+        // Build the symbol table
+		staticRange = new Hashtable<>();
+		functions = new Hashtable<>();
+		functionIds = new HashMap<>();
 		builtInAccessStatus = BUILTIN_ACCESS_UNDECIDED;
-        Hashtable<String, Short> symbols = new Hashtable<>();
+        HashMap<String, Short> labels = new HashMap<>();
         nextPC = 0;
-        for (File f : files) {
-            String name = f.getName();
-            String className = fileNameToClassName(name);
+        for (VMProgramFile f : programFiles) {
+            String className = fileNameToClassName(f.name);
             // put some dummy into static range - just to tell the function
             // getAddress in the second pass which classes exist
             staticRange.put(className, true);
             try {
-                updateSymbolTable(f, symbols, functions);
+                updateSymbolTable(f, labels);
             } catch (ProgramException pe) {
                 if (displayChanges)
                     gui.hideMessage();
-                throw new ProgramException(name + ": " + pe.getMessage());
+                throw new ProgramException(f.name + ": " + pe.getMessage());
             }
         }
 		boolean addCallBuiltInSysInit = false;
-		if ((file.isDirectory() || symbols.get("Main.main") != null) &&
-			symbols.get("Sys.init") == null) {
+		if ((file.isDirectory() || functions.get("Main.main") != null) &&
+			functions.get("Sys.init") == null) {
 			// If the program is in multiple files or there's a Main.main
 			// function it is assumed that it should be run by calling Sys.init.
 			// If no Sys.init is found, add an invisible line with a call
@@ -161,30 +179,26 @@ class VMProgram extends InteractiveComputerPart implements ProgramEventListener
 
         instructions = new VMEmulatorInstruction[nextPC+4];
 
-        // Second scan
+        // Build the instructions
         nextPC = 0;
         int currentStaticIndex = Definitions.VAR_START_ADDRESS;
-        for (File f : files) {
-            String name = f.getName();
-            String className = fileNameToClassName(name);
-
-            largestStaticIndex = -1;
+        for (VMProgramFile f : programFiles) {
             int[] range = new int[2];
             range[0] = currentStaticIndex;
 
             try {
                 // functions is not passed as an argument since it is accessed
                 // through getAddress()
-                buildProgram(f, symbols);
+                buildProgram(f, labels);
             } catch (ProgramException pe) {
                 if (displayChanges)
                     gui.hideMessage();
-                throw new ProgramException(name + ": " + pe.getMessage());
+                throw new ProgramException(f.name + ": " + pe.getMessage());
             }
 
-            currentStaticIndex += largestStaticIndex + 1;
+            currentStaticIndex += f.largestStaticIndex + 1;
             range[1] = currentStaticIndex - 1;
-            staticRange.put(className, range);
+            staticRange.put(f.className, range);
         }
 		instructionsLength = visibleInstructionsLength = nextPC;
 		if (builtInAccessStatus == BUILTIN_ACCESS_AUTHORIZED) {
@@ -226,6 +240,7 @@ class VMProgram extends InteractiveComputerPart implements ProgramEventListener
 											  getAddress("Sys.init"), (short)0,
 											  ++indexInInvisibleCode);
 				instructions[nextPC].setStringArg("Sys.init");
+				instructions[nextPC].setFunctionIndex(getFunctionId("Sys.init", 0, BUILTIN_FUNCTION_ADDRESS));
 				startAddress = nextPC;
 				nextPC++;
 			}
@@ -238,13 +253,16 @@ class VMProgram extends InteractiveComputerPart implements ProgramEventListener
 		}
 
 		if (!addCallBuiltInSysInit) {
-            Short sysInitAddress = symbols.get("Sys.init");
+            Short sysInitAddress = functions.get("Sys.init");
             if (sysInitAddress == null) // Single file, no Sys.init - start at 0
                 startAddress = 0;
             else // Implemented Sys.init - start there
                 startAddress = sysInitAddress;
         }
 
+        buildFunctionTable();
+        buildCode();
+
         if (displayChanges)
             gui.hideMessage();
 
@@ -270,294 +288,258 @@ class VMProgram extends InteractiveComputerPart implements ProgramEventListener
         return name.substring(0, index);
     }
 
-    // Scans the given file and creates symbols for its functions & label names.
-    private void updateSymbolTable(File file, Hashtable<String, Short> symbols, Hashtable<String, Short> functions) throws ProgramException {
-        final BufferedReader reader = openFile(file);
-
-        String line;
-        String currentFunction = null;
-        String label;
-        int lineNumber = 0;
-
-		isSlashStar = false;
-        try {
-            while ((line = unCommentLine(reader.readLine())) != null) {
-                lineNumber++;
-                if (!line.trim().equals("")) {
-                    if (line.startsWith("function ")) {
-                        StringTokenizer tokenizer = new StringTokenizer(line);
-                        tokenizer.nextToken();
-                        currentFunction = tokenizer.nextToken();
-                        if (symbols.containsKey(currentFunction))
-                            throw new ProgramException("subroutine " + currentFunction +
-                                                       " already exists");
-                        functions.put(currentFunction, nextPC);
-                        symbols.put(currentFunction, nextPC);
-                    }
-                    else if (line.startsWith("label ")) {
-                        StringTokenizer tokenizer = new StringTokenizer(line);
-                        tokenizer.nextToken();
-                        label = currentFunction + "$" + tokenizer.nextToken();
-                        symbols.put(label, (short) (nextPC + 1));
-                    }
-
-                    nextPC++;
-                }
-            }
-            reader.close();
-        } catch (IOException e) {
-            throw new ProgramException("Error while reading from file");
-        } catch (NoSuchElementException e) {
-            throw new ProgramException("In line " + lineNumber + ": unexpected end of command");
-        }
-		if (isSlashStar) {
-			throw new ProgramException("Unterminated /* comment at end of file");
-		}
-    }
+    // Parses the given files, in parallel on the common fork-join pool if there are
+    // several.
+    static VMProgramFile[] parseFiles(File[] files) throws ProgramException {
+        VMProgramFile[] result = new VMProgramFile[files.length];
 
-    private BufferedReader openFile(File file) throws ProgramException {
-        try {
-            return new BufferedReader(new FileReader(file.getAbsolutePath()));
-        } catch (FileNotFoundException e) {
-            throw new ProgramException("file " + file.getName() + " does not exist");
+        if (files.length == 1) {
+            result[0] = VMProgramFile.get(files[0]);
+            return result;
         }
-    }
 
-    // Scans the given file and creates symbols for its functions & label names.
-    private void buildProgram(File file, Hashtable<String, Short> symbols) throws ProgramException {
-
-        final BufferedReader reader = openFile(file);
-
-        int lineNumber = 0;
-        String line;
-        String currentFunction = null;
-        short indexInFunction = 0;
-        short pc = nextPC;
-        final HVMInstructionSet instructionSet = HVMInstructionSet.getInstance();
-
-		isSlashStar = false;
-        try {
-            while ((line = unCommentLine(reader.readLine())) != null) {
-                lineNumber++;
-
-                if (!line.trim().equals("")) {
-                    StringTokenizer tokenizer = new StringTokenizer(line);
-                    final String instructionName = tokenizer.nextToken();
-
-                    final byte opCode = instructionSet.instructionStringToCode(instructionName);
-                    if (opCode == HVMInstructionSet.UNKNOWN_INSTRUCTION)
-                        throw new ProgramException("in line " + lineNumber +
-                                                   ": unknown instruction - " + instructionName);
-
-                    switch (opCode) {
-                        case HVMInstructionSet.PUSH_CODE:
-                        case HVMInstructionSet.POP_CODE:
-                            buildPushPop(opCode, pc, indexInFunction, tokenizer, line, lineNumber);
-                            break;
-
-                        case HVMInstructionSet.FUNCTION_CODE:
-                            currentFunction = buildFunction(lineNumber, line, pc, tokenizer);
-                            indexInFunction = 0;
-                            break;
-
-                        case HVMInstructionSet.CALL_CODE:
-                            buildCall(lineNumber, line, indexInFunction, pc, tokenizer);
-                            break;
-
-                        case HVMInstructionSet.LABEL_CODE:
-                            buildLabel(currentFunction, pc, tokenizer);
-                            indexInFunction--; // since Label is not a "physical" instruction
-                            break;
-
-                        case HVMInstructionSet.GOTO_CODE:
-                            buildGoto(symbols, lineNumber, line, currentFunction, indexInFunction, pc, tokenizer);
-                            break;
-
-                        case HVMInstructionSet.IF_GOTO_CODE:
-                            buildIfGoto(symbols, lineNumber, line, currentFunction, indexInFunction, pc, tokenizer);
-                            break;
-
-                        // All other instructions have either 1 or 0 arguments and require no
-                        // special treatment
-                        default:
-                            buildOther(lineNumber, line, indexInFunction, opCode, pc, tokenizer);
-                            break;
-                    }
-
-                    // check end of command
-                    if (tokenizer.hasMoreTokens())
-                        throw new ProgramException("in line " + lineNumber +
-                                                   ": Too many arguments - " + line);
-
-                    pc++;
-                    indexInFunction++;
+        HVMInstructionSet.getInstance(); // create the singleton before the parsers use it
+
+        List<Callable<VMProgramFile>> tasks = new ArrayList<>(files.length);
+        for (final File f : files) {
+            tasks.add(new Callable<VMProgramFile>() {
+                public VMProgramFile call() {
+                    return VMProgramFile.get(f);
                 }
+            });
+        }
 
-                nextPC = pc;
+        List<Future<VMProgramFile>> parsed = ForkJoinPool.commonPool().invokeAll(tasks);
+        for (int i = 0; i < files.length; i++) {
+            try {
+                result[i] = parsed.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new ProgramException(files[i].getName() + ": Error while reading from file");
             }
-            reader.close();
-        } catch (IOException ioe) {
-            throw new ProgramException("Error while reading from file");
-        } catch (NumberFormatException nfe) {
-            throw new ProgramException("Illegal 16-bit value");
-        } catch (NoSuchElementException nsee) {
-            throw new ProgramException("In line " + lineNumber + ": unexpected end of command");
         }
-		if (isSlashStar) {
-			throw new ProgramException("Unterminated /* comment at end of file");
-		}
+
+        return result;
     }
 
-    private void buildPushPop(byte opCode, short pc, short indexInFunction, StringTokenizer tokenizer, String line,
-                              int lineNumber) throws ProgramException {
-        final short arg0 = translateSegment(tokenizer.nextToken(), lineNumber);
-        final short arg1 = Short.parseShort(tokenizer.nextToken());
+    // Adds the functions & label names of the given file to the symbol table,
+    // at the current address.
+    private void updateSymbolTable(VMProgramFile file, HashMap<String, Short> labels)
+            throws ProgramException {
+        for (int i = 0; i < file.functionNames.size(); i++) {
+            String function = file.functionNames.get(i);
+            if (functions.containsKey(function))
+                throw new ProgramException("subroutine " + function + " already exists");
+            functions.put(function, (short) (nextPC + file.functionAddresses.get(i)));
+            functionIds.put(function, (short) functionIds.size());
+        }
 
-        if (arg1 < 0)
-            throw new ProgramException("in line " + lineNumber + ": Illegal argument - " + line);
+        if (file.symbolError != null)
+            throw file.symbolError;
 
-        if (arg0 == HVMInstructionSet.STATIC_SEGMENT_CODE && arg1 > largestStaticIndex)
-            largestStaticIndex = arg1;
+        for (Map.Entry<String, Integer> label : file.labels.entrySet())
+            labels.put(label.getKey(), (short) (nextPC + label.getValue()));
 
-        instructions[pc] = new VMEmulatorInstruction(opCode, arg0, arg1, indexInFunction);
+        nextPC += file.size;
     }
 
-    private short translateSegment(String segment, int lineNumber) throws ProgramException {
-        byte code = HVMInstructionSet.getInstance().segmentVMStringToCode(segment);
-        if (code == HVMInstructionSet.UNKNOWN_SEGMENT)
-            throw new ProgramException("in line " + lineNumber + ": Illegal memory segment - " + segment);
+    // Copies the instructions of the given file into the program at the current
+    // address, and builds the instructions that refer to functions & labels.
+    private void buildProgram(VMProgramFile file, HashMap<String, Short> labels)
+            throws ProgramException {
+        System.arraycopy(file.instructions, 0, instructions, nextPC,
+                         Math.min(file.size, file.instructions.length));
+
+        for (VMProgramFile.LinkEntry entry : file.linkEntries) {
+            final short pc = (short) (nextPC + entry.index);
+            final short arg0;
+
+            if (entry.opCode == HVMInstructionSet.CALL_CODE) {
+                try {
+                    arg0 = getAddress(entry.name);
+                } catch (ProgramException pe) {
+                    throw new ProgramException("in line " + entry.lineNumber + ": " + pe.getMessage());
+                }
 
-        return code;
-    }
+                if (entry.error != null)
+                    throw entry.error;
 
-    private String buildFunction(int lineNumber, String line, short pc, StringTokenizer tokenizer)
-            throws ProgramException {
-        final String currentFunction = tokenizer.nextToken();
-        final short arg0 = Short.parseShort(tokenizer.nextToken());
+                if (arg0 < 0 && arg0 != BUILTIN_FUNCTION_ADDRESS)
+                    throw new ProgramException("in line " + entry.lineNumber + ": Illegal argument - " +
+                                               entry.line);
 
-        if (arg0 < 0)
-            throw new ProgramException("in line " + lineNumber + ": Illegal argument - " + line);
+                instructions[pc] = new VMEmulatorInstruction(HVMInstructionSet.CALL_CODE, arg0,
+                                                             entry.numberOfArgs, entry.indexInFunction);
+                instructions[pc].setFunctionIndex(getFunctionId(entry.name, entry.numberOfArgs, arg0));
+            }
+            else {
+                final Short labelAddress = labels.get(entry.name);
+                if (labelAddress == null)
+                    throw new ProgramException("in line " + entry.lineNumber + ": Unknown label - " +
+                                               entry.name);
 
-        instructions[pc] = new VMEmulatorInstruction(HVMInstructionSet.FUNCTION_CODE, arg0, (short) 0);
-        instructions[pc].setStringArg(currentFunction);
-        return currentFunction;
-    }
+                if (labelAddress < 0)
+                    throw new ProgramException("in line " + entry.lineNumber + ": Illegal argument - " +
+                                               entry.line);
 
-    private void buildCall(int lineNumber, String line, short indexInFunction, short pc, StringTokenizer tokenizer)
-            throws ProgramException {
-        final String functionName = tokenizer.nextToken();
-        final short arg0;
-        try {
-            arg0 = getAddress(functionName);
-        } catch (ProgramException pe) {
-            throw new ProgramException("in line " + lineNumber + ": " + pe.getMessage());
-        }
+                if (entry.error != null)
+                    throw entry.error;
 
-        final short arg1 = Short.parseShort(tokenizer.nextToken());
+                arg0 = labelAddress;
+                instructions[pc] = new VMEmulatorInstruction(entry.opCode, arg0, entry.indexInFunction);
+            }
 
-        if (arg1 < 0 || ((arg0 < 0) && arg0 != BUILTIN_FUNCTION_ADDRESS))
-            throw new ProgramException("in line " + lineNumber + ": Illegal argument - " + line);
+            instructions[pc].setStringArg(entry.name);
+        }
 
-        instructions[pc] = new VMEmulatorInstruction(HVMInstructionSet.CALL_CODE, arg0, arg1, indexInFunction);
-        instructions[pc].setStringArg(functionName);
-    }
+        if (file.buildError != null)
+            throw file.buildError;
 
-    private void buildLabel(String currentFunction, short pc, StringTokenizer tokenizer) {
-        final String label = currentFunction + "$" + tokenizer.nextToken();
-        instructions[pc] = new VMEmulatorInstruction(HVMInstructionSet.LABEL_CODE, (short) (-1));
-        instructions[pc].setStringArg(label);
+        nextPC += file.size;
     }
 
-    private void buildGoto(Hashtable<String, Short> symbols, int lineNumber, String line, String currentFunction,
-                           short indexInFunction, short pc, StringTokenizer tokenizer)
-            throws ProgramException {
-        final String label = currentFunction + "$" + tokenizer.nextToken();
-        final Short labelAddress = symbols.get(label);
-        if (labelAddress == null)
-            throw new ProgramException("in line " + lineNumber + ": Unknown label - " + label);
+    /**
+     * Returns the static variable address range of the given class name, in the
+     * form of a 2-elements array {startAddress, endAddress}.
+     * If unknown class name, returns null.
+     */
+    int[] getStaticRange(String className) {
+        return (int[])staticRange.get(className);
+    }
 
-        if (labelAddress < 0)
-            throw new ProgramException("in line " + lineNumber + ": Illegal argument - " + line);
+    /**
+     * Returns the size of the program.
+     */
+    public int getSize() {
+        return instructionsLength;
+    }
 
-        instructions[pc] = new VMEmulatorInstruction(HVMInstructionSet.GOTO_CODE, labelAddress, indexInFunction);
-        instructions[pc].setStringArg(label);
+    /**
+     * Returns the function with the given id (the function index of a call command).
+     */
+    VMFunction getFunction(short id) {
+        return functionTable[id];
     }
 
-    private void buildIfGoto(Hashtable<String, Short> symbols, int lineNumber, String line, String currentFunction,
-                             short indexInFunction, short pc, StringTokenizer tokenizer)
-            throws ProgramException {
-        final String label = currentFunction + "$" + tokenizer.nextToken();
-        final Short labelAddress = symbols.get(label);
-        if (labelAddress == null)
-            throw new ProgramException("in line " + lineNumber + ": Unknown label - " + label);
+    /**
+     * Returns the function whose function command is at the given address,
+     * or null if there is none.
+     */
+    VMFunction getFunctionAt(short address) {
+        return address >= 0 && address < functionsByAddress.length ? functionsByAddress[address] : null;
+    }
 
-        if (labelAddress < 0)
-            throw new ProgramException("in line " + lineNumber + ": Illegal argument - " + line);
+    /**
+     * Returns the function with the given name, or the built-in function with
+     * the given name and number of arguments (which is added to the function
+     * table if the program doesn't call it).
+     * Throws ProgramException if there is no such function.
+     */
+    VMFunction getFunction(String functionName, int numberOfArgs) throws ProgramException {
+        Short id = functionIds.get(functionName);
+        if (id == null)
+            id = functionIds.get(builtInFunctionKey(functionName, numberOfArgs));
+        if (id != null)
+            return functionTable[id];
+
+        short address = getAddress(functionName);
+
+        // A built-in function that is called only by built-in functions:
+        // replace the tables, since they may be shared with snapshots.
+        functionIds = new HashMap<>(functionIds);
+        id = getFunctionId(functionName, numberOfArgs, address);
+        functionTable = Arrays.copyOf(functionTable, functionIds.size());
+        functionTable[id] = new VMFunction(id, functionName, (short)numberOfArgs);
+        return functionTable[id];
+    }
+
+    // Returns the id of the given function, which is called with the given
+    // number of arguments and is at the given address. A new id is given
+    // to a built-in function that wasn't called before with this number of
+    // arguments.
+    private short getFunctionId(String functionName, int numberOfArgs, short address) {
+        if (address != BUILTIN_FUNCTION_ADDRESS)
+            return functionIds.get(functionName);
+
+        String key = builtInFunctionKey(functionName, numberOfArgs);
+        Short id = functionIds.get(key);
+        if (id == null) {
+            id = (short)functionIds.size();
+            functionIds.put(key, id);
+        }
+        return id;
+    }
 
-        instructions[pc] = new VMEmulatorInstruction(HVMInstructionSet.IF_GOTO_CODE, labelAddress, indexInFunction);
-        instructions[pc].setStringArg(label);
+    // Returns the key of the given built-in function in functionIds (the name
+    // of a VM function can't contain a space).
+    private static String builtInFunctionKey(String functionName, int numberOfArgs) {
+        return functionName + " " + numberOfArgs;
     }
 
-    private void buildOther(int lineNumber, String line, short indexInFunction, byte opCode, short pc,
-                            StringTokenizer tokenizer) throws ProgramException {
-        if (tokenizer.countTokens() == 0) {
-            instructions[pc] = new VMEmulatorInstruction(opCode, indexInFunction);
-        } else {
-            short arg0 = Short.parseShort(tokenizer.nextToken());
+    // Builds the function table of the loaded program from the function ids,
+    // the function addresses and the static ranges.
+    private void buildFunctionTable() {
+        functionTable = new VMFunction[functionIds.size()];
+        functionsByAddress = new VMFunction[instructionsLength];
 
-            if (arg0 < 0)
-                throw new ProgramException("in line " + lineNumber + ": Illegal argument - " + line);
+        for (Map.Entry<String, Short> entry : functionIds.entrySet()) {
+            short id = entry.getValue();
+            String key = entry.getKey();
+            int space = key.indexOf(' ');
 
-            instructions[pc] = new VMEmulatorInstruction(opCode, arg0, indexInFunction);
+            if (space == -1) {
+                short address = functions.get(key);
+                int dotLocation = key.indexOf(".");
+                int[] range = dotLocation == -1 ? null :
+                              (int[])staticRange.get(key.substring(0, dotLocation));
+                functionTable[id] = new VMFunction(id, key, address, range);
+                functionsByAddress[address] = functionTable[id];
+            }
+            else
+                functionTable[id] = new VMFunction(id, key.substring(0, space),
+                                                   Short.parseShort(key.substring(space + 1)));
         }
     }
 
-    // Returns the "un-commented" version of the given line.
-	// Comments can be either with // or /*.
-	// The field isSlashStar holds the current /* comment state.
-    private String unCommentLine(String line) {
-        String result = line;
-
-        if (line != null) {
-			if (isSlashStar) {
-				int posStarSlash = line.indexOf("*/");
-				if (posStarSlash >= 0) {
-					isSlashStar = false;
-					result = unCommentLine(line.substring(posStarSlash+2));
-				} else {
-					result = "";
-				}
-			} else {
-				int posSlashSlash = line.indexOf("//");
-				int posSlashStar = line.indexOf("/*");
-				if (posSlashSlash >= 0 &&
-					(posSlashStar < 0 || posSlashStar > posSlashSlash)) {
-					result = line.substring(0, posSlashSlash);
-				} else if (posSlashStar >= 0) {
-					isSlashStar = true;
-					result = line.substring(0, posSlashStar) +
-							 unCommentLine(line.substring(posSlashStar+2));
-				}
-			}
-        }
+    // Builds the executable form of the loaded program.
+    private void buildCode() {
+        code = new long[instructionsLength];
+        for (short pc = 0; pc < instructionsLength; pc++)
+            code[pc] = packInstruction(instructions[pc], getNextInstructionAddress(pc));
+    }
 
-        return result;
+    // Returns the packed form of the given instruction, whose next instruction
+    // (skipping labels) is at the given address. From the highest bits: the
+    // op code (16 bits), the first argument (the function id of a call),
+    // the second argument and the next address.
+    private static long packInstruction(VMEmulatorInstruction instruction, short nextAddress) {
+        short arg0 = instruction.getOpCode() == HVMInstructionSet.CALL_CODE ?
+                     instruction.getFunctionIndex() : instruction.getArg0();
+        return ((long)(instruction.getOpCode() & 0xFFFF) << 48) |
+               ((long)(arg0 & 0xFFFF) << 32) |
+               ((long)(instruction.getArg1() & 0xFFFF) << 16) |
+               (nextAddress & 0xFFFF);
     }
 
     /**
-     * Returns the static variable address range of the given class name, in the
-     * form of a 2-elements array {startAddress, endAddress}.
-     * If unknown class name, returns null.
+     * Returns the op code of the given packed instruction.
      */
-    int[] getStaticRange(String className) {
-        return (int[])staticRange.get(className);
+    static short opCode(long instruction) {
+        return (short)(instruction >>> 48);
     }
 
     /**
-     * Returns the size of the program.
+     * Returns the first argument of the given packed instruction.
+     * For a call, this is the id of the called function.
      */
-    public int getSize() {
-        return instructionsLength;
+    static short arg0(long instruction) {
+        return (short)(instruction >>> 32);
+    }
+
+    /**
+     * Returns the second argument of the given packed instruction.
+     */
+    static short arg1(long instruction) {
+        return (short)(instruction >>> 16);
     }
 
 	short getAddress(String functionName) throws ProgramException {
@@ -641,21 +623,20 @@ class VMProgram extends InteractiveComputerPart implements ProgramEventListener
     }
 
     /**
-     * Returns the next VMEmulatorInstruction and increments the PC by one.
-     * The PC will be incremented by more if the next instruction is a label.
+     * Returns the next instruction in its packed form (see opCode, arg0 and arg1)
+     * and sets the PC to the following instruction, skipping labels.
+     * Returns NO_INSTRUCTION if the PC is past the end of the program.
      */
-    VMEmulatorInstruction getNextInstruction() {
-        VMEmulatorInstruction result = null;
-
-        if (nextPC < instructionsLength) {
-            result = instructions[nextPC];
-            prevPC = currentPC;
-            currentPC = nextPC;
+    long nextInstruction() {
+        if (nextPC >= instructionsLength)
+            return NO_INSTRUCTION;
 
-            nextPC = getNextInstructionAddress(nextPC);
+        long result = code[nextPC];
+        prevPC = currentPC;
+        currentPC = nextPC;
+        nextPC = (short)result;
 
-            setGUIPC();
-        }
+        setGUIPC();
 
         return result;
     }
@@ -677,12 +658,53 @@ class VMProgram extends InteractiveComputerPart implements ProgramEventListener
         setGUIPC();
     }
 
+    /**
+     * Returns an immutable snapshot of the program and its program counter.
+     * The instructions and tables of the program are shared with the snapshot,
+     * since loading another program replaces them rather than changing them.
+     */
+    Snapshot createSnapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Restores the program and its program counter from the given snapshot.
+     */
+    void restoreSnapshot(Snapshot snapshot) {
+        boolean programChanged = instructions != snapshot.instructions;
+
+        instructions = snapshot.instructions;
+        code = snapshot.code;
+        instructionsLength = snapshot.instructionsLength;
+        visibleInstructionsLength = snapshot.visibleInstructionsLength;
+        startAddress = snapshot.startAddress;
+        staticRange = snapshot.staticRange;
+        functions = snapshot.functions;
+        functionIds = snapshot.functionIds;
+        functionTable = snapshot.functionTable;
+        functionsByAddress = snapshot.functionsByAddress;
+        infiniteLoopForBuiltInsAddress = snapshot.infiniteLoopForBuiltInsAddress;
+        builtInAccessStatus = snapshot.builtInAccessStatus;
+        nextPC = snapshot.nextPC;
+        currentPC = snapshot.currentPC;
+        prevPC = snapshot.prevPC;
+
+        if (programChanged)
+            setGUIContents();
+        else
+            setGUIPC();
+    }
+
     /**
      * Resets the program (erases all commands).
      */
     public void reset() {
         instructions = new VMEmulatorInstruction[0];
+        code = new long[0];
 		visibleInstructionsLength = instructionsLength = 0;
+        functionIds = new HashMap<>();
+        functionTable = new VMFunction[0];
+        functionsByAddress = new VMFunction[0];
         currentPC = -999;
         prevPC = -999;
         nextPC = -1;
@@ -732,6 +754,38 @@ class VMProgram extends InteractiveComputerPart implements ProgramEventListener
         return pc >= 0 && pc < instructions.length ? instructions[pc] : null;
     }
 
+    // The state of the program at a certain time.
+    static final class Snapshot {
+        private final VMEmulatorInstruction[] instructions;
+        private final long[] code;
+        private final int instructionsLength, visibleInstructionsLength;
+        private final short startAddress, infiniteLoopForBuiltInsAddress;
+        private final Hashtable<String, Object> staticRange;
+        private final Hashtable<String, Short> functions;
+        private final HashMap<String, Short> functionIds;
+        private final VMFunction[] functionTable, functionsByAddress;
+        private final int builtInAccessStatus;
+        private final short nextPC, currentPC, prevPC;
+
+        private Snapshot(VMProgram program) {
+            instructions = program.instructions;
+            code = program.code;
+            instructionsLength = program.instructionsLength;
+            visibleInstructionsLength = program.visibleInstructionsLength;
+            startAddress = program.startAddress;
+            infiniteLoopForBuiltInsAddress = program.infiniteLoopForBuiltInsAddress;
+            staticRange = program.staticRange;
+            functions = program.functions;
+            functionIds = program.functionIds;
+            functionTable = program.functionTable;
+            functionsByAddress = program.functionsByAddress;
+            builtInAccessStatus = program.builtInAccessStatus;
+            nextPC = program.nextPC;
+            currentPC = program.currentPC;
+            prevPC = program.prevPC;
+        }
+    }
+
     // The task that loads a new program into the emulator
     private class LoadProgramTask implements Runnable {
 
@@ -0,0 +1,443 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.VMEmulator;
+
+import Hack.Controller.ProgramException;
+import Hack.VirtualMachine.HVMInstructionSet;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A single parsed .vm file: its instructions, function names and label names, with
+ * addresses relative to the start of the file.
+ * Instructions that refer to other addresses (goto, if-goto and call) can only be
+ * built when the program is linked, so they are kept as link entries. All the
+ * other instructions are built while parsing and are shared by all the programs
+ * that include the file.
+ * Errors are not thrown by the parser but kept with the file, and reported when the
+ * file is linked, in the same order in which a two-pass load would report them.
+ * Parsed files without errors are cached by path, modification time and size.
+ */
+class VMProgramFile {
+
+    // The maximal number of cached files
+    private static final int MAX_CACHED_FILES = 1024;
+
+    // The cached files, in least recently used order
+    private static final Map<String, VMProgramFile> cache =
+        new LinkedHashMap<String, VMProgramFile>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, VMProgramFile> eldest) {
+                return size() > MAX_CACHED_FILES;
+            }
+        };
+
+    /**
+     * An instruction that can only be built at link time.
+     */
+    static class LinkEntry {
+        // The operation code (GOTO_CODE, IF_GOTO_CODE or CALL_CODE)
+        final byte opCode;
+
+        // The index of the instruction in the file
+        final int index;
+
+        // The index of the instruction in its containing function
+        final short indexInFunction;
+
+        // The target function name, or the full label name
+        final String name;
+
+        // The number of arguments of a call
+        final short numberOfArgs;
+
+        // The line number and text of the instruction
+        final int lineNumber;
+        final String line;
+
+        // An error to report after the target was resolved, or null
+        final ProgramException error;
+
+        LinkEntry(byte opCode, int index, short indexInFunction, String name, short numberOfArgs,
+                  int lineNumber, String line, ProgramException error) {
+            this.opCode = opCode;
+            this.index = index;
+            this.indexInFunction = indexInFunction;
+            this.name = name;
+            this.numberOfArgs = numberOfArgs;
+            this.lineNumber = lineNumber;
+            this.line = line;
+            this.error = error;
+        }
+    }
+
+    // The file name, without the directory
+    final String name;
+
+    // The class name, or null if the file name has no extension
+    final String className;
+
+    // The modification time and size of the file when it was parsed
+    private final long lastModified, length;
+
+    // The number of instructions (including labels) in the file
+    int size;
+
+    // The instructions, with null entries for the link entries
+    VMEmulatorInstruction[] instructions;
+
+    // The instructions that are built at link time, in order
+    final List<LinkEntry> linkEntries = new ArrayList<>();
+
+    // The functions declared in the file and their addresses, in order
+    final List<String> functionNames = new ArrayList<>();
+    final List<Integer> functionAddresses = new ArrayList<>();
+
+    // Maps full label names (function$label) to their addresses
+    final Map<String, Integer> labels = new HashMap<>();
+
+    // The largest static variable index used in the file
+    int largestStaticIndex = -1;
+
+    // An error found while scanning for functions and labels, or null.
+    // No function is declared after it.
+    ProgramException symbolError;
+
+    // An error found while building instructions, or null. No instruction or
+    // link entry is kept after it.
+    ProgramException buildError;
+
+    // Is the file currently being read in the middle of a /* */ comment?
+    private boolean isSlashStar;
+
+    // The current function name as seen by the symbol scan, which only recognizes
+    // declarations at the start of a line, and as seen by the instruction builder.
+    private String symbolFunction, buildFunction;
+
+    // The index of the current instruction in its containing function.
+    private short indexInFunction;
+
+    // Constructs a new empty file.
+    private VMProgramFile(File file) {
+        name = file.getName();
+        int index = name.indexOf(".");
+        className = (index >= 0 ? name.substring(0, index) : null);
+        lastModified = file.lastModified();
+        length = file.length();
+        instructions = new VMEmulatorInstruction[16];
+    }
+
+    /**
+     * Returns the parsed version of the given file, from the cache if it is up to date.
+     */
+    static VMProgramFile get(File file) {
+        String key;
+        try {
+            key = file.getCanonicalPath();
+        } catch (IOException ioe) {
+            key = file.getAbsolutePath();
+        }
+
+        VMProgramFile result;
+        synchronized (cache) {
+            result = cache.get(key);
+        }
+
+        if (result == null || result.lastModified != file.lastModified() ||
+            result.length != file.length()) {
+            result = parse(file);
+
+            // Files with errors are not kept, so they are read again next time
+            if (result.symbolError == null && result.buildError == null) {
+                synchronized (cache) {
+                    cache.put(key, result);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Parses the given file.
+     */
+    static VMProgramFile parse(File file) {
+        VMProgramFile result = new VMProgramFile(file);
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file.getAbsolutePath()));
+            try {
+                result.read(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (FileNotFoundException e) {
+            result.symbolError = new ProgramException("file " + file.getName() + " does not exist");
+        } catch (IOException e) {
+            result.symbolError = new ProgramException("Error while reading from file");
+        }
+
+        return result;
+    }
+
+    // Reads the whole file.
+    private void read(BufferedReader reader) throws IOException {
+        int lineNumber = 0;
+        String line;
+
+        while ((line = unCommentLine(reader.readLine())) != null) {
+            lineNumber++;
+            if (!line.trim().equals("")) {
+                if (!scanSymbols(line, lineNumber))
+                    return;
+
+                if (buildError == null) {
+                    try {
+                        buildInstruction(line, lineNumber);
+                    } catch (NumberFormatException nfe) {
+                        buildError = new ProgramException("Illegal 16-bit value");
+                    } catch (NoSuchElementException nsee) {
+                        buildError = new ProgramException("In line " + lineNumber +
+                                                          ": unexpected end of command");
+                    } catch (ProgramException pe) {
+                        buildError = pe;
+                    }
+                }
+
+                size++;
+            }
+        }
+
+        if (isSlashStar)
+            symbolError = new ProgramException("Unterminated /* comment at end of file");
+    }
+
+    // Records the function or label declared in the given line, if any.
+    // Returns false (and sets symbolError) if the line is illegal.
+    private boolean scanSymbols(String line, int lineNumber) {
+        try {
+            if (line.startsWith("function ")) {
+                StringTokenizer tokenizer = new StringTokenizer(line);
+                tokenizer.nextToken();
+                symbolFunction = tokenizer.nextToken();
+                functionNames.add(symbolFunction);
+                functionAddresses.add(size);
+            }
+            else if (line.startsWith("label ")) {
+                StringTokenizer tokenizer = new StringTokenizer(line);
+                tokenizer.nextToken();
+                labels.put(symbolFunction + "$" + tokenizer.nextToken(), size + 1);
+            }
+            return true;
+        } catch (NoSuchElementException e) {
+            symbolError = new ProgramException("In line " + lineNumber + ": unexpected end of command");
+            return false;
+        }
+    }
+
+    // Builds the instruction in the given line, or its link entry.
+    private void buildInstruction(String line, int lineNumber) throws ProgramException {
+        StringTokenizer tokenizer = new StringTokenizer(line);
+        final String instructionName = tokenizer.nextToken();
+
+        final byte opCode = HVMInstructionSet.getInstance().instructionStringToCode(instructionName);
+        if (opCode == HVMInstructionSet.UNKNOWN_INSTRUCTION)
+            throw new ProgramException("in line " + lineNumber +
+                                       ": unknown instruction - " + instructionName);
+
+        if (size == instructions.length)
+            instructions = Arrays.copyOf(instructions, size * 2);
+
+        switch (opCode) {
+            case HVMInstructionSet.PUSH_CODE:
+            case HVMInstructionSet.POP_CODE:
+                buildPushPop(opCode, tokenizer, line, lineNumber);
+                break;
+
+            case HVMInstructionSet.FUNCTION_CODE:
+                buildFunction(tokenizer, line, lineNumber);
+                break;
+
+            case HVMInstructionSet.CALL_CODE:
+                buildCall(tokenizer, line, lineNumber);
+                return; // the link entry checks the end of command
+
+            case HVMInstructionSet.LABEL_CODE:
+                buildLabel(tokenizer);
+                break;
+
+            case HVMInstructionSet.GOTO_CODE:
+            case HVMInstructionSet.IF_GOTO_CODE:
+                buildGoto(opCode, tokenizer, line, lineNumber);
+                return; // the link entry checks the end of command
+
+            // All other instructions have either 1 or 0 arguments and require no
+            // special treatment
+            default:
+                buildOther(opCode, tokenizer, line, lineNumber);
+                break;
+        }
+
+        checkEndOfCommand(tokenizer, line, lineNumber);
+        indexInFunction++;
+    }
+
+    // Throws a ProgramException if the given tokenizer has more tokens.
+    private static void checkEndOfCommand(StringTokenizer tokenizer, String line, int lineNumber)
+     throws ProgramException {
+        if (tokenizer.hasMoreTokens())
+            throw new ProgramException("in line " + lineNumber + ": Too many arguments - " + line);
+    }
+
+    private void buildPushPop(byte opCode, StringTokenizer tokenizer, String line, int lineNumber)
+     throws ProgramException {
+        final short arg0 = translateSegment(tokenizer.nextToken(), lineNumber);
+        final short arg1 = Short.parseShort(tokenizer.nextToken());
+
+        if (arg1 < 0)
+            throw new ProgramException("in line " + lineNumber + ": Illegal argument - " + line);
+
+        if (arg0 == HVMInstructionSet.STATIC_SEGMENT_CODE && arg1 > largestStaticIndex)
+            largestStaticIndex = arg1;
+
+        instructions[size] = new VMEmulatorInstruction(opCode, arg0, arg1, indexInFunction);
+    }
+
+    private static short translateSegment(String segment, int lineNumber) throws ProgramException {
+        byte code = HVMInstructionSet.getInstance().segmentVMStringToCode(segment);
+        if (code == HVMInstructionSet.UNKNOWN_SEGMENT)
+            throw new ProgramException("in line " + lineNumber + ": Illegal memory segment - " + segment);
+
+        return code;
+    }
+
+    private void buildFunction(StringTokenizer tokenizer, String line, int lineNumber)
+     throws ProgramException {
+        final String functionName = tokenizer.nextToken();
+        final short arg0 = Short.parseShort(tokenizer.nextToken());
+
+        if (arg0 < 0)
+            throw new ProgramException("in line " + lineNumber + ": Illegal argument - " + line);
+
+        instructions[size] = new VMEmulatorInstruction(HVMInstructionSet.FUNCTION_CODE, arg0, (short) 0);
+        instructions[size].setStringArg(functionName);
+        buildFunction = functionName;
+        indexInFunction = 0;
+    }
+
+    // The target function is resolved at link time, before the number of arguments
+    // is checked, so errors in the rest of the line are kept with the link entry.
+    private void buildCall(StringTokenizer tokenizer, String line, int lineNumber) {
+        final String functionName = tokenizer.nextToken();
+        ProgramException error = null;
+        short arg1 = 0;
+
+        try {
+            arg1 = Short.parseShort(tokenizer.nextToken());
+            if (arg1 < 0)
+                throw new ProgramException("in line " + lineNumber + ": Illegal argument - " + line);
+
+            checkEndOfCommand(tokenizer, line, lineNumber);
+        } catch (NumberFormatException nfe) {
+            error = new ProgramException("Illegal 16-bit value");
+        } catch (NoSuchElementException nsee) {
+            error = new ProgramException("In line " + lineNumber + ": unexpected end of command");
+        } catch (ProgramException pe) {
+            error = pe;
+        }
+
+        addLinkEntry(HVMInstructionSet.CALL_CODE, functionName, arg1, line, lineNumber, error);
+    }
+
+    private void buildLabel(StringTokenizer tokenizer) {
+        final String label = buildFunction + "$" + tokenizer.nextToken();
+        instructions[size] = new VMEmulatorInstruction(HVMInstructionSet.LABEL_CODE, (short) (-1));
+        instructions[size].setStringArg(label);
+        indexInFunction--; // since Label is not a "physical" instruction
+    }
+
+    private void buildGoto(byte opCode, StringTokenizer tokenizer, String line, int lineNumber) {
+        final String label = buildFunction + "$" + tokenizer.nextToken();
+        ProgramException error = null;
+
+        try {
+            checkEndOfCommand(tokenizer, line, lineNumber);
+        } catch (ProgramException pe) {
+            error = pe;
+        }
+
+        addLinkEntry(opCode, label, (short) 0, line, lineNumber, error);
+    }
+
+    private void buildOther(byte opCode, StringTokenizer tokenizer, String line, int lineNumber)
+     throws ProgramException {
+        if (tokenizer.countTokens() == 0) {
+            instructions[size] = new VMEmulatorInstruction(opCode, indexInFunction);
+        } else {
+            short arg0 = Short.parseShort(tokenizer.nextToken());
+
+            if (arg0 < 0)
+                throw new ProgramException("in line " + lineNumber + ": Illegal argument - " + line);
+
+            instructions[size] = new VMEmulatorInstruction(opCode, arg0, indexInFunction);
+        }
+    }
+
+    // Adds a link entry for the current instruction. A link entry with an error is
+    // the last thing built from the file.
+    private void addLinkEntry(byte opCode, String name, short numberOfArgs, String line,
+                              int lineNumber, ProgramException error) {
+        linkEntries.add(new LinkEntry(opCode, size, indexInFunction, name, numberOfArgs,
+                                      lineNumber, line, error));
+        if (error != null)
+            buildError = error;
+        indexInFunction++;
+    }
+
+    // Returns the "un-commented" version of the given line.
+    // Comments can be either with // or /*.
+    // The field isSlashStar holds the current /* comment state.
+    private String unCommentLine(String line) {
+        String result = line;
+
+        if (line != null) {
+            if (isSlashStar) {
+                int posStarSlash = line.indexOf("*/");
+                if (posStarSlash >= 0) {
+                    isSlashStar = false;
+                    result = unCommentLine(line.substring(posStarSlash+2));
+                } else {
+                    result = "";
+                }
+            } else {
+                int posSlashSlash = line.indexOf("//");
+                int posSlashStar = line.indexOf("/*");
+                if (posSlashSlash >= 0 &&
+                    (posSlashStar < 0 || posSlashStar > posSlashSlash)) {
+                    result = line.substring(0, posSlashSlash);
+                } else if (posSlashStar >= 0) {
+                    isSlashStar = true;
+                    result = line.substring(0, posSlashStar) +
+                             unCommentLine(line.substring(posSlashStar+2));
+                }
+            }
+        }
+
+        return result;
+    }
+}
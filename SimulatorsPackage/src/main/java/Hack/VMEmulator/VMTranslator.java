@@ -0,0 +1,1051 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.VMEmulator;
+
+import Hack.Assembler.HackAssemblerTranslator;
+import Hack.Assembler.StreamingAssembler;
+import Hack.Controller.ProgramException;
+import Hack.Utilities.Definitions;
+import Hack.Utilities.HackFileFilter;
+import Hack.VirtualMachine.HVMInstructionSet;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Translates a VM program (a vm file, or a directory of vm files) into Hack assembly,
+ * and assembles it in memory into a program for the CPU emulator. The vm files are
+ * parsed by VMProgramFile, like the programs of the VM emulator.
+ * The translation is optimized:
+ * - Calls and returns jump to shared routines that save and restore the frame (a
+ *   call routine for each number of arguments), so a call is 8 instructions and a
+ *   return 2 to 5.
+ * - The top of the stack is cached: pushed constants are kept by the translator
+ *   until they are needed, so operations on them are folded, and the last pushed
+ *   value is kept in D rather than written to the stack.
+ * - A comparison followed by an if-goto (or by not; if-goto) becomes a
+ *   conditional jump.
+ *   Comparisons give the same results as the VM emulator even when the difference
+ *   of their operands overflows.
+ * If the program has a Sys.init function, it starts with a bootstrap code that sets
+ * SP to 256 and calls Sys.init. Otherwise, it starts with its first instruction and
+ * ends in an infinite loop.
+ * Static variables are allocated in the same addresses as in the VM emulator.
+ */
+public class VMTranslator {
+
+    // The names of the parts of the translated program that are not VM functions
+    private static final String START_NAME = "(start)";
+    private static final String END_NAME = "(end)";
+    private static final String CALL_NAME = "(call)";
+    private static final String RETURN_NAME = "(return)";
+    private static final String COMPARE_NAME = "(compare)";
+
+    // The labels of the routines (which can't be VM function or label names)
+    private static final String END_LABEL = "$END";
+    private static final String CALL_LABEL = "$CALL";
+    private static final String RETURN_LABEL = "$RETURN";
+    private static final String COMPARE_LABEL = "$COMPARE";
+
+    // The names of the segment pointers, by segment code
+    private static final String[] POINTER_NAMES = {"LCL", "ARG", "THIS", "THAT"};
+
+    // The largest index that is reached with a chain of A=A+1 instructions
+    // rather than by adding it to the segment pointer
+    private static final int MAX_CHAINED_INDEX = 6;
+
+    // The maximal number of pushed constants that are kept by the translator
+    private static final int MAX_CONSTANTS = 8;
+
+    // The translated assembly
+    private StringBuilder assembly;
+
+    // The address of the next translated instruction
+    private int address;
+
+    // The names of the functions and other parts of the translated program, and
+    // their addresses, in the order of the addresses
+    private ArrayList<String> functionNames;
+    private ArrayList<Short> functionAddresses;
+
+    // The names of the functions and labels of the VM program
+    private HashSet<String> functions;
+    private HashSet<String> labels;
+
+    // The number of labels that were generated for the translation
+    private int labelCount;
+
+    // The numbers of arguments of the calls in the program
+    private BitSet callArguments;
+
+    // Does the translation use the return and compare routines?
+    private boolean returnUsed, compareUsed;
+
+    // The top of the stack: a value in D (if valueInD) and above it the constants
+    // that weren't pushed yet. The rest of the stack is in the RAM.
+    private boolean valueInD;
+    private short[] constants;
+    private int constantCount;
+
+    // The file that is being translated, its instructions by index (null for
+    // the link entries), its link entries by index and its first static address
+    private VMProgramFile file;
+    private VMEmulatorInstruction[] instructions;
+    private VMProgramFile.LinkEntry[] linkEntries;
+    private int staticAddress;
+
+    // The assembled program
+    private short[] program;
+
+    /**
+     * Translates the given vm file, or the vm files in the given directory.
+     * Throws ProgramException if the program has errors.
+     */
+    public void translate(String fileName) throws ProgramException {
+        File dir = new File(fileName);
+        if (!dir.exists())
+            throw new ProgramException("cannot find " + fileName);
+
+        File[] files;
+        if (dir.isDirectory()) {
+            files = dir.listFiles(new HackFileFilter(".vm"));
+            if (files == null || files.length == 0)
+                throw new ProgramException("No vm files found in " + fileName);
+        }
+        else
+            files = new File[]{dir};
+
+        VMProgramFile[] programFiles = VMProgram.parseFiles(files);
+        link(programFiles);
+
+        assembly = new StringBuilder();
+        address = 0;
+        functionNames = new ArrayList<>();
+        functionAddresses = new ArrayList<>();
+        labelCount = 0;
+        callArguments = new BitSet();
+        returnUsed = compareUsed = false;
+        constants = new short[MAX_CONSTANTS];
+        constantCount = 0;
+        valueInD = false;
+
+        addFunction(START_NAME);
+        boolean hasSysInit = functions.contains("Sys.init");
+        if (hasSysInit) {
+            emit("@" + Definitions.STACK_START_ADDRESS);
+            emit("D=A");
+            emit("@SP");
+            emit("M=D");
+            call("Sys.init", 0);
+            valueInD = false;
+        }
+
+        staticAddress = Definitions.VAR_START_ADDRESS;
+        for (VMProgramFile f : programFiles) {
+            translateFile(f);
+            staticAddress += f.largestStaticIndex + 1;
+        }
+
+        if (!hasSysInit) {
+            addFunction(END_NAME);
+            emitLabel(END_LABEL);
+            emit("@" + END_LABEL);
+            emit("0;JMP");
+        }
+
+        translateRoutines();
+
+        if (address > Definitions.ROM_SIZE)
+            throw new ProgramException("Program too large");
+
+        char[] text = new char[assembly.length()];
+        assembly.getChars(0, text.length, text, 0);
+        program = StreamingAssembler.assemble(text, text.length, Definitions.ROM_SIZE,
+                                              HackAssemblerTranslator.NOP);
+        if (program == null)
+            throw new ProgramException("Illegal function or label name");
+    }
+
+    /**
+     * Returns the translated assembly.
+     */
+    public String getAssembly() {
+        return assembly.toString();
+    }
+
+    /**
+     * Returns the translated program, in a memory array of the size of the ROM.
+     */
+    public short[] getProgram() {
+        return program;
+    }
+
+    /**
+     * Returns the number of instructions in the translated program.
+     */
+    public int getSize() {
+        return address;
+    }
+
+    /**
+     * Returns the names of the functions of the translated program, in the order
+     * of their addresses. The parts of the program that are not VM functions (the
+     * start of the program, its end and the call, return and compare routines) have
+     * names in parentheses.
+     */
+    public String[] getFunctionNames() {
+        return functionNames.toArray(new String[functionNames.size()]);
+    }
+
+    /**
+     * Returns the addresses of the functions of the translated program, in the
+     * order of getFunctionNames(). A function ends where the next one starts.
+     */
+    public short[] getFunctionAddresses() {
+        short[] result = new short[functionAddresses.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = functionAddresses.get(i);
+        return result;
+    }
+
+    // Collects the functions and labels of the given files and checks that the
+    // files have no errors and that all the called functions and labels exist.
+    private void link(VMProgramFile[] programFiles) throws ProgramException {
+        functions = new HashSet<>();
+        labels = new HashSet<>();
+
+        for (VMProgramFile f : programFiles) {
+            if (f.className == null)
+                throw new ProgramException("File name without extension: " + f.name);
+
+            for (String function : f.functionNames)
+                if (!functions.add(function))
+                    throw new ProgramException(f.name + ": subroutine " + function + " already exists");
+
+            if (f.symbolError != null)
+                throw new ProgramException(f.name + ": " + f.symbolError.getMessage());
+
+            labels.addAll(f.labels.keySet());
+        }
+
+        for (VMProgramFile f : programFiles) {
+            try {
+                for (VMProgramFile.LinkEntry entry : f.linkEntries) {
+                    if (entry.opCode == HVMInstructionSet.CALL_CODE) {
+                        if (!functions.contains(entry.name)) {
+                            int dot = entry.name.indexOf(".");
+                            if (dot == -1)
+                                throw new ProgramException("in line " + entry.lineNumber +
+                                    ": Incorrect function name. Should be <ClassName>.<FunctionName>: " +
+                                    entry.name);
+
+                            String className = entry.name.substring(0, dot);
+                            throw new ProgramException("in line " + entry.lineNumber + ": " +
+                                                       className + ".vm not found or function " +
+                                                       entry.name + " not found in " + className + ".vm");
+                        }
+                    }
+                    else if (!labels.contains(entry.name))
+                        throw new ProgramException("in line " + entry.lineNumber + ": Unknown label - " +
+                                                   entry.name);
+
+                    if (entry.error != null)
+                        throw entry.error;
+                }
+
+                if (f.buildError != null)
+                    throw f.buildError;
+            } catch (ProgramException pe) {
+                throw new ProgramException(f.name + ": " + pe.getMessage());
+            }
+        }
+    }
+
+    // Translates the instructions of the given file.
+    private void translateFile(VMProgramFile f) throws ProgramException {
+        file = f;
+        instructions = f.instructions;
+        linkEntries = new VMProgramFile.LinkEntry[f.size];
+        for (VMProgramFile.LinkEntry entry : f.linkEntries)
+            linkEntries[entry.index] = entry;
+
+        for (int i = 0; i < f.size; i++) {
+            VMEmulatorInstruction instruction = instructions[i];
+
+            switch (getOpCode(i)) {
+                case HVMInstructionSet.PUSH_CODE:
+                    if (instruction.getArg0() == HVMInstructionSet.CONST_SEGMENT_CODE)
+                        pushConstant(instruction.getArg1());
+                    else
+                        push(instruction);
+                    break;
+
+                case HVMInstructionSet.POP_CODE:
+                    pop(instruction);
+                    break;
+
+                case HVMInstructionSet.ADD_CODE:
+                case HVMInstructionSet.SUBSTRACT_CODE:
+                case HVMInstructionSet.AND_CODE:
+                case HVMInstructionSet.OR_CODE:
+                    arithmetic(getOpCode(i));
+                    break;
+
+                case HVMInstructionSet.NEGATE_CODE:
+                    negate();
+                    break;
+
+                case HVMInstructionSet.NOT_CODE:
+                    // not is bitwise, so not; if-goto jumps if the value isn't -1
+                    // (comparisons fuse with it since their value is 0 or -1)
+                    if (getOpCode(i + 1) == HVMInstructionSet.IF_GOTO_CODE &&
+                        constantCount == 0) {
+                        popD();
+                        valueInD = true;
+                    }
+                    not();
+                    break;
+
+                case HVMInstructionSet.EQUAL_CODE:
+                case HVMInstructionSet.GREATER_THAN_CODE:
+                case HVMInstructionSet.LESS_THAN_CODE:
+                    // the comparison is followed by if-goto or by not; if-goto
+                    byte opCode = getOpCode(i);
+                    if (getOpCode(i + 1) == HVMInstructionSet.IF_GOTO_CODE)
+                        compare(opCode, linkEntries[++i].name, true);
+                    else if (getOpCode(i + 1) == HVMInstructionSet.NOT_CODE &&
+                             getOpCode(i + 2) == HVMInstructionSet.IF_GOTO_CODE) {
+                        i += 2;
+                        compare(opCode, linkEntries[i].name, false);
+                    }
+                    else
+                        compare(opCode, null, true);
+                    break;
+
+                case HVMInstructionSet.LABEL_CODE:
+                    flush();
+                    emitLabel(instruction.getStringArg());
+                    break;
+
+                case HVMInstructionSet.GOTO_CODE:
+                    flush();
+                    emit("@" + linkEntries[i].name);
+                    emit("0;JMP");
+                    break;
+
+                case HVMInstructionSet.IF_GOTO_CODE:
+                    ifGoto(linkEntries[i].name, true);
+                    break;
+
+                case HVMInstructionSet.FUNCTION_CODE:
+                    function(instruction.getStringArg(), instruction.getArg0());
+                    break;
+
+                case HVMInstructionSet.CALL_CODE:
+                    flush();
+                    call(linkEntries[i].name, linkEntries[i].numberOfArgs);
+                    break;
+
+                case HVMInstructionSet.RETURN_CODE:
+                    doReturn();
+                    break;
+            }
+        }
+
+        flush();
+    }
+
+    // Returns the operation code of the instruction at the given index of the
+    // current file, or HVMInstructionSet.UNKNOWN_INSTRUCTION past its end.
+    private byte getOpCode(int index) {
+        if (index >= file.size)
+            return HVMInstructionSet.UNKNOWN_INSTRUCTION;
+
+        return linkEntries[index] != null ? linkEntries[index].opCode :
+                                            (byte)instructions[index].getOpCode();
+    }
+
+    // Adds a function (or another part of the program) that starts at the current
+    // address. A previous function with no instructions is removed.
+    private void addFunction(String name) {
+        int last = functionAddresses.size() - 1;
+        if (last >= 0 && functionAddresses.get(last) == address) {
+            functionNames.remove(last);
+            functionAddresses.remove(last);
+        }
+
+        functionNames.add(name);
+        functionAddresses.add((short)address);
+    }
+
+    // Appends the given instruction to the assembly.
+    private void emit(String instruction) {
+        assembly.append(instruction).append('\n');
+        address++;
+    }
+
+    // Appends the given label declaration to the assembly.
+    private void emitLabel(String label) {
+        assembly.append('(').append(label).append(")\n");
+    }
+
+    // Returns a new label for the translation.
+    private String newLabel() {
+        return "$L" + labelCount++;
+    }
+
+    // Sets D to the given value.
+    private void loadD(short value) {
+        if (value >= -1 && value <= 1)
+            emit("D=" + value);
+        else if (value >= 0) {
+            emit("@" + value);
+            emit("D=A");
+        }
+        else {
+            emit("@" + ~value);
+            emit("D=!A");
+        }
+    }
+
+    // Adds the given value to D.
+    private void addToD(short value) {
+        if (value == 1)
+            emit("D=D+1");
+        else if (value == -1)
+            emit("D=D-1");
+        else if (value > 0) {
+            emit("@" + value);
+            emit("D=D+A");
+        }
+        else if (value == Short.MIN_VALUE) {
+            emit("@" + Short.MAX_VALUE);
+            emit("D=D-A");
+            emit("D=D-1");
+        }
+        else if (value < 0) {
+            emit("@" + -value);
+            emit("D=D-A");
+        }
+    }
+
+    // Pushes D into the stack in the RAM.
+    private void pushD() {
+        emit("@SP");
+        emit("AM=M+1");
+        emit("A=A-1");
+        emit("M=D");
+    }
+
+    // Pushes the value in D, if any, into the stack in the RAM.
+    private void spillD() {
+        if (valueInD) {
+            pushD();
+            valueInD = false;
+        }
+    }
+
+    // Pushes the cached top of the stack into the stack in the RAM.
+    private void flush() {
+        spillD();
+
+        for (int i = 0; i < constantCount; i++) {
+            short value = constants[i];
+            if (value >= -1 && value <= 1) {
+                emit("@SP");
+                emit("AM=M+1");
+                emit("A=A-1");
+                emit("M=" + value);
+            }
+            else {
+                loadD(value);
+                pushD();
+            }
+        }
+
+        constantCount = 0;
+    }
+
+    // Pops the top of the stack into D.
+    private void popD() {
+        if (constantCount > 0) {
+            short value = constants[--constantCount];
+            spillD();
+            loadD(value);
+        }
+        else if (!valueInD) {
+            emit("@SP");
+            emit("AM=M-1");
+            emit("D=M");
+        }
+
+        valueInD = false;
+    }
+
+    // Returns the address of the given temp, pointer or static variable, or -1 if
+    // the instruction's segment is a pointer based segment.
+    private int getDirectAddress(VMEmulatorInstruction instruction) throws ProgramException {
+        int index = instruction.getArg1();
+
+        switch (instruction.getArg0()) {
+            case HVMInstructionSet.TEMP_SEGMENT_CODE:
+                if (index > Definitions.TEMP_END_ADDRESS - Definitions.TEMP_START_ADDRESS)
+                    throw illegalArgument(instruction);
+                return Definitions.TEMP_START_ADDRESS + index;
+
+            case HVMInstructionSet.POINTER_SEGMENT_CODE:
+                if (index > 1)
+                    throw illegalArgument(instruction);
+                return Definitions.THIS_POINTER_ADDRESS + index;
+
+            case HVMInstructionSet.STATIC_SEGMENT_CODE:
+                return staticAddress + index;
+
+            case HVMInstructionSet.CONST_SEGMENT_CODE:
+                throw illegalArgument(instruction);
+
+            default:
+                return -1;
+        }
+    }
+
+    // Returns an exception for the illegal segment index or segment of the given
+    // instruction.
+    private ProgramException illegalArgument(VMEmulatorInstruction instruction) {
+        String[] text = instruction.getFormattedStrings();
+        return new ProgramException(file.name + ": Illegal argument - " + text[0] + " " + text[1] +
+                                    " " + text[2]);
+    }
+
+    // Sets A to the address of the given index in the segment of the given pointer,
+    // by incrementing the pointer.
+    private void chainAddress(String pointer, int index) {
+        emit("@" + pointer);
+        emit(index == 0 ? "A=M" : "A=M+1");
+        for (int i = 1; i < index; i++)
+            emit("A=A+1");
+    }
+
+    // Pushes the given constant.
+    private void pushConstant(short value) {
+        if (constantCount == MAX_CONSTANTS)
+            flush();
+
+        constants[constantCount++] = value;
+    }
+
+    // Pushes the variable of the given push instruction.
+    private void push(VMEmulatorInstruction instruction) throws ProgramException {
+        int directAddress = getDirectAddress(instruction);
+        int index = instruction.getArg1();
+
+        flush();
+        if (directAddress >= 0)
+            emit("@" + directAddress);
+        else if (index <= 1)
+            chainAddress(POINTER_NAMES[instruction.getArg0()], index);
+        else {
+            emit("@" + index);
+            emit("D=A");
+            emit("@" + POINTER_NAMES[instruction.getArg0()]);
+            emit("A=D+M");
+        }
+        emit("D=M");
+        valueInD = true;
+    }
+
+    // Pops into the variable of the given pop instruction.
+    private void pop(VMEmulatorInstruction instruction) throws ProgramException {
+        int directAddress = getDirectAddress(instruction);
+        int index = instruction.getArg1();
+
+        // constants that don't need D are stored directly
+        short value = (constantCount > 0 ? constants[constantCount - 1] : 0);
+        boolean storeConstant = constantCount > 0 && value >= -1 && value <= 1;
+
+        if (directAddress >= 0) {
+            if (storeConstant)
+                constantCount--;
+            else
+                popD();
+            emit("@" + directAddress);
+            emit(storeConstant ? "M=" + value : "M=D");
+        }
+        else if (index <= MAX_CHAINED_INDEX) {
+            if (storeConstant)
+                constantCount--;
+            else
+                popD();
+            chainAddress(POINTER_NAMES[instruction.getArg0()], index);
+            emit(storeConstant ? "M=" + value : "M=D");
+        }
+        else if (constantCount == 0 && !valueInD) {
+            emit("@" + index);
+            emit("D=A");
+            emit("@" + POINTER_NAMES[instruction.getArg0()]);
+            emit("D=D+M");
+            emit("@R13");
+            emit("M=D");
+            emit("@SP");
+            emit("AM=M-1");
+            emit("D=M");
+            emit("@R13");
+            emit("A=M");
+            emit("M=D");
+        }
+        else {
+            popD();
+            emit("@R13");
+            emit("M=D");
+            emit("@" + index);
+            emit("D=A");
+            emit("@" + POINTER_NAMES[instruction.getArg0()]);
+            emit("D=D+M");
+            emit("@R14");
+            emit("M=D");
+            emit("@R13");
+            emit("D=M");
+            emit("@R14");
+            emit("A=M");
+            emit("M=D");
+        }
+    }
+
+    // Translates add, sub, and or or.
+    private void arithmetic(byte opCode) {
+        if (constantCount >= 2) {
+            short y = constants[--constantCount];
+            short x = constants[constantCount - 1];
+            constants[constantCount - 1] = fold(opCode, x, y);
+        }
+        else if (constantCount == 1) {
+            short value = constants[--constantCount];
+            if (!valueInD) {
+                emit("@SP");
+                emit("AM=M-1");
+                emit("D=M");
+                valueInD = true;
+            }
+
+            switch (opCode) {
+                case HVMInstructionSet.ADD_CODE:
+                    addToD(value);
+                    break;
+                case HVMInstructionSet.SUBSTRACT_CODE:
+                    addToD((short)-value);
+                    break;
+                case HVMInstructionSet.AND_CODE:
+                    if (value == 0)
+                        emit("D=0");
+                    else if (value > 0) {
+                        emit("@" + value);
+                        emit("D=D&A");
+                    }
+                    else if (value != -1) {
+                        // x & value = !(!x | !value)
+                        emit("D=!D");
+                        emit("@" + ~value);
+                        emit("D=D|A");
+                        emit("D=!D");
+                    }
+                    break;
+                case HVMInstructionSet.OR_CODE:
+                    if (value == -1)
+                        emit("D=-1");
+                    else if (value > 0) {
+                        emit("@" + value);
+                        emit("D=D|A");
+                    }
+                    else if (value != 0) {
+                        // x | value = !(!x & !value)
+                        emit("D=!D");
+                        emit("@" + ~value);
+                        emit("D=D&A");
+                        emit("D=!D");
+                    }
+                    break;
+            }
+        }
+        else {
+            String exp;
+            switch (opCode) {
+                case HVMInstructionSet.ADD_CODE:
+                    exp = "D+M";
+                    break;
+                case HVMInstructionSet.SUBSTRACT_CODE:
+                    exp = "M-D";
+                    break;
+                case HVMInstructionSet.AND_CODE:
+                    exp = "D&M";
+                    break;
+                default:
+                    exp = "D|M";
+                    break;
+            }
+
+            // the result stays in D if y was in D, or else in the RAM
+            if (!valueInD) {
+                emit("@SP");
+                emit("AM=M-1");
+                emit("D=M");
+                emit("A=A-1");
+                emit("M=" + exp);
+            }
+            else {
+                emit("@SP");
+                emit("AM=M-1");
+                emit("D=" + exp);
+            }
+        }
+    }
+
+    // Translates neg.
+    private void negate() {
+        if (constantCount > 0)
+            constants[constantCount - 1] = (short)-constants[constantCount - 1];
+        else if (valueInD)
+            emit("D=-D");
+        else {
+            emit("@SP");
+            emit("A=M-1");
+            emit("M=-M");
+        }
+    }
+
+    // Translates not.
+    private void not() {
+        if (constantCount > 0)
+            constants[constantCount - 1] = (short)~constants[constantCount - 1];
+        else if (valueInD)
+            emit("D=!D");
+        else {
+            emit("@SP");
+            emit("A=M-1");
+            emit("M=!M");
+        }
+    }
+
+    // Returns the result of the given arithmetic or comparison instruction on the
+    // given values.
+    private static short fold(byte opCode, short x, short y) {
+        switch (opCode) {
+            case HVMInstructionSet.ADD_CODE:
+                return (short)(x + y);
+            case HVMInstructionSet.SUBSTRACT_CODE:
+                return (short)(x - y);
+            case HVMInstructionSet.AND_CODE:
+                return (short)(x & y);
+            case HVMInstructionSet.OR_CODE:
+                return (short)(x | y);
+            case HVMInstructionSet.EQUAL_CODE:
+                return (short)(x == y ? -1 : 0);
+            case HVMInstructionSet.GREATER_THAN_CODE:
+                return (short)(x > y ? -1 : 0);
+            default:
+                return (short)(x < y ? -1 : 0);
+        }
+    }
+
+    // Translates if-goto to the given label, which jumps if the popped value is
+    // true (if jumpIfTrue) or false.
+    private void ifGoto(String label, boolean jumpIfTrue) {
+        if (constantCount > 0) {
+            short value = constants[--constantCount];
+            flush();
+            if ((value != 0) == jumpIfTrue) {
+                emit("@" + label);
+                emit("0;JMP");
+            }
+            return;
+        }
+
+        popD();
+        emit("@" + label);
+        emit(jumpIfTrue ? "D;JNE" : "D;JEQ");
+    }
+
+    // Translates the given comparison (eq, gt or lt). If the given label isn't null,
+    // the comparison is followed by an if-goto to it, which jumps if the result is
+    // true (if jumpIfTrue) or false.
+    private void compare(byte opCode, String label, boolean jumpIfTrue) {
+        if (constantCount >= 2) {
+            short y = constants[--constantCount];
+            short x = constants[constantCount - 1];
+            constants[constantCount - 1] = fold(opCode, x, y);
+            if (label != null)
+                ifGoto(label, jumpIfTrue);
+            return;
+        }
+
+        String target = (label != null ? label : newLabel());
+        boolean jumpIf = (label != null ? jumpIfTrue : true);
+        String jump;
+        switch (opCode) {
+            case HVMInstructionSet.EQUAL_CODE:
+                jump = jumpIf ? "D;JEQ" : "D;JNE";
+                break;
+            case HVMInstructionSet.GREATER_THAN_CODE:
+                jump = jumpIf ? "D;JGT" : "D;JLE";
+                break;
+            default:
+                jump = jumpIf ? "D;JLT" : "D;JGE";
+                break;
+        }
+
+        if (constantCount == 1 && constants[0] != Short.MIN_VALUE) {
+            short y = constants[--constantCount];
+            if (!valueInD) {
+                emit("@SP");
+                emit("AM=M-1");
+                emit("D=M");
+            }
+            valueInD = false;
+
+            String skip = null;
+            if (opCode != HVMInstructionSet.EQUAL_CODE && y != 0) {
+                // x - y can overflow only if x and y have different signs, in which
+                // case the sign of x gives the result, which is true for x < y if y
+                // is positive and for x > y if y is negative.
+                String differentSigns = (y > 0 ? "D;JLT" : "D;JGE");
+                boolean result = (y > 0) == (opCode == HVMInstructionSet.LESS_THAN_CODE);
+                if (result == jumpIf)
+                    emit("@" + target);
+                else {
+                    skip = newLabel();
+                    emit("@" + skip);
+                }
+                emit(differentSigns);
+            }
+
+            addToD((short)-y);
+            emit("@" + target);
+            emit(jump);
+            if (skip != null)
+                emitLabel(skip);
+        }
+        else {
+            if (constantCount > 0)
+                flush();
+
+            popD();
+            if (opCode == HVMInstructionSet.EQUAL_CODE) {
+                emit("@SP");
+                emit("AM=M-1");
+                emit("D=M-D");
+            }
+            else {
+                // the compare routine returns a value with the sign of x - y
+                String returnLabel = newLabel();
+                compareUsed = true;
+                emit("@R13");
+                emit("M=D");
+                emit("@" + returnLabel);
+                emit("D=A");
+                emit("@" + COMPARE_LABEL);
+                emit("0;JMP");
+                emitLabel(returnLabel);
+            }
+            emit("@" + target);
+            emit(jump);
+        }
+
+        if (label == null) {
+            String end = newLabel();
+            emit("D=0");
+            emit("@" + end);
+            emit("0;JMP");
+            emitLabel(target);
+            emit("D=-1");
+            emitLabel(end);
+            valueInD = true;
+        }
+    }
+
+    // Translates a function declaration with the given name and number of locals.
+    private void function(String name, int numberOfLocals) {
+        flush();
+        addFunction(name);
+        emitLabel(name);
+
+        if (numberOfLocals == 1) {
+            emit("@SP");
+            emit("AM=M+1");
+            emit("A=A-1");
+            emit("M=0");
+        }
+        else if (numberOfLocals > 1) {
+            emit("@" + numberOfLocals);
+            emit("D=A");
+            emit("@SP");
+            emit("AM=D+M");
+            for (int i = 0; i < numberOfLocals; i++) {
+                emit("A=A-1");
+                emit("M=0");
+            }
+        }
+    }
+
+    // Translates a call to the given function with the given number of arguments.
+    // The call routine gets the function address in R13 and the return address in D,
+    // and the returned value is left in D.
+    private void call(String name, int numberOfArgs) {
+        String returnLabel = newLabel();
+        callArguments.set(numberOfArgs);
+
+        emit("@" + name);
+        emit("D=A");
+        emit("@R13");
+        emit("M=D");
+        emit("@" + returnLabel);
+        emit("D=A");
+        emit("@" + CALL_LABEL + numberOfArgs);
+        emit("0;JMP");
+        emitLabel(returnLabel);
+        valueInD = true;
+    }
+
+    // Translates return. The return routine gets the returned value in D, and
+    // leaves it there for the caller.
+    private void doReturn() {
+        if (constantCount > 0)
+            loadD(constants[constantCount - 1]);
+        else if (!valueInD) {
+            emit("@SP");
+            emit("A=M-1");
+            emit("D=M");
+        }
+
+        constantCount = 0;
+        valueInD = false;
+        returnUsed = true;
+        emit("@" + RETURN_LABEL);
+        emit("0;JMP");
+    }
+
+    // Translates the call, return and compare routines that the program uses.
+    private void translateRoutines() {
+        if (!callArguments.isEmpty())
+            addFunction(CALL_NAME);
+
+        for (int n = callArguments.nextSetBit(0); n >= 0; n = callArguments.nextSetBit(n + 1)) {
+            // push the return address, LCL, ARG, THIS and THAT
+            emitLabel(CALL_LABEL + n);
+            pushD();
+            for (int i = 0; i < POINTER_NAMES.length; i++) {
+                emit("@" + POINTER_NAMES[i]);
+                emit("D=M");
+                pushD();
+            }
+
+            // LCL = SP, ARG = SP - n - 5
+            emit("@SP");
+            emit("D=M");
+            emit("@LCL");
+            emit("M=D");
+            emit("@" + (n + 5));
+            emit("D=D-A");
+            emit("@ARG");
+            emit("M=D");
+
+            emit("@R13");
+            emit("A=M");
+            emit("0;JMP");
+        }
+
+        if (returnUsed) {
+            addFunction(RETURN_NAME);
+            emitLabel(RETURN_LABEL);
+
+            // the returned value stays in D, so SP is set to ARG rather than
+            // above the returned value
+            emit("@R13");
+            emit("M=D");
+            emit("@LCL");
+            emit("D=M");
+            emit("@5");
+            emit("A=D-A");
+            emit("D=M");
+            emit("@R14");
+            emit("M=D");
+            emit("@ARG");
+            emit("D=M");
+            emit("@SP");
+            emit("M=D");
+
+            // restore THAT, THIS, ARG and LCL from the frame below LCL
+            for (int i = POINTER_NAMES.length - 1; i >= 0; i--) {
+                emit("@LCL");
+                emit(i > 0 ? "AM=M-1" : "A=M-1");
+                emit("D=M");
+                emit("@" + POINTER_NAMES[i]);
+                emit("M=D");
+            }
+
+            emit("@R13");
+            emit("D=M");
+            emit("@R14");
+            emit("A=M");
+            emit("0;JMP");
+        }
+
+        if (compareUsed) {
+            // x is popped from the stack, y is in R13 and the return address in D.
+            // Returns a value with the sign of x - y, without overflow.
+            String xNegative = COMPARE_LABEL + ".NEG";
+            String subtract = COMPARE_LABEL + ".SUB";
+
+            addFunction(COMPARE_NAME);
+            emitLabel(COMPARE_LABEL);
+            emit("@R14");
+            emit("M=D");
+            emit("@SP");
+            emit("AM=M-1");
+            emit("D=M");
+            emit("@" + xNegative);
+            emit("D;JLT");
+            emit("@R13");
+            emit("D=M");
+            emit("@" + subtract);
+            emit("D;JGE");
+            emit("D=1");
+            emit("@R14");
+            emit("A=M");
+            emit("0;JMP");
+
+            emitLabel(xNegative);
+            emit("@R13");
+            emit("D=M");
+            emit("@" + subtract);
+            emit("D;JLT");
+            emit("D=-1");
+            emit("@R14");
+            emit("A=M");
+            emit("0;JMP");
+
+            emitLabel(subtract);
+            emit("@SP");
+            emit("A=M");
+            emit("D=M");
+            emit("@R13");
+            emit("D=D-M");
+            emit("@R14");
+            emit("A=M");
+            emit("0;JMP");
+        }
+    }
+}
@@ -46,6 +46,7 @@ public class VMEmulatorMain {
                 break;
 
             case 1:
+                System.setProperty("java.awt.headless", "true");
                 new HackController(new VMEmulator(), args[0]);
                 break;
 